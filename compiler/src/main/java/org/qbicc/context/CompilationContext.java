@@ -43,6 +43,15 @@ public interface CompilationContext extends DiagnosticContext {
 
     boolean wasEnqueued(ExecutableElement element);
 
+    /**
+     * Determine whether the given element may be enqueued in the current phase.  After the first phase, only
+     * elements which were reachable in the previous phase may be enqueued.
+     *
+     * @param element the element to test (must not be {@code null})
+     * @return {@code true} if the element may be enqueued, or {@code false} if enqueueing it would fail
+     */
+    boolean mayBeEnqueued(ExecutableElement element);
+
     ExecutableElement dequeue();
 
     /**
@@ -104,6 +104,15 @@ public interface Node {
             return blockBuilder;
         }
 
+        /**
+         * Get the entry block of the original program being copied.
+         *
+         * @return the original entry block
+         */
+        public BasicBlock getEntryBlock() {
+            return entryBlock;
+        }
+
         /**
          * Execute this copier on the subprogram that is entered by the given entry block; returns the block copy.
          *
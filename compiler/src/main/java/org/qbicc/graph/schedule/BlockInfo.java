@@ -12,6 +12,7 @@ final class BlockInfo {
     final int index;
     int dominator;
     int domDepth = -1;
+    int loopDepth;
 
     // dominator finder fields
     final BitSet pred = new BitSet();
@@ -0,0 +1,92 @@
+package org.qbicc.graph.schedule;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.qbicc.graph.BasicBlock;
+import io.smallrye.common.constraint.Assert;
+
+/**
+ * The dominator tree of the blocks which are reachable from a method entry block.
+ */
+public final class Dominators {
+    final BlockInfo root;
+    final Map<BasicBlock, BlockInfo> blockInfos;
+    final BlockInfo[] allBlocks;
+
+    private Dominators(final BlockInfo root, final Map<BasicBlock, BlockInfo> blockInfos, final BlockInfo[] allBlocks) {
+        this.root = root;
+        this.blockInfos = blockInfos;
+        this.allBlocks = allBlocks;
+    }
+
+    /**
+     * Compute the dominator tree for the method whose entry block is the given block.
+     *
+     * @param entryBlock the entry block (must not be {@code null})
+     * @return the dominator tree
+     */
+    public static Dominators of(BasicBlock entryBlock) {
+        Assert.checkNotNullParam("entryBlock", entryBlock);
+        int[] indexHolder = new int[] { 2 };
+        Map<BasicBlock, BlockInfo> blockInfos = new HashMap<>();
+        // 1. First, assign numeric indices for each block
+        BlockInfo root = new BlockInfo(entryBlock, 1);
+        root.computeIndices(blockInfos, indexHolder);
+        final int maxOneBasedIndex = indexHolder[0];
+        BlockInfo[] allBlocks = new BlockInfo[maxOneBasedIndex - 1];
+        // a. Map blocks into the array
+        for (BlockInfo value : blockInfos.values()) {
+            allBlocks[value.index - 1] = value;
+        }
+        if (maxOneBasedIndex > 2) {
+            // 2. Now execute algorithm to get dominators mapping
+            new DominatorFinder(allBlocks).main();
+        }
+        // 3. Find the dominator tree depths.
+        for (BlockInfo block : allBlocks) {
+            block.findDomDepths(allBlocks);
+        }
+        return new Dominators(root, blockInfos, allBlocks);
+    }
+
+    /**
+     * Get the number of reachable blocks.
+     *
+     * @return the number of reachable blocks
+     */
+    public int getBlockCount() {
+        return allBlocks.length;
+    }
+
+    /**
+     * Get the immediate dominator of the given block.
+     *
+     * @param block the block (must not be {@code null})
+     * @return the immediate dominator, or {@code null} if the block is the entry block or is not reachable
+     */
+    public BasicBlock getImmediateDominator(BasicBlock block) {
+        BlockInfo info = blockInfos.get(Assert.checkNotNullParam("block", block));
+        return info == null || info.dominator == 0 ? null : allBlocks[info.dominator - 1].block;
+    }
+
+    /**
+     * Determine whether one block dominates another.  Every reachable block dominates itself.
+     *
+     * @param dominator the candidate dominator block (must not be {@code null})
+     * @param block the dominated block (must not be {@code null})
+     * @return {@code true} if both blocks are reachable and every path from the entry block to {@code block}
+     *      passes through {@code dominator}, or {@code false} otherwise
+     */
+    public boolean dominates(BasicBlock dominator, BasicBlock block) {
+        BlockInfo domInfo = blockInfos.get(Assert.checkNotNullParam("dominator", dominator));
+        BlockInfo info = blockInfos.get(Assert.checkNotNullParam("block", block));
+        if (domInfo == null || info == null) {
+            return false;
+        }
+        while (info.domDepth > domInfo.domDepth) {
+            info = allBlocks[info.dominator - 1];
+        }
+        return info == domInfo;
+    }
+}
@@ -4,17 +4,20 @@ import java.util.BitSet;
 import java.util.HashSet;
 import java.util.Set;
 
+/**
+ * A natural loop, as the set of the (zero-based) indices of its member blocks.
+ */
 @SuppressWarnings("serial")
 final class Loop extends BitSet {
     final int number;
     final Loop parent;
-    final int exit;
+    final int header;
     final Set<Loop> children = new HashSet<>();
 
-    Loop(final int number, final Loop parent, final int exit) {
+    Loop(final int number, final Loop parent, final int header) {
         this.number = number;
         this.parent = parent;
-        this.exit = exit;
+        this.header = header;
         if (parent != null) {
             parent.children.add(this);
         }
@@ -24,8 +27,8 @@ final class Loop extends BitSet {
         return parent == null ? 0 : parent.getLevel() + 1;
     }
 
-    int getExit() {
-        return exit;
+    int getHeader() {
+        return header;
     }
 
     void addMember(final int index) {
@@ -1,11 +1,20 @@
 package org.qbicc.graph.schedule;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.qbicc.context.CompilationContext;
 import org.qbicc.context.Location;
 import org.qbicc.graph.BasicBlock;
+import org.qbicc.graph.Div;
+import org.qbicc.graph.Mod;
 import org.qbicc.graph.OrderedNode;
 import org.qbicc.graph.Unschedulable;
 import org.qbicc.graph.Node;
@@ -14,6 +23,7 @@ import org.qbicc.graph.PinnedNode;
 import org.qbicc.graph.Terminator;
 import org.qbicc.graph.Value;
 import org.qbicc.graph.ValueHandle;
+import org.qbicc.type.IntegerType;
 import io.smallrye.common.constraint.Assert;
 
 /**
@@ -36,16 +46,12 @@ public interface Schedule {
      * @return a schedule for the entry block of the method
      */
     static Schedule forMethod(BasicBlock entryBlock) {
-        // Simplified algorithm which simply finds *any* valid schedule.
-        // todo: Find an optimized schedule.
-
-        int[] indexHolder = new int[] { 2 };
-        Map<BasicBlock, BlockInfo> blockInfos = new HashMap<>();
-        // 1. First, assign numeric indices for each block
-        BlockInfo root = new BlockInfo(entryBlock, 1);
-        root.computeIndices(blockInfos, indexHolder);
-        final int maxOneBasedIndex = indexHolder[0];
-        if (maxOneBasedIndex == 2) {
+        // Global code motion after Click, "Global Code Motion / Global Value Numbering" (PLDI 1995): every node is
+        // first scheduled as early as its inputs allow, and then each floating node is moved down to the latest block
+        // which dominates all of its uses, and from there back up the dominator tree to the least deeply nested loop.
+
+        Dominators dominators = Dominators.of(entryBlock);
+        if (dominators.getBlockCount() == 1) {
             // trivial schedule
             return new Schedule() {
                 public BasicBlock getBlockForNode(final Node node) {
@@ -54,21 +60,15 @@ public interface Schedule {
                 }
             };
         }
-        BlockInfo[] allBlocks = new BlockInfo[maxOneBasedIndex - 1];
-        // a. Map blocks into the array
-        for (BlockInfo value : blockInfos.values()) {
-            allBlocks[value.index - 1] = value;
-        }
-        // 2. Now execute algorithm to get dominators mapping
-        new DominatorFinder(allBlocks).main();
-        // 3. Find the dominator tree depths.
-        for (BlockInfo block : allBlocks) {
-            block.findDomDepths(allBlocks);
-        }
+        BlockInfo root = dominators.root;
+        Map<BasicBlock, BlockInfo> blockInfos = dominators.blockInfos;
 
-        // now, use the dominator depths to calculate the simplest possible schedule.
+        // now, use the dominator depths to calculate the earliest possible schedule.
         Map<Node, BlockInfo> scheduledNodes = new HashMap<>();
         scheduleEarly(root, blockInfos, scheduledNodes, entryBlock);
+        // then move the floating nodes to their best blocks.
+        findLoops(dominators.allBlocks);
+        scheduleLate(dominators.allBlocks, blockInfos, scheduledNodes);
         Map<Node, BasicBlock> finalMapping = new HashMap<>(scheduledNodes.size());
         for (Map.Entry<Node, BlockInfo> entry : scheduledNodes.entrySet()) {
             finalMapping.put(entry.getKey(), entry.getValue().block);
@@ -171,4 +171,186 @@ public interface Schedule {
         // all dependencies have been scheduled
         return selected;
     }
+
+    private static void findLoops(BlockInfo[] allBlocks) {
+        // each back edge (to a block which dominates its source) belongs to the natural loop of its target block
+        Map<Integer, BitSet> bodies = new HashMap<>();
+        for (BlockInfo block : allBlocks) {
+            BitSet succ = block.succ;
+            for (int i = succ.nextSetBit(0); i >= 0; i = succ.nextSetBit(i + 1)) {
+                BlockInfo header = allBlocks[i];
+                if (dominates(allBlocks, header, block)) {
+                    BitSet body = bodies.computeIfAbsent(Integer.valueOf(header.index), k -> new BitSet());
+                    body.set(header.index - 1);
+                    addLoopBody(allBlocks, body, block);
+                }
+            }
+        }
+        if (bodies.isEmpty()) {
+            return;
+        }
+        // create the loops from the outside in, so that each one can find its parent
+        List<Map.Entry<Integer, BitSet>> entries = new ArrayList<>(bodies.entrySet());
+        entries.sort(Comparator.comparingInt((Map.Entry<Integer, BitSet> e) -> e.getValue().cardinality()).reversed());
+        List<Loop> loops = new ArrayList<>(entries.size());
+        for (Map.Entry<Integer, BitSet> entry : entries) {
+            int header = entry.getKey().intValue();
+            Loop parent = null;
+            for (Loop candidate : loops) {
+                if (candidate.get(header - 1) && (parent == null || candidate.cardinality() < parent.cardinality())) {
+                    parent = candidate;
+                }
+            }
+            Loop loop = new Loop(loops.size(), parent, header);
+            BitSet body = entry.getValue();
+            for (int i = body.nextSetBit(0); i >= 0; i = body.nextSetBit(i + 1)) {
+                loop.addMember(i);
+            }
+            loops.add(loop);
+        }
+        for (Loop loop : loops) {
+            int depth = loop.getLevel() + 1;
+            for (int i = loop.nextSetBit(0); i >= 0; i = loop.nextSetBit(i + 1)) {
+                allBlocks[i].loopDepth = Math.max(allBlocks[i].loopDepth, depth);
+            }
+        }
+    }
+
+    private static void addLoopBody(BlockInfo[] allBlocks, BitSet body, BlockInfo block) {
+        ArrayDeque<BlockInfo> queue = new ArrayDeque<>();
+        if (! body.get(block.index - 1)) {
+            body.set(block.index - 1);
+            queue.add(block);
+        }
+        BlockInfo current;
+        while ((current = queue.poll()) != null) {
+            BitSet pred = current.pred;
+            for (int i = pred.nextSetBit(0); i >= 0; i = pred.nextSetBit(i + 1)) {
+                if (! body.get(i)) {
+                    body.set(i);
+                    queue.add(allBlocks[i]);
+                }
+            }
+        }
+    }
+
+    private static void scheduleLate(BlockInfo[] allBlocks, Map<BasicBlock, BlockInfo> blockInfos, Map<Node, BlockInfo> scheduledNodes) {
+        Map<Node, List<Node>> users = new HashMap<>();
+        Map<Node, List<BlockInfo>> phiUseBlocks = new HashMap<>();
+        for (Node node : List.copyOf(scheduledNodes.keySet())) {
+            addUses(users, node, node);
+            if (node instanceof PhiValue) {
+                // a phi uses each of its inputs at the end of the corresponding incoming block
+                PhiValue phiValue = (PhiValue) node;
+                for (BasicBlock incoming : phiValue.getPinnedBlock().getIncoming()) {
+                    BlockInfo incomingInfo = blockInfos.get(incoming);
+                    Value value = phiValue.getValueForInput(incoming.getTerminator());
+                    if (incomingInfo != null && value != null) {
+                        addPhiUses(phiUseBlocks, value, incomingInfo);
+                    }
+                }
+            }
+        }
+        Set<Node> placed = new HashSet<>();
+        for (Node node : List.copyOf(scheduledNodes.keySet())) {
+            if (isFloating(node)) {
+                scheduleLate(allBlocks, scheduledNodes, users, phiUseBlocks, placed, node);
+            }
+        }
+    }
+
+    private static BlockInfo scheduleLate(BlockInfo[] allBlocks, Map<Node, BlockInfo> scheduledNodes, Map<Node, List<Node>> users, Map<Node, List<BlockInfo>> phiUseBlocks, Set<Node> placed, Node node) {
+        BlockInfo early = scheduledNodes.get(node);
+        if (! placed.add(node)) {
+            return early;
+        }
+        // find the latest block which dominates every use
+        BlockInfo lca = null;
+        for (Node user : users.getOrDefault(node, List.of())) {
+            BlockInfo useBlock = isFloating(user) ? scheduleLate(allBlocks, scheduledNodes, users, phiUseBlocks, placed, user) : scheduledNodes.get(user);
+            lca = lca == null ? useBlock : findCommonDominator(allBlocks, lca, useBlock);
+        }
+        for (BlockInfo useBlock : phiUseBlocks.getOrDefault(node, List.of())) {
+            lca = lca == null ? useBlock : findCommonDominator(allBlocks, lca, useBlock);
+        }
+        if (lca == null || ! dominates(allBlocks, early, lca)) {
+            // unused (or unexpectedly placed uses); keep the early block
+            return early;
+        }
+        BlockInfo best = lca;
+        if (! mayTrap(node)) {
+            // hoist out of loops, but not above the early block
+            for (BlockInfo block = lca; block != early; ) {
+                block = allBlocks[block.dominator - 1];
+                if (block.loopDepth < best.loopDepth) {
+                    best = block;
+                }
+            }
+        }
+        scheduledNodes.put(node, best);
+        return best;
+    }
+
+    private static void addUses(Map<Node, List<Node>> users, Node user, Node node) {
+        if (node.hasValueHandleDependency()) {
+            addUse(users, user, node.getValueHandle());
+        }
+        int cnt = node.getValueDependencyCount();
+        for (int i = 0; i < cnt; i ++) {
+            addUse(users, user, node.getValueDependency(i));
+        }
+    }
+
+    private static void addUse(Map<Node, List<Node>> users, Node user, Node input) {
+        if (input instanceof Unschedulable) {
+            // the inputs of an unscheduled node are used wherever the node itself is used
+            addUses(users, user, input);
+        } else {
+            users.computeIfAbsent(input, k -> new ArrayList<>()).add(user);
+        }
+    }
+
+    private static void addPhiUses(Map<Node, List<BlockInfo>> phiUseBlocks, Node input, BlockInfo useBlock) {
+        if (input instanceof Unschedulable) {
+            if (input.hasValueHandleDependency()) {
+                addPhiUses(phiUseBlocks, input.getValueHandle(), useBlock);
+            }
+            int cnt = input.getValueDependencyCount();
+            for (int i = 0; i < cnt; i ++) {
+                addPhiUses(phiUseBlocks, input.getValueDependency(i), useBlock);
+            }
+        } else {
+            phiUseBlocks.computeIfAbsent(input, k -> new ArrayList<>()).add(useBlock);
+        }
+    }
+
+    private static boolean isFloating(Node node) {
+        return ! (node instanceof PinnedNode || node instanceof OrderedNode || node instanceof Unschedulable);
+    }
+
+    private static boolean mayTrap(Node node) {
+        // integer division by zero is undefined, so keep it under whatever check guards its uses
+        return (node instanceof Div || node instanceof Mod) && ((Value) node).getType() instanceof IntegerType;
+    }
+
+    private static BlockInfo findCommonDominator(BlockInfo[] allBlocks, BlockInfo a, BlockInfo b) {
+        while (a.domDepth > b.domDepth) {
+            a = allBlocks[a.dominator - 1];
+        }
+        while (b.domDepth > a.domDepth) {
+            b = allBlocks[b.dominator - 1];
+        }
+        while (a != b) {
+            a = allBlocks[a.dominator - 1];
+            b = allBlocks[b.dominator - 1];
+        }
+        return a;
+    }
+
+    private static boolean dominates(BlockInfo[] allBlocks, BlockInfo dominator, BlockInfo block) {
+        while (block.domDepth > dominator.domDepth) {
+            block = allBlocks[block.dominator - 1];
+        }
+        return block == dominator;
+    }
 }
@@ -98,6 +98,14 @@ public interface ClassFile extends FieldResolver,
      * For methods which have no side-effects.
      */
     int I_ACC_NO_SIDE_EFFECTS = 1 << 22;
+    /**
+     * For methods which are frequently executed and should be optimized for speed.
+     */
+    int I_ACC_HOT = 1 << 23;
+    /**
+     * For methods which are rarely executed and should be optimized for size.
+     */
+    int I_ACC_COLD = 1 << 24;
 
     int OP_NOP = 0x00;
     int OP_ACONST_NULL = 0x01;
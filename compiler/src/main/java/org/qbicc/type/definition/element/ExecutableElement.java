@@ -20,6 +20,19 @@ public interface ExecutableElement extends MemberElement {
 
     void replaceMethodBody(MethodBody replacement);
 
+    /**
+     * Release the method body which was replaced by the current method body.  This should be called once no
+     * builder of the current phase may call {@link #getPreviousMethodBody()} for this element any more, so that the
+     * graph of the previous phase can be collected.
+     */
+    void releasePreviousMethodBody();
+
+    /**
+     * Release the current and previous method bodies of this element once its final graph has been generated.
+     * After this call, {@link #getMethodBody()} and {@link #getOrCreateMethodBody()} return {@code null}.
+     */
+    void releaseMethodBody();
+
     FunctionType getType();
 
     MethodDescriptor getDescriptor();
@@ -17,6 +17,7 @@ public final class InitializerElement extends BasicElement implements Executable
     final int methodBodyFactoryIndex;
     volatile MethodBody previousMethodBody;
     volatile MethodBody methodBody;
+    volatile boolean methodBodyReleased;
     final int minimumLineNumber;
     final int maximumLineNumber;
 
@@ -47,7 +48,7 @@ public final class InitializerElement extends BasicElement implements Executable
             if (factory != null) {
                 synchronized (this) {
                     methodBody = this.methodBody;
-                    if (methodBody == null) {
+                    if (methodBody == null && ! methodBodyReleased) {
                         this.methodBody = methodBody = factory.createMethodBody(methodBodyFactoryIndex, this);
                     }
                 }
@@ -64,6 +65,18 @@ public final class InitializerElement extends BasicElement implements Executable
         this.methodBody = replacement;
     }
 
+    public void releasePreviousMethodBody() {
+        previousMethodBody = null;
+    }
+
+    public void releaseMethodBody() {
+        synchronized (this) {
+            methodBodyReleased = true;
+            previousMethodBody = null;
+            methodBody = null;
+        }
+    }
+
     public FunctionType getType() {
         ClassContext classContext = getEnclosingType().getContext();
         TypeSystem ts = classContext.getTypeSystem();
@@ -32,6 +32,7 @@ public abstract class InvokableElement extends AnnotatedElement implements Execu
     final int methodBodyFactoryIndex;
     volatile MethodBody previousMethodBody;
     volatile MethodBody methodBody;
+    volatile boolean methodBodyReleased;
     final int minimumLineNumber;
     final int maximumLineNumber;
 
@@ -93,7 +94,7 @@ public abstract class InvokableElement extends AnnotatedElement implements Execu
             if (factory != null) {
                 synchronized (this) {
                     methodBody = this.methodBody;
-                    if (methodBody == null) {
+                    if (methodBody == null && ! methodBodyReleased) {
                         this.methodBody = previousMethodBody = methodBody = factory.createMethodBody(methodBodyFactoryIndex, this);
                     }
                 }
@@ -110,6 +111,18 @@ public abstract class InvokableElement extends AnnotatedElement implements Execu
         this.methodBody = replacement;
     }
 
+    public void releasePreviousMethodBody() {
+        previousMethodBody = null;
+    }
+
+    public void releaseMethodBody() {
+        synchronized (this) {
+            methodBodyReleased = true;
+            previousMethodBody = null;
+            methodBody = null;
+        }
+    }
+
     public MethodDescriptor getDescriptor() {
         return descriptor;
     }
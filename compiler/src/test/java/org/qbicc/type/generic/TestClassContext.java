@@ -76,6 +76,10 @@ public class TestClassContext implements ClassContext {
             return false;
         }
 
+        public boolean mayBeEnqueued(final ExecutableElement element) {
+            return true;
+        }
+
         public ExecutableElement dequeue() {
             return null;
         }
@@ -1,14 +1,20 @@
 package org.qbicc.driver;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.nio.ByteBuffer;
 import java.nio.file.Path;
-import java.util.ArrayDeque;
 import java.util.List;
-import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import java.util.function.Function;
@@ -60,7 +66,19 @@ final class CompilationContextImpl implements CompilationContext {
     private final ConcurrentMap<VmObject, ClassContext> classLoaderContexts = new ConcurrentHashMap<>();
     volatile Set<ExecutableElement> allowedSet = null;
     final Set<ExecutableElement> queued = ConcurrentHashMap.newKeySet();
-    final Queue<ExecutableElement> queue = new ArrayDeque<>();
+    /**
+     * The queue for elements which are enqueued from outside of a compiler thread.
+     */
+    final ConcurrentLinkedDeque<ExecutableElement> sharedQueue = new ConcurrentLinkedDeque<>();
+    /**
+     * The number of elements which have been enqueued but whose processing has not yet completed.
+     */
+    final AtomicLong pending = new AtomicLong();
+    /**
+     * The number of compiler threads which are currently parked waiting for work.
+     */
+    final AtomicInteger idle = new AtomicInteger();
+    private volatile CompilerThread[] compilerThreads = new CompilerThread[0];
     final Set<ExecutableElement> entryPoints = ConcurrentHashMap.newKeySet();
     final ClassContext bootstrapClassContext;
     private final BiFunction<VmObject, String, DefinedTypeDefinition> finder;
@@ -202,9 +220,16 @@ final class CompilationContextImpl implements CompilationContext {
             throw new IllegalStateException("Cannot reach previously unreachable element: " + element);
         }
         if (queued.add(element)) {
-            synchronized (queue) {
-                queue.add(element);
-                queue.notify();
+            pending.getAndIncrement();
+            Thread thread = Thread.currentThread();
+            if (thread instanceof CompilerThread && ((CompilerThread) thread).context == this) {
+                // push on to our own deque; it will be processed LIFO by us or stolen by another thread
+                ((CompilerThread) thread).deque.addLast(element);
+            } else {
+                sharedQueue.addLast(element);
+            }
+            if (idle.get() > 0) {
+                wakeOne();
             }
         }
     }
@@ -213,16 +238,82 @@ final class CompilationContextImpl implements CompilationContext {
         return queued.contains(element);
     }
 
+    public boolean mayBeEnqueued(final ExecutableElement element) {
+        Set<ExecutableElement> allowedSet = this.allowedSet;
+        return allowedSet == null || allowedSet.contains(element);
+    }
+
     public ExecutableElement dequeue() {
-        synchronized (queue) {
-            return queue.poll();
+        Thread thread = Thread.currentThread();
+        ExecutableElement element;
+        if (thread instanceof CompilerThread && ((CompilerThread) thread).context == this) {
+            element = findWork((CompilerThread) thread);
+        } else {
+            element = sharedQueue.pollFirst();
+            if (element == null) {
+                element = steal(null);
+            }
         }
+        if (element != null && pending.decrementAndGet() == 0) {
+            // the caller has taken responsibility for the element
+            wakeAll();
+        }
+        return element;
     }
 
     void lockEnqueuedSet() {
         allowedSet = Set.copyOf(queued);
-        synchronized (queue) {
-            queued.clear();
+        queued.clear();
+    }
+
+    private ExecutableElement findWork(CompilerThread current) {
+        // own work first (most recently added, which is likely to be hot in cache)
+        ExecutableElement element = current.deque.pollLast();
+        if (element != null) {
+            return element;
+        }
+        element = sharedQueue.pollFirst();
+        if (element != null) {
+            return element;
+        }
+        return steal(current);
+    }
+
+    private ExecutableElement steal(CompilerThread current) {
+        CompilerThread[] threads = compilerThreads;
+        int cnt = threads.length;
+        if (cnt == 0) {
+            return null;
+        }
+        // start at a random victim to avoid having every thief contend on the same deque
+        int start = ThreadLocalRandom.current().nextInt(cnt);
+        for (int i = 0; i < cnt; i ++) {
+            CompilerThread victim = threads[(start + i) % cnt];
+            if (victim != current) {
+                // steal the oldest element, which is least likely to be touched by the owner
+                ExecutableElement element = victim.deque.pollFirst();
+                if (element != null) {
+                    return element;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void wakeOne() {
+        for (CompilerThread thread : compilerThreads) {
+            if (thread.parked) {
+                LockSupport.unpark(thread);
+                return;
+            }
+        }
+    }
+
+    private void wakeAll() {
+        for (CompilerThread thread : compilerThreads) {
+            if (thread.parked) {
+                LockSupport.unpark(thread);
+            }
         }
     }
 
@@ -593,40 +684,34 @@ final class CompilationContextImpl implements CompilationContext {
         }
     }
 
-    int waiting;
-
     void processQueue(Consumer<ExecutableElement> consumer) {
-        synchronized (this) {
-            waiting = 0;
-        }
         runParallelTask(ctxt -> {
+            CompilerThread current = (CompilerThread) Thread.currentThread();
             ExecutableElement element;
             for (;;) {
-                synchronized (queue) {
-                    element = queue.poll();
-                    if (element == null) {
-                        waiting++;
-                        if (waiting == activeThreads) {
-                            // no elements left! let everyone know
-                            queue.notifyAll();
-                            return;
-                        }
-                        for (;;) {
-                            try {
-                                queue.wait();
-                            } catch (InterruptedException ignored) {
-                                // safe to ignore
-                            }
-                            element = queue.poll();
-                            if (element != null) {
-                                break;
-                            }
-                            if (waiting == activeThreads) {
-                                // awoken from sleep to exit
+                element = findWork(current);
+                if (element == null) {
+                    if (pending.get() == 0) {
+                        // quiescent: nothing is queued and nothing is being processed
+                        return;
+                    }
+                    // some other thread is still working and may yet produce more work
+                    current.parked = true;
+                    idle.getAndIncrement();
+                    try {
+                        // re-check after publishing our idle state to avoid missing a wakeup
+                        element = findWork(current);
+                        if (element == null) {
+                            if (pending.get() == 0) {
                                 return;
                             }
+                            // the timeout guards against a racing enqueue which saw no idle threads
+                            LockSupport.parkNanos(this, PARK_NANOS);
+                            continue;
                         }
-                        waiting--;
+                    } finally {
+                        current.parked = false;
+                        idle.getAndDecrement();
                     }
                 }
                 try {
@@ -634,17 +719,43 @@ final class CompilationContextImpl implements CompilationContext {
                 } catch (Exception e) {
                     log.error("An exception was thrown from a queue processing task", e);
                     error(element, "Exception while processing queue task for element: %s", e);
+                } finally {
+                    if (pending.decrementAndGet() == 0) {
+                        // let everyone know that there is nothing left to do
+                        wakeAll();
+                    }
                 }
             }
         });
     }
 
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Get the total CPU time consumed so far by the compiler threads and the calling thread.
+     *
+     * @return the CPU time in nanoseconds, or 0 if CPU time measurement is not supported
+     */
+    long getCpuTime() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (! threadMXBean.isThreadCpuTimeSupported()) {
+            return 0;
+        }
+        long total = Math.max(0, threadMXBean.getCurrentThreadCpuTime());
+        for (CompilerThread thread : compilerThreads) {
+            // returns -1 for terminated threads
+            total += Math.max(0, threadMXBean.getThreadCpuTime(thread.getId()));
+        }
+        return total;
+    }
+
     void startThreads(final int threadCnt, final long stackSize) {
         ThreadGroup threadGroup = new ThreadGroup("qbicc compiler thread group");
-        Thread[] threads = new Thread[threadCnt];
+        CompilerThread[] threads = new CompilerThread[threadCnt];
         for (int i = 0; i < threadCnt; i ++) {
-            threads[i] = new Thread(threadGroup, threadTask, "qbicc compiler thread " + (i + 1) + "/" + threadCnt, stackSize, false);
+            threads[i] = new CompilerThread(this, threadGroup, threadTask, "qbicc compiler thread " + (i + 1) + "/" + threadCnt, stackSize);
         }
+        compilerThreads = threads;
         // now start them all
         for (int i = 0; i < threadCnt; i ++) {
             try {
@@ -686,4 +797,19 @@ final class CompilationContextImpl implements CompilationContext {
             }
         }
     }
+
+    static final class CompilerThread extends Thread {
+        final CompilationContextImpl context;
+        /**
+         * The work deque of this thread.  The owning thread adds and removes work at the tail; other threads steal
+         * work from the head.
+         */
+        final ConcurrentLinkedDeque<ExecutableElement> deque = new ConcurrentLinkedDeque<>();
+        volatile boolean parked;
+
+        CompilerThread(final CompilationContextImpl context, final ThreadGroup group, final Runnable target, final String name, final long stackSize) {
+            super(group, target, name, stackSize, false);
+            this.context = context;
+        }
+    }
 }
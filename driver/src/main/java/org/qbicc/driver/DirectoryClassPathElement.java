@@ -3,11 +3,14 @@ package org.qbicc.driver;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.Set;
 
+/**
+ * A class path element for a directory, such as an exploded module.  Resources are mapped rather than read.
+ */
 final class DirectoryClassPathElement extends ClassPathElement {
     private final Path baseDir;
 
@@ -21,7 +24,12 @@ final class DirectoryClassPathElement extends ClassPathElement {
 
     ClassPathElement.Resource getResource(final String name) throws IOException {
         Path resourcePath = baseDir.resolve(name);
-        return ! Files.exists(resourcePath) ? NON_EXISTENT : new Resource(FileChannel.open(resourcePath, Set.of(StandardOpenOption.READ)));
+        try {
+            return new Resource(FileChannel.open(resourcePath, Set.of(StandardOpenOption.READ)));
+        } catch (NoSuchFileException e) {
+            // most lookups miss, so avoid checking for existence separately
+            return NON_EXISTENT;
+        }
     }
 
     public void close() {
@@ -2,15 +2,24 @@ package org.qbicc.driver;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import java.util.jar.JarFile;
@@ -24,7 +33,9 @@ import org.qbicc.graph.BasicBlock;
 import org.qbicc.graph.BasicBlockBuilder;
 import org.qbicc.graph.Node;
 import org.qbicc.graph.NodeVisitor;
+import org.qbicc.graph.OrderedNode;
 import org.qbicc.graph.ParameterValue;
+import org.qbicc.graph.Terminator;
 import org.qbicc.graph.Value;
 import org.qbicc.graph.ValueHandle;
 import org.qbicc.graph.literal.LiteralFactory;
@@ -35,6 +46,9 @@ import org.qbicc.machine.arch.Platform;
 import org.qbicc.machine.object.ObjectFileProvider;
 import org.qbicc.machine.tool.CToolChain;
 import org.qbicc.object.Function;
+import org.qbicc.plugin.metrics.CountMetric;
+import org.qbicc.plugin.metrics.Metrics;
+import org.qbicc.plugin.metrics.Timer;
 import org.qbicc.tool.llvm.LlvmToolChain;
 import org.qbicc.type.TypeSystem;
 import org.qbicc.context.ClassContext;
@@ -44,9 +58,12 @@ import org.qbicc.type.definition.MethodBody;
 import org.qbicc.type.definition.ModuleDefinition;
 import org.qbicc.type.definition.LoadedTypeDefinition;
 import org.qbicc.type.definition.classfile.ClassFile;
+import org.qbicc.type.definition.element.ConstructorElement;
 import org.qbicc.type.definition.element.ElementVisitor;
 import org.qbicc.type.definition.element.ExecutableElement;
 import org.qbicc.type.definition.element.FunctionElement;
+import org.qbicc.type.definition.element.InitializerElement;
+import org.qbicc.type.definition.element.MethodElement;
 import io.smallrye.common.constraint.Assert;
 import org.jboss.logging.Logger;
 
@@ -55,6 +72,7 @@ import org.jboss.logging.Logger;
  */
 public class Driver implements Closeable {
     private static final Logger log = Logger.getLogger("org.qbicc.driver");
+    private static final Logger metricsLog = Logger.getLogger("org.qbicc.driver.metrics");
 
     static final String MODULE_INFO = "module-info.class";
 
@@ -85,11 +103,14 @@ public class Driver implements Closeable {
     // at this point, the phase is switched to GENERATE
     final List<Consumer<? super CompilationContext>> preGenerateHooks;
     final List<Consumer<? super CompilationContext>> postGenerateHooks;
+    final List<Consumer<? super CompilationContext>> closeHooks;
     final Map<String, BootModule> bootModules;
     final List<ClassPathElement> bootClassPath;
     final Path outputDir;
     final float threadsPerCpu;
     final long stackSize;
+    final boolean metricsEnabled;
+    final Set<Phase> previousBodyPhases;
 
     /*
         Reachability (Run Time)
@@ -110,6 +131,7 @@ public class Driver implements Closeable {
 
     Driver(final Builder builder) {
         initialContext = Assert.checkNotNullParam("builder.initialContext", builder.initialContext);
+        metricsEnabled = builder.metricsEnabled;
         outputDir = Assert.checkNotNullParam("builder.outputDirectory", builder.outputDirectory);
         typeBuilderFactories = builder.typeBuilderFactories;
         initialContext.putAttachment(C_TOOL_CHAIN_KEY, Assert.checkNotNullParam("builder.toolChain", builder.toolChain));
@@ -122,30 +144,39 @@ public class Driver implements Closeable {
         // boot modules
         Map<String, BootModule> bootModules = new HashMap<>();
         List<ClassPathElement> bootClassPath = new ArrayList<>();
+        OffHeapArena arena = new OffHeapArena();
         for (Path path : builder.bootClassPathElements) {
-            // open all bootstrap JARs (MR bootstrap JARs not supported)
-            ClassPathElement element;
+            // open all bootstrap JARs, JMODs, and run time images (MR bootstrap JARs not supported)
+            List<ClassPathElement> elements;
             if (Files.isDirectory(path)) {
-                element = new DirectoryClassPathElement(path);
+                elements = List.of(new DirectoryClassPathElement(path));
             } else {
                 try {
-                    element = new JarFileClassPathElement(new JarFile(path.toFile(), true, ZipFile.OPEN_READ));
+                    if (path.getFileName().toString().endsWith(".jmod")) {
+                        elements = List.of(new JarFileClassPathElement(new ZipFile(path.toFile(), ZipFile.OPEN_READ), "classes/", arena));
+                    } else if (JrtClassPathElement.isImage(path)) {
+                        elements = JrtClassPathElement.openImage(path, arena);
+                    } else {
+                        elements = List.of(new JarFileClassPathElement(new JarFile(path.toFile(), true, ZipFile.OPEN_READ), "", arena));
+                    }
                 } catch (Exception e) {
                     initialContext.error("Failed to open boot class path JAR \"%s\": %s", path, e);
                     continue;
                 }
             }
-            bootClassPath.add(element);
-            try (ClassPathElement.Resource moduleInfo = element.getResource(MODULE_INFO)) {
-                ByteBuffer buffer = moduleInfo.getBuffer();
-                if (buffer == null) {
-                    // ignore non-module
-                    continue;
+            for (ClassPathElement element : elements) {
+                bootClassPath.add(element);
+                try (ClassPathElement.Resource moduleInfo = element.getResource(MODULE_INFO)) {
+                    ByteBuffer buffer = moduleInfo.getBuffer();
+                    if (buffer == null) {
+                        // ignore non-module
+                        continue;
+                    }
+                    ModuleDefinition moduleDefinition = ModuleDefinition.create(buffer);
+                    bootModules.put(moduleDefinition.getName(), new BootModule(element, moduleDefinition));
+                } catch (Exception e) {
+                    initialContext.error("Failed to read module from class path element \"%s\": %s", element.getName(), e);
                 }
-                ModuleDefinition moduleDefinition = ModuleDefinition.create(buffer);
-                bootModules.put(moduleDefinition.getName(), new BootModule(element, moduleDefinition));
-            } catch (Exception e) {
-                initialContext.error("Failed to read module from class path element \"%s\": %s", path, e);
             }
         }
         BootModule javaBase = bootModules.get("java.base");
@@ -155,24 +186,26 @@ public class Driver implements Closeable {
         this.bootModules = bootModules;
         this.bootClassPath = bootClassPath;
 
+        previousBodyPhases = builder.previousBodyPhases.isEmpty() ? EnumSet.noneOf(Phase.class) : EnumSet.copyOf(builder.previousBodyPhases);
+
         // ADD phase
         preAddHooks = List.copyOf(builder.preHooks.getOrDefault(Phase.ADD, List.of()));
         // (no copiers)
-        addBuilderFactory = constructFactory(builder, Phase.ADD);
+        addBuilderFactory = constructFactory(builder, Phase.ADD, metricsEnabled);
         addElementVisitors = List.copyOf(builder.elementVisitors.getOrDefault(Phase.ADD, List.of()));
         postAddHooks = List.copyOf(builder.postHooks.getOrDefault(Phase.ADD, List.of()));
 
         // ANALYZE phase
         preAnalyzeHooks = List.copyOf(builder.preHooks.getOrDefault(Phase.ANALYZE, List.of()));
         addToAnalyzeCopiers = constructCopiers(builder, Phase.ANALYZE);
-        analyzeBuilderFactory = constructFactory(builder, Phase.ANALYZE);
+        analyzeBuilderFactory = constructFactory(builder, Phase.ANALYZE, metricsEnabled);
         analyzeElementVisitors = List.copyOf(builder.elementVisitors.getOrDefault(Phase.ANALYZE, List.of()));
         postAnalyzeHooks = List.copyOf(builder.postHooks.getOrDefault(Phase.ANALYZE, List.of()));
 
         // LOWER phase
         preLowerHooks = List.copyOf(builder.preHooks.getOrDefault(Phase.LOWER, List.of()));
         analyzeToLowerCopiers = constructCopiers(builder, Phase.LOWER);
-        lowerBuilderFactory = constructFactory(builder, Phase.LOWER);
+        lowerBuilderFactory = constructFactory(builder, Phase.LOWER, metricsEnabled);
         lowerElementVisitors = List.copyOf(builder.elementVisitors.getOrDefault(Phase.LOWER, List.of()));
         postLowerHooks = List.copyOf(builder.postHooks.getOrDefault(Phase.LOWER, List.of()));
 
@@ -180,6 +213,7 @@ public class Driver implements Closeable {
         preGenerateHooks = List.copyOf(builder.preHooks.getOrDefault(Phase.GENERATE, List.of()));
         // (no builder factory)
         postGenerateHooks = List.copyOf(builder.postHooks.getOrDefault(Phase.GENERATE, List.of()));
+        closeHooks = List.copyOf(builder.closeHooks);
 
         List<BiFunction<? super ClassContext, DescriptorTypeResolver, DescriptorTypeResolver>> resolverFactories = new ArrayList<>(builder.resolverFactories);
         Collections.reverse(resolverFactories);
@@ -219,20 +253,45 @@ public class Driver implements Closeable {
         };
     }
 
-    private static BiFunction<CompilationContext, ExecutableElement, BasicBlockBuilder> constructFactory(final Builder builder, final Phase phase) {
-        BiFunction<? super CompilationContext, BasicBlockBuilder, BasicBlockBuilder> addWrapper = assembleFactories(builder.builderFactories.getOrDefault(phase, Map.of()));
+    private static BiFunction<CompilationContext, ExecutableElement, BasicBlockBuilder> constructFactory(final Builder builder, final Phase phase, final boolean timed) {
+        BiFunction<? super CompilationContext, BasicBlockBuilder, BasicBlockBuilder> addWrapper = assembleFactories(builder.builderFactories.getOrDefault(phase, Map.of()), phase, timed);
+        if (timed) {
+            return (ctxt, executableElement) -> {
+                Timer timer = Metrics.get(ctxt).getOrCreateRootTimer("builders").getOrAddChild(phase.toString(), "simple");
+                return addWrapper.apply(ctxt, new TimingBasicBlockBuilder(timer, BasicBlockBuilder.simpleBuilder(ctxt.getTypeSystem(), executableElement)));
+            };
+        }
         return (ctxt, executableElement) -> addWrapper.apply(ctxt, BasicBlockBuilder.simpleBuilder(ctxt.getTypeSystem(), executableElement));
     }
 
-    private static BiFunction<? super CompilationContext, BasicBlockBuilder, BasicBlockBuilder> assembleFactories(Map<BuilderStage, List<BiFunction<? super CompilationContext, BasicBlockBuilder, BasicBlockBuilder>>> map) {
+    private static BiFunction<? super CompilationContext, BasicBlockBuilder, BasicBlockBuilder> assembleFactories(Map<BuilderStage, List<BiFunction<? super CompilationContext, BasicBlockBuilder, BasicBlockBuilder>>> map, Phase phase, boolean timed) {
         return assembleFactories(List.of(
-            assembleFactories(map.getOrDefault(BuilderStage.TRANSFORM, List.of())),
-            assembleFactories(map.getOrDefault(BuilderStage.CORRECT, List.of())),
-            assembleFactories(map.getOrDefault(BuilderStage.OPTIMIZE, List.of())),
-            assembleFactories(map.getOrDefault(BuilderStage.INTEGRITY, List.of()))
+            assembleFactories(timed(map.getOrDefault(BuilderStage.TRANSFORM, List.of()), phase, BuilderStage.TRANSFORM, timed)),
+            assembleFactories(timed(map.getOrDefault(BuilderStage.CORRECT, List.of()), phase, BuilderStage.CORRECT, timed)),
+            assembleFactories(timed(map.getOrDefault(BuilderStage.OPTIMIZE, List.of()), phase, BuilderStage.OPTIMIZE, timed)),
+            assembleFactories(timed(map.getOrDefault(BuilderStage.INTEGRITY, List.of()), phase, BuilderStage.INTEGRITY, timed))
         ));
     }
 
+    private static List<BiFunction<? super CompilationContext, BasicBlockBuilder, BasicBlockBuilder>> timed(List<BiFunction<? super CompilationContext, BasicBlockBuilder, BasicBlockBuilder>> list, Phase phase, BuilderStage stage, boolean timed) {
+        if (! timed || list.isEmpty()) {
+            return list;
+        }
+        List<BiFunction<? super CompilationContext, BasicBlockBuilder, BasicBlockBuilder>> timedList = new ArrayList<>(list.size());
+        for (BiFunction<? super CompilationContext, BasicBlockBuilder, BasicBlockBuilder> factory : list) {
+            timedList.add((c, delegate) -> {
+                BasicBlockBuilder builder = factory.apply(c, delegate);
+                if (builder == delegate) {
+                    // the factory opted out
+                    return builder;
+                }
+                Timer timer = Metrics.get(c).getOrCreateRootTimer("builders").getOrAddChild(phase.toString(), stage.toString(), builder.getClass().getSimpleName());
+                return new TimingBasicBlockBuilder(timer, builder);
+            });
+        }
+        return timedList;
+    }
+
     private static BiFunction<? super CompilationContext, BasicBlockBuilder, BasicBlockBuilder> assembleFactories(List<BiFunction<? super CompilationContext, BasicBlockBuilder, BasicBlockBuilder>> list) {
         if (list.isEmpty()) {
             return (c, b) -> b;
@@ -313,8 +372,12 @@ public class Driver implements Closeable {
         try {
             return execute0();
         } finally {
+            enterPhase(null);
             // shut down threads
             compilationContext.exitThreads();
+            if (metricsEnabled) {
+                writeMetrics();
+            }
         }
     }
 
@@ -323,9 +386,11 @@ public class Driver implements Closeable {
 
         // ADD phase
 
+        enterPhase(Phase.ADD);
+
         for (Consumer<? super CompilationContext> hook : preAddHooks) {
             try {
-                hook.accept(compilationContext);
+                runHook(hook, Phase.ADD, "pre");
             } catch (Exception e) {
                 log.error("An exception was thrown in a pre-add hook", e);
                 compilationContext.error(e, "Pre-add hook failed: %s", e);
@@ -359,7 +424,10 @@ public class Driver implements Closeable {
             if (element.hasMethodBody()) {
                 // cause method and field references to be resolved
                 try {
-                    element.getOrCreateMethodBody();
+                    MethodBody body = element.getOrCreateMethodBody();
+                    if (metricsEnabled) {
+                        countNodes(Phase.ADD, element, body.getEntryBlock());
+                    }
                 } catch (Exception e) {
                     log.error("An exception was thrown while constructing a method body", e);
                     compilationContext.error(element, "Exception while constructing method body: %s", e);
@@ -367,7 +435,7 @@ public class Driver implements Closeable {
             }
             for (ElementVisitor<CompilationContext, Void> elementVisitor : this.addElementVisitors) {
                 try {
-                    element.accept(elementVisitor, compilationContext);
+                    visitElement(element, elementVisitor, Phase.ADD);
                 } catch (Exception e) {
                     log.error("An exception was thrown in an element visitor", e);
                     compilationContext.error(element, "Element visitor threw an exception: %s", e);
@@ -382,7 +450,7 @@ public class Driver implements Closeable {
 
         for (Consumer<? super CompilationContext> hook : postAddHooks) {
             try {
-                hook.accept(compilationContext);
+                runHook(hook, Phase.ADD, "post");
             } catch (Exception e) {
                 log.error("An exception was thrown in a post-add hook", e);
                 compilationContext.error("Post-add hook failed: %s", e);
@@ -402,11 +470,12 @@ public class Driver implements Closeable {
 
         // ANALYZE phase
 
+        enterPhase(Phase.ANALYZE);
         compilationContext.setBlockFactory(analyzeBuilderFactory);
 
         for (Consumer<? super CompilationContext> hook : preAnalyzeHooks) {
             try {
-                hook.accept(compilationContext);
+                runHook(hook, Phase.ANALYZE, "pre");
             } catch (Exception e) {
                 log.error("An exception was thrown in a pre-analyze hook", e);
                 compilationContext.error("Pre-analyze hook failed: %s", e);
@@ -423,6 +492,7 @@ public class Driver implements Closeable {
             compilationContext.enqueue(entryPoint);
         }
 
+        Set<ExecutableElement> analyzed = ConcurrentHashMap.newKeySet();
         compilationContext.processQueue(element -> {
             if (element.hasMethodBody()) {
                 // rewrite the method body
@@ -433,10 +503,14 @@ public class Driver implements Closeable {
                 BasicBlock copyBlock = Node.Copier.execute(entryBlock, builder, compilationContext, addToAnalyzeCopiers);
                 builder.finish();
                 element.replaceMethodBody(MethodBody.of(copyBlock, Schedule.forMethod(copyBlock), original.getThisValue(), original.getParameterValues()));
+                releasePreviousMethodBody(Phase.ANALYZE, element, analyzed);
+                if (metricsEnabled) {
+                    countNodes(Phase.ANALYZE, element, copyBlock);
+                }
             }
             for (ElementVisitor<CompilationContext, Void> elementVisitor : this.analyzeElementVisitors) {
                 try {
-                    element.accept(elementVisitor, compilationContext);
+                    visitElement(element, elementVisitor, Phase.ANALYZE);
                 } catch (Exception e) {
                     log.error("An exception was thrown in an element visitor", e);
                     compilationContext.error(element, "Element visitor threw an exception: %s", e);
@@ -449,9 +523,12 @@ public class Driver implements Closeable {
             return false;
         }
 
+        // the ADD graphs are no longer needed by any builder
+        releasePreviousMethodBodies(analyzed);
+
         for (Consumer<? super CompilationContext> hook : postAnalyzeHooks) {
             try {
-                hook.accept(compilationContext);
+                runHook(hook, Phase.ANALYZE, "post");
             } catch (Exception e) {
                 log.error("An exception was thrown in a post-analyze hook", e);
                 compilationContext.error("Post-analyze hook failed: %s", e);
@@ -466,11 +543,12 @@ public class Driver implements Closeable {
 
         // LOWER phase
 
+        enterPhase(Phase.LOWER);
         compilationContext.setBlockFactory(lowerBuilderFactory);
 
         for (Consumer<? super CompilationContext> hook : preLowerHooks) {
             try {
-                hook.accept(compilationContext);
+                runHook(hook, Phase.LOWER, "pre");
             } catch (Exception e) {
                 log.error("An exception was thrown in a pre-lower hook", e);
                 compilationContext.error("Pre-lower hook failed: %s", e);
@@ -487,6 +565,7 @@ public class Driver implements Closeable {
             compilationContext.enqueue(entryPoint);
         }
 
+        Set<ExecutableElement> lowered = ConcurrentHashMap.newKeySet();
         compilationContext.processQueue(element -> {
             if (element.hasMethodBody()) {
                 // copy to a function; todo: this should eventually be done in the lowering plugin
@@ -516,10 +595,14 @@ public class Driver implements Closeable {
                 builder.finish();
                 function.replaceBody(MethodBody.of(copyBlock, Schedule.forMethod(copyBlock), thisValue, paramValues));
                 element.replaceMethodBody(function.getBody());
+                releasePreviousMethodBody(Phase.LOWER, element, lowered);
+                if (metricsEnabled) {
+                    countNodes(Phase.LOWER, element, copyBlock);
+                }
             }
             for (ElementVisitor<CompilationContext, Void> elementVisitor : this.lowerElementVisitors) {
                 try {
-                    element.accept(elementVisitor, compilationContext);
+                    visitElement(element, elementVisitor, Phase.LOWER);
                 } catch (Exception e) {
                     log.error("An exception was thrown in an element visitor", e);
                     compilationContext.error(element, "Element visitor threw an exception: %s", e);
@@ -532,9 +615,12 @@ public class Driver implements Closeable {
             return false;
         }
 
+        // the ANALYZE graphs are no longer needed by any builder
+        releasePreviousMethodBodies(lowered);
+
         for (Consumer<? super CompilationContext> hook : postLowerHooks) {
             try {
-                hook.accept(compilationContext);
+                runHook(hook, Phase.LOWER, "post");
             } catch (Exception e) {
                 log.error("An exception was thrown in a post-lower hook", e);
                 compilationContext.error("Post-lower hook failed: %s", e);
@@ -549,9 +635,11 @@ public class Driver implements Closeable {
 
         // GENERATE phase
 
+        enterPhase(Phase.GENERATE);
+
         for (Consumer<? super CompilationContext> hook : preGenerateHooks) {
             try {
-                hook.accept(compilationContext);
+                runHook(hook, Phase.GENERATE, "pre");
             } catch (Exception e) {
                 log.error("An exception was thrown in a pre-generate hook", e);
                 compilationContext.error("Pre-generate hook failed: %s", e);
@@ -566,7 +654,7 @@ public class Driver implements Closeable {
 
         for (Consumer<? super CompilationContext> hook : postGenerateHooks) {
             try {
-                hook.accept(compilationContext);
+                runHook(hook, Phase.GENERATE, "post");
             } catch (Exception e) {
                 log.error("An exception was thrown in a post-generate hook", e);
                 compilationContext.error("Post-generate hook failed: %s", e);
@@ -580,7 +668,193 @@ public class Driver implements Closeable {
         return compilationContext.errors() == 0;
     }
 
+    /**
+     * Release the previous method body of an element right after it was copied, unless builders of the phase may
+     * still use it, in which case the element is remembered so that it can be released at the end of the phase.
+     */
+    private void releasePreviousMethodBody(Phase phase, ExecutableElement element, Set<ExecutableElement> retained) {
+        if (previousBodyPhases.contains(phase)) {
+            retained.add(element);
+        } else {
+            element.releasePreviousMethodBody();
+        }
+    }
+
+    private static void releasePreviousMethodBodies(Set<ExecutableElement> retained) {
+        for (ExecutableElement element : retained) {
+            element.releasePreviousMethodBody();
+        }
+        retained.clear();
+    }
+
+    private void runHook(Consumer<? super CompilationContext> hook, Phase phase, String kind) {
+        if (! metricsEnabled) {
+            hook.accept(compilationContext);
+            return;
+        }
+        String name = getHookName(hook);
+        Metrics metrics = Metrics.get(compilationContext);
+        long cpuStart = compilationContext.getCpuTime();
+        long start = System.nanoTime();
+        try {
+            hook.accept(compilationContext);
+        } finally {
+            metrics.getOrCreateRootTimer("hooks-wall").getOrAddChild(phase.toString(), kind, name).add(System.nanoTime() - start);
+            metrics.getOrCreateRootTimer("hooks-cpu").getOrAddChild(phase.toString(), kind, name).add(compilationContext.getCpuTime() - cpuStart);
+        }
+    }
+
+    private static String getHookName(Object hook) {
+        String name = hook.getClass().getName();
+        // lambdas and method references have synthetic class names
+        int idx = name.indexOf("$$Lambda");
+        return idx == -1 ? name : name.substring(0, idx) + "$$Lambda";
+    }
+
+    private void visitElement(ExecutableElement element, ElementVisitor<CompilationContext, Void> elementVisitor, Phase phase) {
+        if (! metricsEnabled) {
+            element.accept(elementVisitor, compilationContext);
+            return;
+        }
+        Timer timer = Metrics.get(compilationContext).getOrCreateRootTimer("element-visitors").getOrAddChild(phase.toString(), elementVisitor.getClass().getName());
+        Timer old = timer.start();
+        if (old == timer) {
+            element.accept(elementVisitor, compilationContext);
+            return;
+        }
+        try {
+            element.accept(elementVisitor, compilationContext);
+        } finally {
+            timer.end(old);
+        }
+    }
+
+    private Phase currentPhase;
+    private long phaseStart;
+    private long phaseCpuStart;
+    private long heapPeak;
+
+    private void enterPhase(Phase phase) {
+        if (! metricsEnabled) {
+            return;
+        }
+        long now = System.nanoTime();
+        long cpuNow = compilationContext.getCpuTime();
+        Phase currentPhase = this.currentPhase;
+        if (currentPhase != null) {
+            Metrics metrics = Metrics.get(compilationContext);
+            metrics.getOrCreateRootTimer("phases-wall").getOrAddChild(currentPhase.toString()).add(now - phaseStart);
+            metrics.getOrCreateRootTimer("phases-cpu").getOrAddChild(currentPhase.toString()).add(cpuNow - phaseCpuStart);
+            long phaseHeapPeak = getHeapPeak();
+            metrics.getOrCreateRootMemorySizeMetric("phases-heap-peak").getOrAddChild(currentPhase.toString()).add(phaseHeapPeak);
+            metrics.getOrCreateRootMemorySizeMetric("phases-heap-end").getOrAddChild(currentPhase.toString()).add(getHeapUsed());
+            heapPeak = Math.max(heapPeak, phaseHeapPeak);
+            if (phase == null) {
+                metrics.getOrCreateRootMemorySizeMetric("heap-peak").add(heapPeak);
+            }
+        }
+        this.currentPhase = phase;
+        phaseStart = now;
+        phaseCpuStart = cpuNow;
+        resetHeapPeak();
+    }
+
+    private static long getHeapPeak() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static long getHeapUsed() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static void resetHeapPeak() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    private void countNodes(Phase phase, ExecutableElement element, BasicBlock entryBlock) {
+        Set<Node> visited = new HashSet<>();
+        Set<BasicBlock> visitedBlocks = new HashSet<>();
+        ArrayDeque<BasicBlock> blocks = new ArrayDeque<>();
+        ArrayDeque<Node> nodes = new ArrayDeque<>();
+        blocks.add(entryBlock);
+        visitedBlocks.add(entryBlock);
+        BasicBlock block;
+        while ((block = blocks.poll()) != null) {
+            Terminator terminator = block.getTerminator();
+            nodes.add(terminator);
+            int cnt = terminator.getSuccessorCount();
+            for (int i = 0; i < cnt; i ++) {
+                BasicBlock successor = terminator.getSuccessor(i);
+                if (visitedBlocks.add(successor)) {
+                    blocks.add(successor);
+                }
+            }
+        }
+        Node node;
+        while ((node = nodes.poll()) != null) {
+            if (visited.add(node)) {
+                int cnt = node.getValueDependencyCount();
+                for (int i = 0; i < cnt; i ++) {
+                    nodes.add(node.getValueDependency(i));
+                }
+                if (node.hasValueHandleDependency()) {
+                    nodes.add(node.getValueHandle());
+                }
+                if (node instanceof OrderedNode && ((OrderedNode) node).hasDependency()) {
+                    nodes.add(((OrderedNode) node).getDependency());
+                }
+            }
+        }
+        CountMetric phaseMetric = Metrics.get(compilationContext).getOrCreateRootCountMetric("nodes").getOrAddChild(phase.toString());
+        phaseMetric.getOrAddChild(element.getEnclosingType().getInternalName(), getMetricName(element)).add(visited.size());
+    }
+
+    private static String getMetricName(ExecutableElement element) {
+        if (element instanceof InitializerElement) {
+            return "<clinit>";
+        } else if (element instanceof ConstructorElement) {
+            return "<init>.id" + element.getIndex();
+        } else if (element instanceof MethodElement) {
+            return ((MethodElement) element).getName() + ".id" + element.getIndex();
+        } else if (element instanceof FunctionElement) {
+            return ((FunctionElement) element).getName();
+        } else {
+            return element.toString();
+        }
+    }
+
+    private void writeMetrics() {
+        Metrics metrics = Metrics.get(compilationContext);
+        String text = metrics.formatAll(new StringBuilder()).toString();
+        metricsLog.info(text);
+        try {
+            Files.createDirectories(outputDir);
+            Files.writeString(outputDir.resolve("metrics.txt"), text, StandardCharsets.UTF_8);
+            Files.writeString(outputDir.resolve("metrics.json"), metrics.formatAllAsJson(new StringBuilder()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            compilationContext.warning("Failed to write compilation metrics: %s", e);
+        }
+    }
+
     public void close() {
+        for (Consumer<? super CompilationContext> hook : closeHooks) {
+            try {
+                hook.accept(compilationContext);
+            } catch (Exception e) {
+                log.error("An exception was thrown in a close hook", e);
+                compilationContext.error("Close hook failed: %s", e);
+            }
+        }
         for (ClassPathElement element : bootClassPath) {
             try {
                 element.close();
@@ -611,7 +885,9 @@ public class Driver implements Closeable {
         final List<BiFunction<? super ClassContext, DescriptorTypeResolver, DescriptorTypeResolver>> resolverFactories = new ArrayList<>();
         final Map<Phase, List<Consumer<? super CompilationContext>>> preHooks = new EnumMap<>(Phase.class);
         final Map<Phase, List<Consumer<? super CompilationContext>>> postHooks = new EnumMap<>(Phase.class);
+        final List<Consumer<? super CompilationContext>> closeHooks = new ArrayList<>();
         final Map<Phase, List<ElementVisitor<CompilationContext, Void>>> elementVisitors = new EnumMap<>(Phase.class);
+        final Set<Phase> previousBodyPhases = EnumSet.noneOf(Phase.class);
 
         Path outputDirectory = Path.of(".");
         BaseDiagnosticContext initialContext;
@@ -623,6 +899,7 @@ public class Driver implements Closeable {
         ObjectFileProvider objectFileProvider;
 
         float threadsPerCpu = 2.0f;
+        boolean metricsEnabled;
         // 16 MB is the default stack size
         long stackSize = 0x1000000L;
 
@@ -707,12 +984,38 @@ public class Driver implements Closeable {
             return this;
         }
 
+        /**
+         * Add a hook which is run when the driver is closed, whether or not the compilation has completed.  Such a
+         * hook releases resources which were acquired by a phase hook but would otherwise be released by a later hook
+         * that is skipped when the compilation bails out.
+         *
+         * @param hook the hook (must not be {@code null})
+         * @return this builder
+         */
+        public Builder addCloseHook(Consumer<? super CompilationContext> hook) {
+            closeHooks.add(Assert.checkNotNullParam("hook", hook));
+            return this;
+        }
+
         public Builder addElementVisitor(Phase phase, ElementVisitor<CompilationContext, Void> visitor) {
             Assert.checkNotNullParam("visitor", visitor);
             elementVisitors.computeIfAbsent(phase, Builder::newArrayList).add(visitor);
             return this;
         }
 
+        /**
+         * Indicate that the builders of the given phase may use the previous method body of any element (see
+         * {@link ExecutableElement#getPreviousMethodBody()}) until the end of the phase.  Otherwise, the previous
+         * body of an element is released as soon as the element has been copied.
+         *
+         * @param phase the phase (must not be {@code null})
+         * @return this builder
+         */
+        public Builder retainPreviousMethodBodies(Phase phase) {
+            previousBodyPhases.add(Assert.checkNotNullParam("phase", phase));
+            return this;
+        }
+
         public Path getOutputDirectory() {
             return outputDirectory;
         }
@@ -786,6 +1089,23 @@ public class Driver implements Closeable {
             return this;
         }
 
+        public boolean isMetricsEnabled() {
+            return metricsEnabled;
+        }
+
+        /**
+         * Establish whether compilation metrics should be collected.  When enabled, the time spent in each phase, hook,
+         * element visitor, and basic block builder is recorded along with the node count of each method, and a report
+         * is written to the log and to {@code metrics.txt} and {@code metrics.json} in the output directory.
+         *
+         * @param metricsEnabled {@code true} to collect metrics, {@code false} otherwise
+         * @return this builder
+         */
+        public Builder setMetricsEnabled(boolean metricsEnabled) {
+            this.metricsEnabled = metricsEnabled;
+            return this;
+        }
+
         public long getStackSize() {
             return stackSize;
         }
@@ -3,39 +3,52 @@ package org.qbicc.driver;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
+/**
+ * A class path element for a JAR file, or a JMOD file (whose classes are in the {@code classes/} directory).  Entries
+ * are inflated into the off-heap arena rather than onto the heap.
+ */
 final class JarFileClassPathElement extends ClassPathElement {
-    private final JarFile jarFile;
-
-    JarFileClassPathElement(final JarFile jarFile) {
-        this.jarFile = jarFile;
+    private final ZipFile zipFile;
+    private final String prefix;
+    private final OffHeapArena arena;
+
+    JarFileClassPathElement(final ZipFile zipFile, final String prefix, final OffHeapArena arena) {
+        this.zipFile = zipFile;
+        this.prefix = prefix;
+        this.arena = arena;
     }
 
     String getName() {
-        return jarFile.getName();
+        return zipFile.getName();
     }
 
     ClassPathElement.Resource getResource(final String name) {
-        JarEntry jarEntry = jarFile.getJarEntry(name);
-        return jarEntry == null ? NON_EXISTENT : new Resource(jarEntry);
+        ZipEntry entry = zipFile.getEntry(prefix + name);
+        return entry == null ? NON_EXISTENT : new Resource(entry);
     }
 
     public void close() throws IOException {
-        jarFile.close();
+        zipFile.close();
     }
 
     final class Resource extends ClassPathElement.Resource {
-        private final JarEntry entry;
+        private final ZipEntry entry;
 
-        Resource(final JarEntry entry) {
+        Resource(final ZipEntry entry) {
             this.entry = entry;
         }
 
         ByteBuffer getBuffer() throws IOException {
-            try (InputStream inputStream = jarFile.getInputStream(entry)) {
-                return ByteBuffer.wrap(inputStream.readAllBytes());
+            long size = entry.getSize();
+            try (InputStream inputStream = zipFile.getInputStream(entry)) {
+                if (size < 0 || size > Integer.MAX_VALUE) {
+                    // unknown size
+                    return ByteBuffer.wrap(inputStream.readAllBytes());
+                }
+                return arena.read(inputStream, (int) size);
             }
         }
 
@@ -0,0 +1,123 @@
+package org.qbicc.driver;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A class path element for one module of a JDK run time image ({@code lib/modules}), which is read through the
+ * {@code jrt} file system of the JDK that the image belongs to.  Resources are read straight into the off-heap arena.
+ */
+final class JrtClassPathElement extends ClassPathElement {
+    private static final int JIMAGE_MAGIC = 0xCAFEDADA;
+
+    private final Path moduleDir;
+    private final FileSystemHolder holder;
+    private final OffHeapArena arena;
+
+    private JrtClassPathElement(final Path moduleDir, final FileSystemHolder holder, final OffHeapArena arena) {
+        this.moduleDir = moduleDir;
+        this.holder = holder;
+        this.arena = arena;
+    }
+
+    /**
+     * Determine whether the given file is a run time image.
+     *
+     * @param path the file path
+     * @return {@code true} if the file is a run time image, {@code false} otherwise
+     * @throws IOException if the file could not be read
+     */
+    static boolean isImage(Path path) throws IOException {
+        try (SeekableByteChannel channel = Files.newByteChannel(path)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            while (magic.hasRemaining()) {
+                if (channel.read(magic) == -1) {
+                    return false;
+                }
+            }
+            // the image is in native byte order
+            return magic.getInt(0) == JIMAGE_MAGIC || Integer.reverseBytes(magic.getInt(0)) == JIMAGE_MAGIC;
+        }
+    }
+
+    /**
+     * Open an element for each module of a run time image.
+     *
+     * @param imagePath the path of the image, which must be in the {@code lib} directory of its JDK
+     * @param arena the arena to read resources into
+     * @return the elements
+     * @throws IOException if the image could not be opened
+     */
+    static List<ClassPathElement> openImage(Path imagePath, OffHeapArena arena) throws IOException {
+        Path javaHome = imagePath.toAbsolutePath().getParent().getParent();
+        FileSystem fileSystem = FileSystems.newFileSystem(URI.create("jrt:/"), Map.of("java.home", javaHome.toString()));
+        List<ClassPathElement> elements = new ArrayList<>();
+        FileSystemHolder holder = new FileSystemHolder(fileSystem);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(fileSystem.getPath("/modules"))) {
+            for (Path moduleDir : stream) {
+                holder.refs.incrementAndGet();
+                elements.add(new JrtClassPathElement(moduleDir, holder, arena));
+            }
+        } catch (IOException | RuntimeException e) {
+            fileSystem.close();
+            throw e;
+        }
+        if (elements.isEmpty()) {
+            fileSystem.close();
+        }
+        return elements;
+    }
+
+    String getName() {
+        return "jrt:" + moduleDir;
+    }
+
+    ClassPathElement.Resource getResource(final String name) {
+        Path path = moduleDir.resolve(name);
+        return ! Files.isRegularFile(path) ? NON_EXISTENT : new Resource(path);
+    }
+
+    public void close() throws IOException {
+        if (holder.refs.decrementAndGet() == 0) {
+            holder.fileSystem.close();
+        }
+    }
+
+    final class Resource extends ClassPathElement.Resource {
+        private final Path path;
+
+        Resource(final Path path) {
+            this.path = path;
+        }
+
+        ByteBuffer getBuffer() throws IOException {
+            try (SeekableByteChannel channel = Files.newByteChannel(path)) {
+                return arena.read(channel, Math.toIntExact(channel.size()));
+            }
+        }
+
+        public void close() {
+            // no operation
+        }
+    }
+
+    static final class FileSystemHolder {
+        final FileSystem fileSystem;
+        final AtomicInteger refs = new AtomicInteger();
+
+        FileSystemHolder(final FileSystem fileSystem) {
+            this.fileSystem = fileSystem;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package org.qbicc.driver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A pool of direct memory for class path resources which cannot be mapped, such as compressed JAR entries.  Small
+ * resources are carved out of large shared chunks, so that the class bytes (which live as long as their class file)
+ * take up neither Java heap space nor a separate direct allocation each.  A chunk is released once none of the
+ * resources that were allocated from it are reachable anymore.
+ */
+final class OffHeapArena {
+    private static final int CHUNK_SIZE = 1 << 20;
+    private static final int MAX_SHARED_SIZE = CHUNK_SIZE >> 4;
+
+    private ByteBuffer chunk;
+
+    OffHeapArena() {}
+
+    /**
+     * Allocate a buffer.
+     *
+     * @param size the buffer size
+     * @return the buffer, whose position is zero and whose limit and capacity are {@code size}
+     */
+    ByteBuffer allocate(int size) {
+        if (size > MAX_SHARED_SIZE) {
+            return ByteBuffer.allocateDirect(size);
+        }
+        synchronized (this) {
+            ByteBuffer chunk = this.chunk;
+            if (chunk == null || chunk.remaining() < size) {
+                // abandon the rest of the current chunk
+                this.chunk = chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+            }
+            int pos = chunk.position();
+            ByteBuffer buffer = chunk.duplicate().position(pos).limit(pos + size).slice();
+            chunk.position(pos + size);
+            return buffer;
+        }
+    }
+
+    /**
+     * Read a resource of known size into a new buffer.
+     *
+     * @param inputStream the stream to read from
+     * @param size the number of bytes to read
+     * @return the buffer holding the resource, with its position at zero
+     * @throws IOException if reading fails or the stream ends early
+     */
+    ByteBuffer read(InputStream inputStream, int size) throws IOException {
+        ByteBuffer buffer = allocate(size);
+        byte[] bytes = SCRATCH.get();
+        while (buffer.hasRemaining()) {
+            int res = inputStream.read(bytes, 0, Math.min(bytes.length, buffer.remaining()));
+            if (res == -1) {
+                throw new EOFException();
+            }
+            buffer.put(bytes, 0, res);
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Read a resource of known size into a new buffer.
+     *
+     * @param channel the channel to read from
+     * @param size the number of bytes to read
+     * @return the buffer holding the resource, with its position at zero
+     * @throws IOException if reading fails or the channel ends early
+     */
+    ByteBuffer read(ReadableByteChannel channel, int size) throws IOException {
+        ByteBuffer buffer = allocate(size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) {
+                throw new EOFException();
+            }
+        }
+        return buffer.flip();
+    }
+
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[8192]);
+}
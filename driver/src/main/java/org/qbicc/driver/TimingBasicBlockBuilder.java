@@ -0,0 +1,493 @@
+package org.qbicc.driver;
+
+import java.util.List;
+
+import org.qbicc.graph.BasicBlock;
+import org.qbicc.graph.BasicBlockBuilder;
+import org.qbicc.graph.BlockLabel;
+import org.qbicc.graph.CheckCast;
+import org.qbicc.graph.DelegatingBasicBlockBuilder;
+import org.qbicc.graph.DispatchInvocation;
+import org.qbicc.graph.MemoryAtomicityMode;
+import org.qbicc.graph.Node;
+import org.qbicc.graph.ParameterValue;
+import org.qbicc.graph.PhiValue;
+import org.qbicc.graph.Triable;
+import org.qbicc.graph.Value;
+import org.qbicc.graph.ValueHandle;
+import org.qbicc.graph.literal.BlockLiteral;
+import org.qbicc.plugin.metrics.Timer;
+import org.qbicc.type.ArrayObjectType;
+import org.qbicc.type.ClassObjectType;
+import org.qbicc.type.CompoundType;
+import org.qbicc.type.ObjectType;
+import org.qbicc.type.ReferenceType;
+import org.qbicc.type.ValueType;
+import org.qbicc.type.WordType;
+import org.qbicc.type.definition.element.ConstructorElement;
+import org.qbicc.type.definition.element.FieldElement;
+import org.qbicc.type.definition.element.GlobalVariableElement;
+import org.qbicc.type.definition.element.LocalVariableElement;
+import org.qbicc.type.definition.element.MethodElement;
+import org.qbicc.type.descriptor.ArrayTypeDescriptor;
+import org.qbicc.type.descriptor.ClassTypeDescriptor;
+import org.qbicc.type.descriptor.MethodDescriptor;
+import org.qbicc.type.descriptor.TypeDescriptor;
+
+/**
+ * A basic block builder which accumulates the time spent in its delegate into a timer.  Since timers only record the
+ * time which is not spent under another timer, wrapping each builder of a chain yields the time spent in each builder
+ * exclusive of the builders that follow it.
+ */
+final class TimingBasicBlockBuilder extends DelegatingBasicBlockBuilder {
+    private final Timer timer;
+
+    TimingBasicBlockBuilder(final Timer timer, final BasicBlockBuilder delegate) {
+        super(delegate);
+        this.timer = timer;
+    }
+
+    public void finish() {
+        timer.runTimed(() -> getDelegate().finish());
+    }
+
+    public Value checkcast(final Value value, final Value toType, final Value toDimensions, final CheckCast.CastType kind, final ReferenceType type) {
+        return timer.getTimed(() -> getDelegate().checkcast(value, toType, toDimensions, kind, type));
+    }
+
+    public Value checkcast(final Value value, final TypeDescriptor desc) {
+        return timer.getTimed(() -> getDelegate().checkcast(value, desc));
+    }
+
+    public ValueHandle memberOf(final ValueHandle structHandle, final CompoundType.Member member) {
+        return timer.getTimed(() -> getDelegate().memberOf(structHandle, member));
+    }
+
+    public ValueHandle elementOf(final ValueHandle array, final Value index) {
+        return timer.getTimed(() -> getDelegate().elementOf(array, index));
+    }
+
+    public ValueHandle pointerHandle(final Value pointer) {
+        return timer.getTimed(() -> getDelegate().pointerHandle(pointer));
+    }
+
+    public ValueHandle referenceHandle(final Value reference) {
+        return timer.getTimed(() -> getDelegate().referenceHandle(reference));
+    }
+
+    public ValueHandle instanceFieldOf(final ValueHandle instance, final FieldElement field) {
+        return timer.getTimed(() -> getDelegate().instanceFieldOf(instance, field));
+    }
+
+    public ValueHandle instanceFieldOf(final ValueHandle instance, final TypeDescriptor owner, final String name, final TypeDescriptor type) {
+        return timer.getTimed(() -> getDelegate().instanceFieldOf(instance, owner, name, type));
+    }
+
+    public ValueHandle staticField(final FieldElement field) {
+        return timer.getTimed(() -> getDelegate().staticField(field));
+    }
+
+    public ValueHandle staticField(final TypeDescriptor owner, final String name, final TypeDescriptor type) {
+        return timer.getTimed(() -> getDelegate().staticField(owner, name, type));
+    }
+
+    public ValueHandle globalVariable(final GlobalVariableElement variable) {
+        return timer.getTimed(() -> getDelegate().globalVariable(variable));
+    }
+
+    public ValueHandle localVariable(final LocalVariableElement variable) {
+        return timer.getTimed(() -> getDelegate().localVariable(variable));
+    }
+
+    public Value addressOf(final ValueHandle handle) {
+        return timer.getTimed(() -> getDelegate().addressOf(handle));
+    }
+
+    public Value stackAllocate(final ValueType type, final Value count, final Value align) {
+        return timer.getTimed(() -> getDelegate().stackAllocate(type, count, align));
+    }
+
+    public BasicBlock classCastException(final Value fromType, final Value toType) {
+        return timer.getTimed(() -> getDelegate().classCastException(fromType, toType));
+    }
+
+    public BasicBlock noSuchMethodError(final ObjectType owner, final MethodDescriptor desc, final String name) {
+        return timer.getTimed(() -> getDelegate().noSuchMethodError(owner, desc, name));
+    }
+
+    public BasicBlock classNotFoundError(final String name) {
+        return timer.getTimed(() -> getDelegate().classNotFoundError(name));
+    }
+
+    public ParameterValue parameter(final ValueType type, final String label, final int index) {
+        return timer.getTimed(() -> getDelegate().parameter(type, label, index));
+    }
+
+    public Value currentThread() {
+        return timer.getTimed(() -> getDelegate().currentThread());
+    }
+
+    public Value extractElement(final Value array, final Value index) {
+        return timer.getTimed(() -> getDelegate().extractElement(array, index));
+    }
+
+    public Value extractMember(final Value compound, final CompoundType.Member member) {
+        return timer.getTimed(() -> getDelegate().extractMember(compound, member));
+    }
+
+    public Value extractInstanceField(final Value valueObj, final TypeDescriptor owner, final String name, final TypeDescriptor type) {
+        return timer.getTimed(() -> getDelegate().extractInstanceField(valueObj, owner, name, type));
+    }
+
+    public Value extractInstanceField(final Value valueObj, final FieldElement field) {
+        return timer.getTimed(() -> getDelegate().extractInstanceField(valueObj, field));
+    }
+
+    public Value insertElement(final Value array, final Value index, final Value value) {
+        return timer.getTimed(() -> getDelegate().insertElement(array, index, value));
+    }
+
+    public Value insertMember(final Value compound, final CompoundType.Member member, final Value value) {
+        return timer.getTimed(() -> getDelegate().insertMember(compound, member, value));
+    }
+
+    public PhiValue phi(final ValueType type, final BlockLabel owner) {
+        return timer.getTimed(() -> getDelegate().phi(type, owner));
+    }
+
+    public Value select(final Value condition, final Value trueValue, final Value falseValue) {
+        return timer.getTimed(() -> getDelegate().select(condition, trueValue, falseValue));
+    }
+
+    public Value arrayLength(final ValueHandle arrayHandle) {
+        return timer.getTimed(() -> getDelegate().arrayLength(arrayHandle));
+    }
+
+    public Value new_(final ClassObjectType type) {
+        return timer.getTimed(() -> getDelegate().new_(type));
+    }
+
+    public Value new_(final ClassTypeDescriptor desc) {
+        return timer.getTimed(() -> getDelegate().new_(desc));
+    }
+
+    public Value newArray(final ArrayObjectType arrayType, final Value size) {
+        return timer.getTimed(() -> getDelegate().newArray(arrayType, size));
+    }
+
+    public Value newArray(final ArrayTypeDescriptor desc, final Value size) {
+        return timer.getTimed(() -> getDelegate().newArray(desc, size));
+    }
+
+    public Value multiNewArray(final ArrayObjectType arrayType, final List<Value> dimensions) {
+        return timer.getTimed(() -> getDelegate().multiNewArray(arrayType, dimensions));
+    }
+
+    public Value multiNewArray(final ArrayTypeDescriptor desc, final List<Value> dimensions) {
+        return timer.getTimed(() -> getDelegate().multiNewArray(desc, dimensions));
+    }
+
+    public Value clone(final Value object) {
+        return timer.getTimed(() -> getDelegate().clone(object));
+    }
+
+    public Value load(final ValueHandle handle, final MemoryAtomicityMode mode) {
+        return timer.getTimed(() -> getDelegate().load(handle, mode));
+    }
+
+    public Value getAndAdd(final ValueHandle target, final Value update, final MemoryAtomicityMode atomicityMode) {
+        return timer.getTimed(() -> getDelegate().getAndAdd(target, update, atomicityMode));
+    }
+
+    public Value getAndBitwiseAnd(final ValueHandle target, final Value update, final MemoryAtomicityMode atomicityMode) {
+        return timer.getTimed(() -> getDelegate().getAndBitwiseAnd(target, update, atomicityMode));
+    }
+
+    public Value getAndBitwiseNand(final ValueHandle target, final Value update, final MemoryAtomicityMode atomicityMode) {
+        return timer.getTimed(() -> getDelegate().getAndBitwiseNand(target, update, atomicityMode));
+    }
+
+    public Value getAndBitwiseOr(final ValueHandle target, final Value update, final MemoryAtomicityMode atomicityMode) {
+        return timer.getTimed(() -> getDelegate().getAndBitwiseOr(target, update, atomicityMode));
+    }
+
+    public Value getAndBitwiseXor(final ValueHandle target, final Value update, final MemoryAtomicityMode atomicityMode) {
+        return timer.getTimed(() -> getDelegate().getAndBitwiseXor(target, update, atomicityMode));
+    }
+
+    public Value getAndSet(final ValueHandle target, final Value update, final MemoryAtomicityMode atomicityMode) {
+        return timer.getTimed(() -> getDelegate().getAndSet(target, update, atomicityMode));
+    }
+
+    public Value getAndSetMax(final ValueHandle target, final Value update, final MemoryAtomicityMode atomicityMode) {
+        return timer.getTimed(() -> getDelegate().getAndSetMax(target, update, atomicityMode));
+    }
+
+    public Value getAndSetMin(final ValueHandle target, final Value update, final MemoryAtomicityMode atomicityMode) {
+        return timer.getTimed(() -> getDelegate().getAndSetMin(target, update, atomicityMode));
+    }
+
+    public Value getAndSub(final ValueHandle target, final Value update, final MemoryAtomicityMode atomicityMode) {
+        return timer.getTimed(() -> getDelegate().getAndSub(target, update, atomicityMode));
+    }
+
+    public Value cmpAndSwap(final ValueHandle target, final Value expect, final Value update, final MemoryAtomicityMode successMode, final MemoryAtomicityMode failureMode) {
+        return timer.getTimed(() -> getDelegate().cmpAndSwap(target, expect, update, successMode, failureMode));
+    }
+
+    public Node store(final ValueHandle handle, final Value value, final MemoryAtomicityMode mode) {
+        return timer.getTimed(() -> getDelegate().store(handle, value, mode));
+    }
+
+    public Node fence(final MemoryAtomicityMode fenceType) {
+        return timer.getTimed(() -> getDelegate().fence(fenceType));
+    }
+
+    public Node monitorEnter(final Value obj) {
+        return timer.getTimed(() -> getDelegate().monitorEnter(obj));
+    }
+
+    public Node monitorExit(final Value obj) {
+        return timer.getTimed(() -> getDelegate().monitorExit(obj));
+    }
+
+    public Node invokeStatic(final MethodElement target, final List<Value> arguments) {
+        return timer.getTimed(() -> getDelegate().invokeStatic(target, arguments));
+    }
+
+    public Node invokeStatic(final TypeDescriptor owner, final String name, final MethodDescriptor descriptor, final List<Value> arguments) {
+        return timer.getTimed(() -> getDelegate().invokeStatic(owner, name, descriptor, arguments));
+    }
+
+    public Node invokeInstance(final DispatchInvocation.Kind kind, final Value instance, final MethodElement target, final List<Value> arguments) {
+        return timer.getTimed(() -> getDelegate().invokeInstance(kind, instance, target, arguments));
+    }
+
+    public Node invokeInstance(final DispatchInvocation.Kind kind, final Value instance, final TypeDescriptor owner, final String name, final MethodDescriptor descriptor, final List<Value> arguments) {
+        return timer.getTimed(() -> getDelegate().invokeInstance(kind, instance, owner, name, descriptor, arguments));
+    }
+
+    public Value invokeValueStatic(final MethodElement target, final List<Value> arguments) {
+        return timer.getTimed(() -> getDelegate().invokeValueStatic(target, arguments));
+    }
+
+    public Value invokeValueStatic(final TypeDescriptor owner, final String name, final MethodDescriptor descriptor, final List<Value> arguments) {
+        return timer.getTimed(() -> getDelegate().invokeValueStatic(owner, name, descriptor, arguments));
+    }
+
+    public Value invokeValueInstance(final DispatchInvocation.Kind kind, final Value instance, final MethodElement target, final List<Value> arguments) {
+        return timer.getTimed(() -> getDelegate().invokeValueInstance(kind, instance, target, arguments));
+    }
+
+    public Value invokeValueInstance(final DispatchInvocation.Kind kind, final Value instance, final TypeDescriptor owner, final String name, final MethodDescriptor descriptor, final List<Value> arguments) {
+        return timer.getTimed(() -> getDelegate().invokeValueInstance(kind, instance, owner, name, descriptor, arguments));
+    }
+
+    public Node begin(final BlockLabel blockLabel) {
+        return timer.getTimed(() -> getDelegate().begin(blockLabel));
+    }
+
+    public BasicBlock goto_(final BlockLabel resumeLabel) {
+        return timer.getTimed(() -> getDelegate().goto_(resumeLabel));
+    }
+
+    public BasicBlock if_(final Value condition, final BlockLabel trueTarget, final BlockLabel falseTarget) {
+        return timer.getTimed(() -> getDelegate().if_(condition, trueTarget, falseTarget));
+    }
+
+    public BasicBlock return_() {
+        return timer.getTimed(() -> getDelegate().return_());
+    }
+
+    public BasicBlock return_(final Value value) {
+        return timer.getTimed(() -> getDelegate().return_(value));
+    }
+
+    public BasicBlock unreachable() {
+        return timer.getTimed(() -> getDelegate().unreachable());
+    }
+
+    public BasicBlock throw_(final Value value) {
+        return timer.getTimed(() -> getDelegate().throw_(value));
+    }
+
+    public BasicBlock switch_(final Value value, final int[] checkValues, final BlockLabel[] targets, final BlockLabel defaultTarget) {
+        return timer.getTimed(() -> getDelegate().switch_(value, checkValues, targets, defaultTarget));
+    }
+
+    public Value add(final Value v1, final Value v2) {
+        return timer.getTimed(() -> getDelegate().add(v1, v2));
+    }
+
+    public Value multiply(final Value v1, final Value v2) {
+        return timer.getTimed(() -> getDelegate().multiply(v1, v2));
+    }
+
+    public Value and(final Value v1, final Value v2) {
+        return timer.getTimed(() -> getDelegate().and(v1, v2));
+    }
+
+    public Value or(final Value v1, final Value v2) {
+        return timer.getTimed(() -> getDelegate().or(v1, v2));
+    }
+
+    public Value xor(final Value v1, final Value v2) {
+        return timer.getTimed(() -> getDelegate().xor(v1, v2));
+    }
+
+    public Value isEq(final Value v1, final Value v2) {
+        return timer.getTimed(() -> getDelegate().isEq(v1, v2));
+    }
+
+    public Value isNe(final Value v1, final Value v2) {
+        return timer.getTimed(() -> getDelegate().isNe(v1, v2));
+    }
+
+    public Value shr(final Value v1, final Value v2) {
+        return timer.getTimed(() -> getDelegate().shr(v1, v2));
+    }
+
+    public Value shl(final Value v1, final Value v2) {
+        return timer.getTimed(() -> getDelegate().shl(v1, v2));
+    }
+
+    public Value sub(final Value v1, final Value v2) {
+        return timer.getTimed(() -> getDelegate().sub(v1, v2));
+    }
+
+    public Value divide(final Value v1, final Value v2) {
+        return timer.getTimed(() -> getDelegate().divide(v1, v2));
+    }
+
+    public Value remainder(final Value v1, final Value v2) {
+        return timer.getTimed(() -> getDelegate().remainder(v1, v2));
+    }
+
+    public Value min(final Value v1, final Value v2) {
+        return timer.getTimed(() -> getDelegate().min(v1, v2));
+    }
+
+    public Value max(final Value v1, final Value v2) {
+        return timer.getTimed(() -> getDelegate().max(v1, v2));
+    }
+
+    public Value isLt(final Value v1, final Value v2) {
+        return timer.getTimed(() -> getDelegate().isLt(v1, v2));
+    }
+
+    public Value isGt(final Value v1, final Value v2) {
+        return timer.getTimed(() -> getDelegate().isGt(v1, v2));
+    }
+
+    public Value isLe(final Value v1, final Value v2) {
+        return timer.getTimed(() -> getDelegate().isLe(v1, v2));
+    }
+
+    public Value isGe(final Value v1, final Value v2) {
+        return timer.getTimed(() -> getDelegate().isGe(v1, v2));
+    }
+
+    public Value rol(final Value v1, final Value v2) {
+        return timer.getTimed(() -> getDelegate().rol(v1, v2));
+    }
+
+    public Value ror(final Value v1, final Value v2) {
+        return timer.getTimed(() -> getDelegate().ror(v1, v2));
+    }
+
+    public Value cmp(final Value v1, final Value v2) {
+        return timer.getTimed(() -> getDelegate().cmp(v1, v2));
+    }
+
+    public Value cmpG(final Value v1, final Value v2) {
+        return timer.getTimed(() -> getDelegate().cmpG(v1, v2));
+    }
+
+    public Value cmpL(final Value v1, final Value v2) {
+        return timer.getTimed(() -> getDelegate().cmpL(v1, v2));
+    }
+
+    public Value negate(final Value v) {
+        return timer.getTimed(() -> getDelegate().negate(v));
+    }
+
+    public Value byteSwap(final Value v) {
+        return timer.getTimed(() -> getDelegate().byteSwap(v));
+    }
+
+    public Value bitReverse(final Value v) {
+        return timer.getTimed(() -> getDelegate().bitReverse(v));
+    }
+
+    public Value countLeadingZeros(final Value v) {
+        return timer.getTimed(() -> getDelegate().countLeadingZeros(v));
+    }
+
+    public Value countTrailingZeros(final Value v) {
+        return timer.getTimed(() -> getDelegate().countTrailingZeros(v));
+    }
+
+    public Value truncate(final Value value, final WordType toType) {
+        return timer.getTimed(() -> getDelegate().truncate(value, toType));
+    }
+
+    public Value extend(final Value value, final WordType toType) {
+        return timer.getTimed(() -> getDelegate().extend(value, toType));
+    }
+
+    public Value bitCast(final Value value, final WordType toType) {
+        return timer.getTimed(() -> getDelegate().bitCast(value, toType));
+    }
+
+    public Value valueConvert(final Value value, final WordType toType) {
+        return timer.getTimed(() -> getDelegate().valueConvert(value, toType));
+    }
+
+    public Value instanceOf(final Value input, final ObjectType expectedType, final int expectedDimensions) {
+        return timer.getTimed(() -> getDelegate().instanceOf(input, expectedType, expectedDimensions));
+    }
+
+    public Value instanceOf(final Value input, final TypeDescriptor desc) {
+        return timer.getTimed(() -> getDelegate().instanceOf(input, desc));
+    }
+
+    public Value populationCount(final Value v) {
+        return timer.getTimed(() -> getDelegate().populationCount(v));
+    }
+
+    public BasicBlock jsr(final BlockLabel subLabel, final BlockLiteral returnAddress) {
+        return timer.getTimed(() -> getDelegate().jsr(subLabel, returnAddress));
+    }
+
+    public BasicBlock ret(final Value address) {
+        return timer.getTimed(() -> getDelegate().ret(address));
+    }
+
+    public Value invokeConstructor(final Value instance, final ConstructorElement target, final List<Value> arguments) {
+        return timer.getTimed(() -> getDelegate().invokeConstructor(instance, target, arguments));
+    }
+
+    public Value invokeConstructor(final Value instance, final TypeDescriptor owner, final MethodDescriptor descriptor, final List<Value> arguments) {
+        return timer.getTimed(() -> getDelegate().invokeConstructor(instance, owner, descriptor, arguments));
+    }
+
+    public Value callFunction(final Value callTarget, final List<Value> arguments, final int flags) {
+        return timer.getTimed(() -> getDelegate().callFunction(callTarget, arguments, flags));
+    }
+
+    public Node nop() {
+        return timer.getTimed(() -> getDelegate().nop());
+    }
+
+    public Value typeIdOf(final ValueHandle valueHandle) {
+        return timer.getTimed(() -> getDelegate().typeIdOf(valueHandle));
+    }
+
+    public Value classOf(final Value typeId) {
+        return timer.getTimed(() -> getDelegate().classOf(typeId));
+    }
+
+    public BasicBlock try_(final Triable operation, final BlockLabel resumeLabel, final BlockLabel exceptionHandler) {
+        return timer.getTimed(() -> getDelegate().try_(operation, resumeLabel, exceptionHandler));
+    }
+}
@@ -0,0 +1,28 @@
+import static org.qbicc.runtime.CNative.*;
+
+public class IdentityHashCode {
+    @extern
+    public static native int putchar(int arg);
+
+    static class Overriding {
+        public int hashCode() {
+            return 42;
+        }
+    }
+
+    static void check(boolean result) {
+        putchar(result ? 'Y' : 'N');
+    }
+
+    public static void main(String[] args) {
+        check(System.identityHashCode(null) == 0);
+        Object o = new Object();
+        int hash = System.identityHashCode(o);
+        check(hash == System.identityHashCode(o));
+        check(o.hashCode() == hash);
+        Object overriding = new Overriding();
+        check(overriding.hashCode() == 42);
+        check(System.identityHashCode(overriding) != 0);
+        putchar('\n');
+    }
+}
@@ -0,0 +1,34 @@
+import static org.qbicc.runtime.CNative.*;
+
+/**
+ * The runtime entry point allocates the system thread group and the initial thread before any thread is bound, and
+ * user code allocates from the bound thread's buffer afterwards; reaching the output at all covers the former.
+ */
+public class StartupAllocation {
+    @extern
+    public static native int putchar(int arg);
+
+    static class A {
+        final int x;
+        A(int x) { this.x = x; }
+    }
+
+    static int validate(A[] as) {
+        for (int i = 0; i < as.length; i++) {
+            if (as[i].x != i) {
+                return 1;
+            }
+        }
+        return 0;
+    }
+
+    public static void main(String[] args) {
+        putchar(Thread.currentThread() != null ? 'Y' : 'N');
+        A[] as = new A[100];
+        for (int i = 0; i < as.length; i++) {
+            as[i] = new A(i);
+        }
+        putchar(validate(as) == 0 ? 'Y' : 'N');
+        putchar('\n');
+    }
+}
@@ -0,0 +1,779 @@
+package org.qbicc.interpreter.impl;
+
+import java.lang.reflect.Array;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.qbicc.graph.Action;
+import org.qbicc.graph.Add;
+import org.qbicc.graph.And;
+import org.qbicc.graph.ArrayLength;
+import org.qbicc.graph.BasicBlock;
+import org.qbicc.graph.BitCast;
+import org.qbicc.graph.BlockEntry;
+import org.qbicc.graph.CheckCast;
+import org.qbicc.graph.Cmp;
+import org.qbicc.graph.CmpG;
+import org.qbicc.graph.CmpL;
+import org.qbicc.graph.Convert;
+import org.qbicc.graph.Div;
+import org.qbicc.graph.ElementOf;
+import org.qbicc.graph.Extend;
+import org.qbicc.graph.Fence;
+import org.qbicc.graph.Goto;
+import org.qbicc.graph.If;
+import org.qbicc.graph.InstanceFieldOf;
+import org.qbicc.graph.IsEq;
+import org.qbicc.graph.IsGe;
+import org.qbicc.graph.IsGt;
+import org.qbicc.graph.IsLe;
+import org.qbicc.graph.IsLt;
+import org.qbicc.graph.IsNe;
+import org.qbicc.graph.Load;
+import org.qbicc.graph.Mod;
+import org.qbicc.graph.Multiply;
+import org.qbicc.graph.Neg;
+import org.qbicc.graph.NewArray;
+import org.qbicc.graph.Node;
+import org.qbicc.graph.NodeVisitor;
+import org.qbicc.graph.Or;
+import org.qbicc.graph.OrderedNode;
+import org.qbicc.graph.ParameterValue;
+import org.qbicc.graph.PhiValue;
+import org.qbicc.graph.ReferenceHandle;
+import org.qbicc.graph.Return;
+import org.qbicc.graph.Select;
+import org.qbicc.graph.Shl;
+import org.qbicc.graph.Shr;
+import org.qbicc.graph.StaticField;
+import org.qbicc.graph.StaticInvocation;
+import org.qbicc.graph.StaticInvocationValue;
+import org.qbicc.graph.Store;
+import org.qbicc.graph.Sub;
+import org.qbicc.graph.Switch;
+import org.qbicc.graph.Terminator;
+import org.qbicc.graph.Truncate;
+import org.qbicc.graph.Unschedulable;
+import org.qbicc.graph.Value;
+import org.qbicc.graph.ValueHandle;
+import org.qbicc.graph.ValueReturn;
+import org.qbicc.graph.Xor;
+import org.qbicc.graph.literal.BooleanLiteral;
+import org.qbicc.graph.literal.FloatLiteral;
+import org.qbicc.graph.literal.IntegerLiteral;
+import org.qbicc.graph.literal.Literal;
+import org.qbicc.graph.literal.NullLiteral;
+import org.qbicc.graph.literal.StringLiteral;
+import org.qbicc.graph.literal.ZeroInitializerLiteral;
+import org.qbicc.graph.schedule.Schedule;
+import org.qbicc.type.ArrayObjectType;
+import org.qbicc.type.BooleanType;
+import org.qbicc.type.ClassObjectType;
+import org.qbicc.type.FloatType;
+import org.qbicc.type.IntegerType;
+import org.qbicc.type.ObjectType;
+import org.qbicc.type.PrimitiveArrayObjectType;
+import org.qbicc.type.ReferenceArrayObjectType;
+import org.qbicc.type.ReferenceType;
+import org.qbicc.type.UnsignedIntegerType;
+import org.qbicc.type.ValueType;
+import org.qbicc.type.WordType;
+import org.qbicc.type.definition.LoadedTypeDefinition;
+import org.qbicc.type.definition.MethodBody;
+import org.qbicc.type.definition.element.FieldElement;
+import org.qbicc.type.definition.element.MethodElement;
+
+/**
+ * An activation of a method body in the build-time interpreter.  The frame walks the program graph directly: each
+ * block is run by following the dependency chain of its terminator, and values are computed when they are first used
+ * and cached until the block which they are scheduled to is entered again.
+ * <p>
+ * Integer values are held as {@code Long} (sign- or zero-extended according to their type), booleans as
+ * {@code Boolean}, floating point values as {@code Float} or {@code Double}, and references as host objects
+ * ({@code String} or arrays).  Anything that the interpreter cannot reproduce exactly throws {@link Unsupported}.
+ */
+final class Frame implements NodeVisitor<Void, Object, Void, BasicBlock, Frame.Slot> {
+    private static final int MAX_DEPTH = 32;
+
+    private final VmImpl vm;
+    private final VmImpl.Initialization init;
+    private final MethodBody body;
+    private final Schedule schedule;
+    private final Map<BasicBlock, List<PhiValue>> phis;
+    private final List<Object> arguments;
+    private final int depth;
+    private final Map<BasicBlock, Map<Node, Object>> values = new HashMap<>();
+    private Object returnValue;
+
+    Frame(final VmImpl vm, final VmImpl.Initialization init, final MethodBody body, final List<Object> arguments, final int depth) {
+        this.vm = vm;
+        this.init = init;
+        this.body = body;
+        this.schedule = body.getSchedule();
+        this.phis = vm.getPhis(body.getEntryBlock());
+        this.arguments = arguments;
+        this.depth = depth;
+    }
+
+    Object run() {
+        BasicBlock block = body.getEntryBlock();
+        values.put(block, new HashMap<>());
+        for (;;) {
+            Terminator terminator = block.getTerminator();
+            execute(terminator.getDependency());
+            BasicBlock next = terminator.accept(this, null);
+            if (next == null) {
+                return returnValue;
+            }
+            enter(next, terminator);
+            block = next;
+        }
+    }
+
+    private void enter(BasicBlock block, Terminator from) {
+        List<PhiValue> blockPhis = phis.getOrDefault(block, List.of());
+        // read all of the incoming values before any of them are replaced
+        Object[] phiValues = new Object[blockPhis.size()];
+        for (int i = 0; i < phiValues.length; i++) {
+            Value incoming = blockPhis.get(i).getValueForInput(from);
+            if (incoming == null) {
+                throw new Unsupported("Missing phi value");
+            }
+            phiValues[i] = evaluate(incoming);
+        }
+        Map<Node, Object> blockValues = new HashMap<>();
+        for (int i = 0; i < phiValues.length; i++) {
+            blockValues.put(blockPhis.get(i), phiValues[i]);
+        }
+        values.put(block, blockValues);
+    }
+
+    private Map<Node, Object> valuesOf(Node node) {
+        BasicBlock block = schedule.getBlockForNode(node);
+        Map<Node, Object> blockValues = block == null ? null : values.get(block);
+        if (blockValues == null) {
+            throw new Unsupported("Node is not scheduled to an entered block");
+        }
+        return blockValues;
+    }
+
+    private Object execute(Node node) {
+        if (node instanceof Unschedulable) {
+            // literals and parameters
+            return ((Value) node).accept(this, null);
+        }
+        Map<Node, Object> blockValues = valuesOf(node);
+        if (blockValues.containsKey(node)) {
+            return blockValues.get(node);
+        }
+        if (node instanceof OrderedNode && ((OrderedNode) node).hasDependency()) {
+            execute(((OrderedNode) node).getDependency());
+        }
+        init.step();
+        Object result;
+        if (node instanceof Value) {
+            result = ((Value) node).accept(this, null);
+        } else if (node instanceof Action) {
+            result = ((Action) node).accept(this, null);
+        } else {
+            throw new Unsupported("Unexpected node " + node);
+        }
+        blockValues.put(node, result);
+        return result;
+    }
+
+    private Object evaluate(Value value) {
+        return execute(value);
+    }
+
+    private long evaluateLong(Value value) {
+        return ((Long) evaluate(value)).longValue();
+    }
+
+    private Slot slot(ValueHandle handle) {
+        return handle.accept(this, null);
+    }
+
+    // literals
+
+    static Object literalValue(VmImpl vm, Literal literal) {
+        if (literal instanceof IntegerLiteral) {
+            return box(literal.getType(), ((IntegerLiteral) literal).longValue());
+        } else if (literal instanceof FloatLiteral) {
+            return box(literal.getType(), ((FloatLiteral) literal).doubleValue());
+        } else if (literal instanceof BooleanLiteral) {
+            return Boolean.valueOf(((BooleanLiteral) literal).booleanValue());
+        } else if (literal instanceof StringLiteral) {
+            return vm.getSharedHostString(((StringLiteral) literal).getValue());
+        } else if (literal instanceof NullLiteral) {
+            return null;
+        } else if (literal instanceof ZeroInitializerLiteral) {
+            return zero(literal.getType());
+        } else {
+            throw new Unsupported("Unsupported literal " + literal);
+        }
+    }
+
+    static Object zero(ValueType type) {
+        if (type instanceof BooleanType) {
+            return Boolean.FALSE;
+        } else if (type instanceof IntegerType) {
+            return Long.valueOf(0);
+        } else if (type instanceof FloatType) {
+            return box(type, 0.0);
+        } else if (type instanceof ReferenceType) {
+            return null;
+        } else {
+            throw new Unsupported("No zero value for " + type);
+        }
+    }
+
+    static Object box(ValueType type, long bits) {
+        if (type instanceof BooleanType) {
+            return Boolean.valueOf((bits & 1) != 0);
+        } else if (type instanceof IntegerType) {
+            return Long.valueOf(((IntegerType) type).truncateValue(bits));
+        } else {
+            throw new Unsupported("Not an integer type: " + type);
+        }
+    }
+
+    static Object box(ValueType type, double value) {
+        if (type instanceof FloatType) {
+            return type.getSize() == 4 ? (Object) Float.valueOf((float) value) : (Object) Double.valueOf(value);
+        } else {
+            throw new Unsupported("Not a floating point type: " + type);
+        }
+    }
+
+    public Object visit(Void param, IntegerLiteral node) {
+        return literalValue(vm, node);
+    }
+
+    public Object visit(Void param, FloatLiteral node) {
+        return literalValue(vm, node);
+    }
+
+    public Object visit(Void param, BooleanLiteral node) {
+        return literalValue(vm, node);
+    }
+
+    public Object visit(Void param, StringLiteral node) {
+        return literalValue(vm, node);
+    }
+
+    public Object visit(Void param, NullLiteral node) {
+        return null;
+    }
+
+    public Object visit(Void param, ZeroInitializerLiteral node) {
+        return literalValue(vm, node);
+    }
+
+    // values
+
+    public Object visitUnknown(Void param, Value node) {
+        throw new Unsupported("Unsupported value " + node);
+    }
+
+    public Object visit(Void param, ParameterValue node) {
+        int index = body.getParameterValues().indexOf(node);
+        if (index == -1) {
+            throw new Unsupported("Unknown parameter " + node);
+        }
+        return arguments.get(index);
+    }
+
+    public Object visit(Void param, PhiValue node) {
+        // phi values are set when their block is entered
+        throw new Unsupported("Phi value was not set on block entry");
+    }
+
+    public Object visit(Void param, Add node) {
+        if (node.getType() instanceof FloatType) {
+            return box(node.getType(), evaluateDouble(node.getLeftInput()) + evaluateDouble(node.getRightInput()));
+        }
+        return box(node.getType(), evaluateLong(node.getLeftInput()) + evaluateLong(node.getRightInput()));
+    }
+
+    public Object visit(Void param, Sub node) {
+        if (node.getType() instanceof FloatType) {
+            return box(node.getType(), evaluateDouble(node.getLeftInput()) - evaluateDouble(node.getRightInput()));
+        }
+        return box(node.getType(), evaluateLong(node.getLeftInput()) - evaluateLong(node.getRightInput()));
+    }
+
+    public Object visit(Void param, Multiply node) {
+        if (node.getType() instanceof FloatType) {
+            return box(node.getType(), evaluateDouble(node.getLeftInput()) * evaluateDouble(node.getRightInput()));
+        }
+        return box(node.getType(), evaluateLong(node.getLeftInput()) * evaluateLong(node.getRightInput()));
+    }
+
+    public Object visit(Void param, Div node) {
+        if (node.getType() instanceof FloatType) {
+            return box(node.getType(), evaluateDouble(node.getLeftInput()) / evaluateDouble(node.getRightInput()));
+        }
+        long divisor = evaluateLong(node.getRightInput());
+        if (divisor == 0) {
+            throw new Unsupported("Division by zero");
+        }
+        long dividend = evaluateLong(node.getLeftInput());
+        if (isUnsigned64(node.getType())) {
+            return box(node.getType(), Long.divideUnsigned(dividend, divisor));
+        }
+        // the result is truncated, so MIN_VALUE / -1 wraps just like it does in Java
+        return box(node.getType(), dividend / divisor);
+    }
+
+    public Object visit(Void param, Mod node) {
+        if (node.getType() instanceof FloatType) {
+            return box(node.getType(), evaluateDouble(node.getLeftInput()) % evaluateDouble(node.getRightInput()));
+        }
+        long divisor = evaluateLong(node.getRightInput());
+        if (divisor == 0) {
+            throw new Unsupported("Division by zero");
+        }
+        long dividend = evaluateLong(node.getLeftInput());
+        if (isUnsigned64(node.getType())) {
+            return box(node.getType(), Long.remainderUnsigned(dividend, divisor));
+        }
+        return box(node.getType(), dividend % divisor);
+    }
+
+    public Object visit(Void param, Neg node) {
+        if (node.getType() instanceof FloatType) {
+            return box(node.getType(), -evaluateDouble(node.getInput()));
+        }
+        return box(node.getType(), -evaluateLong(node.getInput()));
+    }
+
+    public Object visit(Void param, And node) {
+        if (node.getType() instanceof BooleanType) {
+            return Boolean.valueOf(evaluateBoolean(node.getLeftInput()) & evaluateBoolean(node.getRightInput()));
+        }
+        return box(node.getType(), evaluateLong(node.getLeftInput()) & evaluateLong(node.getRightInput()));
+    }
+
+    public Object visit(Void param, Or node) {
+        if (node.getType() instanceof BooleanType) {
+            return Boolean.valueOf(evaluateBoolean(node.getLeftInput()) | evaluateBoolean(node.getRightInput()));
+        }
+        return box(node.getType(), evaluateLong(node.getLeftInput()) | evaluateLong(node.getRightInput()));
+    }
+
+    public Object visit(Void param, Xor node) {
+        if (node.getType() instanceof BooleanType) {
+            return Boolean.valueOf(evaluateBoolean(node.getLeftInput()) ^ evaluateBoolean(node.getRightInput()));
+        }
+        return box(node.getType(), evaluateLong(node.getLeftInput()) ^ evaluateLong(node.getRightInput()));
+    }
+
+    public Object visit(Void param, Shl node) {
+        return box(node.getType(), evaluateLong(node.getLeftInput()) << evaluateLong(node.getRightInput()));
+    }
+
+    public Object visit(Void param, Shr node) {
+        long value = evaluateLong(node.getLeftInput());
+        long distance = evaluateLong(node.getRightInput());
+        // unsigned values are zero-extended, so the shift only differs for 64-bit values
+        if (node.getType() instanceof UnsignedIntegerType) {
+            return box(node.getType(), value >>> distance);
+        }
+        return box(node.getType(), value >> distance);
+    }
+
+    public Object visit(Void param, IsEq node) {
+        return Boolean.valueOf(equal(node.getLeftInput(), node.getRightInput()));
+    }
+
+    public Object visit(Void param, IsNe node) {
+        return Boolean.valueOf(! equal(node.getLeftInput(), node.getRightInput()));
+    }
+
+    public Object visit(Void param, IsLt node) {
+        Value left = node.getLeftInput();
+        if (left.getType() instanceof FloatType) {
+            return Boolean.valueOf(evaluateDouble(left) < evaluateDouble(node.getRightInput()));
+        }
+        return Boolean.valueOf(compare(left, node.getRightInput()) < 0);
+    }
+
+    public Object visit(Void param, IsLe node) {
+        Value left = node.getLeftInput();
+        if (left.getType() instanceof FloatType) {
+            return Boolean.valueOf(evaluateDouble(left) <= evaluateDouble(node.getRightInput()));
+        }
+        return Boolean.valueOf(compare(left, node.getRightInput()) <= 0);
+    }
+
+    public Object visit(Void param, IsGt node) {
+        Value left = node.getLeftInput();
+        if (left.getType() instanceof FloatType) {
+            return Boolean.valueOf(evaluateDouble(left) > evaluateDouble(node.getRightInput()));
+        }
+        return Boolean.valueOf(compare(left, node.getRightInput()) > 0);
+    }
+
+    public Object visit(Void param, IsGe node) {
+        Value left = node.getLeftInput();
+        if (left.getType() instanceof FloatType) {
+            return Boolean.valueOf(evaluateDouble(left) >= evaluateDouble(node.getRightInput()));
+        }
+        return Boolean.valueOf(compare(left, node.getRightInput()) >= 0);
+    }
+
+    public Object visit(Void param, Cmp node) {
+        return Long.valueOf(Integer.signum(compare(node.getLeftInput(), node.getRightInput())));
+    }
+
+    public Object visit(Void param, CmpL node) {
+        double left = evaluateDouble(node.getLeftInput());
+        double right = evaluateDouble(node.getRightInput());
+        return Long.valueOf(left > right ? 1 : left == right ? 0 : -1);
+    }
+
+    public Object visit(Void param, CmpG node) {
+        double left = evaluateDouble(node.getLeftInput());
+        double right = evaluateDouble(node.getRightInput());
+        return Long.valueOf(left < right ? -1 : left == right ? 0 : 1);
+    }
+
+    public Object visit(Void param, Select node) {
+        return evaluateBoolean(node.getCondition()) ? evaluate(node.getTrueValue()) : evaluate(node.getFalseValue());
+    }
+
+    public Object visit(Void param, Truncate node) {
+        return box(node.getType(), evaluateLong(node.getInput()));
+    }
+
+    public Object visit(Void param, Extend node) {
+        Value input = node.getInput();
+        if (input.getType() instanceof BooleanType) {
+            return box(node.getType(), evaluateBoolean(input) ? 1 : 0);
+        }
+        // the input is already sign- or zero-extended according to its own type
+        return box(node.getType(), evaluateLong(input));
+    }
+
+    public Object visit(Void param, Convert node) {
+        Value input = node.getInput();
+        WordType outputType = node.getType();
+        if (outputType instanceof FloatType) {
+            if (input.getType() instanceof FloatType) {
+                return box(outputType, evaluateDouble(input));
+            } else if (! isUnsigned64(input.getType())) {
+                long value = evaluateLong(input);
+                // convert directly, so that a long is rounded to a float only once
+                return outputType.getSize() == 4 ? (Object) Float.valueOf((float) value) : (Object) Double.valueOf((double) value);
+            }
+        } else if (outputType instanceof IntegerType && input.getType() instanceof FloatType) {
+            double value = evaluateDouble(input);
+            if (outputType.getSize() == 8 && outputType instanceof UnsignedIntegerType) {
+                throw new Unsupported("Unsigned 64-bit conversion");
+            }
+            // Java conversions saturate at the bounds of int or long
+            return box(outputType, outputType.getSize() == 8 ? (long) value : (long) (int) value);
+        }
+        throw new Unsupported("Unsupported conversion " + node);
+    }
+
+    public Object visit(Void param, BitCast node) {
+        Value input = node.getInput();
+        ValueType inputType = input.getType();
+        WordType outputType = node.getType();
+        if (inputType instanceof ReferenceType && outputType instanceof ReferenceType) {
+            return evaluate(input);
+        } else if (inputType instanceof IntegerType && outputType instanceof IntegerType) {
+            return box(outputType, evaluateLong(input));
+        } else if (inputType instanceof FloatType && outputType instanceof IntegerType) {
+            Object value = evaluate(input);
+            return box(outputType, value instanceof Float ? Float.floatToRawIntBits(((Float) value).floatValue()) : Double.doubleToRawLongBits(((Double) value).doubleValue()));
+        } else if (inputType instanceof IntegerType && outputType instanceof FloatType) {
+            long bits = evaluateLong(input);
+            return outputType.getSize() == 4 ? (Object) Float.valueOf(Float.intBitsToFloat((int) bits)) : (Object) Double.valueOf(Double.longBitsToDouble(bits));
+        }
+        throw new Unsupported("Unsupported bit cast " + node);
+    }
+
+    public Object visit(Void param, CheckCast node) {
+        Object value = evaluate(node.getInput());
+        // array stores are checked by the host array itself
+        if (value == null || node.getKind() == CheckCast.CastType.ArrayStore) {
+            return value;
+        }
+        throw new Unsupported("Unsupported type check " + node);
+    }
+
+    public Object visit(Void param, NewArray node) {
+        long size = evaluateLong(node.getSize());
+        if (size < 0 || size > VmImpl.MAX_ARRAY_LENGTH) {
+            throw new Unsupported("Array is too large to create at build time");
+        }
+        Object array = Array.newInstance(hostComponentType(node.getArrayType()), (int) size);
+        init.addOwnedArray(array);
+        return array;
+    }
+
+    public Object visit(Void param, ArrayLength node) {
+        return Long.valueOf(Array.getLength(array(node.getValueHandle())));
+    }
+
+    public Object visit(Void param, Load node) {
+        return slot(node.getValueHandle()).get();
+    }
+
+    public Object visit(Void param, StaticInvocationValue node) {
+        return invoke(node.getInvocationTarget(), node.getArguments());
+    }
+
+    private Object invoke(MethodElement target, List<Value> argumentValues) {
+        if (depth >= MAX_DEPTH) {
+            throw new Unsupported("Call depth exceeded");
+        }
+        MethodBody targetBody = target.getMethodBody();
+        if (targetBody == null) {
+            throw new Unsupported("No method body for " + target);
+        }
+        vm.requireAccessible(init, target.getEnclosingType().load());
+        Object[] args = new Object[argumentValues.size()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = evaluate(argumentValues.get(i));
+        }
+        return new Frame(vm, init, targetBody, List.of(args), depth + 1).run();
+    }
+
+    // actions
+
+    public Void visitUnknown(Void param, Action node) {
+        throw new Unsupported("Unsupported action " + node);
+    }
+
+    public Void visit(Void param, BlockEntry node) {
+        return null;
+    }
+
+    public Void visit(Void param, Fence node) {
+        // the interpreter is single-threaded
+        return null;
+    }
+
+    public Void visit(Void param, Store node) {
+        slot(node.getValueHandle()).set(evaluate(node.getValue()));
+        return null;
+    }
+
+    public Void visit(Void param, StaticInvocation node) {
+        invoke(node.getInvocationTarget(), node.getArguments());
+        return null;
+    }
+
+    // terminators
+
+    public BasicBlock visitUnknown(Void param, Terminator node) {
+        throw new Unsupported("Unsupported terminator " + node);
+    }
+
+    public BasicBlock visit(Void param, Goto node) {
+        return node.getResumeTarget();
+    }
+
+    public BasicBlock visit(Void param, If node) {
+        return evaluateBoolean(node.getCondition()) ? node.getTrueBranch() : node.getFalseBranch();
+    }
+
+    public BasicBlock visit(Void param, Switch node) {
+        long value = evaluateLong(node.getSwitchValue());
+        BasicBlock target = value == (int) value ? node.getTargetForValue((int) value) : null;
+        return target == null ? node.getDefaultTarget() : target;
+    }
+
+    public BasicBlock visit(Void param, Return node) {
+        returnValue = null;
+        return null;
+    }
+
+    public BasicBlock visit(Void param, ValueReturn node) {
+        returnValue = evaluate(node.getReturnValue());
+        return null;
+    }
+
+    // handles
+
+    public Slot visitUnknown(Void param, ValueHandle node) {
+        throw new Unsupported("Unsupported value handle " + node);
+    }
+
+    public Slot visit(Void param, StaticField node) {
+        FieldElement field = node.getVariableElement();
+        if (field.isThreadLocal()) {
+            throw new Unsupported("Thread local field " + field);
+        }
+        return new Slot() {
+            Object get() {
+                vm.requireAccessible(init, field.getEnclosingType().load());
+                return vm.getStaticFieldValue(field);
+            }
+
+            void set(Object value) {
+                LoadedTypeDefinition enclosing = field.getEnclosingType().load();
+                if (enclosing != init.getType()) {
+                    throw new Unsupported("Store to static field of another class " + field);
+                }
+                vm.setStaticFieldValue(field, value);
+            }
+        };
+    }
+
+    public Slot visit(Void param, ElementOf node) {
+        Object array = array(node.getValueHandle());
+        long index = evaluateLong(node.getIndex());
+        if (index < 0 || index >= Array.getLength(array)) {
+            throw new Unsupported("Array index out of bounds");
+        }
+        return new Slot() {
+            Object get() {
+                return fromHost(Array.get(array, (int) index));
+            }
+
+            void set(Object value) {
+                if (! init.ownsArray(array)) {
+                    throw new Unsupported("Store to an array which was not created by this initializer");
+                }
+                try {
+                    Array.set(array, (int) index, toHost(array.getClass().getComponentType(), value));
+                } catch (IllegalArgumentException e) {
+                    throw new Unsupported("Array store of incompatible value");
+                }
+            }
+        };
+    }
+
+    public Slot visit(Void param, InstanceFieldOf node) {
+        // the only instance fields of our objects are the injected array header fields, which are read by run time checks
+        array(node.getValueHandle());
+        return new Slot() {
+            Object get() {
+                return zero(node.getValueType());
+            }
+
+            void set(Object value) {
+                throw new Unsupported("Store to array header field " + node.getVariableElement());
+            }
+        };
+    }
+
+    private Object array(ValueHandle handle) {
+        if (handle instanceof ReferenceHandle) {
+            Object array = evaluate(((ReferenceHandle) handle).getReferenceValue());
+            if (array != null && array.getClass().isArray()) {
+                return array;
+            }
+        }
+        throw new Unsupported("Not an array access");
+    }
+
+    // helpers
+
+    private boolean evaluateBoolean(Value value) {
+        return ((Boolean) evaluate(value)).booleanValue();
+    }
+
+    private double evaluateDouble(Value value) {
+        return ((Number) evaluate(value)).doubleValue();
+    }
+
+    private boolean equal(Value left, Value right) {
+        ValueType type = left.getType();
+        if (type instanceof FloatType) {
+            return evaluateDouble(left) == evaluateDouble(right);
+        } else if (type instanceof ReferenceType) {
+            return evaluate(left) == evaluate(right);
+        } else {
+            return evaluate(left).equals(evaluate(right));
+        }
+    }
+
+    private int compare(Value left, Value right) {
+        long l = evaluateLong(left);
+        long r = evaluateLong(right);
+        return isUnsigned64(left.getType()) ? Long.compareUnsigned(l, r) : Long.compare(l, r);
+    }
+
+    private static boolean isUnsigned64(ValueType type) {
+        return type instanceof UnsignedIntegerType && type.getSize() == 8;
+    }
+
+    static Class<?> hostComponentType(ArrayObjectType arrayType) {
+        if (arrayType instanceof PrimitiveArrayObjectType) {
+            WordType elementType = ((PrimitiveArrayObjectType) arrayType).getElementType();
+            if (elementType instanceof BooleanType) {
+                return boolean.class;
+            } else if (elementType instanceof FloatType) {
+                return elementType.getSize() == 4 ? float.class : double.class;
+            } else if (elementType instanceof UnsignedIntegerType && elementType.getSize() == 2) {
+                return char.class;
+            } else if (elementType instanceof IntegerType) {
+                switch ((int) elementType.getSize()) {
+                    case 1: return byte.class;
+                    case 2: return short.class;
+                    case 4: return int.class;
+                    case 8: return long.class;
+                }
+            }
+        } else if (arrayType instanceof ReferenceArrayObjectType) {
+            ObjectType elementType = ((ReferenceArrayObjectType) arrayType).getElementObjectType();
+            // the heap serializers map these host array types back to the right program types; a host array of any
+            // other class would lose its program element type, so such arrays are not supported
+            String name = elementType instanceof ClassObjectType ? elementType.getDefinition().getInternalName() : null;
+            if ("java/lang/String".equals(name)) {
+                return String.class;
+            } else if ("java/lang/Object".equals(name)) {
+                return Object.class;
+            }
+        }
+        throw new Unsupported("Unsupported array type " + arrayType);
+    }
+
+    static Object fromHost(Object value) {
+        if (value instanceof Character) {
+            return Long.valueOf(((Character) value).charValue());
+        } else if (value instanceof Byte || value instanceof Short || value instanceof Integer) {
+            return Long.valueOf(((Number) value).longValue());
+        } else {
+            return value;
+        }
+    }
+
+    static Object toHost(Class<?> type, Object value) {
+        if (type == byte.class) {
+            return Byte.valueOf(((Long) value).byteValue());
+        } else if (type == short.class) {
+            return Short.valueOf(((Long) value).shortValue());
+        } else if (type == char.class) {
+            return Character.valueOf((char) ((Long) value).longValue());
+        } else if (type == int.class) {
+            return Integer.valueOf(((Long) value).intValue());
+        } else {
+            return value;
+        }
+    }
+
+    abstract static class Slot {
+        abstract Object get();
+
+        abstract void set(Object value);
+    }
+
+    /**
+     * Thrown when the interpreted code does something that cannot be done at build time.
+     */
+    static final class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported(final String msg) {
+            super(msg, null, false, false);
+        }
+    }
+}
@@ -1,11 +1,25 @@
 package org.qbicc.interpreter.impl;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
+import org.jboss.logging.Logger;
 import org.qbicc.context.CompilationContext;
+import org.qbicc.graph.BasicBlock;
+import org.qbicc.graph.Node;
+import org.qbicc.graph.OrderedNode;
+import org.qbicc.graph.PhiValue;
+import org.qbicc.graph.Value;
+import org.qbicc.graph.literal.Literal;
 import org.qbicc.interpreter.Signal;
 import org.qbicc.interpreter.Thrown;
 import org.qbicc.interpreter.Vm;
@@ -17,26 +31,50 @@ import org.qbicc.type.ArrayObjectType;
 import org.qbicc.type.ClassObjectType;
 import org.qbicc.context.ClassContext;
 import org.qbicc.type.definition.DefinedTypeDefinition;
+import org.qbicc.type.definition.LoadedTypeDefinition;
+import org.qbicc.type.definition.MethodBody;
 import org.qbicc.type.definition.element.ConstructorElement;
 import org.qbicc.type.definition.element.ExecutableElement;
+import org.qbicc.type.definition.element.FieldElement;
+import org.qbicc.type.definition.element.InitializerElement;
 import org.qbicc.type.definition.element.MethodElement;
 import org.qbicc.type.descriptor.ClassTypeDescriptor;
 import org.qbicc.type.descriptor.MethodDescriptor;
 import io.smallrye.common.constraint.Assert;
 
 public final class VmImpl implements Vm {
+    private static final Logger log = Logger.getLogger("org.qbicc.interpreter");
+
+    static final int MAX_ARRAY_LENGTH = 1 << 20;
+    private static final long MAX_STEPS = 10_000_000;
+
     private final CompilationContext ctxt;
     private final Map<VmObject, ClassContext> classLoaders = new ConcurrentHashMap<>();
-    private final MethodElement loadClass;
+    private volatile MethodElement loadClass;
+    private final Map<LoadedTypeDefinition, Boolean> initialized = new ConcurrentHashMap<>();
+    private final ArrayDeque<Initialization> initializing = new ArrayDeque<>();
+    private final Map<String, String> sharedStrings = new ConcurrentHashMap<>();
+    private final Map<BasicBlock, Map<BasicBlock, List<PhiValue>>> phis = new ConcurrentHashMap<>();
+    private final Function<FieldElement, Value> constants;
+    private final Map<FieldElement, Object> staticFieldValues = new HashMap<>();
 
-    VmImpl(final CompilationContext ctxt) {
+    VmImpl(final CompilationContext ctxt, final Function<FieldElement, Value> constants) {
         this.ctxt = ctxt;
-        ClassContext bcc = ctxt.getBootstrapClassContext();
-        loadClass = bcc.findDefinedType("java/lang/ClassLoader")
-            .load()
-            .resolveMethodElementExact("loadClass",
-                MethodDescriptor.synthesize(bcc, ClassTypeDescriptor.synthesize(bcc, "java/lang/String"),
-                                            List.of(ClassTypeDescriptor.synthesize(bcc, "java/lang/Class"))));
+        this.constants = constants;
+    }
+
+    private MethodElement getLoadClass() {
+        MethodElement loadClass = this.loadClass;
+        if (loadClass == null) {
+            // resolved on first use, because the build-time initializer never loads classes through a class loader
+            ClassContext bcc = ctxt.getBootstrapClassContext();
+            this.loadClass = loadClass = bcc.findDefinedType("java/lang/ClassLoader")
+                .load()
+                .resolveMethodElementExact("loadClass",
+                    MethodDescriptor.synthesize(bcc, ClassTypeDescriptor.synthesize(bcc, "java/lang/String"),
+                                                List.of(ClassTypeDescriptor.synthesize(bcc, "java/lang/Class"))));
+        }
+        return loadClass;
     }
 
     public CompilationContext getCompilationContext() {
@@ -52,7 +90,7 @@ public final class VmImpl implements Vm {
         if (defined != null) {
             return defined;
         }
-        VmClass clazz = (VmClass) invokeVirtual(loadClass, classLoader, getSharedString(name));
+        VmClass clazz = (VmClass) invokeVirtual(getLoadClass(), classLoader, getSharedString(name));
         if (clazz == null) {
             return null;
         }
@@ -90,8 +128,171 @@ public final class VmImpl implements Vm {
     }
 
     public void initialize(final VmClass vmClass) {
-        VmThread vmThread = Vm.requireCurrentThread();
+        initializeAtBuildTime(vmClass.getTypeDefinition());
+    }
 
+    /**
+     * Initialize a class by running its initializer in the build-time interpreter, if that has not been tried yet.
+     * The superclass is initialized first.  Initialization only succeeds if the initializer (and everything it
+     * calls) sticks to what can be reproduced exactly at build time: arithmetic, control flow, static method calls,
+     * the creation of primitive, {@code String} and {@code Object} arrays, writes to the static fields of the class
+     * and to arrays which it created, and reads of the state of classes which are themselves initialized at build time.
+     * Arrays of any other reference type are not supported, because a host array does not record the program type of
+     * its elements, which the heap serializers derive from the host array class.
+     * <p>
+     * A class whose initialization fails is left to be initialized at run time: any static field values which the
+     * initializer had already stored are discarded, so that the class keeps its default static field values.
+     *
+     * @param type the class to initialize (must not be {@code null})
+     * @return {@code true} if the class was initialized at build time, or {@code false} if it was not
+     */
+    public synchronized boolean initializeAtBuildTime(LoadedTypeDefinition type) {
+        Boolean state = initialized.get(type);
+        if (state != null) {
+            return state.booleanValue();
+        }
+        for (Initialization init : initializing) {
+            if (init.getType() == type) {
+                // recursive initialization would observe a partially initialized class
+                return false;
+            }
+        }
+        LoadedTypeDefinition superClass = type.getSuperClass();
+        boolean result = (superClass == null || initializeAtBuildTime(superClass)) && runInitializer(type);
+        initialized.put(type, Boolean.valueOf(result));
+        return result;
+    }
+
+    private boolean runInitializer(LoadedTypeDefinition type) {
+        Initialization init = new Initialization(type);
+        initializing.push(init);
+        try {
+            int cnt = type.getFieldCount();
+            for (int i = 0; i < cnt; i++) {
+                FieldElement field = type.getField(i);
+                Literal initialValue = field.getInitialValue();
+                if (field.isStatic() && initialValue != null) {
+                    setStaticFieldValue(field, Frame.literalValue(this, initialValue));
+                }
+            }
+            InitializerElement initializer = type.getInitializer();
+            if (initializer != null && initializer.hasMethodBody()) {
+                MethodBody body = initializer.getMethodBody();
+                if (body == null) {
+                    throw new Frame.Unsupported("Initializer has no method body");
+                }
+                new Frame(this, init, body, List.of(), 0).run();
+            }
+            return true;
+        } catch (Frame.Unsupported e) {
+            log.debugf("Class %s is not initialized at build time: %s", type.getInternalName(), e.getMessage());
+            resetStaticFieldValues(type);
+            return false;
+        } catch (RuntimeException e) {
+            log.debugf(e, "Class %s is not initialized at build time", type.getInternalName());
+            resetStaticFieldValues(type);
+            return false;
+        } finally {
+            initializing.pop();
+        }
+    }
+
+    /**
+     * Get the build-time value of a static field.  Integers are returned as {@code Long}, booleans as {@code Boolean},
+     * floating point values as {@code Float} or {@code Double}, and references as host objects (a {@code String},
+     * an array, or {@code null}).
+     *
+     * @param field the static field (must not be {@code null})
+     * @return the current value of the field
+     */
+    public synchronized Object getStaticFieldValue(FieldElement field) {
+        Value constant = constants.apply(field);
+        if (constant != null) {
+            if (constant instanceof Literal) {
+                return Frame.literalValue(this, (Literal) constant);
+            }
+            throw new Frame.Unsupported("Field " + field + " has no literal constant value");
+        }
+        if (staticFieldValues.containsKey(field)) {
+            return staticFieldValues.get(field);
+        }
+        return Frame.zero(field.getType());
+    }
+
+    synchronized void setStaticFieldValue(FieldElement field, Object value) {
+        staticFieldValues.put(field, value);
+    }
+
+    /**
+     * Discard the values which were stored to the static fields of a class whose initialization failed.  Only the
+     * initializer of a class may store to its static fields, so this restores their default values.
+     */
+    private synchronized void resetStaticFieldValues(LoadedTypeDefinition type) {
+        int cnt = type.getFieldCount();
+        for (int i = 0; i < cnt; i++) {
+            staticFieldValues.remove(type.getField(i));
+        }
+    }
+
+    void requireAccessible(Initialization init, LoadedTypeDefinition type) {
+        if (type != init.getType() && ! initializeAtBuildTime(type)) {
+            throw new Frame.Unsupported("Class " + type.getInternalName() + " is not initialized at build time");
+        }
+    }
+
+    String getSharedHostString(String string) {
+        return sharedStrings.computeIfAbsent(string, Function.identity());
+    }
+
+    Map<BasicBlock, List<PhiValue>> getPhis(BasicBlock entryBlock) {
+        return phis.computeIfAbsent(entryBlock, VmImpl::findPhis);
+    }
+
+    private static Map<BasicBlock, List<PhiValue>> findPhis(BasicBlock entryBlock) {
+        Map<BasicBlock, List<PhiValue>> phis = new HashMap<>();
+        Set<BasicBlock> visitedBlocks = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<Node> visitedNodes = Collections.newSetFromMap(new IdentityHashMap<>());
+        ArrayDeque<BasicBlock> blocks = new ArrayDeque<>();
+        ArrayDeque<Node> nodes = new ArrayDeque<>();
+        blocks.add(entryBlock);
+        while (! blocks.isEmpty()) {
+            BasicBlock block = blocks.poll();
+            if (visitedBlocks.add(block)) {
+                nodes.add(block.getTerminator());
+                int cnt = block.getTerminator().getSuccessorCount();
+                for (int i = 0; i < cnt; i++) {
+                    blocks.add(block.getTerminator().getSuccessor(i));
+                }
+            }
+        }
+        while (! nodes.isEmpty()) {
+            Node node = nodes.poll();
+            if (! visitedNodes.add(node)) {
+                continue;
+            }
+            if (node instanceof PhiValue) {
+                PhiValue phi = (PhiValue) node;
+                BasicBlock pinned = phi.getPinnedBlock();
+                phis.computeIfAbsent(pinned, b -> new ArrayList<>()).add(phi);
+                for (BasicBlock incoming : pinned.getIncoming()) {
+                    Node value = phi.getValueForInput(incoming.getTerminator());
+                    if (value != null) {
+                        nodes.add(value);
+                    }
+                }
+            }
+            if (node.hasValueHandleDependency()) {
+                nodes.add(node.getValueHandle());
+            }
+            int cnt = node.getValueDependencyCount();
+            for (int i = 0; i < cnt; i++) {
+                nodes.add(node.getValueDependency(i));
+            }
+            if (node instanceof OrderedNode && ((OrderedNode) node).hasDependency()) {
+                nodes.add(((OrderedNode) node).getDependency());
+            }
+        }
+        return phis;
     }
 
     public void deliverSignal(final Signal signal) {
@@ -115,10 +316,53 @@ public final class VmImpl implements Vm {
     }
 
     public static VmImpl create(CompilationContext ctxt) {
-        return new VmImpl(Assert.checkNotNullParam("ctxt", ctxt));
+        return create(ctxt, field -> null);
+    }
+
+    /**
+     * Create a VM which reads the values of compilation constant fields from the given function.  The initializers of
+     * classes with such fields do not store their values, so the interpreter must not read the fields themselves.
+     *
+     * @param ctxt the compilation context (must not be {@code null})
+     * @param constants the function which returns the constant value of a field, or {@code null} if it has none
+     * @return the VM (not {@code null})
+     */
+    public static VmImpl create(CompilationContext ctxt, Function<FieldElement, Value> constants) {
+        return new VmImpl(Assert.checkNotNullParam("ctxt", ctxt), Assert.checkNotNullParam("constants", constants));
     }
 
     private InstanceInvoker getInstanceInvoker(ExecutableElement element) {
         throw new UnsupportedOperationException();
     }
+
+    /**
+     * The state of one class initialization in the build-time interpreter.
+     */
+    static final class Initialization {
+        private final LoadedTypeDefinition type;
+        private final Set<Object> ownedArrays = Collections.newSetFromMap(new IdentityHashMap<>());
+        private long steps;
+
+        Initialization(final LoadedTypeDefinition type) {
+            this.type = type;
+        }
+
+        LoadedTypeDefinition getType() {
+            return type;
+        }
+
+        void addOwnedArray(Object array) {
+            ownedArrays.add(array);
+        }
+
+        boolean ownsArray(Object array) {
+            return ownedArrays.contains(array);
+        }
+
+        void step() {
+            if (++steps > MAX_STEPS) {
+                throw new Frame.Unsupported("Too many steps");
+            }
+        }
+    }
 }
@@ -0,0 +1,253 @@
+package org.qbicc.interpreter.impl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Test;
+import org.qbicc.context.CompilationContext;
+import org.qbicc.graph.BasicBlock;
+import org.qbicc.graph.BasicBlockBuilder;
+import org.qbicc.graph.BlockLabel;
+import org.qbicc.graph.MemoryAtomicityMode;
+import org.qbicc.graph.PhiValue;
+import org.qbicc.graph.Value;
+import org.qbicc.graph.ValueHandle;
+import org.qbicc.graph.literal.LiteralFactory;
+import org.qbicc.graph.schedule.Schedule;
+import org.qbicc.type.SignedIntegerType;
+import org.qbicc.type.TypeSystem;
+import org.qbicc.type.definition.LoadedTypeDefinition;
+import org.qbicc.type.definition.MethodBody;
+import org.qbicc.type.definition.classfile.ClassFile;
+import org.qbicc.type.definition.element.FieldElement;
+import org.qbicc.type.definition.element.InitializerElement;
+import org.qbicc.type.descriptor.BaseTypeDescriptor;
+import org.qbicc.type.generic.BaseTypeSignature;
+
+/**
+ * Tests for running class initializers in the build-time interpreter.  The initializers are built directly as
+ * program graphs, for classes which only provide what the interpreter uses.
+ */
+public class BuildTimeInitializationTestCase {
+    private final TypeSystem ts = TypeSystem.builder().build();
+    private final LiteralFactory lf = LiteralFactory.create(ts);
+    private final SignedIntegerType s32 = ts.getSignedInteger32Type();
+    private final VmImpl vm = VmImpl.create(unsupported(CompilationContext.class));
+
+    @Test
+    public void testArithmetic() {
+        TestClass cls = new TestClass("Arithmetic");
+        FieldElement x = cls.addStaticField("x");
+        FieldElement y = cls.addStaticField("y");
+        cls.setInitializer(bbb -> {
+            // x = (7 * 6 - 2) / 4 + -9 % 4
+            Value product = bbb.multiply(lf.literalOf(7), lf.literalOf(6));
+            Value quotient = bbb.divide(bbb.sub(product, lf.literalOf(2)), lf.literalOf(4));
+            bbb.store(bbb.staticField(x), bbb.add(quotient, bbb.remainder(lf.literalOf(-9), lf.literalOf(4))), MemoryAtomicityMode.NONE);
+            // y = MAX_VALUE + 1, which wraps
+            bbb.store(bbb.staticField(y), bbb.add(lf.literalOf(Integer.MAX_VALUE), lf.literalOf(1)), MemoryAtomicityMode.NONE);
+            bbb.return_();
+        });
+        assertTrue(vm.initializeAtBuildTime(cls.type));
+        assertEquals(Long.valueOf(9), vm.getStaticFieldValue(x));
+        assertEquals(Long.valueOf(Integer.MIN_VALUE), vm.getStaticFieldValue(y));
+    }
+
+    @Test
+    public void testLoop() {
+        TestClass cls = new TestClass("Loop");
+        FieldElement sum = cls.addStaticField("sum");
+        cls.setInitializer(bbb -> {
+            // for (int i = 0; i < 10; i ++) sum += i;
+            BlockLabel header = new BlockLabel();
+            BlockLabel body = new BlockLabel();
+            BlockLabel exit = new BlockLabel();
+            PhiValue i = bbb.phi(s32, header);
+            BasicBlock entry = bbb.goto_(header);
+            bbb.begin(header);
+            bbb.if_(bbb.isLt(i, lf.literalOf(10)), body, exit);
+            bbb.begin(body);
+            ValueHandle handle = bbb.staticField(sum);
+            bbb.store(handle, bbb.add(bbb.load(handle, MemoryAtomicityMode.NONE), i), MemoryAtomicityMode.NONE);
+            Value next = bbb.add(i, lf.literalOf(1));
+            BasicBlock backEdge = bbb.goto_(header);
+            i.setValueForBlock(null, cls.initializer, entry, lf.literalOf(0));
+            i.setValueForBlock(null, cls.initializer, backEdge, next);
+            bbb.begin(exit);
+            bbb.return_();
+        });
+        assertTrue(vm.initializeAtBuildTime(cls.type));
+        assertEquals(Long.valueOf(45), vm.getStaticFieldValue(sum));
+    }
+
+    @Test
+    public void testArrayAccess() {
+        TestClass cls = new TestClass("Arrays");
+        FieldElement x = cls.addStaticField("x");
+        cls.setInitializer(bbb -> {
+            // int[] a = new int[3]; a[1] = 5; a[2] = a[1] + 1; x = a.length * 100 + a[1] * 10 + a[2];
+            Value a = bbb.newArray(s32.getPrimitiveArrayObjectType(), lf.literalOf(3));
+            bbb.store(bbb.elementOf(bbb.referenceHandle(a), lf.literalOf(1)), lf.literalOf(5), MemoryAtomicityMode.NONE);
+            Value a1 = bbb.load(bbb.elementOf(bbb.referenceHandle(a), lf.literalOf(1)), MemoryAtomicityMode.NONE);
+            bbb.store(bbb.elementOf(bbb.referenceHandle(a), lf.literalOf(2)), bbb.add(a1, lf.literalOf(1)), MemoryAtomicityMode.NONE);
+            Value a2 = bbb.load(bbb.elementOf(bbb.referenceHandle(a), lf.literalOf(2)), MemoryAtomicityMode.NONE);
+            Value length = bbb.arrayLength(bbb.referenceHandle(a));
+            Value result = bbb.add(bbb.add(bbb.multiply(length, lf.literalOf(100)), bbb.multiply(a1, lf.literalOf(10))), a2);
+            bbb.store(bbb.staticField(x), result, MemoryAtomicityMode.NONE);
+            bbb.return_();
+        });
+        assertTrue(vm.initializeAtBuildTime(cls.type));
+        assertEquals(Long.valueOf(356), vm.getStaticFieldValue(x));
+    }
+
+    @Test
+    public void testReadOtherClass() {
+        TestClass first = new TestClass("First");
+        FieldElement x = first.addStaticField("x");
+        first.setInitializer(bbb -> {
+            bbb.store(bbb.staticField(x), lf.literalOf(41), MemoryAtomicityMode.NONE);
+            bbb.return_();
+        });
+        TestClass second = new TestClass("Second");
+        FieldElement y = second.addStaticField("y");
+        second.setInitializer(bbb -> {
+            // reading the field initializes the first class
+            Value value = bbb.load(bbb.staticField(x), MemoryAtomicityMode.NONE);
+            bbb.store(bbb.staticField(y), bbb.add(value, lf.literalOf(1)), MemoryAtomicityMode.NONE);
+            bbb.return_();
+        });
+        assertTrue(vm.initializeAtBuildTime(second.type));
+        assertEquals(Long.valueOf(42), vm.getStaticFieldValue(y));
+        assertTrue(vm.initializeAtBuildTime(first.type));
+        assertEquals(Long.valueOf(41), vm.getStaticFieldValue(x));
+    }
+
+    @Test
+    public void testDivisionByZero() {
+        TestClass cls = new TestClass("DivisionByZero");
+        FieldElement x = cls.addStaticField("x");
+        FieldElement y = cls.addStaticField("y");
+        cls.setInitializer(bbb -> {
+            // x = 1; y = 1 / 0;
+            bbb.store(bbb.staticField(x), lf.literalOf(1), MemoryAtomicityMode.NONE);
+            bbb.store(bbb.staticField(y), bbb.divide(lf.literalOf(1), lf.literalOf(0)), MemoryAtomicityMode.NONE);
+            bbb.return_();
+        });
+        // the exception is thrown at run time instead, and the store to x is undone
+        assertFalse(vm.initializeAtBuildTime(cls.type));
+        assertEquals(Long.valueOf(0), vm.getStaticFieldValue(x));
+        assertEquals(Long.valueOf(0), vm.getStaticFieldValue(y));
+    }
+
+    @Test
+    public void testArrayIndexOutOfBounds() {
+        TestClass cls = new TestClass("ArrayIndexOutOfBounds");
+        FieldElement x = cls.addStaticField("x");
+        cls.setInitializer(bbb -> {
+            // x = 1; new int[1][1] = 1;
+            bbb.store(bbb.staticField(x), lf.literalOf(1), MemoryAtomicityMode.NONE);
+            Value a = bbb.newArray(s32.getPrimitiveArrayObjectType(), lf.literalOf(1));
+            bbb.store(bbb.elementOf(bbb.referenceHandle(a), lf.literalOf(1)), lf.literalOf(1), MemoryAtomicityMode.NONE);
+            bbb.return_();
+        });
+        assertFalse(vm.initializeAtBuildTime(cls.type));
+        assertEquals(Long.valueOf(0), vm.getStaticFieldValue(x));
+    }
+
+    @Test
+    public void testFallbackToRunTime() {
+        TestClass other = new TestClass("Other");
+        FieldElement y = other.addStaticField("y");
+        other.setInitializer(bbb -> bbb.return_());
+        TestClass cls = new TestClass("Fallback");
+        FieldElement x = cls.addStaticField("x");
+        cls.setInitializer(bbb -> {
+            // x = 1; Other.y = 2;
+            bbb.store(bbb.staticField(x), lf.literalOf(1), MemoryAtomicityMode.NONE);
+            bbb.store(bbb.staticField(y), lf.literalOf(2), MemoryAtomicityMode.NONE);
+            bbb.return_();
+        });
+        // a store to the field of another class cannot be reproduced, so the class is left to run time
+        assertFalse(vm.initializeAtBuildTime(cls.type));
+        assertEquals(Long.valueOf(0), vm.getStaticFieldValue(x));
+        assertEquals(Long.valueOf(0), vm.getStaticFieldValue(y));
+        // the outcome is remembered
+        assertFalse(vm.initializeAtBuildTime(cls.type));
+        // a class which reads the failed class cannot be initialized at build time either
+        TestClass reader = new TestClass("Reader");
+        FieldElement z = reader.addStaticField("z");
+        reader.setInitializer(bbb -> {
+            bbb.store(bbb.staticField(z), bbb.load(bbb.staticField(x), MemoryAtomicityMode.NONE), MemoryAtomicityMode.NONE);
+            bbb.return_();
+        });
+        assertFalse(vm.initializeAtBuildTime(reader.type));
+    }
+
+    /**
+     * A class with static {@code int} fields and an initializer.
+     */
+    final class TestClass {
+        final String name;
+        final List<FieldElement> fields = new ArrayList<>();
+        final LoadedTypeDefinition type;
+        InitializerElement initializer;
+
+        TestClass(final String name) {
+            this.name = name;
+            type = (LoadedTypeDefinition) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { LoadedTypeDefinition.class }, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "load": return proxy;
+                    case "getContext": return null;
+                    case "getInternalName": return name;
+                    case "getSuperClass": return null;
+                    case "getFieldCount": return Integer.valueOf(fields.size());
+                    case "getField": return fields.get(((Integer) args[0]).intValue());
+                    case "getInitializer": return initializer;
+                    case "hashCode": return Integer.valueOf(System.identityHashCode(proxy));
+                    case "equals": return Boolean.valueOf(proxy == args[0]);
+                    case "toString": return name;
+                    default: throw new UnsupportedOperationException(method.getName());
+                }
+            });
+        }
+
+        FieldElement addStaticField(String fieldName) {
+            FieldElement.Builder builder = FieldElement.builder();
+            builder.setEnclosingType(type);
+            builder.setName(fieldName);
+            builder.setModifiers(ClassFile.ACC_STATIC);
+            builder.setDescriptor(BaseTypeDescriptor.I);
+            builder.setSignature(BaseTypeSignature.I);
+            builder.setType(s32);
+            FieldElement field = builder.build();
+            fields.add(field);
+            return field;
+        }
+
+        void setInitializer(Consumer<BasicBlockBuilder> generator) {
+            InitializerElement.Builder builder = InitializerElement.builder();
+            builder.setEnclosingType(type);
+            builder.setModifiers(ClassFile.ACC_STATIC);
+            builder.setMethodBodyFactory((index, element) -> {
+                throw new IllegalStateException();
+            }, 0);
+            initializer = builder.build();
+            BasicBlockBuilder bbb = BasicBlockBuilder.simpleBuilder(ts, initializer);
+            bbb.begin(new BlockLabel());
+            generator.accept(bbb);
+            bbb.finish();
+            BasicBlock entryBlock = bbb.getFirstBlock();
+            initializer.replaceMethodBody(MethodBody.of(entryBlock, Schedule.forMethod(entryBlock), null, List.of()));
+        }
+    }
+
+    static <T> T unsupported(Class<T> type) {
+        return type.cast(Proxy.newProxyInstance(BuildTimeInitializationTestCase.class.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+            throw new UnsupportedOperationException(method.getName());
+        }));
+    }
+}
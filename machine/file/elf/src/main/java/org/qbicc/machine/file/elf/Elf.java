@@ -1018,6 +1018,9 @@ public final class Elf {
         public interface Type extends NumericEnumeration {
             static Type forValue(int value) {
                 Type type = Std.forValue(value);
+                if (type == null) {
+                    type = Gnu.forValue(value);
+                }
                 return type == null ? unknown(value) : type;
             }
 
@@ -18,6 +18,7 @@ public abstract class ElfHeader {
     final ArrayList<ElfSymbolTableEntry> staticSymbols = new ArrayList<>(0);
     final ArrayList<ElfSymbolTableEntry> dynamicSymbols = new ArrayList<>(0);
     final Map<String, ElfSymbolTableEntry> symbolCache = new HashMap<>();
+    ElfSymbolIndex symbolIndex;
     final MappedBitSet<Elf.Flag> flags;
 
     ElfHeader(final BinaryBuffer backingBuffer, final long flagsOffset) {
@@ -373,36 +374,49 @@ public abstract class ElfHeader {
     }
 
     public ElfSectionHeaderEntry getSectionHeaderTableEntry(Elf.Section.Type type) {
+        final int idx = getSectionHeaderTableEntryIndex(type);
+        return idx == -1 ? null : getSectionHeaderTableEntry(idx);
+    }
+
+    public int getSectionHeaderTableEntryIndex(Elf.Section.Type type) {
         final int cnt = getSectionHeaderTableEntryCount();
         for (int i = 0; i < cnt; i++) {
             ElfSectionHeaderEntry entry = getSectionHeaderTableEntry(i);
             if (entry == null) {
                 // not really possible but...
-                return null;
+                return -1;
             }
             if (type == entry.getType()) {
-                return entry;
+                return i;
             }
         }
-        return null;
+        return -1;
     }
 
     public ElfSymbolTableEntry findSymbol(String symbolName) {
-        // todo: support SHT_HASH
         ElfSymbolTableEntry entry = symbolCache.get(symbolName);
         if (entry != null) {
             return entry;
         }
-        int idx = 0;
-        for (;;) {
-            entry = getSymbolTableEntry(idx++, false);
-            if (entry == null) {
+        ElfSymbolIndex symbolIndex = this.symbolIndex;
+        if (symbolIndex == null) {
+            int symTabIndex = getSectionHeaderTableEntryIndex(Elf.Section.Type.Std.SYM_TAB);
+            boolean dynamic = false;
+            if (symTabIndex == -1) {
+                // stripped image; only the dynamic symbols are left
+                symTabIndex = getSectionHeaderTableEntryIndex(Elf.Section.Type.Std.DYN_SYM);
+                dynamic = true;
+            }
+            if (symTabIndex == -1) {
                 return null;
-            } else if (entry.nameEquals(symbolName)) {
-                symbolCache.put(entry.getName(), entry);
-                return entry;
             }
+            this.symbolIndex = symbolIndex = ElfSymbolIndex.create(this, symTabIndex, dynamic);
         }
+        entry = symbolIndex.findSymbol(symbolName);
+        if (entry != null) {
+            symbolCache.put(symbolName, entry);
+        }
+        return entry;
     }
 
     public ElfSymbolTableEntry getSymbolTableEntry(int index, boolean dynamic) {
@@ -97,6 +97,10 @@ public class ElfObjectFileProvider implements ObjectFileProvider {
                 return findSymbol(name).getValueSize();
             }
 
+            public long getSymbolAddress(final String name) {
+                return findSymbol(name).getValue();
+            }
+
             public ByteOrder getByteOrder() {
                 return buffer.getByteOrder();
             }
@@ -0,0 +1,244 @@
+package org.qbicc.machine.file.elf;
+
+import java.nio.charset.StandardCharsets;
+
+import org.qbicc.machine.file.bin.BinaryBuffer;
+
+/**
+ * An index for finding symbols by name in one symbol table.  The index uses the {@code SHT_GNU_HASH} or
+ * {@code SHT_HASH} section which belongs to the symbol table if there is one (which is typically only the case
+ * for dynamic symbol tables).  Otherwise, it is built in one pass over the symbol table by hashing the bytes of
+ * each name directly in the string table, without creating a {@code String} for each symbol.
+ */
+abstract class ElfSymbolIndex {
+    final ElfHeader elfHeader;
+    final boolean dynamic;
+
+    ElfSymbolIndex(final ElfHeader elfHeader, final boolean dynamic) {
+        this.elfHeader = elfHeader;
+        this.dynamic = dynamic;
+    }
+
+    /**
+     * Find a symbol.
+     *
+     * @param name the symbol name
+     * @return the symbol, or {@code null} if there is no symbol with the given name
+     */
+    abstract ElfSymbolTableEntry findSymbol(String name);
+
+    ElfSymbolTableEntry checkSymbol(int index, String name) {
+        ElfSymbolTableEntry entry = elfHeader.getSymbolTableEntry(index, dynamic);
+        return entry != null && entry.nameEquals(name) ? entry : null;
+    }
+
+    static ElfSymbolIndex create(ElfHeader elfHeader, int symTabIndex, boolean dynamic) {
+        ElfSectionHeaderEntry symTab = elfHeader.getSectionHeaderTableEntry(symTabIndex);
+        ElfSectionHeaderEntry sysVHash = null;
+        final int cnt = elfHeader.getSectionHeaderTableEntryCount();
+        for (int i = 0; i < cnt; i++) {
+            ElfSectionHeaderEntry entry = elfHeader.getSectionHeaderTableEntry(i);
+            if (entry.getLinkedSectionIndex() == symTabIndex) {
+                if (entry.getType() == Elf.Section.Type.Gnu.HASH) {
+                    return new Gnu(elfHeader, dynamic, entry);
+                } else if (entry.getType() == Elf.Section.Type.Std.HASH) {
+                    sysVHash = entry;
+                }
+            }
+        }
+        if (sysVHash != null) {
+            return new SysV(elfHeader, dynamic, sysVHash);
+        }
+        ElfSectionHeaderEntry strTab = elfHeader.getSectionHeaderTableEntry(symTab.getLinkedSectionIndex());
+        long charSize = strTab.getFixedEntrySize();
+        if (charSize > 1) {
+            // wide strings are not hashed
+            return new Linear(elfHeader, dynamic);
+        }
+        return new Names(elfHeader, dynamic, symTab, strTab);
+    }
+
+    static byte[] nameBytes(String name) {
+        return name.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The index for a symbol table with an {@code SHT_HASH} section.
+     */
+    static final class SysV extends ElfSymbolIndex {
+        private final BinaryBuffer buffer;
+        private final long offset;
+        private final int bucketCount;
+
+        SysV(final ElfHeader elfHeader, final boolean dynamic, final ElfSectionHeaderEntry hashSection) {
+            super(elfHeader, dynamic);
+            buffer = elfHeader.getBackingBuffer();
+            offset = hashSection.getOffset();
+            bucketCount = buffer.getInt(offset);
+        }
+
+        ElfSymbolTableEntry findSymbol(final String name) {
+            if (bucketCount == 0) {
+                return null;
+            }
+            int hash = hash(nameBytes(name));
+            long chains = offset + 8 + 4L * bucketCount;
+            int index = buffer.getInt(offset + 8 + 4L * Integer.remainderUnsigned(hash, bucketCount));
+            while (index != 0) {
+                ElfSymbolTableEntry entry = checkSymbol(index, name);
+                if (entry != null) {
+                    return entry;
+                }
+                index = buffer.getInt(chains + 4L * index);
+            }
+            return null;
+        }
+
+        static int hash(byte[] name) {
+            int h = 0;
+            for (byte b : name) {
+                h = (h << 4) + (b & 0xff);
+                int g = h & 0xf000_0000;
+                if (g != 0) {
+                    h ^= g >>> 24;
+                }
+                h &= ~g;
+            }
+            return h;
+        }
+    }
+
+    /**
+     * The index for a symbol table with an {@code SHT_GNU_HASH} section.
+     */
+    static final class Gnu extends ElfSymbolIndex {
+        private final BinaryBuffer buffer;
+        private final int bucketCount;
+        private final int symOffset;
+        private final long buckets;
+        private final long chains;
+
+        Gnu(final ElfHeader elfHeader, final boolean dynamic, final ElfSectionHeaderEntry hashSection) {
+            super(elfHeader, dynamic);
+            buffer = elfHeader.getBackingBuffer();
+            long offset = hashSection.getOffset();
+            bucketCount = buffer.getInt(offset);
+            symOffset = buffer.getInt(offset + 4);
+            int bloomSize = buffer.getInt(offset + 8);
+            int wordSize = elfHeader.getElfClass() == Elf.Class.Std._64 ? 8 : 4;
+            buckets = offset + 16 + (long) wordSize * bloomSize;
+            chains = buckets + 4L * bucketCount;
+        }
+
+        ElfSymbolTableEntry findSymbol(final String name) {
+            if (bucketCount == 0) {
+                return null;
+            }
+            int hash = hash(nameBytes(name));
+            int index = buffer.getInt(buckets + 4L * Integer.remainderUnsigned(hash, bucketCount));
+            if (Integer.compareUnsigned(index, symOffset) < 0) {
+                return null;
+            }
+            for (;;) {
+                int chainHash = buffer.getInt(chains + 4L * (index - symOffset));
+                if ((chainHash | 1) == (hash | 1)) {
+                    ElfSymbolTableEntry entry = checkSymbol(index, name);
+                    if (entry != null) {
+                        return entry;
+                    }
+                }
+                if ((chainHash & 1) != 0) {
+                    // end of chain
+                    return null;
+                }
+                index++;
+            }
+        }
+
+        static int hash(byte[] name) {
+            int h = 5381;
+            for (byte b : name) {
+                h = h * 33 + (b & 0xff);
+            }
+            return h;
+        }
+    }
+
+    /**
+     * The index for a symbol table without a hash section, which is built in one pass over the symbol table.
+     * Each slot of the open-addressed table holds the index of a symbol plus one, and is found by the hash of its name.
+     */
+    static final class Names extends ElfSymbolIndex {
+        private final int[] slots;
+        private final int[] hashes;
+
+        Names(final ElfHeader elfHeader, final boolean dynamic, final ElfSectionHeaderEntry symTab, final ElfSectionHeaderEntry strTab) {
+            super(elfHeader, dynamic);
+            BinaryBuffer buffer = elfHeader.getBackingBuffer();
+            int count = (int) (symTab.getSize() / symTab.getFixedEntrySize());
+            int size = Integer.highestOneBit(Math.max(count, 1) * 2 - 1) << 1;
+            slots = new int[size];
+            hashes = new int[size];
+            long strStart = strTab.getOffset();
+            long strEnd = strStart + strTab.getSize();
+            int mask = size - 1;
+            // index 0 is always the undefined symbol
+            for (int i = 1; i < count; i++) {
+                long nameIndex = buffer.getIntUnsigned(symTab.getOffset() + i * symTab.getFixedEntrySize());
+                if (nameIndex == 0 || nameIndex >= strTab.getSize()) {
+                    // unnamed
+                    continue;
+                }
+                int h = 5381;
+                for (long pos = strStart + nameIndex; pos < strEnd; pos++) {
+                    int b = buffer.getByteUnsigned(pos);
+                    if (b == 0) {
+                        break;
+                    }
+                    h = h * 33 + b;
+                }
+                int slot = h & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = i + 1;
+                hashes[slot] = h;
+            }
+        }
+
+        ElfSymbolTableEntry findSymbol(final String name) {
+            int hash = Gnu.hash(nameBytes(name));
+            int mask = slots.length - 1;
+            for (int slot = hash & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+                if (hashes[slot] == hash) {
+                    ElfSymbolTableEntry entry = checkSymbol(slots[slot] - 1, name);
+                    if (entry != null) {
+                        return entry;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The fallback index, which searches the symbol table linearly.
+     */
+    static final class Linear extends ElfSymbolIndex {
+        Linear(final ElfHeader elfHeader, final boolean dynamic) {
+            super(elfHeader, dynamic);
+        }
+
+        ElfSymbolTableEntry findSymbol(final String name) {
+            int idx = 0;
+            for (;;) {
+                ElfSymbolTableEntry entry = elfHeader.getSymbolTableEntry(idx++, dynamic);
+                if (entry == null) {
+                    return null;
+                } else if (entry.nameEquals(name)) {
+                    return entry;
+                }
+            }
+        }
+    }
+}
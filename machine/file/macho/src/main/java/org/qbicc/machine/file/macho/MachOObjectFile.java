@@ -162,6 +162,10 @@ public final class MachOObjectFile implements ObjectFile {
         }
     }
 
+    public long getSymbolAddress(final String name) {
+        return requireSymbol(name).value;
+    }
+
     public byte[] getSymbolAsBytes(final String name, final int size) {
         final byte[] array = new byte[size];
         final NList symbol = requireSymbol(name);
@@ -22,6 +22,15 @@ public interface ObjectFile extends Closeable {
 
     long getSymbolSize(String name);
 
+    /**
+     * Get the address of a symbol.  In a relocatable object file, this is the offset of the symbol within its
+     * section; in a linked image, this is the link-time virtual address of the symbol.
+     *
+     * @param name the symbol name (must not be {@code null})
+     * @return the symbol address
+     */
+    long getSymbolAddress(String name);
+
     ByteOrder getByteOrder();
 
     Cpu getCpu();
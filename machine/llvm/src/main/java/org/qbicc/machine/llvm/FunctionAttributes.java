@@ -9,7 +9,10 @@ public final class FunctionAttributes {
     private FunctionAttributes() {}
 
     public static final LLValue alwaysinline = LLVM.flagAttribute("alwaysinline");
+    public static final LLValue cold = LLVM.flagAttribute("cold");
     public static final LLValue gcLeafFunction = LLVM.flagAttribute("\"gc-leaf-function\"");
+    public static final LLValue minsize = LLVM.flagAttribute("minsize");
+    public static final LLValue optsize = LLVM.flagAttribute("optsize");
     public static final LLValue uwtable = LLVM.flagAttribute("uwtable");
 
     public static LLValue framePointer(String val) {
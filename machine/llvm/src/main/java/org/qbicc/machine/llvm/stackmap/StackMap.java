@@ -9,7 +9,31 @@ public final class StackMap {
     private StackMap() {}
 
     public static void parse(ByteBuffer stackMapBuffer, StackMapVisitor visitor) {
-        ByteBuffer buf = stackMapBuffer.duplicate().order(stackMapBuffer.order());
+        parse0(stackMapBuffer.duplicate().order(stackMapBuffer.order()), visitor);
+    }
+
+    /**
+     * Parse every stack map in a section which may hold more than one of them.  This is the case for the stack map
+     * section of a linked image, where the linker has concatenated the stack maps of each of the object files, each one
+     * aligned to 8 bytes.
+     *
+     * @param sectionBuffer the section content
+     * @param visitor the visitor for each stack map
+     */
+    public static void parseAll(ByteBuffer sectionBuffer, StackMapVisitor visitor) {
+        ByteBuffer buf = sectionBuffer.duplicate().order(sectionBuffer.order());
+        while (buf.remaining() >= 8) {
+            if (buf.get(buf.position()) == 0) {
+                // alignment padding between stack maps
+                buf.position(buf.position() + 8);
+                continue;
+            }
+            parse0(buf, visitor);
+            buf.position((buf.position() + 7) & ~7);
+        }
+    }
+
+    private static void parse0(ByteBuffer buf, StackMapVisitor visitor) {
         int version = buf.get() & 0xff;
         if (version == 3) {
             buf.get();
@@ -1,6 +1,10 @@
 package org.qbicc.machine.probe;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -46,9 +50,15 @@ public final class CProbe {
     private final List<String> constants;
     private final Map<String, Type> constantTypes;
     private final List<String> functions;
+    private final List<Step> prologue;
+    private final List<ConstantRequest> constantRequests;
+    private final List<TypeRequest> typeRequests;
 
     CProbe(final Builder builder) {
         this.items = List.copyOf(builder.items);
+        this.prologue = List.copyOf(builder.prologue);
+        this.constantRequests = List.copyOf(builder.constantRequests);
+        this.typeRequests = List.copyOf(builder.typeRequests);
         this.types = List.copyOf(builder.types);
         this.constants = List.copyOf(builder.constants);
         this.constantTypes = Map.copyOf(builder.constantTypes);
@@ -59,6 +69,23 @@ public final class CProbe {
         return new Builder();
     }
 
+    /**
+     * Get the C source text of this probe.
+     *
+     * @return the source text (not {@code null})
+     */
+    public String getSource() {
+        return appendSteps(items);
+    }
+
+    private static String appendSteps(List<Step> steps) {
+        StringBuilder b = new StringBuilder();
+        for (Step step : steps) {
+            step.appendTo(b);
+        }
+        return b.toString();
+    }
+
     /**
      * Run the probe.
      *
@@ -69,12 +96,96 @@ public final class CProbe {
      * @throws IOException if communications with or execution of the compiler failed
      */
     public Result run(CToolChain toolChain, ObjectFileProvider objectFileProvider, DiagnosticContext errorReporter) throws IOException {
-        final CCompilerInvoker inv = toolChain.newCompilerInvoker();
-        StringBuilder b = new StringBuilder();
-        for (Step item : items) {
-            item.appendTo(b);
+        return run(toolChain, objectFileProvider, errorReporter, null);
+    }
+
+    /**
+     * Run the probe, reusing a previously compiled result from the given cache if possible.
+     *
+     * @param toolChain the C tool chain to use (must not be {@code null})
+     * @param objectFileProvider the object file provider to use (must not be {@code null})
+     * @param errorReporter the context to report errors to, or {@code null} to skip error reporting
+     * @param cache the probe cache to use, or {@code null} to always compile the probe
+     * @return the result, or {@code null} if the compilation failed
+     * @throws IOException if communications with or execution of the compiler failed
+     */
+    public Result run(CToolChain toolChain, ObjectFileProvider objectFileProvider, DiagnosticContext errorReporter, CProbeCache cache) throws IOException {
+        if (cache == null || ! functions.isEmpty() || constantRequests.isEmpty() && typeRequests.isEmpty()) {
+            return compile(toolChain, objectFileProvider, errorReporter);
+        }
+        String prologueSource = appendSteps(prologue);
+        final Map<String, ConstantInfo> constantInfos = new HashMap<>(constantRequests.size());
+        final Map<Type, Type.Info> typeInfos = new HashMap<>(typeRequests.size());
+        final Map<Type, Map<String, Type.Info>> memberInfos = new HashMap<>(typeRequests.size());
+        ByteOrder byteOrder = null;
+        // only compile the items which are not yet cached
+        Builder missing = new Builder(prologue);
+        List<String> missingKeys = new ArrayList<>();
+        for (ConstantRequest request : constantRequests) {
+            String key = cache.computeKey(prologueSource, request.toString());
+            byte[] data = cache.get(key);
+            if (data != null && data.length == 1 && data[0] == 0 && errorReporter == null) {
+                // known to fail
+                return null;
+            }
+            ConstantInfo info = data == null ? null : decodeConstantInfo(request.name, data);
+            if (info == null) {
+                missing.probeConstant(request.name, request.type, request.sourceFile, request.line);
+                missingKeys.add(key);
+            } else {
+                constantInfos.put(request.name, info);
+                byteOrder = info.byteOrder;
+            }
+        }
+        for (TypeRequest request : typeRequests) {
+            String key = cache.computeKey(prologueSource, request.toString());
+            byte[] data = cache.get(key);
+            if (data != null && data.length == 1 && data[0] == 0 && errorReporter == null) {
+                // known to fail
+                return null;
+            }
+            Map<String, Type.Info> memberInfo = new HashMap<>(request.type.getMembers().size());
+            ByteOrder typeByteOrder = data == null ? null : decodeTypeInfo(request.type, data, typeInfos, memberInfo);
+            if (typeByteOrder == null) {
+                missing.probeType(request.type, request.sourceFile, request.line);
+                missingKeys.add(key);
+            } else {
+                memberInfos.put(request.type, memberInfo);
+                byteOrder = typeByteOrder;
+            }
+        }
+        if (! missingKeys.isEmpty()) {
+            CProbe missingProbe = missing.build();
+            Result result = missingProbe.compile(toolChain, objectFileProvider, errorReporter);
+            if (result == null) {
+                if (missingKeys.size() == 1 && errorReporter == null) {
+                    // we know exactly which item failed
+                    cache.put(missingKeys.get(0), new byte[1]);
+                }
+                return null;
+            }
+            byteOrder = result.getByteOrder();
+            int i = 0;
+            for (ConstantRequest request : missingProbe.constantRequests) {
+                ConstantInfo info = result.getConstantInfo(request.name);
+                constantInfos.put(request.name, info);
+                cache.put(missingKeys.get(i ++), encodeConstantInfo(info));
+            }
+            for (TypeRequest request : missingProbe.typeRequests) {
+                Type.Info info = result.getTypeInfo(request.type);
+                Map<String, Type.Info> memberInfo = result.memberInfos.get(request.type);
+                typeInfos.put(request.type, info);
+                memberInfos.put(request.type, memberInfo);
+                cache.put(missingKeys.get(i ++), encodeTypeInfo(request.type, info, memberInfo, byteOrder));
+            }
         }
-        inv.setSource(InputSource.from(b));
+        return new Result(typeInfos, memberInfos, Map.of(), constantInfos, byteOrder);
+    }
+
+    private Result compile(CToolChain toolChain, ObjectFileProvider objectFileProvider, DiagnosticContext errorReporter) throws IOException {
+        final String source = getSource();
+        final CCompilerInvoker inv = toolChain.newCompilerInvoker();
+        inv.setSource(InputSource.from(source));
         final Path path = Files.createTempFile("qbicc-probe-", "." + objectFileProvider.getObjectType().objectSuffix());
         try (Closeable c = ProbeUtil.deleting(path)) {
             inv.setOutputPath(path);
@@ -97,59 +208,153 @@ public final class CProbe {
                 // no result
                 return null;
             }
-            // analyze the result
-            try (final ObjectFile objectFile = objectFileProvider.openObjectFile(path)) {
-                int cnt = constants.size();
-                ByteOrder byteOrder = objectFile.getByteOrder();
-                final Map<String, ConstantInfo> constantInfos = new HashMap<>(cnt);
-                for (int i = 0; i < cnt; i ++) {
-                    String name = constants.get(i);
-                    boolean defined = objectFile.getSymbolValueAsByte("cp_is_defined" + i) != 0;
-                    int size = (int) objectFile.getSymbolValueAsLong("cp_size" + i);
-                    boolean signed = objectFile.getSymbolValueAsByte("cp_is_signed" + i) != 0;
-                    boolean unsigned = objectFile.getSymbolValueAsByte("cp_is_unsigned" + i) != 0;
-                    boolean floating = objectFile.getSymbolValueAsByte("cp_is_floating" + i) != 0;
-                    boolean bool = objectFile.getSymbolValueAsByte("cp_is_bool" + i) != 0;
-                    constantInfos.put(name, new ConstantInfo(defined, objectFile.getSymbolAsBytes("cp_value" + i, size), name, byteOrder, signed, unsigned, floating, bool));
-                }
-                cnt = functions.size();
-                final Map<String, FunctionInfo> functionInfos = new HashMap<>(cnt);
-                for (int i = 0; i < cnt; i ++) {
-                    String name = functions.get(i);
-                    // get the symbol value (todo)
-                    throw new UnsupportedOperationException("Read symbol relocation data from object file");
-                }
-                cnt = types.size();
-                final Map<Type, Type.Info> typeInfos = new HashMap<>(cnt);
-                final Map<Type, Map<String, Type.Info>> memberInfos = new HashMap<>();
-                for (int i = 0; i < cnt; i ++) {
-                    Type type = types.get(i);
-                    long overallSize = objectFile.getSymbolValueAsLong("tp_overall_size" + i);
-                    long overallAlign = objectFile.getSymbolValueAsLong("tp_overall_align" + i);
-                    boolean signed = objectFile.getSymbolValueAsByte("tp_is_signed" + i) != 0;
-                    boolean unsigned = objectFile.getSymbolValueAsByte("tp_is_unsigned" + i) != 0;
-                    boolean floating = objectFile.getSymbolValueAsByte("tp_is_floating" + i) != 0;
-                    Type.Info info = new Type.Info(overallSize, overallAlign, 0, signed, unsigned, floating);
-                    Map<String, Type.Info> memberInfo = new HashMap<>(type.getMembers().size());
-                    for (String memberName : type.getMembers()) {
-                        long memberSize = objectFile.getSymbolValueAsLong("tp_sizeof_" + memberName + i);
-                        long memberOffset = objectFile.getSymbolValueAsLong("tp_offsetof_" + memberName + i);
-                        boolean memberSigned = objectFile.getSymbolValueAsByte("tp_is_signed_" + memberName + i) != 0;
-                        boolean memberUnsigned = objectFile.getSymbolValueAsByte("tp_is_unsigned_" + memberName + i) != 0;
-                        boolean memberFloating = objectFile.getSymbolValueAsByte("tp_is_floating_" + memberName + i) != 0;
-                        memberInfo.put(memberName, new Type.Info(memberSize, 0, memberOffset, memberSigned, memberUnsigned, memberFloating));
-                    }
-                    typeInfos.put(type, info);
-                    memberInfos.put(type, memberInfo);
+            return analyze(objectFileProvider, path);
+        }
+    }
+
+    private Result analyze(ObjectFileProvider objectFileProvider, Path path) throws IOException {
+        try (final ObjectFile objectFile = objectFileProvider.openObjectFile(path)) {
+            int cnt = constants.size();
+            ByteOrder byteOrder = objectFile.getByteOrder();
+            final Map<String, ConstantInfo> constantInfos = new HashMap<>(cnt);
+            for (int i = 0; i < cnt; i ++) {
+                String name = constants.get(i);
+                boolean defined = objectFile.getSymbolValueAsByte("cp_is_defined" + i) != 0;
+                int size = (int) objectFile.getSymbolValueAsLong("cp_size" + i);
+                boolean signed = objectFile.getSymbolValueAsByte("cp_is_signed" + i) != 0;
+                boolean unsigned = objectFile.getSymbolValueAsByte("cp_is_unsigned" + i) != 0;
+                boolean floating = objectFile.getSymbolValueAsByte("cp_is_floating" + i) != 0;
+                boolean bool = objectFile.getSymbolValueAsByte("cp_is_bool" + i) != 0;
+                constantInfos.put(name, new ConstantInfo(defined, objectFile.getSymbolAsBytes("cp_value" + i, size), name, byteOrder, signed, unsigned, floating, bool));
+            }
+            cnt = functions.size();
+            final Map<String, FunctionInfo> functionInfos = new HashMap<>(cnt);
+            for (int i = 0; i < cnt; i ++) {
+                String name = functions.get(i);
+                // get the symbol value (todo)
+                throw new UnsupportedOperationException("Read symbol relocation data from object file");
+            }
+            cnt = types.size();
+            final Map<Type, Type.Info> typeInfos = new HashMap<>(cnt);
+            final Map<Type, Map<String, Type.Info>> memberInfos = new HashMap<>();
+            for (int i = 0; i < cnt; i ++) {
+                Type type = types.get(i);
+                long overallSize = objectFile.getSymbolValueAsLong("tp_overall_size" + i);
+                long overallAlign = objectFile.getSymbolValueAsLong("tp_overall_align" + i);
+                boolean signed = objectFile.getSymbolValueAsByte("tp_is_signed" + i) != 0;
+                boolean unsigned = objectFile.getSymbolValueAsByte("tp_is_unsigned" + i) != 0;
+                boolean floating = objectFile.getSymbolValueAsByte("tp_is_floating" + i) != 0;
+                Type.Info info = new Type.Info(overallSize, overallAlign, 0, signed, unsigned, floating);
+                Map<String, Type.Info> memberInfo = new HashMap<>(type.getMembers().size());
+                for (String memberName : type.getMembers()) {
+                    long memberSize = objectFile.getSymbolValueAsLong("tp_sizeof_" + memberName + i);
+                    long memberOffset = objectFile.getSymbolValueAsLong("tp_offsetof_" + memberName + i);
+                    boolean memberSigned = objectFile.getSymbolValueAsByte("tp_is_signed_" + memberName + i) != 0;
+                    boolean memberUnsigned = objectFile.getSymbolValueAsByte("tp_is_unsigned_" + memberName + i) != 0;
+                    boolean memberFloating = objectFile.getSymbolValueAsByte("tp_is_floating_" + memberName + i) != 0;
+                    memberInfo.put(memberName, new Type.Info(memberSize, 0, memberOffset, memberSigned, memberUnsigned, memberFloating));
                 }
-                return new Result(typeInfos, memberInfos, functionInfos, constantInfos, byteOrder);
+                typeInfos.put(type, info);
+                memberInfos.put(type, memberInfo);
+            }
+            return new Result(typeInfos, memberInfos, functionInfos, constantInfos, byteOrder);
+        }
+    }
+
+
+    // cache entry encoding
+
+    private static final int FLAG_DEFINED = 1 << 0;
+    private static final int FLAG_SIGNED = 1 << 1;
+    private static final int FLAG_UNSIGNED = 1 << 2;
+    private static final int FLAG_FLOATING = 1 << 3;
+    private static final int FLAG_BOOL = 1 << 4;
+    private static final int FLAG_BIG_ENDIAN = 1 << 5;
+
+    private static byte[] encodeConstantInfo(ConstantInfo info) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (DataOutputStream dos = new DataOutputStream(os)) {
+            dos.writeByte(1);
+            dos.writeByte((info.defined ? FLAG_DEFINED : 0)
+                | (info.signed ? FLAG_SIGNED : 0)
+                | (info.unsigned ? FLAG_UNSIGNED : 0)
+                | (info.floating ? FLAG_FLOATING : 0)
+                | (info.bool ? FLAG_BOOL : 0)
+                | (info.byteOrder == ByteOrder.BIG_ENDIAN ? FLAG_BIG_ENDIAN : 0));
+            dos.writeInt(info.value.length);
+            dos.write(info.value);
+        }
+        return os.toByteArray();
+    }
+
+    private static ConstantInfo decodeConstantInfo(String name, byte[] data) {
+        try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data))) {
+            if (dis.readByte() != 1) {
+                return null;
             }
+            int flags = dis.readUnsignedByte();
+            byte[] value = new byte[dis.readInt()];
+            dis.readFully(value);
+            ByteOrder byteOrder = (flags & FLAG_BIG_ENDIAN) != 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+            return new ConstantInfo((flags & FLAG_DEFINED) != 0, value, name, byteOrder, (flags & FLAG_SIGNED) != 0, (flags & FLAG_UNSIGNED) != 0, (flags & FLAG_FLOATING) != 0, (flags & FLAG_BOOL) != 0);
+        } catch (IOException | NegativeArraySizeException e) {
+            // corrupt entry
+            return null;
         }
     }
 
+    private static void writeTypeInfo(DataOutputStream dos, Type.Info info, int extraFlags) throws IOException {
+        dos.writeByte((info.signed ? FLAG_SIGNED : 0)
+            | (info.unsigned ? FLAG_UNSIGNED : 0)
+            | (info.floating ? FLAG_FLOATING : 0)
+            | extraFlags);
+        dos.writeLong(info.size);
+        dos.writeLong(info.align);
+        dos.writeLong(info.offset);
+    }
+
+    private static Type.Info readTypeInfo(DataInputStream dis) throws IOException {
+        int flags = dis.readUnsignedByte();
+        return new Type.Info(dis.readLong(), dis.readLong(), dis.readLong(), (flags & FLAG_SIGNED) != 0, (flags & FLAG_UNSIGNED) != 0, (flags & FLAG_FLOATING) != 0);
+    }
+
+    private static byte[] encodeTypeInfo(Type type, Type.Info info, Map<String, Type.Info> memberInfo, ByteOrder byteOrder) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (DataOutputStream dos = new DataOutputStream(os)) {
+            dos.writeByte(1);
+            writeTypeInfo(dos, info, byteOrder == ByteOrder.BIG_ENDIAN ? FLAG_BIG_ENDIAN : 0);
+            for (String memberName : type.getMembers()) {
+                writeTypeInfo(dos, memberInfo.get(memberName), 0);
+            }
+        }
+        return os.toByteArray();
+    }
+
+    private static ByteOrder decodeTypeInfo(Type type, byte[] data, Map<Type, Type.Info> typeInfos, Map<String, Type.Info> memberInfo) {
+        try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data))) {
+            if (dis.readByte() != 1) {
+                return null;
+            }
+            dis.mark(1);
+            boolean bigEndian = (dis.readUnsignedByte() & FLAG_BIG_ENDIAN) != 0;
+            dis.reset();
+            Type.Info info = readTypeInfo(dis);
+            for (String memberName : type.getMembers()) {
+                memberInfo.put(memberName, readTypeInfo(dis));
+            }
+            typeInfos.put(type, info);
+            return bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+        } catch (IOException e) {
+            // corrupt entry
+            return null;
+        }
+    }
 
     public static final class Builder {
         private final List<Step> items = new ArrayList<>();
+        private final List<Step> prologue = new ArrayList<>();
+        private final List<ConstantRequest> constantRequests = new ArrayList<>();
+        private final List<TypeRequest> typeRequests = new ArrayList<>();
         private final List<Type> types = new ArrayList<>();
         private final List<String> constants = new ArrayList<>();
         private final Map<String, Type> constantTypes = new HashMap<>();
@@ -162,24 +367,33 @@ public final class CProbe {
             include("<limits.h>");
         }
 
+        Builder(List<Step> prologue) {
+            items.addAll(prologue);
+            this.prologue.addAll(prologue);
+        }
+
         // top level steps
 
         public Builder include(String include) {
+            Include step;
             if (include.startsWith("<") && include.endsWith(">")) {
-                items.add(new Include(include.substring(1, include.length() - 1), false));
+                step = new Include(include.substring(1, include.length() - 1), false);
             } else {
-                items.add(new Include(include, true));
+                step = new Include(include, true);
             }
+            items.add(step);
+            prologue.add(step);
             return this;
         }
 
         public Builder define(String key) {
-            items.add(new Define(key, null));
-            return this;
+            return define(key, null);
         }
 
         public Builder define(String key, String value) {
-            items.add(new Define(key, value));
+            Define step = new Define(key, value);
+            items.add(step);
+            prologue.add(step);
             return this;
         }
 
@@ -235,6 +449,7 @@ public final class CProbe {
                 add(decl(NamedType.BOOL, "tp_is_floating_" + memberName, idx, isFloating(member)));
             }
             types.add(type);
+            typeRequests.add(new TypeRequest(type, sourceFile, line));
             return this;
         }
 
@@ -294,6 +509,7 @@ public final class CProbe {
             line(line, sourceFile);
             add(decl(NamedType.BOOL, "cp_is_bool", idx, isBool(symbol)));
             constants.add(name);
+            constantRequests.add(new ConstantRequest(name, type, sourceFile, line));
             return this;
         }
 
@@ -548,6 +764,10 @@ public final class CProbe {
                 && members.equals(other.members);
         }
 
+        public String toString() {
+            return qualifier + " " + name + " " + members;
+        }
+
         public static Type.Builder builder() {
             return new Type.Builder();
         }
@@ -831,6 +1051,40 @@ public final class CProbe {
 
     // private
 
+    static final class ConstantRequest {
+        final String name;
+        final Type type;
+        final String sourceFile;
+        final int line;
+
+        ConstantRequest(final String name, final Type type, final String sourceFile, final int line) {
+            this.name = name;
+            this.type = type;
+            this.sourceFile = sourceFile;
+            this.line = line;
+        }
+
+        public String toString() {
+            return type == null ? "constant " + name : "constant " + name + " " + type;
+        }
+    }
+
+    static final class TypeRequest {
+        final Type type;
+        final String sourceFile;
+        final int line;
+
+        TypeRequest(final Type type, final String sourceFile, final int line) {
+            this.type = type;
+            this.sourceFile = sourceFile;
+            this.line = line;
+        }
+
+        public String toString() {
+            return "type " + type;
+        }
+    }
+
     static abstract class Step {
 
         /**
@@ -0,0 +1,129 @@
+package org.qbicc.machine.probe;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import io.smallrye.common.constraint.Assert;
+import org.jboss.logging.Logger;
+import org.qbicc.context.AttachmentKey;
+import org.qbicc.machine.tool.CToolChain;
+
+/**
+ * A persistent cache of probe results.  Each constant and type which is probed is cached separately, keyed by a hash
+ * of the include and define directives of the probe and the description of the probed item, combined with the target
+ * platform and the identity and version of the C tool chain.  This way, a result can be reused by any later probe of the
+ * same item with the same directives, regardless of which other items are probed alongside it.
+ */
+public final class CProbeCache {
+    private static final Logger log = Logger.getLogger("org.qbicc.machine.probe.cache");
+
+    /**
+     * The attachment key for the probe cache of a compilation, if any.
+     */
+    public static final AttachmentKey<CProbeCache> KEY = new AttachmentKey<>();
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Path cacheDir;
+    private final byte[] configuration;
+
+    /**
+     * Construct a new instance.
+     *
+     * @param cacheDir the cache directory (must not be {@code null})
+     * @param toolChain the C tool chain that the probes are compiled with (must not be {@code null})
+     */
+    public CProbeCache(final Path cacheDir, final CToolChain toolChain) {
+        this.cacheDir = Assert.checkNotNullParam("cacheDir", cacheDir);
+        this.configuration = String.join(
+            "\n",
+            "platform " + toolChain.getPlatform(),
+            "cc " + toolChain.getImplementationName() + " " + toolChain.getVersion(),
+            ""
+        ).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Compute the cache key of a probed item.
+     *
+     * @param prologue the include and define directives of the probe (must not be {@code null})
+     * @param item the description of the probed item (must not be {@code null})
+     * @return the cache key (not {@code null})
+     */
+    String computeKey(String prologue, String item) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(configuration);
+        digest.update(prologue.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        byte[] hash = digest.digest(item.getBytes(StandardCharsets.UTF_8));
+        char[] chars = new char[hash.length << 1];
+        for (int i = 0; i < hash.length; i ++) {
+            chars[i << 1] = HEX[(hash[i] >> 4) & 0xf];
+            chars[(i << 1) + 1] = HEX[hash[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private Path getEntryPath(String key) {
+        // spread the entries over subdirectories to keep directory sizes reasonable
+        return cacheDir.resolve(key.substring(0, 2)).resolve(key.substring(2) + ".probe");
+    }
+
+    /**
+     * Get the cached data for the given key.
+     *
+     * @param key the cache key (must not be {@code null})
+     * @return the cached data, or {@code null} if there is no (readable) cache entry
+     */
+    byte[] get(String key) {
+        Path entryPath = getEntryPath(key);
+        if (! Files.isRegularFile(entryPath)) {
+            return null;
+        }
+        try {
+            return Files.readAllBytes(entryPath);
+        } catch (IOException e) {
+            log.debugf(e, "Failed to read cached probe result %s", entryPath);
+            return null;
+        }
+    }
+
+    /**
+     * Store data into the cache.  Failure to store the data is not fatal.
+     *
+     * @param key the cache key (must not be {@code null})
+     * @param data the data to store (must not be {@code null})
+     */
+    void put(String key, byte[] data) {
+        Path entryPath = getEntryPath(key);
+        Path entryDir = entryPath.getParent();
+        try {
+            Files.createDirectories(entryDir);
+            // write to a temporary file first so that a concurrent reader never sees a partial entry
+            Path tempPath = Files.createTempFile(entryDir, key, ".tmp");
+            try {
+                Files.write(tempPath, data);
+                try {
+                    Files.move(tempPath, entryPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException ignored) {
+                    Files.move(tempPath, entryPath, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tempPath);
+            }
+        } catch (IOException e) {
+            log.debugf(e, "Failed to store probe result %s in cache", entryPath);
+        }
+    }
+}
@@ -2,8 +2,12 @@ package org.qbicc.machine.probe;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.stream.Stream;
 
 import org.qbicc.machine.arch.ObjectType;
 import org.qbicc.machine.arch.Platform;
@@ -96,4 +100,33 @@ public class TestProbes {
         assertTrue(result.getConstantInfo("INT8_MAX").isDefined());
         assertEquals(Byte.MAX_VALUE, result.getConstantInfo("INT8_MAX").getValueAsInt());
     }
+
+    @Test
+    public void testCachedProbe() throws Exception {
+        Path cacheDir = Files.createTempDirectory("qbicc-probe-cache-");
+        try {
+            CProbeCache cache = new CProbeCache(cacheDir, compiler);
+            final CProbe.Type int32_t = CProbe.Type.builder().setName("int32_t").build();
+            final CProbe probe = CProbe.builder().include("<stdint.h>").probeConstant("INT8_MAX").probeType(int32_t).build();
+            final CProbe.Result first = probe.run(compiler, objectFileProvider, null, cache);
+            assertNotNull(first);
+            // a different batch of the same items must be answered from the cache alone
+            final CProbe.Result second = CProbe.builder().include("<stdint.h>").probeType(int32_t).probeConstant("INT8_MAX").build()
+                .run(compiler, objectFileProvider, null, cache);
+            assertNotNull(second);
+            assertEquals(Byte.MAX_VALUE, second.getConstantInfo("INT8_MAX").getValueAsInt());
+            assertTrue(second.getConstantInfo("INT8_MAX").isDefined());
+            assertEquals(4, second.getTypeInfo(int32_t).getSize());
+            assertTrue(second.getTypeInfo(int32_t).isSigned());
+            assertEquals(first.getByteOrder(), second.getByteOrder());
+            // an undefined constant fails, and the failure is remembered
+            final CProbe bad = CProbe.builder().include("<stdint.h>").probeConstant("QBICC_NOT_DEFINED").build();
+            assertNull(bad.run(compiler, objectFileProvider, null, cache));
+            assertNull(bad.run(compiler, objectFileProvider, null, cache));
+        } finally {
+            try (Stream<Path> paths = Files.walk(cacheDir)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
 }
@@ -0,0 +1,39 @@
+package org.qbicc.tool.llvm;
+
+import java.nio.file.Path;
+
+/**
+ * An invoker for {@code llvm-link}, which merges several LLVM modules into a single module.  The merged module is
+ * written as bitcode to the invoker's destination; the invoker's source is not used.
+ */
+public interface LlvmLinkInvoker extends LlvmInvoker {
+    LlvmToolChain getTool();
+
+    /**
+     * Add a module to be linked.
+     *
+     * @param path the path of the module (must not be {@code null})
+     */
+    void addInput(Path path);
+
+    /**
+     * Remove all previously added modules.
+     */
+    void clearInputs();
+
+    /**
+     * Get the number of modules to be linked.
+     *
+     * @return the number of modules
+     */
+    int getInputCount();
+
+    /**
+     * Get the module at the given index.
+     *
+     * @param index the index
+     * @return the module path
+     * @throws IndexOutOfBoundsException if the index is out of bounds
+     */
+    Path getInput(int index) throws IndexOutOfBoundsException;
+}
@@ -0,0 +1,47 @@
+package org.qbicc.tool.llvm;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.smallrye.common.constraint.Assert;
+
+/**
+ *
+ */
+final class LlvmLinkInvokerImpl extends AbstractLlvmInvoker implements LlvmLinkInvoker {
+    private final List<Path> inputs = new ArrayList<>();
+
+    LlvmLinkInvokerImpl(final LlvmToolChainImpl tool, final Path path) {
+        super(tool, path);
+    }
+
+    public LlvmToolChain getTool() {
+        return super.getTool();
+    }
+
+    public void addInput(final Path path) {
+        inputs.add(Assert.checkNotNullParam("path", path));
+    }
+
+    public void clearInputs() {
+        inputs.clear();
+    }
+
+    public int getInputCount() {
+        return inputs.size();
+    }
+
+    public Path getInput(final int index) throws IndexOutOfBoundsException {
+        return inputs.get(index);
+    }
+
+    void addArguments(final List<String> cmd) {
+        for (Path input : inputs) {
+            cmd.add(input.toString());
+        }
+        // write bitcode to standard output
+        cmd.add("-o");
+        cmd.add("-");
+    }
+}
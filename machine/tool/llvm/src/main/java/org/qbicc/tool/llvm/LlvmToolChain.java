@@ -29,6 +29,21 @@ public interface LlvmToolChain extends Tool {
 
     OptInvoker newOptInvoker();
 
+    /**
+     * Construct a new invoker for {@code llvm-link}.
+     *
+     * @return the new invoker (not {@code null})
+     * @throws UnsupportedOperationException if {@code llvm-link} is not available in this tool chain
+     */
+    LlvmLinkInvoker newLlvmLinkInvoker() throws UnsupportedOperationException;
+
+    /**
+     * Determine whether {@code llvm-link} is available in this tool chain.
+     *
+     * @return {@code true} if {@code llvm-link} is available, {@code false} otherwise
+     */
+    boolean hasLlvmLink();
+
     static Iterable<LlvmToolChain> findAllLlvmToolChains(Platform platform, Predicate<? super LlvmToolChain> filter, ClassLoader classLoader) {
         Path llcPath = ToolUtil.findExecutable("llc");
         if (llcPath != null) {
@@ -46,7 +61,9 @@ public interface LlvmToolChain extends Tool {
                 Matcher matcher = Llvm.LLVM_VERSION_PATTERN.matcher(stdOut);
                 if (matcher.find()) {
                     String version = matcher.group(1);
-                    return List.of(new LlvmToolChainImpl(llcPath, optPath, platform, version));
+                    // llvm-link is optional
+                    Path linkPath = ToolUtil.findExecutable("llvm-link");
+                    return List.of(new LlvmToolChainImpl(llcPath, optPath, linkPath, platform, version));
                 }
                 Llvm.log.warn("Failed to identify LLVM version string; skipping");
             }
@@ -8,12 +8,14 @@ import io.smallrye.common.version.VersionScheme;
 final class LlvmToolChainImpl implements LlvmToolChain {
     private final Path llcPath;
     private final Path optPath;
+    private final Path linkPath;
     private final Platform platform;
     private final String version;
 
-    LlvmToolChainImpl(final Path llcPath, final Path optPath, final Platform platform, final String version) {
+    LlvmToolChainImpl(final Path llcPath, final Path optPath, final Path linkPath, final Platform platform, final String version) {
         this.llcPath = llcPath;
         this.optPath = optPath;
+        this.linkPath = linkPath;
         this.platform = platform;
         this.version = version;
     }
@@ -26,6 +28,17 @@ final class LlvmToolChainImpl implements LlvmToolChain {
         return new OptInvokerImpl(this, optPath);
     }
 
+    public LlvmLinkInvoker newLlvmLinkInvoker() {
+        if (linkPath == null) {
+            throw new UnsupportedOperationException("No llvm-link executable was found");
+        }
+        return new LlvmLinkInvokerImpl(this, linkPath);
+    }
+
+    public boolean hasLlvmLink() {
+        return linkPath != null;
+    }
+
     public Platform getPlatform() {
         return platform;
     }
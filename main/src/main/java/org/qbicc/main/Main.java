@@ -25,6 +25,7 @@ import org.qbicc.driver.plugin.DriverPlugin;
 import org.qbicc.machine.arch.Platform;
 import org.qbicc.machine.object.ObjectFileProvider;
 import org.qbicc.machine.probe.CProbe;
+import org.qbicc.machine.probe.CProbeCache;
 import org.qbicc.machine.tool.CToolChain;
 import org.qbicc.plugin.constants.ConstantBasicBlockBuilder;
 import org.qbicc.plugin.conversion.CloneConversionBasicBlockBuilder;
@@ -41,6 +42,9 @@ import org.qbicc.plugin.gc.nogc.NoGcBasicBlockBuilder;
 import org.qbicc.plugin.gc.nogc.NoGcMultiNewArrayBasicBlockBuilder;
 import org.qbicc.plugin.gc.nogc.NoGcSetupHook;
 import org.qbicc.plugin.gc.nogc.NoGcTypeSystemConfigurator;
+import org.qbicc.plugin.gc.precise.PreciseGcSetupHook;
+import org.qbicc.plugin.gc.precise.SafePointPollBasicBlockBuilder;
+import org.qbicc.plugin.gc.precise.StackMapTableStage;
 import org.qbicc.plugin.instanceofcheckcast.InstanceOfCheckCastBasicBlockBuilder;
 import org.qbicc.plugin.instanceofcheckcast.SupersDisplayBuilder;
 import org.qbicc.plugin.intrinsics.IntrinsicBasicBlockBuilder;
@@ -68,13 +72,19 @@ import org.qbicc.plugin.native_.NativeTypeResolver;
 import org.qbicc.plugin.native_.PointerBasicBlockBuilder;
 import org.qbicc.plugin.native_.PointerTypeResolver;
 import org.qbicc.plugin.objectmonitor.ObjectMonitorBasicBlockBuilder;
+import org.qbicc.plugin.opt.CheckEliminationVisitor;
+import org.qbicc.plugin.opt.EscapeAnalysisVisitor;
+import org.qbicc.plugin.opt.GlobalValueNumberingVisitor;
 import org.qbicc.plugin.opt.GotoRemovingVisitor;
 import org.qbicc.plugin.opt.LocalMemoryTrackingBasicBlockBuilder;
 import org.qbicc.plugin.opt.InliningBasicBlockBuilder;
+import org.qbicc.plugin.opt.InliningPolicy;
 import org.qbicc.plugin.opt.PhiOptimizerVisitor;
 import org.qbicc.plugin.opt.SimpleOptBasicBlockBuilder;
 import org.qbicc.plugin.reachability.RTAInfo;
 import org.qbicc.plugin.reachability.ReachabilityBlockBuilder;
+import org.qbicc.plugin.serialization.BuildTimeInitializer;
+import org.qbicc.plugin.serialization.HeapDataEmitter;
 import org.qbicc.plugin.serialization.HeapSerializer;
 import org.qbicc.plugin.threadlocal.ThreadLocalBasicBlockBuilder;
 import org.qbicc.plugin.threadlocal.ThreadLocalTypeBuilder;
@@ -85,7 +95,9 @@ import org.qbicc.plugin.unwind.UnwindSetupHook;
 import org.qbicc.plugin.verification.ClassLoadingBasicBlockBuilder;
 import org.qbicc.plugin.verification.LowerVerificationBasicBlockBuilder;
 import org.qbicc.plugin.verification.MemberResolvingBasicBlockBuilder;
+import org.qbicc.tool.llvm.LlcOptLevel;
 import org.qbicc.tool.llvm.LlvmToolChain;
+import org.qbicc.tool.llvm.OptPass;
 import org.qbicc.type.TypeSystem;
 import io.smallrye.common.constraint.Assert;
 import org.jboss.logmanager.Level;
@@ -105,11 +117,27 @@ public class Main implements Callable<DiagnosticContext> {
     private final String mainClass;
     private final String gc;
     private final boolean isPie;
+    private final boolean gcSafePoints;
+    private final boolean heapData;
+    private final boolean buildTimeInit;
     private final GraphGenConfig graphGenConfig;
     private final boolean optMemoryTracking;
     private final boolean optPhis;
     private final boolean optGotos;
+    private final boolean optGvn;
+    private final boolean optCheckElimination;
     private final boolean optInlining;
+    private final int inlineThreshold;
+    private final int inlineBudget;
+    private final Path inlineProfile;
+    private final boolean optEscapeAnalysis;
+    private final boolean metrics;
+    private final boolean objectCache;
+    private final boolean probeCache;
+    private final int ltoPartitions;
+    private final OptPass llvmOptLevel;
+    private final LlcOptLevel llcOptLevel;
+    private final int llvmJobs;
     private final Platform platform;
 
     Main(Builder builder) {
@@ -120,11 +148,27 @@ public class Main implements Callable<DiagnosticContext> {
         mainClass = Assert.checkNotNullParam("builder.mainClass", builder.mainClass);
         gc = builder.gc;
         isPie = builder.isPie;
+        gcSafePoints = builder.gcSafePoints;
+        heapData = builder.heapData;
+        buildTimeInit = builder.buildTimeInit;
         graphGenConfig = builder.graphGenConfig;
         optMemoryTracking = builder.optMemoryTracking;
         optInlining = builder.optInlining;
+        inlineThreshold = builder.inlineThreshold;
+        inlineBudget = builder.inlineBudget;
+        inlineProfile = builder.inlineProfile;
+        optEscapeAnalysis = builder.optEscapeAnalysis;
         optPhis = builder.optPhis;
         optGotos = builder.optGotos;
+        optGvn = builder.optGvn;
+        optCheckElimination = builder.optCheckElimination;
+        metrics = builder.metrics;
+        objectCache = builder.objectCache;
+        probeCache = builder.probeCache;
+        ltoPartitions = builder.ltoPartitions;
+        llvmOptLevel = builder.llvmOptLevel;
+        llcOptLevel = builder.llcOptLevel;
+        llvmJobs = builder.llvmJobs;
         platform = builder.platform;
     }
 
@@ -147,6 +191,7 @@ public class Main implements Callable<DiagnosticContext> {
         int errors = initialContext.errors();
         if (errors == 0) {
             builder.setOutputDirectory(outputPath);
+            builder.setMetricsEnabled(metrics);
             builder.addBootClassPathElements(bootModulePath);
             // first, probe the target platform
             Platform target = platform;
@@ -162,6 +207,11 @@ public class Main implements Callable<DiagnosticContext> {
                 } else {
                     CToolChain toolChain = toolChains.next();
                     builder.setToolChain(toolChain);
+                    CProbeCache cache = null;
+                    if (probeCache) {
+                        cache = new CProbeCache(outputPath.resolve("qbicc-cache").resolve("probes"), toolChain);
+                        initialContext.putAttachment(CProbeCache.KEY, cache);
+                    }
                     // probe the basic system sizes
                     CProbe.Builder probeBuilder = CProbe.builder();
                     probeBuilder.include("<stdint.h>");
@@ -194,7 +244,7 @@ public class Main implements Callable<DiagnosticContext> {
                     // execute
                     CProbe probe = probeBuilder.build();
                     try {
-                        CProbe.Result probeResult = probe.run(toolChain, objectFileProvider, initialContext);
+                        CProbe.Result probeResult = probe.run(toolChain, objectFileProvider, initialContext, cache);
                         if (probeResult == null) {
                             initialContext.error("Type system probe compiler execution failed");
                         } else {
@@ -285,6 +335,9 @@ public class Main implements Callable<DiagnosticContext> {
                                 if (nogc) {
                                     builder.addPreHook(Phase.ADD, new NoGcSetupHook());
                                 }
+                                if (gcSafePoints) {
+                                    builder.addPreHook(Phase.ADD, new PreciseGcSetupHook());
+                                }
                                 builder.addPreHook(Phase.ADD, RTAInfo::forceCoreClassesLive);
                                 builder.addBuilderFactory(Phase.ADD, BuilderStage.TRANSFORM, IntrinsicBasicBlockBuilder::createForAddPhase);
                                 if (nogc) {
@@ -301,6 +354,9 @@ public class Main implements Callable<DiagnosticContext> {
                                 builder.addBuilderFactory(Phase.ADD, BuilderStage.TRANSFORM, ThrowValueBasicBlockBuilder::new);
                                 builder.addBuilderFactory(Phase.ADD, BuilderStage.TRANSFORM, MethodCallFixupBasicBlockBuilder::new);
                                 builder.addBuilderFactory(Phase.ADD, BuilderStage.TRANSFORM, SynchronizedMethodBasicBlockBuilder::createIfNeeded);
+                                if (gcSafePoints) {
+                                    builder.addBuilderFactory(Phase.ADD, BuilderStage.TRANSFORM, SafePointPollBasicBlockBuilder::createIfNeeded);
+                                }
                                 if (optMemoryTracking) {
                                     builder.addBuilderFactory(Phase.ADD, BuilderStage.TRANSFORM, LocalMemoryTrackingBasicBlockBuilder::new);
                                 }
@@ -308,6 +364,11 @@ public class Main implements Callable<DiagnosticContext> {
                                 builder.addBuilderFactory(Phase.ADD, BuilderStage.OPTIMIZE, SimpleOptBasicBlockBuilder::new);
                                 builder.addBuilderFactory(Phase.ADD, BuilderStage.INTEGRITY, ReachabilityBlockBuilder::new);
                                 builder.addElementVisitor(Phase.ADD, new DotGenerator(Phase.ADD, graphGenConfig));
+                                if (buildTimeInit) {
+                                    BuildTimeInitializer buildTimeInitializer = new BuildTimeInitializer();
+                                    builder.addElementVisitor(Phase.ADD, buildTimeInitializer);
+                                    builder.addPostHook(Phase.ADD, buildTimeInitializer);
+                                }
                                 builder.addPostHook(Phase.ADD, RTAInfo::clear);
 
                                 builder.addPreHook(Phase.ANALYZE, RTAInfo::forceCoreClassesLive);
@@ -317,6 +378,12 @@ public class Main implements Callable<DiagnosticContext> {
                                 if (optPhis) {
                                     builder.addCopyFactory(Phase.ANALYZE, PhiOptimizerVisitor::new);
                                 }
+                                if (optGvn) {
+                                    builder.addCopyFactory(Phase.ANALYZE, GlobalValueNumberingVisitor::new);
+                                }
+                                if (optCheckElimination) {
+                                    builder.addCopyFactory(Phase.ANALYZE, CheckEliminationVisitor::new);
+                                }
                                 builder.addBuilderFactory(Phase.ANALYZE, BuilderStage.TRANSFORM, ConstantBasicBlockBuilder::new);
                                 if (optMemoryTracking) {
                                     builder.addBuilderFactory(Phase.ANALYZE, BuilderStage.TRANSFORM, LocalMemoryTrackingBasicBlockBuilder::new);
@@ -324,13 +391,23 @@ public class Main implements Callable<DiagnosticContext> {
                                 builder.addBuilderFactory(Phase.ANALYZE, BuilderStage.CORRECT, NumericalConversionBasicBlockBuilder::new);
                                 builder.addBuilderFactory(Phase.ANALYZE, BuilderStage.OPTIMIZE, SimpleOptBasicBlockBuilder::new);
                                 if (optInlining) {
+                                    builder.addPreHook(Phase.ANALYZE, ctxt -> InliningPolicy.configure(ctxt, inlineThreshold, inlineBudget, inlineProfile));
                                     builder.addBuilderFactory(Phase.ANALYZE, BuilderStage.OPTIMIZE, InliningBasicBlockBuilder::new);
+                                    // inlining copies the ADD bodies of callees
+                                    builder.retainPreviousMethodBodies(Phase.ANALYZE);
                                 }
                                 builder.addBuilderFactory(Phase.ANALYZE, BuilderStage.INTEGRITY, ReachabilityBlockBuilder::new);
+                                if (optEscapeAnalysis) {
+                                    builder.addElementVisitor(Phase.ANALYZE, new EscapeAnalysisVisitor());
+                                }
                                 builder.addElementVisitor(Phase.ANALYZE, new DotGenerator(Phase.ANALYZE, graphGenConfig));
                                 builder.addPostHook(Phase.ANALYZE, new DispatchTableBuilder());
                                 builder.addPostHook(Phase.ANALYZE, new SupersDisplayBuilder());
-                                builder.addPostHook(Phase.ANALYZE, new HeapSerializer());
+                                if (heapData) {
+                                    builder.addPostHook(Phase.ANALYZE, new HeapDataEmitter());
+                                } else {
+                                    builder.addPostHook(Phase.ANALYZE, new HeapSerializer());
+                                }
 
                                 if (optGotos) {
                                     builder.addCopyFactory(Phase.LOWER, GotoRemovingVisitor::new);
@@ -338,6 +415,7 @@ public class Main implements Callable<DiagnosticContext> {
 
                                 builder.addBuilderFactory(Phase.LOWER, BuilderStage.TRANSFORM, ThrowLoweringBasicBlockBuilder::new);
                                 builder.addBuilderFactory(Phase.LOWER, BuilderStage.TRANSFORM, DevirtualizingBasicBlockBuilder::new);
+                                builder.addCopyFactory(Phase.LOWER, DevirtualizingBasicBlockBuilder.TryVisitor::new);
                                 if (nogc) {
                                     builder.addBuilderFactory(Phase.LOWER, BuilderStage.TRANSFORM, NoGcBasicBlockBuilder::new);
                                 }
@@ -359,11 +437,24 @@ public class Main implements Callable<DiagnosticContext> {
                                 builder.addElementVisitor(Phase.LOWER, new DotGenerator(Phase.LOWER, graphGenConfig));
 
                                 builder.addPreHook(Phase.GENERATE, new DispatchTableEmitter());
+                                // function bodies are released as their module is generated
+                                builder.addPreHook(Phase.GENERATE, new DotGenerator(Phase.GENERATE, graphGenConfig));
+                                // modules are compiled as they are generated
+                                LLVMCompileStage llvmCompileStage = new LLVMCompileStage(isPie, objectCache, ltoPartitions, llvmOptLevel, llcOptLevel, llvmJobs);
+                                builder.addPreHook(Phase.GENERATE, llvmCompileStage::start);
                                 builder.addPreHook(Phase.GENERATE, new LLVMGenerator(isPie ? 2 : 0, isPie ? 2 : 0));
 
-                                builder.addPostHook(Phase.GENERATE, new DotGenerator(Phase.GENERATE, graphGenConfig));
-                                builder.addPostHook(Phase.GENERATE, new LLVMCompileStage(isPie));
-                                builder.addPostHook(Phase.GENERATE, new LinkStage(isPie));
+                                builder.addPostHook(Phase.GENERATE, llvmCompileStage);
+                                builder.addCloseHook(llvmCompileStage::cancel);
+                                LinkStage linkStage = new LinkStage(isPie);
+                                StackMapTableStage stackMapTableStage = new StackMapTableStage(linkStage);
+                                if (gcSafePoints) {
+                                    builder.addPostHook(Phase.GENERATE, stackMapTableStage::addPlaceholderTable);
+                                }
+                                builder.addPostHook(Phase.GENERATE, linkStage);
+                                if (gcSafePoints) {
+                                    builder.addPostHook(Phase.GENERATE, stackMapTableStage);
+                                }
 
                                 CompilationContext ctxt;
                                 try (Driver driver = builder.build()) {
@@ -405,10 +496,26 @@ public class Main implements Callable<DiagnosticContext> {
             })
             .setGc(optionsProcessor.gc.toString())
             .setIsPie(optionsProcessor.isPie)
+            .setGcSafePoints(optionsProcessor.gcSafePoints)
+            .setHeapData(optionsProcessor.heapData)
+            .setBuildTimeInit(optionsProcessor.buildTimeInit)
             .setOptMemoryTracking(optionsProcessor.optArgs.optMemoryTracking)
             .setOptInlining(optionsProcessor.optArgs.optInlining)
+            .setInlineThreshold(optionsProcessor.optArgs.inlineThreshold)
+            .setInlineBudget(optionsProcessor.optArgs.inlineBudget)
+            .setInlineProfile(optionsProcessor.optArgs.inlineProfile)
+            .setOptEscapeAnalysis(optionsProcessor.optArgs.optEscapeAnalysis)
             .setOptGotos(optionsProcessor.optArgs.optGotos)
+            .setOptGvn(optionsProcessor.optArgs.optGvn)
+            .setOptCheckElimination(optionsProcessor.optArgs.optCheckElimination)
             .setOptPhis(optionsProcessor.optArgs.optPhis)
+            .setMetrics(optionsProcessor.metrics)
+            .setObjectCache(optionsProcessor.objectCache)
+            .setProbeCache(optionsProcessor.probeCache)
+            .setLtoPartitions(optionsProcessor.lto ? optionsProcessor.ltoPartitions : LLVMCompileStage.LTO_DISABLED)
+            .setLlvmOptLevel(optionsProcessor.llvmOptLevel)
+            .setLlcOptLevel(optionsProcessor.llcOptLevel)
+            .setLlvmJobs(optionsProcessor.llvmJobs)
             .setGraphGenConfig(optionsProcessor.graphGenConfig);
         Platform platform = optionsProcessor.platform;
         if (platform != null) {
@@ -471,8 +578,30 @@ public class Main implements Callable<DiagnosticContext> {
         private GCType gc;
         @CommandLine.Option(names = "--pie", negatable = true, defaultValue = "false", description = "[Disable|Enable] generation of position independent executable")
         private boolean isPie;
+        @CommandLine.Option(names = "--gc-safepoints", negatable = true, defaultValue = "false", description = "Enable/disable safepoint polls and stack map tables (infrastructure only; no collector uses them yet)")
+        private boolean gcSafePoints;
+        @CommandLine.Option(names = "--heap-data", negatable = true, defaultValue = "false", description = "Enable/disable emitting the build-time heap as initialized data instead of deserializing it at startup")
+        private boolean heapData;
+        @CommandLine.Option(names = "--build-time-init", negatable = true, defaultValue = "false", description = "Enable/disable running class initializers at build time where it is safe to do so")
+        private boolean buildTimeInit;
         @CommandLine.Option(names = "--platform", converter = PlatformConverter.class)
         private Platform platform;
+        @CommandLine.Option(names = "--metrics", negatable = true, defaultValue = "false", description = "Enable/disable collection and reporting of compilation metrics")
+        private boolean metrics;
+        @CommandLine.Option(names = "--object-cache", negatable = true, defaultValue = "true", description = "Enable/disable reuse of previously compiled object files from the cache in the output path")
+        private boolean objectCache;
+        @CommandLine.Option(names = "--probe-cache", negatable = true, defaultValue = "true", description = "Enable/disable reuse of previously probed native constants and types from the cache in the output path")
+        private boolean probeCache;
+        @CommandLine.Option(names = "--lto", negatable = true, defaultValue = "false", description = "Enable/disable whole-program compilation of the generated modules in merged partitions")
+        private boolean lto;
+        @CommandLine.Option(names = "--lto-partitions", defaultValue = "0", description = "Number of whole-program partitions to compile in parallel (0 for one per LLVM job)")
+        private int ltoPartitions;
+        @CommandLine.Option(names = "--llvm-opt-level", converter = OptLevelConverter.class, defaultValue = "O0", description = "Optimization level for `opt`. Valid values: O0, O1, O2, O3, Os, Oz")
+        private OptPass llvmOptLevel;
+        @CommandLine.Option(names = "--llc-opt-level", defaultValue = "O2", description = "Optimization level for `llc`. Valid values: ${COMPLETION-CANDIDATES}")
+        private LlcOptLevel llcOptLevel;
+        @CommandLine.Option(names = "--llvm-jobs", defaultValue = "0", description = "Maximum number of concurrent LLVM tool invocations (0 for one per available processor)")
+        private int llvmJobs;
 
         @CommandLine.Parameters(index="0", arity="1", description = "Application main class")
         private String mainClass;
@@ -506,10 +635,22 @@ public class Main implements Callable<DiagnosticContext> {
             boolean optMemoryTracking;
             @CommandLine.Option(names = "--opt-inlining", negatable = true, defaultValue = "false", description = "Enable/disable inliner")
             boolean optInlining;
+            @CommandLine.Option(names = "--inline-threshold", defaultValue = "" + InliningPolicy.DEFAULT_THRESHOLD, description = "Base inlining cost threshold of a call site. Default: ${DEFAULT-VALUE}")
+            int inlineThreshold;
+            @CommandLine.Option(names = "--inline-budget", defaultValue = "" + InliningPolicy.DEFAULT_BUDGET, description = "Total inlining cost budget of each method. Default: ${DEFAULT-VALUE}")
+            int inlineBudget;
+            @CommandLine.Option(names = "--inline-profile", description = "Call site profile used to guide inlining decisions")
+            Path inlineProfile;
+            @CommandLine.Option(names = "--opt-escape-analysis", negatable = true, defaultValue = "false", description = "Enable/disable stack allocation of objects which do not escape")
+            boolean optEscapeAnalysis;
             @CommandLine.Option(names = "--opt-phis", negatable = true, defaultValue = "true", description = "Enable/disable `phi` elimination")
             boolean optPhis;
             @CommandLine.Option(names = "--opt-gotos", negatable = true, defaultValue = "true", description = "Enable/disable `goto` elimination")
             boolean optGotos;
+            @CommandLine.Option(names = "--opt-gvn", negatable = true, defaultValue = "false", description = "Enable/disable global value numbering, constant propagation and redundant load elimination")
+            boolean optGvn;
+            @CommandLine.Option(names = "--opt-check-elimination", negatable = true, defaultValue = "false", description = "Enable/disable elimination of dominated and loop-invariant null and bounds checks")
+            boolean optCheckElimination;
         }
 
         public CmdResult process(String[] args) {
@@ -573,10 +714,26 @@ public class Main implements Callable<DiagnosticContext> {
         private String gc = "none";
         // TODO Detect whether the system uses PIEs by default and match that if possible
         private boolean isPie = false;
+        private boolean gcSafePoints = false;
+        private boolean heapData = false;
+        private boolean buildTimeInit = false;
         private boolean optMemoryTracking = false;
         private boolean optInlining = false;
+        private int inlineThreshold = InliningPolicy.DEFAULT_THRESHOLD;
+        private int inlineBudget = InliningPolicy.DEFAULT_BUDGET;
+        private Path inlineProfile;
+        private boolean optEscapeAnalysis = false;
         private boolean optPhis = true;
         private boolean optGotos = true;
+        private boolean optGvn = false;
+        private boolean optCheckElimination = false;
+        private boolean metrics = false;
+        private boolean objectCache = true;
+        private boolean probeCache = true;
+        private int ltoPartitions = LLVMCompileStage.LTO_DISABLED;
+        private OptPass llvmOptLevel = OptPass.O0;
+        private LlcOptLevel llcOptLevel = LlcOptLevel.O2;
+        private int llvmJobs = LLVMCompileStage.JOBS_PER_CPU;
         private GraphGenConfig graphGenConfig;
 
         Builder() {}
@@ -637,6 +794,21 @@ public class Main implements Callable<DiagnosticContext> {
             return this;
         }
 
+        public Builder setGcSafePoints(boolean gcSafePoints) {
+            this.gcSafePoints = gcSafePoints;
+            return this;
+        }
+
+        public Builder setHeapData(boolean heapData) {
+            this.heapData = heapData;
+            return this;
+        }
+
+        public Builder setBuildTimeInit(boolean buildTimeInit) {
+            this.buildTimeInit = buildTimeInit;
+            return this;
+        }
+
         public Builder setGraphGenConfig(GraphGenConfig graphGenConfig) {
             Assert.checkNotNullParam("graphGenConfig", graphGenConfig);
             this.graphGenConfig = graphGenConfig;
@@ -653,6 +825,26 @@ public class Main implements Callable<DiagnosticContext> {
             return this;
         }
 
+        public Builder setInlineThreshold(int inlineThreshold) {
+            this.inlineThreshold = inlineThreshold;
+            return this;
+        }
+
+        public Builder setInlineBudget(int inlineBudget) {
+            this.inlineBudget = inlineBudget;
+            return this;
+        }
+
+        public Builder setInlineProfile(Path inlineProfile) {
+            this.inlineProfile = inlineProfile;
+            return this;
+        }
+
+        public Builder setOptEscapeAnalysis(boolean optEscapeAnalysis) {
+            this.optEscapeAnalysis = optEscapeAnalysis;
+            return this;
+        }
+
         public Builder setOptPhis(boolean optPhis) {
             this.optPhis = optPhis;
             return this;
@@ -663,6 +855,52 @@ public class Main implements Callable<DiagnosticContext> {
             return this;
         }
 
+        public Builder setOptGvn(boolean optGvn) {
+            this.optGvn = optGvn;
+            return this;
+        }
+
+        public Builder setOptCheckElimination(boolean optCheckElimination) {
+            this.optCheckElimination = optCheckElimination;
+            return this;
+        }
+
+        public Builder setMetrics(boolean metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        public Builder setObjectCache(boolean objectCache) {
+            this.objectCache = objectCache;
+            return this;
+        }
+
+        public Builder setProbeCache(boolean probeCache) {
+            this.probeCache = probeCache;
+            return this;
+        }
+
+        public Builder setLtoPartitions(int ltoPartitions) {
+            this.ltoPartitions = ltoPartitions;
+            return this;
+        }
+
+        public Builder setLlvmOptLevel(OptPass llvmOptLevel) {
+            this.llvmOptLevel = Assert.checkNotNullParam("llvmOptLevel", llvmOptLevel);
+            return this;
+        }
+
+        public Builder setLlcOptLevel(LlcOptLevel llcOptLevel) {
+            this.llcOptLevel = Assert.checkNotNullParam("llcOptLevel", llcOptLevel);
+            return this;
+        }
+
+        public Builder setLlvmJobs(int llvmJobs) {
+            Assert.checkMinimumParameter("llvmJobs", 0, llvmJobs);
+            this.llvmJobs = llvmJobs;
+            return this;
+        }
+
         public Main build() {
             return new Main(this);
         }
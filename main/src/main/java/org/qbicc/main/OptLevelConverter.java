@@ -0,0 +1,18 @@
+package org.qbicc.main;
+
+import org.qbicc.tool.llvm.OptPass;
+import picocli.CommandLine;
+
+/**
+ * A picocli converter for {@code opt} optimization levels, which are the subset of {@link OptPass} values from
+ * {@code O0} to {@code Oz}.
+ */
+public final class OptLevelConverter implements CommandLine.ITypeConverter<OptPass> {
+    public OptPass convert(String value) throws IllegalArgumentException {
+        OptPass pass = OptPass.valueOf(value);
+        if (pass.compareTo(OptPass.O0) < 0 || pass.compareTo(OptPass.Oz) > 0) {
+            throw new IllegalArgumentException("Invalid optimization level " + value);
+        }
+        return pass;
+    }
+}
@@ -16,12 +16,16 @@ public final class CoreAnnotationTypeBuilder implements DefinedTypeDefinition.Bu
 
     private final ClassTypeDescriptor noSideEffects;
     private final ClassTypeDescriptor hidden;
+    private final ClassTypeDescriptor hot;
+    private final ClassTypeDescriptor cold;
 
     public CoreAnnotationTypeBuilder(final ClassContext classCtxt, DefinedTypeDefinition.Builder delegate) {
         this.delegate = delegate;
 
         noSideEffects = ClassTypeDescriptor.synthesize(classCtxt, "org/qbicc/runtime/NoSideEffects");
         hidden = ClassTypeDescriptor.synthesize(classCtxt, "org/qbicc/runtime/Hidden");
+        hot = ClassTypeDescriptor.synthesize(classCtxt, "org/qbicc/runtime/Hot");
+        cold = ClassTypeDescriptor.synthesize(classCtxt, "org/qbicc/runtime/Cold");
     }
 
     @Override
@@ -40,6 +44,10 @@ public final class CoreAnnotationTypeBuilder implements DefinedTypeDefinition.Bu
                         methodElement.setModifierFlags(ClassFile.I_ACC_NO_SIDE_EFFECTS);
                     } else if (annotation.getDescriptor().equals(hidden)) {
                         methodElement.setModifierFlags(ClassFile.I_ACC_HIDDEN);
+                    } else if (annotation.getDescriptor().equals(hot)) {
+                        methodElement.setModifierFlags(ClassFile.I_ACC_HOT);
+                    } else if (annotation.getDescriptor().equals(cold)) {
+                        methodElement.setModifierFlags(ClassFile.I_ACC_COLD);
                     }
                 }
                 return methodElement;
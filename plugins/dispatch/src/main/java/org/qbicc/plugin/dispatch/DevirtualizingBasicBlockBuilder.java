@@ -1,16 +1,38 @@
 package org.qbicc.plugin.dispatch;
 
+import org.qbicc.context.AttachmentKey;
 import org.qbicc.context.CompilationContext;
 import org.qbicc.graph.*;
+import org.qbicc.graph.literal.LiteralFactory;
+import org.qbicc.plugin.reachability.RTAInfo;
+import org.qbicc.type.ClassObjectType;
+import org.qbicc.type.ObjectType;
+import org.qbicc.type.ReferenceType;
+import org.qbicc.type.ValueType;
+import org.qbicc.type.definition.LoadedTypeDefinition;
 import org.qbicc.type.definition.element.MethodElement;
 import org.jboss.logging.Logger;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class DevirtualizingBasicBlockBuilder extends DelegatingBasicBlockBuilder {
     private static final Logger log = Logger.getLogger("org.qbicc.plugin.dispatch.devirt");
 
+    private static final AttachmentKey<Map<LoadedTypeDefinition, Map<MethodElement, Optional<Targets>>>> TARGETS_KEY = new AttachmentKey<>();
+
     private final CompilationContext ctxt;
+    /**
+     * Set while the delegate operation of a {@link Try} is copied; such a call must remain a single {@link Triable}
+     * node so that it keeps its exception edge.
+     */
+    private boolean tryOperation;
 
     public DevirtualizingBasicBlockBuilder(final CompilationContext ctxt, final BasicBlockBuilder delegate) {
         super(delegate);
@@ -20,11 +42,10 @@ public class DevirtualizingBasicBlockBuilder extends DelegatingBasicBlockBuilder
     public Node invokeInstance(DispatchInvocation.Kind kind, final Value instance, MethodElement target, final List<Value> arguments) {
         if (kind == DispatchInvocation.Kind.INTERFACE) {
             MethodElement virtualTarget = virtualizeInvokeInterface(instance, target);
-            if (virtualTarget == null) {
-                return super.invokeInstance(kind, instance, target, arguments);
+            if (virtualTarget != null) {
+                kind = DispatchInvocation.Kind.VIRTUAL;
+                target = virtualTarget;
             }
-            kind = DispatchInvocation.Kind.VIRTUAL;
-            target = virtualTarget;
         }
 
         if (kind == DispatchInvocation.Kind.VIRTUAL) {
@@ -34,17 +55,28 @@ public class DevirtualizingBasicBlockBuilder extends DelegatingBasicBlockBuilder
             }
         }
 
+        if (kind != DispatchInvocation.Kind.EXACT) {
+            Targets targets = findTargets(kind, instance, target);
+            if (targets != null) {
+                if (targets.second == null) {
+                    return super.invokeInstance(DispatchInvocation.Kind.EXACT, instance, targets.first, arguments);
+                }
+                if (! tryOperation) {
+                    return invokeBimorphic(targets, instance, arguments);
+                }
+            }
+        }
+
         return super.invokeInstance(kind, instance, target, arguments);
     }
 
     public Value invokeValueInstance(DispatchInvocation.Kind kind, final Value instance, MethodElement target, final List<Value> arguments) {
         if (kind == DispatchInvocation.Kind.INTERFACE) {
             MethodElement virtualTarget = virtualizeInvokeInterface(instance, target);
-            if (virtualTarget == null) {
-                return super.invokeValueInstance(kind, instance, target, arguments);
+            if (virtualTarget != null) {
+                kind = DispatchInvocation.Kind.VIRTUAL;
+                target = virtualTarget;
             }
-            kind = DispatchInvocation.Kind.VIRTUAL;
-            target = virtualTarget;
         }
 
         if (kind == DispatchInvocation.Kind.VIRTUAL) {
@@ -54,16 +86,55 @@ public class DevirtualizingBasicBlockBuilder extends DelegatingBasicBlockBuilder
             }
         }
 
+        if (kind != DispatchInvocation.Kind.EXACT) {
+            Targets targets = findTargets(kind, instance, target);
+            if (targets != null) {
+                if (targets.second == null) {
+                    return super.invokeValueInstance(DispatchInvocation.Kind.EXACT, instance, targets.first, arguments);
+                }
+                // the phi needs a single type; covariant overrides may have different return types
+                if (! tryOperation && targets.first.getType().getReturnType().equals(targets.second.getType().getReturnType())) {
+                    return invokeValueBimorphic(targets, instance, arguments);
+                }
+            }
+        }
+
         return super.invokeValueInstance(kind, instance, target, arguments);
     }
 
     /*
-     * Determine if an interface call be converted to a virtual call based on the static
-     * type of the receiver.
+     * Determine if an interface call be converted to a virtual call based on the
+     * live implementors of the interface.  If every live implementor is a subclass of a single
+     * implementing class, the call can be dispatched through that class's vtable instead of an itable.
      */
     private MethodElement virtualizeInvokeInterface(final Value instance, final MethodElement target) {
-        // TODO:  Eventually implement logic for interface => virtual conversion based on actual compile-time type of `instance`.
-        return null;
+        RTAInfo info = RTAInfo.get(ctxt);
+        Set<LoadedTypeDefinition> implementors = new HashSet<>();
+        info.visitLiveImplementors(target.getEnclosingType().load(), cls -> {
+            if (! cls.isInterface()) {
+                implementors.add(cls);
+            }
+        });
+        LoadedTypeDefinition root = null;
+        for (LoadedTypeDefinition cls : implementors) {
+            if (! implementors.contains(cls.getSuperClass())) {
+                if (root != null) {
+                    // more than one unrelated implementor
+                    return null;
+                }
+                root = cls;
+            }
+        }
+        if (root == null) {
+            return null;
+        }
+        MethodElement virtualTarget = root.resolveMethodElementVirtual(target.getName(), target.getDescriptor());
+        if (virtualTarget == null || virtualTarget.getEnclosingType().load().isInterface() || ! ctxt.mayBeEnqueued(virtualTarget)) {
+            // a default method, which has no vtable slot of its own
+            return null;
+        }
+        log.debugf("Virtualizing interface call to %s::%s via %s", target.getEnclosingType().getDescriptor().getClassName(), target.getName(), root.getDescriptor().getClassName());
+        return virtualTarget;
     }
 
     /*
@@ -80,4 +151,218 @@ public class DevirtualizingBasicBlockBuilder extends DelegatingBasicBlockBuilder
         // Unable to statically bind
         return null;
     }
+
+    /*
+     * Use the class hierarchy of the live classes to find the implementations which may be the target of the
+     * given call.  Returns null if there are more than two, or if the call cannot be bound safely.
+     */
+    private Targets findTargets(final DispatchInvocation.Kind kind, final Value instance, final MethodElement target) {
+        LoadedTypeDefinition receiverType = target.getEnclosingType().load();
+        if (kind == DispatchInvocation.Kind.VIRTUAL) {
+            // narrow the receiver type using the static type of the instance, if possible
+            ValueType instanceType = instance.getType();
+            if (instanceType instanceof ReferenceType) {
+                ObjectType bound = ((ReferenceType) instanceType).getUpperBound();
+                if (bound instanceof ClassObjectType && bound.isSubtypeOf(receiverType.getType())) {
+                    receiverType = bound.getDefinition().load();
+                }
+            }
+        }
+        Map<MethodElement, Optional<Targets>> map = ctxt.computeAttachmentIfAbsent(TARGETS_KEY, ConcurrentHashMap::new).computeIfAbsent(receiverType, t -> new ConcurrentHashMap<>());
+        Optional<Targets> targets = map.get(target);
+        if (targets == null) {
+            targets = Optional.ofNullable(computeTargets(kind, receiverType, target));
+            Optional<Targets> appearing = map.putIfAbsent(target, targets);
+            if (appearing != null) {
+                targets = appearing;
+            }
+        }
+        return targets.orElse(null);
+    }
+
+    private Targets computeTargets(final DispatchInvocation.Kind kind, final LoadedTypeDefinition receiverType, final MethodElement target) {
+        RTAInfo info = RTAInfo.get(ctxt);
+        List<LoadedTypeDefinition> receivers = new ArrayList<>();
+        if (kind == DispatchInvocation.Kind.INTERFACE) {
+            info.visitLiveImplementors(receiverType, cls -> {
+                if (! cls.isInterface() && ! cls.isAbstract()) {
+                    receivers.add(cls);
+                }
+            });
+        } else {
+            if (! info.isLiveClass(receiverType)) {
+                return null;
+            }
+            if (! receiverType.isAbstract()) {
+                receivers.add(receiverType);
+            }
+            info.visitLiveSubclassesPreOrder(receiverType, cls -> {
+                if (! cls.isAbstract()) {
+                    receivers.add(cls);
+                }
+            });
+        }
+        // receiver class -> implementation
+        Map<LoadedTypeDefinition, MethodElement> implementations = new LinkedHashMap<>();
+        Set<MethodElement> distinct = new HashSet<>();
+        for (LoadedTypeDefinition receiver : receivers) {
+            MethodElement impl = receiver.resolveMethodElementVirtual(target.getName(), target.getDescriptor());
+            if (impl == null || impl.isAbstract() || impl.getEnclosingType().load().isInterface() || ! ctxt.mayBeEnqueued(impl)) {
+                return null;
+            }
+            implementations.put(receiver, impl);
+            distinct.add(impl);
+            if (distinct.size() > 2) {
+                return null;
+            }
+        }
+        if (distinct.isEmpty()) {
+            // no live receiver; the call is not reachable
+            return null;
+        }
+        MethodElement[] impls = distinct.toArray(MethodElement[]::new);
+        if (impls.length == 1) {
+            log.debugf("Devirtualizing monomorphic call to %s::%s", target.getEnclosingType().getDescriptor().getClassName(), target.getName());
+            return new Targets(impls[0], null, null);
+        }
+        // find a type ID range which exactly separates the receivers of the two implementations
+        for (int i = 0; i < 2; i ++) {
+            MethodElement first = impls[i];
+            MethodElement second = impls[1 - i];
+            LoadedTypeDefinition guardType = first.getEnclosingType().load();
+            int minId = guardType.getTypeId();
+            int maxId = guardType.getMaximumSubtypeId();
+            if (minId < 0 || maxId < 0) {
+                return null;
+            }
+            boolean separates = true;
+            for (Map.Entry<LoadedTypeDefinition, MethodElement> entry : implementations.entrySet()) {
+                int typeId = entry.getKey().getTypeId();
+                boolean inRange = minId <= typeId && typeId <= maxId;
+                if (inRange != (entry.getValue() == first)) {
+                    separates = false;
+                    break;
+                }
+            }
+            if (separates) {
+                log.debugf("Devirtualizing bimorphic call to %s::%s", target.getEnclosingType().getDescriptor().getClassName(), target.getName());
+                return new Targets(first, second, guardType);
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Emit a type ID test of the receiver which selects the first target if it passes.
+     */
+    private void emitGuard(final Targets targets, final Value instance, final BlockLabel first, final BlockLabel second) {
+        LiteralFactory lf = ctxt.getLiteralFactory();
+        Value typeId = typeIdOf(referenceHandle(instance));
+        int minId = targets.guardType.getTypeId();
+        int maxId = targets.guardType.getMaximumSubtypeId();
+        if (minId == maxId) {
+            if_(isEq(typeId, lf.literalOf(minId)), first, second);
+        } else {
+            if_(and(isLe(lf.literalOf(minId), typeId), isLe(typeId, lf.literalOf(maxId))), first, second);
+        }
+    }
+
+    private Node invokeBimorphic(final Targets targets, final Value instance, final List<Value> arguments) {
+        BlockLabel first = new BlockLabel();
+        BlockLabel second = new BlockLabel();
+        BlockLabel join = new BlockLabel();
+        emitGuard(targets, instance, first, second);
+        begin(first);
+        super.invokeInstance(DispatchInvocation.Kind.EXACT, instance, targets.first, arguments);
+        goto_(join);
+        begin(second);
+        super.invokeInstance(DispatchInvocation.Kind.EXACT, instance, targets.second, arguments);
+        goto_(join);
+        return begin(join);
+    }
+
+    private Value invokeValueBimorphic(final Targets targets, final Value instance, final List<Value> arguments) {
+        BlockLabel first = new BlockLabel();
+        BlockLabel second = new BlockLabel();
+        BlockLabel join = new BlockLabel();
+        emitGuard(targets, instance, first, second);
+        begin(first);
+        Value firstResult = super.invokeValueInstance(DispatchInvocation.Kind.EXACT, instance, targets.first, arguments);
+        // a delegate may split the arm into several blocks, so the phi is keyed on the blocks which enter the join
+        BasicBlock firstExit = goto_(join);
+        begin(second);
+        Value secondResult = super.invokeValueInstance(DispatchInvocation.Kind.EXACT, instance, targets.second, arguments);
+        BasicBlock secondExit = goto_(join);
+        begin(join);
+        PhiValue phi = phi(firstResult.getType(), join);
+        phi.setValueForBlock(ctxt, getCurrentElement(), firstExit, firstResult);
+        phi.setValueForBlock(ctxt, getCurrentElement(), secondExit, secondResult);
+        return phi;
+    }
+
+    /**
+     * A copying visitor which marks the delegate operation of each {@link Try} for the devirtualizing builder, so that
+     * a call whose exceptions are caught is never split into a bimorphic dispatch (which is not a {@link Triable}
+     * and would therefore lose its exception handler).
+     */
+    public static final class TryVisitor implements NodeVisitor.Delegating<Node.Copier, Value, Node, BasicBlock, ValueHandle> {
+        private final NodeVisitor<Node.Copier, Value, Node, BasicBlock, ValueHandle> delegate;
+        private DevirtualizingBasicBlockBuilder builder;
+
+        public TryVisitor(final CompilationContext ctxt, final NodeVisitor<Node.Copier, Value, Node, BasicBlock, ValueHandle> delegate) {
+            this.delegate = delegate;
+        }
+
+        public NodeVisitor<Node.Copier, Value, Node, BasicBlock, ValueHandle> getDelegateNodeVisitor() {
+            return delegate;
+        }
+
+        public BasicBlock visit(final Node.Copier param, final Try node) {
+            DevirtualizingBasicBlockBuilder builder = findBuilder(param.getBlockBuilder());
+            if (builder == null || builder.tryOperation) {
+                return getDelegateTerminatorVisitor().visit(param, node);
+            }
+            // copy the preceding operations first, which are not covered by this handler
+            Triable operation = node.getDelegateOperation();
+            if (operation instanceof OrderedNode && ((OrderedNode) operation).hasDependency()) {
+                param.copyNode(((OrderedNode) operation).getDependency());
+            }
+            builder.tryOperation = true;
+            try {
+                param.copyTriable(operation);
+            } finally {
+                builder.tryOperation = false;
+            }
+            return getDelegateTerminatorVisitor().visit(param, node);
+        }
+
+        private DevirtualizingBasicBlockBuilder findBuilder(final BasicBlockBuilder first) {
+            if (builder == null) {
+                BasicBlockBuilder current = first;
+                while (current instanceof DelegatingBasicBlockBuilder) {
+                    if (current instanceof DevirtualizingBasicBlockBuilder) {
+                        builder = (DevirtualizingBasicBlockBuilder) current;
+                        break;
+                    }
+                    current = ((DelegatingBasicBlockBuilder) current).getDelegate();
+                }
+            }
+            return builder;
+        }
+    }
+
+    static final class Targets {
+        final MethodElement first;
+        final MethodElement second;
+        /**
+         * The class whose subclass type ID range selects {@link #first}, or {@code null} if the call is monomorphic.
+         */
+        final LoadedTypeDefinition guardType;
+
+        Targets(final MethodElement first, final MethodElement second, final LoadedTypeDefinition guardType) {
+            this.first = first;
+            this.second = second;
+            this.guardType = guardType;
+        }
+    }
 }
@@ -27,5 +27,8 @@ public class DispatchTableBuilder implements Consumer<CompilationContext>  {
 
         // Now build the interface dispatching structures for the reachable methods
         info.visitLiveInterfaces(i -> tables.buildFilteredITableForInterface(i));
+
+        // Pack the interface slots into one itable per class
+        tables.packITables(info);
     }
 }
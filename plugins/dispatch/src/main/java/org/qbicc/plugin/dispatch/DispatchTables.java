@@ -2,6 +2,8 @@ package org.qbicc.plugin.dispatch;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -40,16 +42,18 @@ public class DispatchTables {
     private final CompilationContext ctxt;
     private final Map<LoadedTypeDefinition, VTableInfo> vtables = new ConcurrentHashMap<>();
     private final Map<LoadedTypeDefinition, ITableInfo> itables = new ConcurrentHashMap<>();
+    private final Map<LoadedTypeDefinition, MethodElement[]> pendingITables = new ConcurrentHashMap<>();
+    private final Map<LoadedTypeDefinition, List<LoadedTypeDefinition>> classITables = new HashMap<>();
+    private final Map<LoadedTypeDefinition, Integer> classITableSlots = new HashMap<>();
     private GlobalVariableElement vtablesGlobal;
+    private GlobalVariableElement itablesGlobal;
 
     // Used to accumulate statistics
     private int emittedVTableCount;
     private int emittedVTableBytes;
     private int emittedClassITableCount;
     private int emittedClassITableBytes;
-    private int emittedInterfaceITableCount;
-    private int emittedInterfaceITableBytes;
-    private int emittedInterfaceITableUsefulBytes;
+    private long directClassITableBytes;
 
     private DispatchTables(final CompilationContext ctxt) {
         this.ctxt = ctxt;
@@ -110,32 +114,85 @@ public class DispatchTables {
                 itableVector.add(m);
             }
         }
+        // The itable layout is assigned once the selectors of all interfaces are known; see packITables
+        pendingITables.put(cls, itableVector.toArray(MethodElement.NO_METHODS));
+    }
 
-        // Build the CompoundType for the ITable using the (arbitrary) order of selectors in itableVector
-        MethodElement[] itable = itableVector.toArray(MethodElement.NO_METHODS);
-        String itableName = "itable-" + cls.getInternalName().replace('/', '.');
+    /**
+     * Assign the itable slots of every interface.  Each instantiable class has a single itable which is shared by all
+     * of the interfaces it implements, and each interface gets a displacement into the itables such that its slots do
+     * not overlap the slots of any other interface which is implemented by one of its implementors.  The itable of an
+     * interface with displacement {@code d} is the struct whose members {@code m0..mN} are at slots
+     * {@code d..d+N} of the class itable.
+     */
+    void packITables(RTAInfo info) {
+        List<LoadedTypeDefinition> interfaces = new ArrayList<>(pendingITables.keySet());
+        // place the interfaces with the most selectors first, in a stable order
+        interfaces.sort(Comparator.comparingInt((LoadedTypeDefinition i) -> pendingITables.get(i).length).reversed()
+            .thenComparing(LoadedTypeDefinition::getInternalName));
+        Map<LoadedTypeDefinition, BitSet> usedSlots = new HashMap<>();
         TypeSystem ts = ctxt.getTypeSystem();
-        CompoundType.Member[] functions = new CompoundType.Member[itable.length];
-        for (int i=0; i<itable.length; i++) {
-            FunctionType funType = ctxt.getFunctionTypeForElement(itable[i]);
-            functions[i] = ts.getCompoundTypeMember("m"+i, funType.getPointer(), i*ts.getPointerSize(), ts.getPointerAlignment());
+        for (LoadedTypeDefinition currentInterface : interfaces) {
+            MethodElement[] itable = pendingITables.get(currentInterface);
+            List<LoadedTypeDefinition> implementors = new ArrayList<>();
+            info.visitLiveImplementors(currentInterface, cls -> {
+                if (!cls.isAbstract() && !cls.isInterface()) {
+                    implementors.add(cls);
+                }
+            });
+            int displacement = 0;
+            if (itable.length > 0) {
+                displacement = findDisplacement(implementors, usedSlots, itable.length);
+                for (LoadedTypeDefinition cls : implementors) {
+                    usedSlots.computeIfAbsent(cls, c -> new BitSet()).set(displacement, displacement + itable.length);
+                    classITables.computeIfAbsent(cls, c -> new ArrayList<>()).add(currentInterface);
+                }
+            }
+
+            String itableName = "itable-" + currentInterface.getInternalName().replace('/', '.');
+            CompoundType.Member[] functions = new CompoundType.Member[itable.length];
+            for (int i=0; i<itable.length; i++) {
+                FunctionType funType = ctxt.getFunctionTypeForElement(itable[i]);
+                functions[i] = ts.getCompoundTypeMember("m"+i, funType.getPointer(), (displacement + i)*ts.getPointerSize(), ts.getPointerAlignment());
+            }
+            CompoundType itableType = ts.getCompoundType(CompoundType.Tag.STRUCT, itableName, (displacement + itable.length) * ts.getPointerSize(),
+                ts.getPointerAlignment(), () -> List.of(functions));
+            itables.put(currentInterface, new ITableInfo(itable, itableType, currentInterface, displacement));
         }
-        CompoundType itableType = ts.getCompoundType(CompoundType.Tag.STRUCT, itableName, itable.length * ts.getPointerSize(),
-            ts.getPointerAlignment(), () -> List.of(functions));
+        for (Map.Entry<LoadedTypeDefinition, BitSet> entry : usedSlots.entrySet()) {
+            classITableSlots.put(entry.getKey(), Integer.valueOf(entry.getValue().length()));
+        }
+        pendingITables.clear();
 
-        // Define the GlobalVariable that will hold the itables[] for this interface.
+        // Define the GlobalVariable that will hold the class itables, indexed by typeId.
         GlobalVariableElement.Builder builder = GlobalVariableElement.builder();
-        builder.setName("qbicc_itables_array_"+itableType.getName());
-        // Yet another table indexed by typeId (like the VTableGlobal) that will only contain entries for instantiated classes.
+        builder.setName("qbicc_itables_array");
         // Use the VTableGlobal to set the size to avoid replicating that logic...
-        builder.setType(ctxt.getTypeSystem().getArrayType(itableType.getPointer(), ((ArrayType)vtablesGlobal.getType()).getElementCount()));
-        builder.setEnclosingType(cls);
+        builder.setType(ts.getArrayType(ts.getVoidType().getPointer().getPointer(), ((ArrayType)vtablesGlobal.getType()).getElementCount()));
+        builder.setEnclosingType(vtablesGlobal.getEnclosingType());
         // void for now, but this is cheating terribly
         builder.setDescriptor(BaseTypeDescriptor.V);
         builder.setSignature(BaseTypeSignature.V);
-        GlobalVariableElement itablesGlobal = builder.build();
+        itablesGlobal = builder.build();
+    }
 
-        itables.put(cls, new ITableInfo(itable, itableType, cls, itablesGlobal));
+    private static int findDisplacement(List<LoadedTypeDefinition> implementors, Map<LoadedTypeDefinition, BitSet> usedSlots, int length) {
+        int displacement = 0;
+        boolean conflict;
+        do {
+            conflict = false;
+            for (LoadedTypeDefinition cls : implementors) {
+                BitSet used = usedSlots.get(cls);
+                int next = used == null ? -1 : used.nextSetBit(displacement);
+                if (next != -1 && next < displacement + length) {
+                    // every displacement up to and including this slot overlaps it
+                    displacement = next + 1;
+                    conflict = true;
+                    break;
+                }
+            }
+        } while (conflict);
+        return displacement;
     }
 
     void buildVTablesGlobal(DefinedTypeDefinition containingType) {
@@ -159,7 +216,13 @@ public class DispatchTables {
             HashMap<CompoundType.Member, Literal> valueMap = new HashMap<>();
             for (int i = 0; i < vtable.length; i++) {
                 FunctionType funType = ctxt.getFunctionTypeForElement(vtable[i]);
-                if (vtable[i].isAbstract() || vtable[i].hasAllModifiersOf(ClassFile.ACC_NATIVE)) {
+                MethodElement builtin = getBuiltinImplementation(vtable[i]);
+                if (builtin != null) {
+                    Function builtinImpl = ctxt.getExactFunction(builtin);
+                    SymbolLiteral literal = ctxt.getLiteralFactory().literalOfSymbol(builtinImpl.getLiteral().getName(), builtinImpl.getType().getPointer());
+                    section.declareFunction(builtin, builtinImpl.getName(), builtinImpl.getType());
+                    valueMap.put(info.getType().getMember(i), ctxt.getLiteralFactory().bitcastLiteral(literal, funType.getPointer()));
+                } else if (vtable[i].isAbstract() || vtable[i].hasAllModifiersOf(ClassFile.ACC_NATIVE)) {
                     MethodElement stub = ctxt.getVMHelperMethod(vtable[i].isAbstract() ? "raiseAbstractMethodError" : "raiseUnsatisfiedLinkError");
                     Function stubImpl = ctxt.getExactFunction(stub);
                     SymbolLiteral literal = ctxt.getLiteralFactory().literalOfSymbol(stubImpl.getLiteral().getName(), stubImpl.getType().getPointer());
@@ -207,95 +270,124 @@ public class DispatchTables {
         slog.debugf("Emitted %d vtables with combined size of %d bytes", emittedVTableCount, emittedVTableBytes);
     }
 
+    /**
+     * Get the run time helper which implements the given native method in dispatch tables.  The helper is static and
+     * takes the receiver as its only argument.
+     *
+     * @param method the virtual method
+     * @return the helper, or {@code null} if the method is not native or has no such helper
+     */
+    private MethodElement getBuiltinImplementation(MethodElement method) {
+        if (method.hasAllModifiersOf(ClassFile.ACC_NATIVE) && method.getEnclosingType().internalNameEquals("java/lang/Object") && method.getName().equals("hashCode")) {
+            return ctxt.getVMHelperMethod("identity_hash_code");
+        }
+        return null;
+    }
+
     public GlobalVariableElement getVTablesGlobal() { return this.vtablesGlobal; }
 
+    public GlobalVariableElement getITablesGlobal() { return this.itablesGlobal; }
+
     public void emitInterfaceTables(RTAInfo rtaInfo) {
         LiteralFactory lf = ctxt.getLiteralFactory();
+        TypeSystem ts = ctxt.getTypeSystem();
         MethodElement icceStub = ctxt.getVMHelperMethod("raiseIncompatibleClassChangeError");
         Function icceImpl = ctxt.getExactFunction(icceStub);
         SymbolLiteral iceeLiteral = lf.literalOfSymbol(icceImpl.getLiteral().getName(), icceImpl.getLiteral().getType().getPointer());
         MethodElement ameStub = ctxt.getVMHelperMethod("raiseAbstractMethodError");
         Function ameImpl = ctxt.getExactFunction(ameStub);
         SymbolLiteral ameLiteral = lf.literalOfSymbol(ameImpl.getLiteral().getName(), ameImpl.getLiteral().getType().getPointer());
-        final int pointerSize = ctxt.getTypeSystem().getPointerSize();
-        for (Map.Entry<LoadedTypeDefinition, ITableInfo> entry: itables.entrySet()) {
-            LoadedTypeDefinition currentInterface = entry.getKey();
-            Section iSection = ctxt.getImplicitSection(currentInterface);
-            ITableInfo itableInfo= entry.getValue();
-            MethodElement[] itable = itableInfo.getItable();
-            if (itable.length == 0) {
-                continue; // If there are no invokable methods then this whole family of itables will never be referenced.
-            }
-            tlog.debugf("Emitting itable[] for %s", currentInterface.getDescriptor().getClassName());
-
-            // First, construct an iTable of the right length of icceStubs
-            iSection.declareFunction(icceStub, icceImpl.getName(), icceImpl.getType());
-            HashMap<CompoundType.Member, Literal> stubMap = new HashMap<>();
-            for (int i = 0; i < itable.length; i++) {
-                FunctionType sigType = ctxt.getFunctionTypeForElement(itable[i]);
-                stubMap.put(itableInfo.getType().getMember(i), lf.bitcastLiteral(iceeLiteral, sigType.getPointer()));
-            }
-            String stubsName = "qbicc_itable_icce_stubs_for_"+currentInterface.getInterfaceType().toFriendlyString();
-            Literal stubsLiteral = lf.literalOf(itableInfo.getType(), stubMap);
-            iSection.addData(null, stubsName, stubsLiteral).setLinkage(Linkage.INTERNAL);
-            SymbolLiteral stubPtrLiteral = lf.literalOfSymbol(stubsName, itableInfo.getType());
-
-            // Initialize all the slots of the rootTable to point to the icce itable.
-            // This enables us to elide an explicit check for IncompatibleClassChangeError at the dispatch site.
-            ArrayType rootType = (ArrayType)itableInfo.getGlobal().getType();
-            Literal[] rootTable = new Literal[(int)rootType.getElementCount()];
-            Arrays.fill(rootTable, stubPtrLiteral);
-            emittedInterfaceITableCount += 1;
-            emittedInterfaceITableBytes += rootTable.length * pointerSize;
-
-            // Now build all the implementing class itables and update the rootTable
-            rtaInfo.visitLiveImplementors(currentInterface, cls -> {
-                if (!cls.isAbstract() && !cls.isInterface()) {
-                    // Build the itable for an instantiable class
-                    tlog.debugf("\temitting itable for %s", cls.getDescriptor().getClassName());
-                    HashMap<CompoundType.Member, Literal> valueMap = new HashMap<>();
-                    Section cSection = ctxt.getImplicitSection(cls);
-                    for (int i = 0; i < itable.length; i++) {
-                        MethodElement methImpl = cls.resolveMethodElementVirtual(itable[i].getName(), itable[i].getDescriptor());
-                        FunctionType funType = ctxt.getFunctionTypeForElement(itable[i]);
-                        FunctionType implType = ctxt.getFunctionTypeForElement(methImpl);
-                        if (methImpl == null) {
-                            cSection.declareFunction(icceStub, icceImpl.getName(), icceImpl.getType());
-                            valueMap.put(itableInfo.getType().getMember(i), lf.bitcastLiteral(iceeLiteral, implType.getPointer()));
-                        } else if (methImpl.isAbstract()) {
-                            cSection.declareFunction(ameStub, ameImpl.getName(), ameImpl.getType());
-                            valueMap.put(itableInfo.getType().getMember(i), lf.bitcastLiteral(ameLiteral, implType.getPointer()));
-                        } else {
-                            Function impl = ctxt.getExactFunctionIfExists(methImpl);
-                            if (impl == null) {
-                                ctxt.error(methImpl, "Missing method implementation for vtable of %s", cls.getInternalName());
-                                continue;
-                            }
-                            if (!methImpl.getEnclosingType().load().equals(cls)) {
-                                cSection.declareFunction(methImpl, impl.getName(), implType);
-                            }
-                            valueMap.put(itableInfo.getType().getMember(i), impl.getLiteral());
+        final int pointerSize = ts.getPointerSize();
+
+        ArrayType rootType = (ArrayType)itablesGlobal.getType();
+        LoadedTypeDefinition rootDefinition = itablesGlobal.getEnclosingType().load();
+        Section rootSection = ctxt.getImplicitSection(rootDefinition);
+        Literal[] rootTable = new Literal[(int)rootType.getElementCount()];
+        Arrays.fill(rootTable, lf.zeroInitializerLiteralOfType(rootType.getElementType()));
+
+        for (Map.Entry<LoadedTypeDefinition, List<LoadedTypeDefinition>> entry: classITables.entrySet()) {
+            LoadedTypeDefinition cls = entry.getKey();
+            tlog.debugf("Emitting itable for %s", cls.getDescriptor().getClassName());
+            Section cSection = ctxt.getImplicitSection(cls);
+            // Every slot which is not used by one of the interfaces of this class raises IncompatibleClassChangeError
+            int slotCount = classITableSlots.get(cls).intValue();
+            Literal[] slotValues = new Literal[slotCount];
+            Arrays.fill(slotValues, iceeLiteral);
+            boolean usesIcce = false;
+            for (LoadedTypeDefinition currentInterface : entry.getValue()) {
+                ITableInfo itableInfo = itables.get(currentInterface);
+                MethodElement[] itable = itableInfo.getItable();
+                for (int i = 0; i < itable.length; i++) {
+                    MethodElement methImpl = cls.resolveMethodElementVirtual(itable[i].getName(), itable[i].getDescriptor());
+                    FunctionType funType = ctxt.getFunctionTypeForElement(itable[i]);
+                    int slot = itableInfo.getDisplacement() + i;
+                    MethodElement builtin = methImpl == null ? null : getBuiltinImplementation(methImpl);
+                    if (methImpl == null) {
+                        usesIcce = true;
+                        slotValues[slot] = lf.bitcastLiteral(iceeLiteral, funType.getPointer());
+                    } else if (builtin != null) {
+                        Function builtinImpl = ctxt.getExactFunction(builtin);
+                        cSection.declareFunction(builtin, builtinImpl.getName(), builtinImpl.getType());
+                        slotValues[slot] = lf.bitcastLiteral(lf.literalOfSymbol(builtinImpl.getName(), builtinImpl.getType().getPointer()), funType.getPointer());
+                    } else if (methImpl.isAbstract()) {
+                        cSection.declareFunction(ameStub, ameImpl.getName(), ameImpl.getType());
+                        slotValues[slot] = lf.bitcastLiteral(ameLiteral, funType.getPointer());
+                    } else {
+                        Function impl = ctxt.getExactFunctionIfExists(methImpl);
+                        if (impl == null) {
+                            ctxt.error(methImpl, "Missing method implementation for vtable of %s", cls.getInternalName());
+                            continue;
                         }
+                        if (!methImpl.getEnclosingType().load().equals(cls)) {
+                            cSection.declareFunction(methImpl, impl.getName(), ctxt.getFunctionTypeForElement(methImpl));
+                        }
+                        slotValues[slot] = impl.getLiteral();
                     }
-                    // Emit itable and refer to it in rootTable
-                    String tableName = "qbicc_itable_impl_"+cls.getInternalName().replace('/', '.')+"_for_"+itableInfo.getGlobal().getName();
-                    Literal itableLiteral = lf.literalOf(itableInfo.getType(), valueMap);
-                    cSection.addData(null, tableName, itableLiteral).setLinkage(Linkage.EXTERNAL);
-                    iSection.declareData(null, tableName, itableInfo.getType());
-                    rootTable[cls.getTypeId()] = lf.literalOfSymbol(tableName, itableInfo.getType());
-                    emittedClassITableCount += 1;
-                    emittedClassITableBytes += itable.length * pointerSize;
-                    emittedInterfaceITableUsefulBytes += pointerSize;
                 }
-            });
-
-            // Finally emit the root iTable[] for the interface
-            iSection.addData(null, itableInfo.getGlobal().getName(), lf.literalOf(rootType, List.of(rootTable)));
+            }
+            CompoundType.Member[] members = new CompoundType.Member[slotCount];
+            HashMap<CompoundType.Member, Literal> valueMap = new HashMap<>();
+            for (int i = 0; i < slotCount; i++) {
+                if (slotValues[i] == iceeLiteral) {
+                    usesIcce = true;
+                }
+                members[i] = ts.getCompoundTypeMember("m"+i, slotValues[i].getType(), i*pointerSize, ts.getPointerAlignment());
+                valueMap.put(members[i], slotValues[i]);
+            }
+            if (usesIcce) {
+                cSection.declareFunction(icceStub, icceImpl.getName(), icceImpl.getType());
+            }
+            String tableName = "qbicc_itable_impl_"+cls.getInternalName().replace('/', '.');
+            CompoundType tableType = ts.getCompoundType(CompoundType.Tag.STRUCT, tableName, slotCount * pointerSize,
+                ts.getPointerAlignment(), () -> List.of(members));
+            cSection.addData(null, tableName, lf.literalOf(tableType, valueMap)).setLinkage(Linkage.EXTERNAL);
+            if (!cls.equals(rootDefinition)) {
+                rootSection.declareData(null, tableName, tableType);
+            }
+            rootTable[cls.getTypeId()] = lf.bitcastLiteral(lf.literalOfSymbol(tableName, tableType.getPointer()), (WordType) rootType.getElementType());
+            emittedClassITableCount += 1;
+            emittedClassITableBytes += slotCount * pointerSize;
+            for (LoadedTypeDefinition currentInterface : entry.getValue()) {
+                // the size of this itable in a directly indexed layout with one itable per class and interface
+                directClassITableBytes += itables.get(currentInterface).getItable().length * pointerSize;
+            }
+        }
+        int directInterfaceCount = 0;
+        for (ITableInfo itableInfo : itables.values()) {
+            if (itableInfo.getItable().length > 0) {
+                directInterfaceCount += 1;
+            }
         }
-        slog.debugf("Emitted iTables for %d class+interface combinations consuming %d bytes", emittedClassITableCount, emittedClassITableBytes);
-        slog.debugf("Emitted iTables for %d interfaces consuming %d bytes; %d non-icce bytes (%s)",
-            emittedInterfaceITableCount, emittedInterfaceITableBytes, emittedInterfaceITableUsefulBytes,
-            String.format("%.2f%%", (float)emittedInterfaceITableUsefulBytes/(float)emittedInterfaceITableBytes*100f));
+
+        // Finally emit the root itable[] indexed by typeId
+        rootSection.addData(null, itablesGlobal.getName(), lf.literalOf(rootType, List.of(rootTable)));
+        int rootBytes = rootTable.length * pointerSize;
+        slog.debugf("Root itable[] has %d slots (%d bytes)", rootTable.length, rootBytes);
+        slog.debugf("Emitted %d class itables with combined size of %d bytes", emittedClassITableCount, emittedClassITableBytes);
+        slog.debugf("Directly indexed itables would have used %d interface itable[]s of %d bytes and %d bytes of class+interface itables",
+            directInterfaceCount, rootBytes, directClassITableBytes);
+        slog.debugf("Interface dispatch data: %d bytes packed, %d bytes directly indexed",
+            rootBytes + emittedClassITableBytes, (long) directInterfaceCount * rootBytes + directClassITableBytes);
     }
 
 
@@ -349,18 +441,18 @@ public class DispatchTables {
         private final LoadedTypeDefinition myInterface;
         private final MethodElement[] itable;
         private final CompoundType type;
-        private final GlobalVariableElement global;
+        private final int displacement;
 
-        ITableInfo(MethodElement[] itable, CompoundType type, LoadedTypeDefinition myInterface, GlobalVariableElement global) {
+        ITableInfo(MethodElement[] itable, CompoundType type, LoadedTypeDefinition myInterface, int displacement) {
             this.myInterface = myInterface;
             this.itable = itable;
             this.type = type;
-            this.global = global;
+            this.displacement = displacement;
         }
 
         public LoadedTypeDefinition getInterface() { return myInterface; }
         public MethodElement[] getItable() { return itable; }
         public CompoundType getType() { return type; }
-        public GlobalVariableElement getGlobal() { return global; }
+        public int getDisplacement() { return displacement; }
     }
 }
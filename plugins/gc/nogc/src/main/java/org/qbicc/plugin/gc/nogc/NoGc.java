@@ -2,10 +2,12 @@ package org.qbicc.plugin.gc.nogc;
 
 import org.qbicc.context.AttachmentKey;
 import org.qbicc.context.CompilationContext;
+import org.qbicc.plugin.threadlocal.ThreadLocals;
 import org.qbicc.type.ClassObjectType;
 import org.qbicc.context.ClassContext;
 import org.qbicc.type.definition.DefinedTypeDefinition;
 import org.qbicc.type.definition.LoadedTypeDefinition;
+import org.qbicc.type.definition.element.FieldElement;
 import org.qbicc.type.definition.element.MethodElement;
 
 /**
@@ -16,6 +18,8 @@ public final class NoGc {
     private final MethodElement allocateMethod;
     private final MethodElement copyMethod;
     private final MethodElement zeroMethod;
+    private final FieldElement tlabTopField;
+    private final FieldElement tlabEndField;
     private final ClassObjectType stackObjectType;
 
     private NoGc(final CompilationContext ctxt) {
@@ -41,6 +45,14 @@ public final class NoGc {
             throw methodMissing();
         }
         zeroMethod = loaded.getMethod(index);
+        ThreadLocals threadLocals = ThreadLocals.get(ctxt);
+        FieldElement field = loaded.findField("tlabTop");
+        tlabTopField = field == null ? null : threadLocals.getThreadLocalField(field);
+        field = loaded.findField("tlabEnd");
+        tlabEndField = field == null ? null : threadLocals.getThreadLocalField(field);
+        if (tlabTopField == null || tlabEndField == null) {
+            throw new IllegalStateException("Required thread-local allocation buffer fields are missing from the NoGC helpers");
+        }
         defined = classContext.findDefinedType("org/qbicc/runtime/StackObject");
         if (defined == null) {
             throw runtimeMissing();
@@ -75,6 +87,24 @@ public final class NoGc {
         return zeroMethod;
     }
 
+    /**
+     * Get the field of {@code Thread} which holds the address of the free space of the thread's allocation buffer.
+     *
+     * @return the allocation buffer top field
+     */
+    public FieldElement getTlabTopField() {
+        return tlabTopField;
+    }
+
+    /**
+     * Get the field of {@code Thread} which holds the end address of the thread's allocation buffer.
+     *
+     * @return the allocation buffer end field
+     */
+    public FieldElement getTlabEndField() {
+        return tlabEndField;
+    }
+
     public ClassObjectType getStackObjectType() {
         return stackObjectType;
     }
@@ -3,15 +3,19 @@ package org.qbicc.plugin.gc.nogc;
 import java.util.List;
 
 import org.qbicc.context.CompilationContext;
+import org.qbicc.graph.BasicBlock;
 import org.qbicc.graph.BasicBlockBuilder;
 import org.qbicc.graph.BlockEarlyTermination;
+import org.qbicc.graph.BlockLabel;
 import org.qbicc.graph.DelegatingBasicBlockBuilder;
 import org.qbicc.graph.MemoryAtomicityMode;
+import org.qbicc.graph.PhiValue;
 import org.qbicc.graph.Value;
 import org.qbicc.graph.ValueHandle;
 import org.qbicc.graph.literal.IntegerLiteral;
 import org.qbicc.graph.literal.LiteralFactory;
 import org.qbicc.plugin.layout.Layout;
+import org.qbicc.plugin.opt.EscapeAnalysis;
 import org.qbicc.type.ArrayObjectType;
 import org.qbicc.type.ClassObjectType;
 import org.qbicc.type.CompoundType;
@@ -21,17 +25,31 @@ import org.qbicc.type.ReferenceArrayObjectType;
 import org.qbicc.type.ValueType;
 import org.qbicc.type.WordType;
 import org.qbicc.type.definition.LoadedTypeDefinition;
+import org.qbicc.type.definition.element.ExecutableElement;
 import org.qbicc.type.definition.element.FieldElement;
+import org.qbicc.type.definition.element.FunctionElement;
+import org.qbicc.type.definition.element.MethodElement;
 
 /**
  *
  */
 public class NoGcBasicBlockBuilder extends DelegatingBasicBlockBuilder {
+    /**
+     * The largest object or array, in bytes, that is allocated on the stack when it does not escape.
+     */
+    private static final long MAX_STACK_ALLOCATION_SIZE = 512;
+    /**
+     * The alignment of the top of each thread-local allocation buffer; see {@code NoGcHelpers}.
+     */
+    private static final long TLAB_ALIGNMENT = 8;
+
     private final CompilationContext ctxt;
+    private final ExecutableElement rootElement;
 
     public NoGcBasicBlockBuilder(final CompilationContext ctxt, final BasicBlockBuilder delegate) {
         super(delegate);
         this.ctxt = ctxt;
+        this.rootElement = getCurrentElement();
     }
 
     public Value new_(final ClassObjectType type) {
@@ -42,28 +60,32 @@ public class NoGcBasicBlockBuilder extends DelegatingBasicBlockBuilder {
         LiteralFactory lf = ctxt.getLiteralFactory();
         IntegerLiteral align = lf.literalOf(compoundType.getAlign());
         Value ptrVal;
-        if (type.isSubtypeOf(noGc.getStackObjectType()) /*|| objectDoesNotEscape && objectIsSmallEnough */) {
+        long size = compoundType.getSize();
+        boolean onStack = type.isSubtypeOf(noGc.getStackObjectType()) || size <= MAX_STACK_ALLOCATION_SIZE && doesNotEscape(type);
+        if (onStack) {
             ptrVal = stackAllocate(compoundType, lf.literalOf(1), align);
         } else {
-            long size = compoundType.getSize();
-            ptrVal = invokeValueStatic(noGc.getAllocateMethod(), List.of(lf.literalOf(size), align));
+            ptrVal = allocate(lf.literalOf(size), align);
         }
         Value oop = valueConvert(ptrVal, type.getReference());
         ValueHandle oopHandle = referenceHandle(oop);
 
-        // zero initialize the object's instance fields (but not the header fields that are defined in java.lang.Object)
-        LoadedTypeDefinition curClass = type.getDefinition().load();
-        while (curClass.hasSuperClass()) {
-            curClass.eachField(f -> {
-                if (!f.isStatic()) {
-                    store(instanceFieldOf(oopHandle, f), lf.zeroInitializerLiteralOfType(f.getType()), MemoryAtomicityMode.NONE);
-                }
-            });
-            curClass = curClass.getSuperClass();
+        if (onStack) {
+            // zero initialize the object's instance fields (but not the header fields that are defined in java.lang.Object);
+            // heap memory is already zero-filled by the allocator
+            LoadedTypeDefinition curClass = type.getDefinition().load();
+            while (curClass.hasSuperClass()) {
+                curClass.eachField(f -> {
+                    if (!f.isStatic()) {
+                        store(instanceFieldOf(oopHandle, f), lf.zeroInitializerLiteralOfType(f.getType()), MemoryAtomicityMode.NONE);
+                    }
+                });
+                curClass = curClass.getSuperClass();
+            }
         }
 
         // now initialize the object header (aka fields of java.lang.Object)
-        initializeObjectHeader(oopHandle, layout, type.getDefinition().load().getType());
+        initializeObjectHeader(oopHandle, layout, type.getDefinition().load().getType(), onStack);
 
         fence(MemoryAtomicityMode.RELEASE);
         return oop;
@@ -78,18 +100,32 @@ public class NoGcBasicBlockBuilder extends DelegatingBasicBlockBuilder {
         LiteralFactory lf = ctxt.getLiteralFactory();
         IntegerLiteral align = lf.literalOf(compoundType.getAlign());
         IntegerLiteral baseSize = lf.literalOf(compoundType.getSize());
+        long elementSize = arrayType.getElementType().getSize();
+        long stackSize = -1;
+        if (size instanceof IntegerLiteral) {
+            long length = ((IntegerLiteral) size).longValue();
+            if (0 <= length && length <= MAX_STACK_ALLOCATION_SIZE && compoundType.getSize() + elementSize * length <= MAX_STACK_ALLOCATION_SIZE && doesNotEscape(arrayType)) {
+                stackSize = compoundType.getSize() + elementSize * length;
+            }
+        }
         IntegerType sizeType = (IntegerType) size.getType();
         if (sizeType.getMinBits() < 64) {
             size = extend(size, ctxt.getTypeSystem().getSignedInteger64Type());
         }
-        Value realSize = add(baseSize, multiply(lf.literalOf(arrayType.getElementType().getSize()), size));
-        Value rawMem = invokeValueStatic(noGc.getAllocateMethod(), List.of(realSize, align));
+        Value ptrVal;
+        if (stackSize != -1) {
+            Value realSize = lf.literalOf(stackSize);
+            Value rawMem = stackAllocate(ctxt.getTypeSystem().getUnsignedInteger8Type(), realSize, align);
+            ptrVal = invokeValueStatic(noGc.getZeroMethod(), List.of(rawMem, realSize));
+        } else {
+            // heap memory is already zero-filled by the allocator
+            ptrVal = allocate(add(baseSize, multiply(lf.literalOf(elementSize), size)), align);
+        }
 
-        Value ptrVal = invokeValueStatic(noGc.getZeroMethod(), List.of(rawMem, realSize));
         Value arrayPtr = valueConvert(ptrVal, arrayType.getReference());
         ValueHandle arrayHandle = referenceHandle(arrayPtr);
 
-        initializeObjectHeader(arrayHandle, layout, arrayContentField.getEnclosingType().load().getType());
+        initializeObjectHeader(arrayHandle, layout, arrayContentField.getEnclosingType().load().getType(), stackSize != -1);
 
         store(instanceFieldOf(arrayHandle, layout.getArrayLengthField()), truncate(size, ctxt.getTypeSystem().getSignedInteger32Type()), MemoryAtomicityMode.NONE);
         if (arrayType instanceof ReferenceArrayObjectType) {
@@ -117,13 +153,18 @@ public class NoGcBasicBlockBuilder extends DelegatingBasicBlockBuilder {
             if (type.isSubtypeOf(noGc.getStackObjectType())) {
                 ptrVal = stackAllocate(compoundType, lf.literalOf(1), align);
             } else {
-                ptrVal = invokeValueStatic(noGc.getAllocateMethod(), List.of(size, align));
+                ptrVal = allocate(size, align);
             }
             // TODO: replace with field-by-field copy once we have a redundant assignment elimination optimization
-            // TODO: if/when we put a thinlock, default hashcode, or GC state bits in the object header we need to properly initialize them.
             invokeStatic(noGc.getCopyMethod(), List.of(ptrVal, valueConvert(object, (WordType) ptrVal.getType()), size));
+            // the copy is a distinct object, so it gets its own identity hash code when one is requested, and its own monitor
+            // TODO: if/when we put GC state bits in the object header we need to properly initialize them.
+            Value oop = valueConvert(ptrVal, type.getReference());
+            ValueHandle oopHandle = referenceHandle(oop);
+            store(instanceFieldOf(oopHandle, layout.getObjectHashCodeField()), lf.literalOf(0), MemoryAtomicityMode.NONE);
+            store(instanceFieldOf(oopHandle, layout.getObjectLockField()), lf.literalOf(0L), MemoryAtomicityMode.NONE);
             fence(MemoryAtomicityMode.RELEASE);
-            return valueConvert(ptrVal, type.getReference());
+            return oop;
         } else if (objType instanceof ArrayObjectType) {
             ctxt.error(getLocation(), "Array allocations not supported until layout supports arrays");
             throw new BlockEarlyTermination(unreachable());
@@ -132,9 +173,67 @@ public class NoGcBasicBlockBuilder extends DelegatingBasicBlockBuilder {
         }
     }
 
-    // Currently there is only one header field, but abstract into a helper method so we only have one place to update later!
-    private void initializeObjectHeader(ValueHandle oopHandle, Layout layout, ObjectType objType) {
+    private boolean doesNotEscape(ObjectType type) {
+        return EscapeAnalysis.get(ctxt).isStackAllocatable(rootElement, getCurrentElement(), getLocation().getByteCodeIndex(), type);
+    }
+
+    /**
+     * Allocate zero-filled heap memory.  Unless the root element is a function, the allocation is bumped inline from
+     * the current thread's allocation buffer, falling back to the allocation helper method if it does not fit or if
+     * no thread is bound yet (as is the case for the allocations made by the runtime entry point while it attaches
+     * the initial thread).
+     *
+     * @param size the allocation size in bytes (a {@code long} value)
+     * @param align the allocation alignment in bytes
+     * @return the pointer to the allocated memory
+     */
+    private Value allocate(Value size, IntegerLiteral align) {
+        NoGc noGc = NoGc.get(ctxt);
+        MethodElement allocateMethod = noGc.getAllocateMethod();
+        if (rootElement instanceof FunctionElement) {
+            return invokeValueStatic(allocateMethod, List.of(size, align));
+        }
+        LiteralFactory lf = ctxt.getLiteralFactory();
+        Value thr = currentThread();
+        BlockLabel bound = new BlockLabel();
+        BlockLabel fast = new BlockLabel();
+        BlockLabel slow = new BlockLabel();
+        BlockLabel resume = new BlockLabel();
+        if_(isEq(thr, lf.zeroInitializerLiteralOfType(thr.getType())), slow, bound);
+        begin(bound);
+        ValueHandle topHandle = instanceFieldOf(referenceHandle(thr), noGc.getTlabTopField());
+        Value top = load(topHandle, MemoryAtomicityMode.NONE);
+        Value end = load(instanceFieldOf(referenceHandle(thr), noGc.getTlabEndField()), MemoryAtomicityMode.NONE);
+        long alignVal = align.longValue();
+        Value alignedTop = top;
+        if (alignVal > TLAB_ALIGNMENT) {
+            alignedTop = and(add(top, lf.literalOf(alignVal - 1)), lf.literalOf(-alignVal));
+        }
+        // keep the buffer top aligned so that most allocations need no alignment of their own
+        Value newTop = and(add(add(alignedTop, size), lf.literalOf(TLAB_ALIGNMENT - 1)), lf.literalOf(-TLAB_ALIGNMENT));
+        if_(isLe(newTop, end), fast, slow);
+        begin(fast);
+        store(topHandle, newTop, MemoryAtomicityMode.NONE);
+        Value fastPtr = valueConvert(alignedTop, (WordType) allocateMethod.getType().getReturnType());
+        BasicBlock fastExit = goto_(resume);
+        begin(slow);
+        Value slowPtr = invokeValueStatic(allocateMethod, List.of(size, align));
+        BasicBlock slowExit = goto_(resume);
+        begin(resume);
+        PhiValue ptr = phi(slowPtr.getType(), resume);
+        ptr.setValueForBlock(ctxt, getCurrentElement(), fastExit, fastPtr);
+        ptr.setValueForBlock(ctxt, getCurrentElement(), slowExit, slowPtr);
+        return ptr;
+    }
+
+    // Abstract header initialization into a helper method so we only have one place to update later!
+    private void initializeObjectHeader(ValueHandle oopHandle, Layout layout, ObjectType objType, boolean onStack) {
         FieldElement typeId = layout.getObjectTypeIdField();
         store(instanceFieldOf(oopHandle, typeId),  ctxt.getLiteralFactory().literalOfType(objType), MemoryAtomicityMode.NONE);
+        if (onStack) {
+            // the identity hash code is assigned lazily and the monitor starts out unlocked; heap memory is already zero-filled
+            store(instanceFieldOf(oopHandle, layout.getObjectHashCodeField()), ctxt.getLiteralFactory().literalOf(0), MemoryAtomicityMode.NONE);
+            store(instanceFieldOf(oopHandle, layout.getObjectLockField()), ctxt.getLiteralFactory().literalOf(0L), MemoryAtomicityMode.NONE);
+        }
     }
 }
@@ -0,0 +1,70 @@
+package org.qbicc.plugin.gc.precise;
+
+import org.qbicc.context.AttachmentKey;
+import org.qbicc.context.ClassContext;
+import org.qbicc.context.CompilationContext;
+import org.qbicc.type.definition.DefinedTypeDefinition;
+import org.qbicc.type.definition.LoadedTypeDefinition;
+import org.qbicc.type.definition.element.FieldElement;
+import org.qbicc.type.definition.element.MethodElement;
+
+/**
+ * The compiler side of the precise garbage collection support, which holds the runtime safepoint elements.  This is
+ * the safepoint and stack map infrastructure only; the collector itself is not implemented yet.
+ */
+public final class PreciseGc {
+    private static final AttachmentKey<PreciseGc> KEY = new AttachmentKey<>();
+
+    private final LoadedTypeDefinition safePointsType;
+    private final FieldElement requestedField;
+    private final MethodElement pollMethod;
+
+    private PreciseGc(final CompilationContext ctxt) {
+        ClassContext classContext = ctxt.getBootstrapClassContext();
+        DefinedTypeDefinition defined = classContext.findDefinedType("org/qbicc/runtime/gc/precise/SafePoints");
+        if (defined == null) {
+            throw new IllegalStateException("The precise GC runtime classes are not present in the bootstrap class path");
+        }
+        safePointsType = defined.load();
+        requestedField = safePointsType.findField("requested");
+        if (requestedField == null) {
+            throw new IllegalStateException("Required field is missing from the safepoint runtime");
+        }
+        int index = safePointsType.findMethodIndex(e -> e.getName().equals("poll"));
+        if (index == -1) {
+            throw new IllegalStateException("Required method is missing from the safepoint runtime");
+        }
+        pollMethod = safePointsType.getMethod(index);
+    }
+
+    public static PreciseGc get(CompilationContext ctxt) {
+        return ctxt.computeAttachmentIfAbsent(KEY, () -> new PreciseGc(ctxt));
+    }
+
+    /**
+     * Get the runtime class which implements safepoints.  Its methods are never polled.
+     *
+     * @return the safepoint class
+     */
+    public LoadedTypeDefinition getSafePointsType() {
+        return safePointsType;
+    }
+
+    /**
+     * Get the static field which is non-zero while a safepoint is requested.
+     *
+     * @return the safepoint request field
+     */
+    public FieldElement getRequestedField() {
+        return requestedField;
+    }
+
+    /**
+     * Get the method which parks the calling thread until a requested safepoint is released.
+     *
+     * @return the safepoint poll method
+     */
+    public MethodElement getPollMethod() {
+        return pollMethod;
+    }
+}
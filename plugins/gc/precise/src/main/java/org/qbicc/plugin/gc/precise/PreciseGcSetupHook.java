@@ -0,0 +1,24 @@
+package org.qbicc.plugin.gc.precise;
+
+import java.util.function.Consumer;
+
+import org.qbicc.context.CompilationContext;
+import org.qbicc.type.definition.element.InitializerElement;
+
+/**
+ * Register the safepoint runtime methods.  Safepoint polls and stack map tables are infrastructure for a precise
+ * collector which does not exist yet: nothing requests a safepoint, and the no-GC allocator still never frees memory,
+ * so enabling them only adds the cost of the polls.
+ */
+public class PreciseGcSetupHook implements Consumer<CompilationContext> {
+    public void accept(final CompilationContext ctxt) {
+        ctxt.warning("Safepoint polls are enabled, but no garbage collector is available to use them; memory is never reclaimed");
+        PreciseGc preciseGc = PreciseGc.get(ctxt);
+        ctxt.registerEntryPoint(preciseGc.getPollMethod());
+
+        InitializerElement clinit = preciseGc.getSafePointsType().getInitializer();
+        if (clinit != null) {
+            ctxt.registerEntryPoint(clinit);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.qbicc.plugin.gc.precise;
+
+import java.util.List;
+
+import org.qbicc.context.CompilationContext;
+import org.qbicc.graph.BasicBlock;
+import org.qbicc.graph.BasicBlockBuilder;
+import org.qbicc.graph.BlockLabel;
+import org.qbicc.graph.DelegatingBasicBlockBuilder;
+import org.qbicc.graph.MemoryAtomicityMode;
+import org.qbicc.graph.Node;
+import org.qbicc.graph.Value;
+import org.qbicc.type.definition.element.ExecutableElement;
+import org.qbicc.type.definition.element.FunctionElement;
+
+/**
+ * A basic block builder which inserts a safepoint poll at the start of the subprogram and before each branch to a
+ * block which has already been started, which covers every loop back edge.  The poll reads the safepoint request
+ * field and calls the runtime poll method if it is set, so that a thread spinning in a loop or calling
+ * deeply cannot hold up a collection for long.
+ */
+public class SafePointPollBasicBlockBuilder extends DelegatingBasicBlockBuilder {
+    private final CompilationContext ctxt;
+    private boolean started;
+
+    private SafePointPollBasicBlockBuilder(final CompilationContext ctxt, final BasicBlockBuilder delegate) {
+        super(delegate);
+        this.ctxt = ctxt;
+    }
+
+    public Node begin(final BlockLabel blockLabel) {
+        Node node = super.begin(blockLabel);
+        if (! started) {
+            // method start
+            started = true;
+            return poll();
+        }
+        return node;
+    }
+
+    public BasicBlock goto_(final BlockLabel resumeLabel) {
+        if (resumeLabel.hasTarget()) {
+            poll();
+        }
+        return super.goto_(resumeLabel);
+    }
+
+    public BasicBlock if_(final Value condition, final BlockLabel trueTarget, final BlockLabel falseTarget) {
+        if (trueTarget.hasTarget() || falseTarget.hasTarget()) {
+            poll();
+        }
+        return super.if_(condition, trueTarget, falseTarget);
+    }
+
+    public BasicBlock switch_(final Value value, final int[] checkValues, final BlockLabel[] targets, final BlockLabel defaultTarget) {
+        boolean backEdge = defaultTarget.hasTarget();
+        for (BlockLabel target : targets) {
+            backEdge |= target.hasTarget();
+        }
+        if (backEdge) {
+            poll();
+        }
+        return super.switch_(value, checkValues, targets, defaultTarget);
+    }
+
+    private Node poll() {
+        BasicBlockBuilder fb = getFirstBuilder();
+        PreciseGc preciseGc = PreciseGc.get(ctxt);
+        Value requested = fb.load(fb.staticField(preciseGc.getRequestedField()), MemoryAtomicityMode.MONOTONIC);
+        BlockLabel slow = new BlockLabel();
+        BlockLabel resume = new BlockLabel();
+        fb.if_(fb.isEq(requested, ctxt.getLiteralFactory().literalOf(0)), resume, slow);
+        fb.begin(slow);
+        fb.invokeStatic(preciseGc.getPollMethod(), List.of());
+        fb.goto_(resume);
+        return fb.begin(resume);
+    }
+
+    public static BasicBlockBuilder createIfNeeded(CompilationContext ctxt, BasicBlockBuilder delegate) {
+        ExecutableElement element = delegate.getCurrentElement();
+        if (element instanceof FunctionElement || element.getEnclosingType().load() == PreciseGc.get(ctxt).getSafePointsType()) {
+            // functions have no stack maps, and the safepoint implementation must not poll itself
+            return delegate;
+        }
+        return new SafePointPollBasicBlockBuilder(ctxt, delegate);
+    }
+}
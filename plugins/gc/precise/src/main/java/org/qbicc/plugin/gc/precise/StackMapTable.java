@@ -0,0 +1,151 @@
+package org.qbicc.plugin.gc.precise;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.qbicc.context.CompilationContext;
+import org.qbicc.machine.llvm.stackmap.LocationType;
+import org.qbicc.machine.llvm.stackmap.StackMapVisitor;
+
+/**
+ * A stack map visitor which collects the statepoint records of a linked image into a table that is sorted by call
+ * site address, and which generates the C source of that table along with its lookup function.
+ * <p>
+ * The locations of a statepoint record are three constants (the calling convention, the flags, and the number of
+ * deoptimization locations), followed by the deoptimization locations, followed by a base and derived location for
+ * each live reference.  Since all of the references are spilled across the call, each root is an indirect location
+ * which is given as a register and an offset.
+ */
+final class StackMapTable implements StackMapVisitor {
+    private static final int[] NO_ROOTS = new int[0];
+
+    private final CompilationContext ctxt;
+    private final List<Entry> entries = new ArrayList<>();
+    private long functionAddress;
+    private long recordOffset;
+    private int locationCount;
+    private LocationType[] types = new LocationType[16];
+    private int[] regNums = new int[16];
+    private long[] data = new long[16];
+
+    StackMapTable(final CompilationContext ctxt) {
+        this.ctxt = ctxt;
+    }
+
+    public void startFunction(final long fnIndex, final long address, final long stackSize, final long recordCount) {
+        functionAddress = address;
+    }
+
+    public void startRecord(final long recIndex, final long patchPointId, final long offset, final int locCnt, final int liveOutCnt) {
+        recordOffset = offset;
+        locationCount = 0;
+        if (types.length < locCnt) {
+            types = new LocationType[locCnt];
+            regNums = new int[locCnt];
+            data = new long[locCnt];
+        }
+    }
+
+    public void location(final int locIndex, final LocationType type, final int size, final int regNum, final long data) {
+        types[locIndex] = type;
+        regNums[locIndex] = regNum;
+        this.data[locIndex] = data;
+        locationCount = locIndex + 1;
+    }
+
+    public void endRecord(final long recIndex) {
+        long address = functionAddress + recordOffset;
+        if (locationCount < 3 || types[0] != LocationType.Constant || types[1] != LocationType.Constant || types[2] != LocationType.Constant) {
+            // not a statepoint
+            return;
+        }
+        int start = 3 + (int) data[2];
+        int[] roots = new int[(locationCount - start) / 2 * 4];
+        int cnt = 0;
+        for (int i = start; i + 1 < locationCount; i += 2) {
+            if (types[i] == LocationType.Indirect && types[i + 1] == LocationType.Indirect) {
+                roots[cnt++] = regNums[i];
+                roots[cnt++] = (int) data[i];
+                roots[cnt++] = regNums[i + 1];
+                roots[cnt++] = (int) data[i + 1];
+            } else if (types[i] == LocationType.Register || types[i + 1] == LocationType.Register) {
+                ctxt.warning("Stack map record at address 0x%x has a root in a register, which is not supported", Long.valueOf(address));
+            }
+            // otherwise it is a constant (null) or the address of a stack allocation, and is not a root
+        }
+        entries.add(new Entry(address, cnt == 0 ? NO_ROOTS : Arrays.copyOf(roots, cnt)));
+    }
+
+    int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * Generate the C source of the table.
+     *
+     * @param anchor the link-time address of the lookup function, which is used to find the load bias of the image
+     * @return the C source
+     */
+    String toSource(long anchor) {
+        entries.sort(Comparator.comparingLong(e -> e.address));
+        StringBuilder b = new StringBuilder();
+        b.append("#include <stdint.h>\n\n");
+        b.append("struct qbicc_stack_map_entry {\n");
+        b.append("    uint64_t address;\n");
+        b.append("    uint32_t roots;\n");
+        b.append("    uint32_t count;\n");
+        b.append("};\n\n");
+        // the table is not constant, so that it cannot be merged or moved into the text segment between links
+        b.append("struct qbicc_stack_map_entry qbicc_stack_map_entries[] = {\n");
+        StringBuilder rb = new StringBuilder();
+        int rootIndex = 0;
+        for (Entry entry : entries) {
+            int count = entry.roots.length / 4;
+            b.append("    { 0x").append(Long.toHexString(entry.address)).append("ULL, ").append(rootIndex).append(", ").append(count).append(" },\n");
+            for (int root : entry.roots) {
+                rb.append("    ").append(root).append(",\n");
+            }
+            rootIndex += entry.roots.length;
+        }
+        if (entries.isEmpty()) {
+            b.append("    { 0, 0, 0 },\n");
+        }
+        b.append("};\n\n");
+        b.append("int32_t qbicc_stack_map_roots[] = {\n");
+        b.append(rootIndex == 0 ? "    0,\n" : rb);
+        b.append("};\n\n");
+        b.append("uint32_t qbicc_stack_map_entry_count = ").append(entries.size()).append(";\n");
+        b.append("uintptr_t qbicc_stack_map_anchor = 0x").append(Long.toHexString(anchor)).append("ULL;\n\n");
+        b.append("int32_t qbicc_stack_map_find(uintptr_t ip, const int32_t **roots) {\n");
+        b.append("    uint64_t address = ip - ((uintptr_t) &qbicc_stack_map_find - qbicc_stack_map_anchor);\n");
+        b.append("    uint32_t low = 0;\n");
+        b.append("    uint32_t high = qbicc_stack_map_entry_count;\n");
+        b.append("    while (low < high) {\n");
+        b.append("        uint32_t mid = (low + high) >> 1;\n");
+        b.append("        struct qbicc_stack_map_entry *entry = &qbicc_stack_map_entries[mid];\n");
+        b.append("        if (entry->address < address) {\n");
+        b.append("            low = mid + 1;\n");
+        b.append("        } else if (entry->address > address) {\n");
+        b.append("            high = mid;\n");
+        b.append("        } else {\n");
+        b.append("            *roots = &qbicc_stack_map_roots[entry->roots];\n");
+        b.append("            return (int32_t) entry->count;\n");
+        b.append("        }\n");
+        b.append("    }\n");
+        b.append("    return -1;\n");
+        b.append("}\n");
+        return b.toString();
+    }
+
+    static final class Entry {
+        final long address;
+        final int[] roots;
+
+        Entry(final long address, final int[] roots) {
+            this.address = address;
+            this.roots = roots;
+        }
+    }
+}
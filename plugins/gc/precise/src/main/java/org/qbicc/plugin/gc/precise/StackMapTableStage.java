@@ -0,0 +1,129 @@
+package org.qbicc.plugin.gc.precise;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import org.qbicc.context.CompilationContext;
+import org.qbicc.driver.Driver;
+import org.qbicc.machine.arch.ObjectType;
+import org.qbicc.machine.llvm.stackmap.StackMap;
+import org.qbicc.machine.object.ObjectFile;
+import org.qbicc.machine.object.ObjectFileProvider;
+import org.qbicc.machine.object.Section;
+import org.qbicc.machine.tool.CCompilerInvoker;
+import org.qbicc.machine.tool.CToolChain;
+import org.qbicc.machine.tool.ToolMessageHandler;
+import org.qbicc.machine.tool.process.InputSource;
+import org.qbicc.plugin.linker.Linker;
+
+/**
+ * The stage which produces the stack map table of the image.  The call site addresses are only known once the image
+ * is linked, so the table is produced in two passes: {@link #addPlaceholderTable(CompilationContext)} adds an empty
+ * table to the link, and then this stage (which runs after the link stage) reads the stack maps of the linked image,
+ * regenerates the table, and links the image again.  The table object comes last and its code does not change between
+ * the passes, so the code of the image (and thus its stack maps) stays where it was; this is verified after the
+ * second link.
+ */
+public class StackMapTableStage implements Consumer<CompilationContext> {
+    private static final String STACK_MAPS_SECTION = ".llvm_stackmaps";
+    private static final String ANCHOR = "qbicc_stack_map_find";
+
+    private final Consumer<CompilationContext> linkStage;
+
+    /**
+     * Construct a new instance.
+     *
+     * @param linkStage the link stage to run again once the table has been regenerated (must not be {@code null})
+     */
+    public StackMapTableStage(final Consumer<CompilationContext> linkStage) {
+        this.linkStage = linkStage;
+    }
+
+    /**
+     * Compile an empty stack map table and add it to the image, which must happen before the image is first linked.
+     *
+     * @param ctxt the compilation context
+     */
+    public void addPlaceholderTable(final CompilationContext ctxt) {
+        StackMapTable table = new StackMapTable(ctxt);
+        Path objectPath = compile(ctxt, table.toSource(0));
+        if (objectPath != null) {
+            Linker.get(ctxt).addObjectFilePath(objectPath);
+        }
+    }
+
+    public void accept(final CompilationContext ctxt) {
+        if (ctxt.errors() > 0) {
+            return;
+        }
+        ObjectFileProvider objectFileProvider = ctxt.getAttachment(Driver.OBJ_PROVIDER_TOOL_KEY);
+        Path imagePath = ctxt.getOutputDirectory().resolve("a.out");
+        StackMapTable table = new StackMapTable(ctxt);
+        byte[] stackMaps;
+        long anchor;
+        try (ObjectFile objectFile = objectFileProvider.openObjectFile(imagePath)) {
+            if (objectFile.getObjectType() != ObjectType.ELF) {
+                ctxt.warning("Stack map tables are not supported for %s images; precise collection is not possible", objectFile.getObjectType());
+                return;
+            }
+            stackMaps = readStackMaps(objectFile);
+            if (stackMaps == null) {
+                // no garbage-collected call sites at all
+                return;
+            }
+            anchor = objectFile.getSymbolAddress(ANCHOR);
+            StackMap.parseAll(ByteBuffer.wrap(stackMaps).order(objectFile.getByteOrder()), table);
+        } catch (IOException e) {
+            ctxt.error("Failed to read stack maps from \"%s\": %s", imagePath, e);
+            return;
+        }
+        if (compile(ctxt, table.toSource(anchor)) == null) {
+            return;
+        }
+        linkStage.accept(ctxt);
+        if (ctxt.errors() > 0) {
+            return;
+        }
+        try (ObjectFile objectFile = objectFileProvider.openObjectFile(imagePath)) {
+            if (! Arrays.equals(stackMaps, readStackMaps(objectFile)) || anchor != objectFile.getSymbolAddress(ANCHOR)) {
+                ctxt.error("The image code moved when the stack map table was linked in");
+            }
+        } catch (IOException e) {
+            ctxt.error("Failed to read stack maps from \"%s\": %s", imagePath, e);
+        }
+    }
+
+    private static byte[] readStackMaps(ObjectFile objectFile) {
+        Section section = objectFile.getSection(STACK_MAPS_SECTION);
+        if (section == null) {
+            return null;
+        }
+        ByteBuffer content = section.getSectionContent();
+        byte[] bytes = new byte[content.remaining()];
+        content.get(bytes);
+        return bytes;
+    }
+
+    private static Path compile(CompilationContext ctxt, String source) {
+        CToolChain cToolChain = ctxt.getAttachment(Driver.C_TOOL_CHAIN_KEY);
+        if (cToolChain == null) {
+            ctxt.error("No C tool chain is available");
+            return null;
+        }
+        Path objectPath = ctxt.getOutputDirectory().resolve("stack-map-table." + cToolChain.getPlatform().getObjectType().objectSuffix());
+        CCompilerInvoker inv = cToolChain.newCompilerInvoker();
+        inv.setSource(InputSource.from(source));
+        inv.setOutputPath(objectPath);
+        inv.setMessageHandler(ToolMessageHandler.reporting(ctxt));
+        try {
+            inv.invoke();
+        } catch (IOException e) {
+            ctxt.error("Failed to compile the stack map table: %s", e);
+            return null;
+        }
+        return objectPath;
+    }
+}
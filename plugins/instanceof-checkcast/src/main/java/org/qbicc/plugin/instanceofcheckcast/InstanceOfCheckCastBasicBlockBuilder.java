@@ -218,19 +218,16 @@ public class InstanceOfCheckCastBasicBlockBuilder extends DelegatingBasicBlockBu
             // 2 - expectedType statically known to be an interface
             SupersDisplayTables tables = SupersDisplayTables.get(ctxt);
             LoadedTypeDefinition vtdExpectedType = toType.getDefinition().load();
-            final int byteIndex = tables.getInterfaceByteIndex(vtdExpectedType);
-            final int mask = tables.getInterfaceBitMask(vtdExpectedType);
+            final int slot = tables.getInterfaceSlot(vtdExpectedType);
             GlobalVariableElement typeIdGlobal = tables.getAndRegisterGlobalTypeIdArray(getDelegate().getCurrentElement());
             Value inputTypeId = typeIdOf(referenceHandle(input));
             // typeIdStruct = qbicc_typeid_array[typeId]
             ValueHandle typeIdStruct = elementOf(globalVariable(typeIdGlobal), inputTypeId);
-            // bits = &typeIdStruct.interfaceBits
-            ValueHandle bits = memberOf(typeIdStruct, tables.getGlobalTypeIdStructType().getMember("interfaceBits"));
-            // thisByte = bits[byteIndex]
-            Value thisByte = load(elementOf(bits, lf.literalOf(byteIndex)), MemoryAtomicityMode.UNORDERED);
-            // maskedValue = thisByte & mask
-            Value maskedValue = and(thisByte, lf.literalOf(mask));
-            if_(isEq(maskedValue, lf.literalOf(mask)), pass, fail);
+            // interfaces = &typeIdStruct.interfaces
+            ValueHandle interfaces = memberOf(typeIdStruct, tables.getGlobalTypeIdStructType().getMember("interfaces"));
+            // implemented = interfaces[slot]
+            Value implemented = load(elementOf(interfaces, lf.literalOf(slot)), MemoryAtomicityMode.UNORDERED);
+            if_(isEq(implemented, lf.literalOf(tables.getInterfaceSlotType(), vtdExpectedType.getTypeId())), pass, fail);
         } else {
             // 3 - expectedType statically known to be a class
             // There are two sub cases when dealing with classes:
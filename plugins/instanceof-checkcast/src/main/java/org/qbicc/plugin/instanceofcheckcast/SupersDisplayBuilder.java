@@ -77,6 +77,9 @@ public class SupersDisplayBuilder implements Consumer<CompilationContext> {
         // visit all interfaces implemented as determined by the RTAInfo
         info.visitLiveInterfaces(tables::assignInterfaceId);
 
+        // assign each interface its slot in the implemented interfaces arrays
+        tables.assignInterfaceSlots();
+
         tables.updateJLORange(jlo);
 
         tables.statistics();
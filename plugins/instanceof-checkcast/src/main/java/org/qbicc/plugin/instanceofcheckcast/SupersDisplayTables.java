@@ -2,10 +2,14 @@ package org.qbicc.plugin.instanceofcheckcast;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.IntStream;
 
@@ -14,10 +18,10 @@ import org.qbicc.context.CompilationContext;
 import org.qbicc.graph.literal.Literal;
 import org.qbicc.graph.literal.LiteralFactory;
 import org.qbicc.object.Section;
-import org.qbicc.plugin.instanceofcheckcast.SupersDisplayTables.IdAndRange.Factory;
 import org.qbicc.plugin.reachability.RTAInfo;
 import org.qbicc.type.ArrayType;
 import org.qbicc.type.CompoundType;
+import org.qbicc.type.IntegerType;
 import org.qbicc.type.TypeSystem;
 import org.qbicc.type.UnsignedIntegerType;
 import org.qbicc.type.definition.LoadedTypeDefinition;
@@ -63,14 +67,16 @@ public class SupersDisplayTables {
      * Interface typeid's are assigned after class's get their
      * typeids assigned - see code in SuperDisplayBuilder.java
      * 
-     * Interfaces also get assigned a bit as their index into
-     * the implemented interfaces bit array.  If a class
-     * implements interface I, it will have a `1` in the 
-     * interface_bits[] at I.interfaceIndexBit.
+     * Interfaces also get assigned a slot in the implemented
+     * interfaces array.  If a class implements interface I, it
+     * will have I.typeid in interfaces[] at I.interfaceSlot.
      * 
      * We have perfect knowledge of the implemented interfaces
-     * so we can assign these bits up front and the array should
-     * stay reasonably small.
+     * so we can color the interfaces up front: two interfaces
+     * share a slot unless some type implements both of them,
+     * which keeps the array as long as the largest number of
+     * interfaces implemented by any one type rather than the
+     * number of interfaces in the program.
      * 
      * [poison]
      * [primitive classes]
@@ -83,8 +89,6 @@ public class SupersDisplayTables {
     static class IdAndRange {
 
         static class Factory {
-            static final int interfaces_per_byte = 8;
-
             private int typeid_index = 0; // avoid using 0;
 
             // interface ids must be contigious and after the class ids
@@ -118,49 +122,21 @@ public class SupersDisplayTables {
             maximumSubtypeId = Math.max(maximumSubtypeId, id);
         }
 
+        int interfaceSlot = -1;
+
         public String toString() {
             String s = "ID[" + typeid + "] Range[" + typeid + ", " + maximumSubtypeId + "]";
             if (typeid >= constants.first_interface_typeid) {
-                int bit = (typeid - constants.first_interface_typeid);
-                s += " indexBit[" + bit + "]";
-                s += " byte[" + implementedInterfaceByteIndex() + "]";
-                s += " mask[" + Integer.toBinaryString(1 << (bit & 7)) + "]";
+                s += " slot[" + interfaceSlot + "]";
             }
             return s;
         }
-
-        /**
-         * Return the index into the implementedInterfaces[]
-         * to get the right byte to test for this interface.
-         */
-        int implementedInterfaceByteIndex() {
-            if (typeid >= constants.first_interface_typeid) {
-                int bit = (typeid - constants.first_interface_typeid);
-                return bit >> 3; /* Equiv to: / interfaces_per_byte */
-            }
-            return -1;
-        }
-
-        /**
-         * Return the mask used to test/set this interface
-         * in the byte this interface would be in.
-         * 
-         * ie: interfaceBits[index] & implementedInterfaceBitMask() == implementedInterfaceBitMask()
-         * means the interface is implemented
-         */
-        int implementedInterfaceBitMask() {
-            if (typeid >= constants.first_interface_typeid) {
-                int bit = (typeid - constants.first_interface_typeid);
-                return 1 << (bit & 7);
-            }
-            return 0;
-        }
-
     }
 
     private final IdAndRange.Factory idAndRange = new IdAndRange.Factory();
 
     private int maxDisplaySizeElements;
+    private int interfaceSlotCount;
 
     private SupersDisplayTables(final CompilationContext ctxt) {
         this.ctxt = ctxt;
@@ -250,11 +226,15 @@ public class SupersDisplayTables {
             }
         );
 
-        int bytesPerClass = getNumberOfBytesInInterfaceBitsArray();
+        // one bit per interface is what a dense implemented interfaces bit array would need
+        int bitsBytesPerClass = (getNumberOfInterfacesInTypeIds() + 7) / 8;
+        int slotsBytesPerClass = getInterfaceSlotCount() * ctxt.getTypeSystem().getTypeIdSize();
         supersLog.debug("===============");
-        supersLog.debug("Implemented interface bits require " + bytesPerClass + " bytes per class");
+        supersLog.debug("Implemented interface bits would require " + bitsBytesPerClass + " bytes per class");
+        supersLog.debug("Implemented interface slots require " + getInterfaceSlotCount() + " slots (" + slotsBytesPerClass + " bytes) per class");
         supersLog.debug("classes + interfaces = " + typeids.size());
-        supersLog.debug("Interface bits[] space (in bytes): " + (typeids.size() * bytesPerClass));
+        supersLog.debug("Interface bits[] space (in bytes): " + (typeids.size() * bitsBytesPerClass));
+        supersLog.debug("Interface slots[] space (in bytes): " + (typeids.size() * slotsBytesPerClass));
     }
 
     void assignTypeID(LoadedTypeDefinition cls) {
@@ -311,13 +291,51 @@ public class SupersDisplayTables {
         return typeids.size() - idAndRange.first_interface_typeid + 10;
     }
 
-    public int getNumberOfBytesInInterfaceBitsArray() {
-        int numInterfaces = getNumberOfInterfacesInTypeIds();
-        return (numInterfaces + Factory.interfaces_per_byte - 1) / Factory.interfaces_per_byte;
+    /**
+     * Color the live interfaces so that no type implements two interfaces with the same slot.  The interfaces
+     * with the most implementors are colored first, each with the lowest slot that none of its implementors
+     * uses yet.
+     */
+    void assignInterfaceSlots() {
+        Map<LoadedTypeDefinition, List<LoadedTypeDefinition>> implementors = new HashMap<>();
+        for (LoadedTypeDefinition type : typeids.keySet()) {
+            for (LoadedTypeDefinition i : getImplementedInterfaces(type)) {
+                implementors.computeIfAbsent(i, k -> new ArrayList<>()).add(type);
+            }
+        }
+        List<LoadedTypeDefinition> interfaces = new ArrayList<>(implementors.keySet());
+        interfaces.sort(Comparator.comparingInt((LoadedTypeDefinition i) -> implementors.get(i).size()).reversed()
+            .thenComparingInt(i -> typeids.get(i).typeid));
+        Map<LoadedTypeDefinition, BitSet> usedSlots = new HashMap<>();
+        for (LoadedTypeDefinition i : interfaces) {
+            BitSet conflicts = new BitSet();
+            for (LoadedTypeDefinition type : implementors.get(i)) {
+                BitSet used = usedSlots.get(type);
+                if (used != null) {
+                    conflicts.or(used);
+                }
+            }
+            int slot = conflicts.nextClearBit(0);
+            for (LoadedTypeDefinition type : implementors.get(i)) {
+                usedSlots.computeIfAbsent(type, k -> new BitSet()).set(slot);
+            }
+            typeids.get(i).interfaceSlot = slot;
+            interfaceSlotCount = Math.max(interfaceSlotCount, slot + 1);
+        }
     }
 
-    byte[] getImplementedInterfaceBits(LoadedTypeDefinition cls) {
-        byte[] setBits = new byte[getNumberOfBytesInInterfaceBitsArray()];
+    /**
+     * Get the number of slots in the implemented interfaces array of every type.
+     *
+     * @return the number of slots (at least one)
+     */
+    public int getInterfaceSlotCount() {
+        return Math.max(1, interfaceSlotCount);
+    }
+
+    private Set<LoadedTypeDefinition> getImplementedInterfaces(LoadedTypeDefinition cls) {
+        Set<LoadedTypeDefinition> visited = new HashSet<>();
+        Set<LoadedTypeDefinition> implemented = new HashSet<>();
         ArrayDeque<LoadedTypeDefinition> worklist = new ArrayDeque<>();
         if (cls.isInterface()) {
             worklist.add(cls);
@@ -330,40 +348,57 @@ public class SupersDisplayTables {
         }
         while (!worklist.isEmpty()) {
             LoadedTypeDefinition i = worklist.pop();
-            worklist.addAll(List.of(i.getInterfaces()));
-            IdAndRange idRange = typeids.get(i);
-            if (idRange != null) {
-                int index = idRange.implementedInterfaceByteIndex();
-                setBits[index] |= idRange.implementedInterfaceBitMask();
+            if (visited.add(i)) {
+                worklist.addAll(List.of(i.getInterfaces()));
+                if (typeids.containsKey(i)) {
+                    implemented.add(i);
+                }
             }
         }
+        return implemented;
+    }
 
-        return setBits;
+    int[] getImplementedInterfaceSlots(LoadedTypeDefinition cls) {
+        int[] slots = new int[getInterfaceSlotCount()];
+        for (LoadedTypeDefinition i : getImplementedInterfaces(cls)) {
+            IdAndRange idRange = typeids.get(i);
+            slots[idRange.interfaceSlot] = idRange.typeid;
+        }
+        return slots;
     }
 
-    public int getInterfaceByteIndex(LoadedTypeDefinition cls) {
+    /**
+     * Get the slot of the given interface in the implemented interfaces array.  A type implements the interface
+     * if and only if its {@code interfaces} array holds the type ID of the interface in this slot.
+     *
+     * @param cls the interface (must not be {@code null})
+     * @return the slot index
+     */
+    public int getInterfaceSlot(LoadedTypeDefinition cls) {
         Assert.assertTrue(cls.isInterface());
         IdAndRange idRange = typeids.get(cls);
-        return idRange.implementedInterfaceByteIndex();
+        return idRange.interfaceSlot;
     }
 
-    public int getInterfaceBitMask(LoadedTypeDefinition cls) {
-        Assert.assertTrue(cls.isInterface());
-        IdAndRange idRange = typeids.get(cls);
-        return idRange.implementedInterfaceBitMask();
+    /**
+     * Get the type of the elements of the implemented interfaces array.
+     *
+     * @return the element type
+     */
+    public IntegerType getInterfaceSlotType() {
+        return (IntegerType) ((ArrayType) getGlobalTypeIdStructType().getMember("interfaces").getType()).getElementType();
     }
 
-    List<Literal> convertByteArrayToValuesList(LiteralFactory literalFactory, byte[] array) {
+    List<Literal> convertIntArrayToValuesList(LiteralFactory literalFactory, IntegerType type, int[] array) {
         Literal[] literals = new Literal[array.length];
         for (int i = 0; i < array.length; i++) {
-            literals[i] = literalFactory.literalOf(array[i]);
+            literals[i] = literalFactory.literalOf(type, array[i]);
         }
         return List.of(literals);
     }
 
     void emitTypeIdTable(LoadedTypeDefinition jlo) {
         TypeSystem ts = ctxt.getTypeSystem();
-        UnsignedIntegerType u8 = ts.getUnsignedInteger8Type();
         int typeIdSize = ts.getTypeIdSize();
         UnsignedIntegerType uTypeId;
         switch(typeIdSize) {
@@ -386,14 +421,15 @@ public class SupersDisplayTables {
         // TODO: better validation of typeId size
         Assert.assertTrue(typeIdSize <= uTypeId.getMinBits());
         int numInterfaces = getNumberOfInterfacesInTypeIds();
-        supersLog.debug("NumInterfaces=" + numInterfaces + " numBytes=" + getNumberOfBytesInInterfaceBitsArray());
-        ArrayType interfaceBitsType = ts.getArrayType(u8, getNumberOfBytesInInterfaceBitsArray());
+        supersLog.debug("NumInterfaces=" + numInterfaces + " numSlots=" + getInterfaceSlotCount());
+        ArrayType interfacesType = ts.getArrayType(uTypeId, getInterfaceSlotCount());
         // ts.getCompoundType(tag, name, size, align, memberResolver);
         // typedef struct typeids {
         //   uintXX_t tid;
         //   uintXX_t maxsubid;
         //   uintXX_t superTypeId;
-        //   uint8_t interfaces[x];
+        //   uintXX_t interfaceSlot;
+        //   uintXX_t interfaces[x];
         //   u32_t flags;
         // } typeids;
         UnsignedIntegerType u32 = ts.getUnsignedInteger32Type();
@@ -405,7 +441,8 @@ public class SupersDisplayTables {
             .addNextMember("typedId", uTypeId)
             .addNextMember("maxSubTypeId", uTypeId)
             .addNextMember("superTypeId", uTypeId)
-            .addNextMember("interfaceBits", interfaceBitsType)
+            .addNextMember("interfaceSlot", uTypeId)
+            .addNextMember("interfaces", interfacesType)
             .addNextMember("flags", u32)
             .build();
         List<CompoundType.Member> members = typeIdStruct.getMembers();
@@ -415,10 +452,10 @@ public class SupersDisplayTables {
         LiteralFactory literalFactory = ctxt.getLiteralFactory();
         
         /* Set up the implementedInterface[] for primitives */
-        List<Literal> primitivesInterfaceBits = new ArrayList<>();
-        Literal zero = literalFactory.literalOf(0);
-        for (int i = 0; i < interfaceBitsType.getElementCount(); i++) {
-            primitivesInterfaceBits.add(zero);
+        List<Literal> primitivesInterfaces = new ArrayList<>();
+        Literal zero = literalFactory.literalOf(uTypeId, 0);
+        for (int i = 0; i < interfacesType.getElementCount(); i++) {
+            primitivesInterfaces.add(zero);
         }
 
         /* Primitives don't support instanceOf but they are only implemented by themselves */
@@ -428,8 +465,9 @@ public class SupersDisplayTables {
                     members.get(0), literalFactory.literalOf(uTypeId, i),
                     members.get(1), literalFactory.literalOf(uTypeId, i),
                     members.get(2), literalFactory.literalOf(uTypeId, 0),  /* Set super for prims to posion */
-                    members.get(3), literalFactory.literalOf(interfaceBitsType, primitivesInterfaceBits),
-                    members.get(4), literalFactory.literalOf(u32, 0)  /* no flags for prims */
+                    members.get(3), literalFactory.literalOf(uTypeId, 0),
+                    members.get(4), literalFactory.literalOf(interfacesType, primitivesInterfaces),
+                    members.get(5), literalFactory.literalOf(u32, 0)  /* no flags for prims */
                 )
             );
         }
@@ -446,8 +484,9 @@ public class SupersDisplayTables {
                     members.get(0), literalFactory.literalOf(uTypeId, idRange.typeid),
                     members.get(1), literalFactory.literalOf(uTypeId, idRange.maximumSubtypeId),
                     members.get(2), literalFactory.literalOf(uTypeId, superTypeId),
-                    members.get(3), literalFactory.literalOf(interfaceBitsType, convertByteArrayToValuesList(literalFactory, getImplementedInterfaceBits(vtd))),
-                    members.get(4), literalFactory.literalOf(u32, 0)  /* TODO: calculate flags */
+                    members.get(3), literalFactory.literalOf(uTypeId, Math.max(idRange.interfaceSlot, 0)),
+                    members.get(4), literalFactory.literalOf(interfacesType, convertIntArrayToValuesList(literalFactory, uTypeId, getImplementedInterfaceSlots(vtd))),
+                    members.get(5), literalFactory.literalOf(u32, 0)  /* TODO: calculate flags */
                 )
             );
         }
@@ -9,7 +9,8 @@ import org.qbicc.type.descriptor.MethodDescriptor;
 import org.qbicc.type.descriptor.TypeDescriptor;
 
 /**
- * An instance intrinsic method which returns a value.
+ * An instance intrinsic method which returns a value.  The intrinsic may return {@code null} to decline, in which
+ * case the invocation is emitted as usual.
  */
 public interface InstanceValueIntrinsic {
     Value emitIntrinsic(BasicBlockBuilder builder, DispatchInvocation.Kind kind, Value instance, TypeDescriptor owner, String name, MethodDescriptor descriptor, List<Value> arguments);
@@ -108,7 +108,10 @@ public final class IntrinsicBasicBlockBuilder extends DelegatingBasicBlockBuilde
         InstanceValueIntrinsic intrinsic = Intrinsics.get(ctxt).getInstanceValueIntrinsic(phase, owner, name, descriptor);
         if (intrinsic != null) {
             log.debugf("found InstanceValueIntrinsic for owner(%s) name(%s) descriptor(%s)", owner, name, descriptor);
-            return intrinsic.emitIntrinsic(this, kind, instance, owner, name, descriptor, arguments);
+            Value result = intrinsic.emitIntrinsic(this, kind, instance, owner, name, descriptor, arguments);
+            if (result != null) {
+                return result;
+            }
         }
         return super.invokeValueInstance(kind, instance, owner, name, descriptor, arguments);
     }
@@ -120,7 +123,10 @@ public final class IntrinsicBasicBlockBuilder extends DelegatingBasicBlockBuilde
         InstanceValueIntrinsic intrinsic = Intrinsics.get(ctxt).getInstanceValueIntrinsic(phase, owner, name, descriptor);
         if (intrinsic != null) {
             log.debugf("found InstanceValueIntrinsic for owner(%s) name(%s) descriptor(%s)", owner, name, descriptor);
-            return intrinsic.emitIntrinsic(this, kind, instance, owner, name, descriptor, arguments);
+            Value result = intrinsic.emitIntrinsic(this, kind, instance, owner, name, descriptor, arguments);
+            if (result != null) {
+                return result;
+            }
         }
         return super.invokeValueInstance(kind, instance, target, arguments);
     }
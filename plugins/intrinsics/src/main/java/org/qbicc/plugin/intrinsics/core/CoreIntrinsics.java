@@ -12,6 +12,7 @@ import org.qbicc.graph.BasicBlockBuilder;
 import org.qbicc.graph.BitCast;
 import org.qbicc.graph.BlockEarlyTermination;
 import org.qbicc.graph.ClassOf;
+import org.qbicc.graph.DispatchInvocation;
 import org.qbicc.graph.Extend;
 import org.qbicc.graph.Load;
 import org.qbicc.graph.MemoryAtomicityMode;
@@ -26,12 +27,17 @@ import org.qbicc.graph.literal.StringLiteral;
 import org.qbicc.graph.literal.TypeLiteral;
 import org.qbicc.machine.probe.CProbe;
 import org.qbicc.plugin.instanceofcheckcast.SupersDisplayTables;
+import org.qbicc.plugin.intrinsics.InstanceIntrinsic;
 import org.qbicc.plugin.intrinsics.InstanceValueIntrinsic;
 import org.qbicc.plugin.intrinsics.Intrinsics;
 import org.qbicc.plugin.intrinsics.StaticIntrinsic;
 import org.qbicc.plugin.intrinsics.StaticValueIntrinsic;
 import org.qbicc.plugin.layout.Layout;
+import org.qbicc.type.ArrayObjectType;
+import org.qbicc.type.ClassObjectType;
+import org.qbicc.type.CompoundType;
 import org.qbicc.type.IntegerType;
+import org.qbicc.type.PhysicalObjectType;
 import org.qbicc.type.PointerType;
 import org.qbicc.type.ReferenceType;
 import org.qbicc.type.TypeSystem;
@@ -69,6 +75,7 @@ public final class CoreIntrinsics {
         registerOrgQbiccRuntimeValuesIntrinsics(ctxt);
         registerJavaLangMathIntrinsics(ctxt);
         registerOrgQbiccRuntimePosixPthreadCastPtr(ctxt);
+        registerOrgQbiccRuntimeDeserializationIntrinsics(ctxt);
     }
 
     private static StaticIntrinsic setVolatile(FieldElement field) {
@@ -248,9 +255,8 @@ public final class CoreIntrinsics {
 
         // identity hash code
 
-        // todo: obviously non-optimal; replace once we have object headers sorted out
         StaticValueIntrinsic identityHashCode = (builder, owner, name, descriptor, arguments) ->
-            ctxt.getLiteralFactory().literalOf(0);
+            builder.invokeValueStatic(ctxt.getVMHelperMethod("identity_hash_code"), arguments);
 
         intrinsics.registerIntrinsic(systemDesc, "identityHashCode", objectToIntDesc, identityHashCode);
     }
@@ -399,11 +405,39 @@ public final class CoreIntrinsics {
             builder.classOf(builder.typeIdOf(builder.referenceHandle(instance)));
         intrinsics.registerIntrinsic(classDesc, "getClass", getClassDesc, getClassIntrinsic);
 
-        // Object#hashCode TODO redo when object headers are set
+        // Object#hashCode --> identity hash code, if the method cannot be overridden for the receiver; other calls
+        //   are dispatched, and the vtable slot of Object#hashCode itself is bound to the identity hash code helper
         MethodDescriptor hashCodeDesc = MethodDescriptor.synthesize(classContext, BaseTypeDescriptor.I, List.of());
-        InstanceValueIntrinsic hashCodeIntrinsic = (builder, kind, instance, owner, name, descriptor, arguments)->
-            ctxt.getLiteralFactory().literalOf(0);
+        InstanceValueIntrinsic hashCodeIntrinsic = (builder, kind, instance, owner, name, descriptor, arguments) -> {
+            PhysicalObjectType receiverType = ((ReferenceType) instance.getType()).getUpperBound();
+            boolean identity = kind == DispatchInvocation.Kind.EXACT || receiverType instanceof ArrayObjectType;
+            if (! identity && receiverType instanceof ClassObjectType) {
+                DefinedTypeDefinition receiverDef = ((ClassObjectType) receiverType).getDefinition();
+                if (receiverDef.isFinal()) {
+                    MethodElement target = receiverDef.load().resolveMethodElementVirtual(name, descriptor);
+                    identity = target != null && target.getEnclosingType().internalNameEquals("java/lang/Object");
+                }
+            }
+            return identity ? builder.invokeValueStatic(ctxt.getVMHelperMethod("identity_hash_code"), List.of(instance)) : null;
+        };
         intrinsics.registerIntrinsic(classDesc, "hashCode", hashCodeDesc, hashCodeIntrinsic);
+        // devirtualization may bind calls to Object#hashCode exactly
+        intrinsics.registerIntrinsic(Phase.LOWER, classDesc, "hashCode", hashCodeDesc, hashCodeIntrinsic);
+
+        // Object#wait(J), Object#notify(), Object#notifyAll() --> object monitor helpers
+        MethodDescriptor waitDesc = MethodDescriptor.synthesize(classContext, BaseTypeDescriptor.V, List.of(BaseTypeDescriptor.J));
+        InstanceIntrinsic waitIntrinsic = (builder, kind, instance, owner, name, descriptor, arguments) ->
+            builder.invokeStatic(ctxt.getVMHelperMethod("monitor_wait"), List.of(instance, arguments.get(0)));
+        intrinsics.registerIntrinsic(classDesc, "wait", waitDesc, waitIntrinsic);
+
+        MethodDescriptor notifyDesc = MethodDescriptor.synthesize(classContext, BaseTypeDescriptor.V, List.of());
+        InstanceIntrinsic notifyIntrinsic = (builder, kind, instance, owner, name, descriptor, arguments) ->
+            builder.invokeStatic(ctxt.getVMHelperMethod("monitor_notify"), List.of(instance, ctxt.getLiteralFactory().literalOf(false)));
+        intrinsics.registerIntrinsic(classDesc, "notify", notifyDesc, notifyIntrinsic);
+
+        InstanceIntrinsic notifyAllIntrinsic = (builder, kind, instance, owner, name, descriptor, arguments) ->
+            builder.invokeStatic(ctxt.getVMHelperMethod("monitor_notify"), List.of(instance, ctxt.getLiteralFactory().literalOf(true)));
+        intrinsics.registerIntrinsic(classDesc, "notifyAll", notifyDesc, notifyAllIntrinsic);
     }
 
     static Literal literalOf(CompilationContext ctxt, boolean v) {
@@ -522,6 +556,9 @@ public final class CoreIntrinsics {
 
         MethodDescriptor objTypeIdDesc = MethodDescriptor.synthesize(classContext, typeIdDesc, List.of(objDesc));
         MethodDescriptor objIntDesc = MethodDescriptor.synthesize(classContext, BaseTypeDescriptor.I, List.of(objDesc));
+        MethodDescriptor objIntIntIntDesc = MethodDescriptor.synthesize(classContext, BaseTypeDescriptor.I, List.of(objDesc, BaseTypeDescriptor.I, BaseTypeDescriptor.I));
+        MethodDescriptor objLongDesc = MethodDescriptor.synthesize(classContext, BaseTypeDescriptor.J, List.of(objDesc));
+        MethodDescriptor objLongLongLongDesc = MethodDescriptor.synthesize(classContext, BaseTypeDescriptor.J, List.of(objDesc, BaseTypeDescriptor.J, BaseTypeDescriptor.J));
         MethodDescriptor typeIdTypeIdDesc = MethodDescriptor.synthesize(classContext, typeIdDesc, List.of(typeIdDesc));
         MethodDescriptor typeIdBooleanDesc = MethodDescriptor.synthesize(classContext, BaseTypeDescriptor.Z, List.of(typeIdDesc));
         MethodDescriptor typeIdTypeIdBooleanDesc = MethodDescriptor.synthesize(classContext, BaseTypeDescriptor.Z, List.of(typeIdDesc, typeIdDesc));
@@ -546,6 +583,34 @@ public final class CoreIntrinsics {
         };
         intrinsics.registerIntrinsic(Phase.LOWER, objModDesc, "dimensions_of", objIntDesc, dimensionsOf);
 
+        FieldElement hashCodeField = layout.getObjectHashCodeField();
+        StaticValueIntrinsic identityHashCodeOf = (builder, owner, name, descriptor, arguments) ->
+            builder.load(builder.instanceFieldOf(builder.referenceHandle(arguments.get(0)), hashCodeField), MemoryAtomicityMode.MONOTONIC);
+        intrinsics.registerIntrinsic(Phase.LOWER, objModDesc, "identity_hash_code_of", objIntDesc, identityHashCodeOf);
+
+        StaticValueIntrinsic casIdentityHashCode = (builder, owner, name, descriptor, arguments) -> {
+            ValueHandle handle = builder.instanceFieldOf(builder.referenceHandle(arguments.get(0)), hashCodeField);
+            Value result = builder.cmpAndSwap(handle, arguments.get(1), arguments.get(2), MemoryAtomicityMode.MONOTONIC, MemoryAtomicityMode.MONOTONIC);
+            return builder.extractMember(result, ((CompoundType) result.getType()).getMember(0));
+        };
+        intrinsics.registerIntrinsic(Phase.LOWER, objModDesc, "compare_and_exchange_identity_hash_code", objIntIntIntDesc, casIdentityHashCode);
+
+        StaticValueIntrinsic addressOf = (builder, owner, name, descriptor, arguments) ->
+            builder.valueConvert(arguments.get(0), ctxt.getTypeSystem().getSignedInteger64Type());
+        intrinsics.registerIntrinsic(Phase.LOWER, objModDesc, "address_of", objLongDesc, addressOf);
+
+        FieldElement lockField = layout.getObjectLockField();
+        StaticValueIntrinsic lockWordOf = (builder, owner, name, descriptor, arguments) ->
+            builder.load(builder.instanceFieldOf(builder.referenceHandle(arguments.get(0)), lockField), MemoryAtomicityMode.ACQUIRE);
+        intrinsics.registerIntrinsic(Phase.LOWER, objModDesc, "lock_word_of", objLongDesc, lockWordOf);
+
+        StaticValueIntrinsic casLockWord = (builder, owner, name, descriptor, arguments) -> {
+            ValueHandle handle = builder.instanceFieldOf(builder.referenceHandle(arguments.get(0)), lockField);
+            Value result = builder.cmpAndSwap(handle, arguments.get(1), arguments.get(2), MemoryAtomicityMode.ACQUIRE_RELEASE, MemoryAtomicityMode.ACQUIRE);
+            return builder.extractMember(result, ((CompoundType) result.getType()).getMember(0));
+        };
+        intrinsics.registerIntrinsic(Phase.LOWER, objModDesc, "compare_and_exchange_lock_word", objLongLongLongDesc, casLockWord);
+
         StaticValueIntrinsic maxSubclassId = (builder, owner, name, descriptor, arguments) -> {
             GlobalVariableElement typeIdGlobal = tables.getAndRegisterGlobalTypeIdArray(builder.getCurrentElement());
             ValueHandle typeIdStruct = builder.elementOf(builder.globalVariable(typeIdGlobal), arguments.get(0));
@@ -605,13 +670,11 @@ public final class CoreIntrinsics {
             Value interfaceTypeId = arguments.get(1);
             GlobalVariableElement typeIdGlobal = tables.getAndRegisterGlobalTypeIdArray(builder.getCurrentElement());
             ValueHandle typeIdStruct = builder.elementOf(builder.globalVariable(typeIdGlobal), objTypeId);
-            ValueHandle bits = builder.memberOf(typeIdStruct, tables.getGlobalTypeIdStructType().getMember("interfaceBits"));
-            Value adjustedInterfaceTypeId = builder.sub(interfaceTypeId, lf.literalOf(tables.getFirstInterfaceTypeId()));
-            Value implementsIdx = builder.shr(builder.bitCast(adjustedInterfaceTypeId, ctxt.getTypeSystem().getUnsignedInteger32Type()), lf.literalOf(3));
-            Value implementsBit = builder.and(adjustedInterfaceTypeId, lf.literalOf(7));
-            Value dataByte = builder.load(builder.elementOf(bits, implementsIdx), MemoryAtomicityMode.UNORDERED);
-            Value mask = builder.truncate(builder.shl(lf.literalOf(1), implementsBit), ctxt.getTypeSystem().getSignedInteger8Type());
-            return builder.isEq(mask, builder.and(mask, dataByte));
+            ValueHandle interfaceTypeIdStruct = builder.elementOf(builder.globalVariable(typeIdGlobal), interfaceTypeId);
+            Value slot = builder.load(builder.memberOf(interfaceTypeIdStruct, tables.getGlobalTypeIdStructType().getMember("interfaceSlot")), MemoryAtomicityMode.UNORDERED);
+            ValueHandle interfaces = builder.memberOf(typeIdStruct, tables.getGlobalTypeIdStructType().getMember("interfaces"));
+            Value implemented = builder.load(builder.elementOf(interfaces, slot), MemoryAtomicityMode.UNORDERED);
+            return builder.isEq(builder.bitCast(interfaceTypeId, tables.getInterfaceSlotType()), implemented);
         };
         intrinsics.registerIntrinsic(Phase.LOWER, objModDesc, "does_implement", typeIdTypeIdBooleanDesc, doesImplement);
 
@@ -796,6 +859,34 @@ public final class CoreIntrinsics {
 
     }
 
+    static void registerOrgQbiccRuntimeDeserializationIntrinsics(final CompilationContext ctxt) {
+        Intrinsics intrinsics = Intrinsics.get(ctxt);
+        ClassContext classContext = ctxt.getBootstrapClassContext();
+        TypeSystem ts = ctxt.getTypeSystem();
+
+        ClassTypeDescriptor bufferDesc = ClassTypeDescriptor.synthesize(classContext, "org/qbicc/runtime/deserialization/DeserializationBuffer");
+        ArrayTypeDescriptor byteArrayDesc = ArrayTypeDescriptor.of(classContext, BaseTypeDescriptor.B);
+        MethodDescriptor read32Desc = MethodDescriptor.synthesize(classContext, BaseTypeDescriptor.I, List.of(byteArrayDesc, BaseTypeDescriptor.I));
+        MethodDescriptor read64Desc = MethodDescriptor.synthesize(classContext, BaseTypeDescriptor.J, List.of(byteArrayDesc, BaseTypeDescriptor.I));
+
+        // the buffer holds values in the target byte order at any alignment, so each one is read with a single unaligned load
+        intrinsics.registerIntrinsic(bufferDesc, "read16", read32Desc, unalignedRead(ts, ts.getUnsignedInteger16Type(), ts.getSignedInteger32Type()));
+        intrinsics.registerIntrinsic(bufferDesc, "read32", read32Desc, unalignedRead(ts, ts.getSignedInteger32Type(), ts.getSignedInteger32Type()));
+        intrinsics.registerIntrinsic(bufferDesc, "read64", read64Desc, unalignedRead(ts, ts.getSignedInteger64Type(), ts.getSignedInteger64Type()));
+    }
+
+    private static StaticValueIntrinsic unalignedRead(TypeSystem ts, IntegerType type, IntegerType resultType) {
+        // a structure with an alignment of 1 is loaded with an alignment of 1
+        CompoundType.Member member = ts.getCompoundTypeMember("value", type, 0, 1);
+        CompoundType unaligned = ts.getCompoundType(CompoundType.Tag.NONE, "unaligned_" + type.toFriendlyString(), type.getSize(), 1, () -> List.of(member));
+        return (builder, owner, name, descriptor, arguments) -> {
+            Value address = builder.addressOf(builder.elementOf(builder.referenceHandle(arguments.get(0)), arguments.get(1)));
+            Value loaded = builder.load(builder.pointerHandle(builder.bitCast(address, unaligned.getPointer().asCollected())), MemoryAtomicityMode.NONE);
+            Value value = builder.extractMember(loaded, member);
+            return type == resultType ? value : builder.extend(value, resultType);
+        };
+    }
+
     static ValueHandle getTarget(CompilationContext ctxt, BasicBlockBuilder builder, Value input) {
         if (input instanceof Load) {
             Load load = (Load) input;
@@ -54,6 +54,8 @@ public final class Layout {
     private final Map<LoadedTypeDefinition, LayoutInfo> instanceLayouts = new ConcurrentHashMap<>();
     private final CompilationContext ctxt;
     private final FieldElement objectTypeIdField;
+    private final FieldElement objectHashCodeField;
+    private final FieldElement objectLockField;
     private final FieldElement classTypeIdField;
     private final FieldElement classDimensionField;
 
@@ -96,6 +98,30 @@ public final class Layout {
         jlo.injectField(field);
         objectTypeIdField = field;
 
+        // inject a field to hold the identity hash code, which is assigned lazily (zero means "not yet assigned")
+        builder = FieldElement.builder();
+        builder.setModifiers(ClassFile.ACC_PRIVATE | ClassFile.I_ACC_HIDDEN);
+        builder.setName("hashCode");
+        builder.setEnclosingType(jloDef);
+        builder.setDescriptor(BaseTypeDescriptor.I);
+        builder.setSignature(BaseTypeSignature.I);
+        builder.setType(ctxt.getTypeSystem().getSignedInteger32Type());
+        field = builder.build();
+        jlo.injectField(field);
+        objectHashCodeField = field;
+
+        // inject a field to hold the monitor lock word (zero means "unlocked")
+        builder = FieldElement.builder();
+        builder.setModifiers(ClassFile.ACC_PRIVATE | ClassFile.I_ACC_HIDDEN);
+        builder.setName("lock");
+        builder.setEnclosingType(jloDef);
+        builder.setDescriptor(BaseTypeDescriptor.J);
+        builder.setSignature(BaseTypeSignature.J);
+        builder.setType(ctxt.getTypeSystem().getSignedInteger64Type());
+        field = builder.build();
+        jlo.injectField(field);
+        objectLockField = field;
+
         // now inject a field of ClassObjectType into Class to hold the corresponding run time type
         // TODO: This should be a 16 bit unsigned field.  It is being generated as an i32 currently.
         builder = FieldElement.builder();
@@ -341,6 +367,26 @@ public final class Layout {
         return objectTypeIdField;
     }
 
+    /**
+     * Get the object field which holds the identity hash code.  A value of zero indicates that no hash code has
+     * been assigned to the object yet.
+     *
+     * @return the identity hash code field
+     */
+    public FieldElement getObjectHashCodeField() {
+        return objectHashCodeField;
+    }
+
+    /**
+     * Get the object field which holds the monitor lock word.  A value of zero indicates that the monitor of the
+     * object is not locked and has not been inflated.
+     *
+     * @return the lock word field
+     */
+    public FieldElement getObjectLockField() {
+        return objectLockField;
+    }
+
     /**
      * Get the field on {@code Class} which holds the type identifier of its corresponding instance type.
      *
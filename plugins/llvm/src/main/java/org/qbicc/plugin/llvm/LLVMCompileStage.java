@@ -1,20 +1,36 @@
 package org.qbicc.plugin.llvm;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
+import io.smallrye.common.constraint.Assert;
+import org.qbicc.context.AttachmentKey;
 import org.qbicc.context.CompilationContext;
 import org.qbicc.context.Location;
 import org.qbicc.driver.Driver;
-import org.qbicc.machine.tool.CCompilerInvoker;
 import org.qbicc.machine.tool.CToolChain;
 import org.qbicc.machine.tool.ToolMessageHandler;
 import org.qbicc.machine.tool.process.InputSource;
 import org.qbicc.machine.tool.process.OutputDestination;
 import org.qbicc.plugin.linker.Linker;
+import org.qbicc.plugin.metrics.CountMetric;
+import org.qbicc.plugin.metrics.Metrics;
 import org.qbicc.tool.llvm.LlcInvoker;
+import org.qbicc.tool.llvm.LlcOptLevel;
+import org.qbicc.tool.llvm.LlvmLinkInvoker;
 import org.qbicc.tool.llvm.LlvmToolChain;
 import org.qbicc.tool.llvm.OptInvoker;
 import org.qbicc.tool.llvm.OptPass;
@@ -22,105 +38,495 @@ import org.qbicc.tool.llvm.OutputFormat;
 import org.qbicc.tool.llvm.RelocationModel;
 
 public class LLVMCompileStage implements Consumer<CompilationContext> {
+    /**
+     * The partition count value which disables whole-program (LTO) mode.
+     */
+    public static final int LTO_DISABLED = -1;
+    /**
+     * The partition count value which selects one LTO partition per concurrent tool job.
+     */
+    public static final int LTO_PARTITIONS_PER_JOB = 0;
+    /**
+     * The job count value which selects one concurrent tool job per available processor.
+     */
+    public static final int JOBS_PER_CPU = 0;
+    /**
+     * The {@code opt} level used for modules containing hot methods.
+     */
+    public static final OptPass HOT_OPT_LEVEL = OptPass.O3;
+    /**
+     * The {@code llc} level used for modules containing hot methods.
+     */
+    public static final LlcOptLevel HOT_LLC_OPT_LEVEL = LlcOptLevel.O3;
+
+    private static final Set<OptPass> OPT_LEVELS = EnumSet.range(OptPass.O0, OptPass.Oz);
+    private static final AttachmentKey<Pipeline> PIPELINE_KEY = new AttachmentKey<>();
+
     private final boolean isPie;
+    private final boolean useCache;
+    private final int ltoPartitions;
+    private final OptPass optLevel;
+    private final LlcOptLevel llcOptLevel;
+    private final int jobs;
 
     public LLVMCompileStage(final boolean isPie) {
+        this(isPie, true);
+    }
+
+    public LLVMCompileStage(final boolean isPie, final boolean useCache) {
+        this(isPie, useCache, LTO_DISABLED);
+    }
+
+    /**
+     * Construct a new instance.
+     *
+     * @param isPie {@code true} to generate position-independent code
+     * @param useCache {@code true} to reuse object files from the persistent object cache in the output directory
+     *      for modules whose text, tool chain, and options have not changed
+     * @param ltoPartitions the number of whole-program partitions to merge the per-class modules into, or
+     *      {@link #LTO_PARTITIONS_PER_JOB} to use one partition per tool job, or {@link #LTO_DISABLED} to
+     *      compile each module separately
+     */
+    public LLVMCompileStage(final boolean isPie, final boolean useCache, final int ltoPartitions) {
+        this(isPie, useCache, ltoPartitions, OptPass.O0, LlcOptLevel.O2);
+    }
+
+    public LLVMCompileStage(final boolean isPie, final boolean useCache, final int ltoPartitions, final OptPass optLevel, final LlcOptLevel llcOptLevel) {
+        this(isPie, useCache, ltoPartitions, optLevel, llcOptLevel, JOBS_PER_CPU);
+    }
+
+    /**
+     * Construct a new instance.  Modules which contain a method annotated as hot are always compiled at
+     * {@link #HOT_OPT_LEVEL} and {@link #HOT_LLC_OPT_LEVEL}, regardless of the given levels.
+     *
+     * @param isPie {@code true} to generate position-independent code
+     * @param useCache {@code true} to reuse object files from the persistent object cache in the output directory
+     *      for modules whose text, tool chain, and options have not changed
+     * @param ltoPartitions the number of whole-program partitions to merge the per-class modules into, or
+     *      {@link #LTO_PARTITIONS_PER_JOB} to use one partition per tool job, or {@link #LTO_DISABLED} to
+     *      compile each module separately
+     * @param optLevel the {@code opt} optimization level, which must be one of {@link OptPass#O0} through
+     *      {@link OptPass#Oz} (must not be {@code null})
+     * @param llcOptLevel the {@code llc} optimization level (must not be {@code null})
+     * @param jobs the maximum number of concurrent tool invocations, or {@link #JOBS_PER_CPU} to use one per
+     *      available processor; this is independent of the number of compiler threads
+     */
+    public LLVMCompileStage(final boolean isPie, final boolean useCache, final int ltoPartitions, final OptPass optLevel, final LlcOptLevel llcOptLevel, final int jobs) {
         this.isPie = isPie;
+        this.useCache = useCache;
+        this.ltoPartitions = ltoPartitions;
+        Assert.checkNotNullParam("optLevel", optLevel);
+        if (! OPT_LEVELS.contains(optLevel)) {
+            throw new IllegalArgumentException("Invalid optimization level " + optLevel);
+        }
+        this.optLevel = optLevel;
+        this.llcOptLevel = Assert.checkNotNullParam("llcOptLevel", llcOptLevel);
+        Assert.checkMinimumParameter("jobs", 0, jobs);
+        this.jobs = jobs;
+    }
+
+    /**
+     * Start the tool pipeline before the modules are generated.  Unless whole-program mode is enabled, each module
+     * is compiled as soon as it has been written, concurrently with the generation of the remaining modules.
+     *
+     * @param context the compilation context
+     */
+    public void start(final CompilationContext context) {
+        if (context.getAttachment(Driver.LLVM_TOOL_KEY) == null || context.getAttachment(Driver.C_TOOL_CHAIN_KEY) == null) {
+            // reported once the modules are compiled
+            return;
+        }
+        Pipeline pipeline = createPipeline(context);
+        if (pipeline != null && ! pipeline.lto) {
+            LLVMState llvmState = context.computeAttachmentIfAbsent(LLVMState.KEY, LLVMState::new);
+            for (Path modulePath : llvmState.setModuleListener(pipeline::submitModule)) {
+                pipeline.submitModule(modulePath);
+            }
+        }
+    }
+
+    /**
+     * Stop the tool pipeline if the compilation bailed out before the modules were compiled.  Pending units are
+     * discarded, and the units which are already being compiled are waited for, so that no tool is started or left
+     * running once the driver has returned.
+     *
+     * @param context the compilation context
+     */
+    public void cancel(final CompilationContext context) {
+        Pipeline pipeline = context.getAttachment(PIPELINE_KEY);
+        if (pipeline != null) {
+            LLVMState llvmState = context.getAttachment(LLVMState.KEY);
+            if (llvmState != null) {
+                llvmState.setModuleListener(null);
+            }
+            pipeline.executor.getQueue().clear();
+            pipeline.finish();
+        }
     }
 
     public void accept(final CompilationContext context) {
         LLVMState llvmState = context.getAttachment(LLVMState.KEY);
-        if (llvmState == null) {
+        Pipeline pipeline = context.getAttachment(PIPELINE_KEY);
+        if (llvmState == null || llvmState.getModulePaths().isEmpty()) {
+            if (pipeline != null) {
+                pipeline.finish();
+            }
             context.note("No LLVM compilation units detected");
             return;
         }
+        boolean streaming = pipeline != null;
+        if (pipeline == null) {
+            pipeline = createPipeline(context);
+            if (pipeline == null) {
+                return;
+            }
+        }
+        if (pipeline.lto) {
+            int partitionCount = ltoPartitions == LTO_PARTITIONS_PER_JOB ? pipeline.jobs : ltoPartitions;
+            Path ltoDir = context.getOutputDirectory().resolve("lto");
+            try {
+                Files.createDirectories(ltoDir);
+            } catch (IOException e) {
+                context.error("Failed to create directory \"%s\": %s", ltoDir, e);
+                pipeline.finish();
+                return;
+            }
+            List<List<Path>> partitions = partition(llvmState, partitionCount);
+            for (int i = 0; i < partitions.size(); i ++) {
+                List<Path> partition = partitions.get(i);
+                long weight = 0;
+                for (Path modulePath : partition) {
+                    weight += llvmState.getModuleWeight(modulePath);
+                }
+                pipeline.submit(new CompilationUnit(partition, ltoDir.resolve("partition-" + i + "." + pipeline.objectSuffix), partition.stream().anyMatch(llvmState::isHotModule), weight));
+            }
+        } else if (streaming) {
+            llvmState.setModuleListener(null);
+        } else {
+            for (Path modulePath : llvmState.getModulePaths()) {
+                pipeline.submitModule(modulePath);
+            }
+        }
+        // linking may start as soon as the last object file is ready
+        pipeline.finish();
+    }
+
+    private Pipeline createPipeline(final CompilationContext context) {
         LlvmToolChain llvmToolChain = context.getAttachment(Driver.LLVM_TOOL_KEY);
         if (llvmToolChain == null) {
             context.error("No LLVM tool chain is available");
-            return;
+            return null;
         }
         CToolChain cToolChain = context.getAttachment(Driver.C_TOOL_CHAIN_KEY);
         if (cToolChain == null) {
             context.error("No C tool chain is available");
-            return;
+            return null;
+        }
+        boolean lto = ltoPartitions != LTO_DISABLED;
+        if (lto && ! llvmToolChain.hasLlvmLink()) {
+            context.error("Whole-program compilation requires `llvm-link`, which was not found");
+            return null;
+        }
+        Pipeline pipeline = new Pipeline(context, llvmToolChain, cToolChain, lto);
+        context.putAttachment(PIPELINE_KEY, pipeline);
+        return pipeline;
+    }
+
+    /**
+     * Split the modules into at most {@code count} partitions of approximately equal weight, using the longest
+     * processing time heuristic: the heaviest remaining module is always added to the lightest partition.  The
+     * result is deterministic for a given set of modules, so that unchanged partitions can be found in the cache.
+     */
+    private static List<List<Path>> partition(LLVMState llvmState, int count) {
+        List<Path> modulePaths = new ArrayList<>(llvmState.getModulePaths());
+        modulePaths.sort(Comparator.comparingInt(llvmState::getModuleWeight).reversed().thenComparing(Path::toString));
+        int partitionCount = Math.max(1, Math.min(count, modulePaths.size()));
+        PriorityQueue<Partition> queue = new PriorityQueue<>(partitionCount, Comparator.comparingLong((Partition p) -> p.weight).thenComparingInt(p -> p.index));
+        for (int i = 0; i < partitionCount; i ++) {
+            queue.add(new Partition(i));
         }
+        for (Path modulePath : modulePaths) {
+            Partition partition = queue.remove();
+            partition.modulePaths.add(modulePath);
+            partition.weight += llvmState.getModuleWeight(modulePath);
+            queue.add(partition);
+        }
+        List<List<Path>> result = new ArrayList<>(partitionCount);
+        for (int i = 0; i < partitionCount; i ++) {
+            result.add(null);
+        }
+        for (Partition partition : queue) {
+            // sort the members of each partition so that the merged module is stable
+            partition.modulePaths.sort(Comparator.comparing(Path::toString));
+            result.set(partition.index, partition.modulePaths);
+        }
+        result.removeIf(List::isEmpty);
+        return result;
+    }
+
+    private LlcInvoker createLlcInvoker(CompilationContext ctxt, LlvmToolChain llvmToolChain, LlcOptLevel level) {
+        LlcInvoker llcInvoker = llvmToolChain.newLlcInvoker();
+        llcInvoker.setMessageHandler(ToolMessageHandler.reporting(ctxt));
+        llcInvoker.setOptimizationLevel(level);
+        llcInvoker.setOutputFormat(OutputFormat.OBJ);
+        llcInvoker.setRelocationModel(isPie ? RelocationModel.Pic : RelocationModel.Static);
+        return llcInvoker;
+    }
 
-        Linker linker = Linker.get(context);
+    private static OptInvoker createOptInvoker(CompilationContext ctxt, LlvmToolChain llvmToolChain, OptPass level) {
+        OptInvoker optInvoker = llvmToolChain.newOptInvoker();
+        optInvoker.setMessageHandler(ToolMessageHandler.reporting(ctxt));
+        if (level != OptPass.O0) {
+            // the optimization pipeline must run before the statepoints are inserted
+            optInvoker.addOptimizationPass(level);
+        }
+        for (OptPass pass : OPT_PASSES) {
+            optInvoker.addOptimizationPass(pass);
+        }
+        return optInvoker;
+    }
 
-        Iterator<Path> iterator = llvmState.getModulePaths().iterator();
-        context.runParallelTask(ctxt -> {
-            LlcInvoker llcInvoker = llvmToolChain.newLlcInvoker();
-            llcInvoker.setMessageHandler(ToolMessageHandler.reporting(ctxt));
-            llcInvoker.setOutputFormat(OutputFormat.ASM);
-            llcInvoker.setRelocationModel(isPie ? RelocationModel.Pic : RelocationModel.Static);
+    private String getCacheConfiguration(LlvmToolChain llvmToolChain, CToolChain cToolChain, boolean lto, OptPass optLevel, LlcOptLevel llcOptLevel) {
+        return String.join(
+            "\n",
+            "llvm " + llvmToolChain.getVersion(),
+            "platform " + cToolChain.getPlatform(),
+            "lto " + lto,
+            "opt " + optLevel + " " + List.of(OPT_PASSES),
+            "llc " + llcOptLevel + " " + OutputFormat.OBJ + " " + (isPie ? RelocationModel.Pic : RelocationModel.Static),
+            ""
+        );
+    }
 
-            OptInvoker optInvoker = llvmToolChain.newOptInvoker();
-            optInvoker.addOptimizationPass(OptPass.RewriteStatepointsForGc);
-            optInvoker.addOptimizationPass(OptPass.AlwaysInline);
+    private static final OptPass[] OPT_PASSES = {
+        OptPass.RewriteStatepointsForGc,
+        OptPass.AlwaysInline,
+    };
 
-            CCompilerInvoker ccInvoker = cToolChain.newCompilerInvoker();
-            ccInvoker.setMessageHandler(ToolMessageHandler.reporting(ctxt));
-            ccInvoker.setSourceLanguage(CCompilerInvoker.SourceLanguage.ASM);
+    /**
+     * The tool invocations of one compilation, which run on a thread pool of their own so that the number of
+     * concurrent tool processes does not depend on the number of compiler threads.  Pending units are compiled
+     * largest first, so that a large module which is written late does not extend the critical path.
+     */
+    final class Pipeline {
+        final CompilationContext ctxt;
+        final LlvmToolChain llvmToolChain;
+        final boolean lto;
+        final int jobs;
+        final String objectSuffix;
+        final Linker linker;
+        final LLVMObjectCache cache;
+        final LLVMObjectCache hotCache;
+        final CountMetric cacheMetric;
+        final ThreadPoolExecutor executor;
+        final ThreadLocal<Tools> tools;
+        final AtomicLong sequence = new AtomicLong();
 
-            for (;;) {
-                Path modulePath;
-                synchronized (iterator) {
-                    if (! iterator.hasNext()) {
-                        return;
-                    }
-                    modulePath = iterator.next();
+        Pipeline(final CompilationContext ctxt, final LlvmToolChain llvmToolChain, final CToolChain cToolChain, final boolean lto) {
+            this.ctxt = ctxt;
+            this.llvmToolChain = llvmToolChain;
+            this.lto = lto;
+            jobs = LLVMCompileStage.this.jobs == JOBS_PER_CPU ? Runtime.getRuntime().availableProcessors() : LLVMCompileStage.this.jobs;
+            objectSuffix = cToolChain.getPlatform().getObjectType().objectSuffix();
+            linker = Linker.get(ctxt);
+            if (useCache) {
+                Path cacheDir = ctxt.getOutputDirectory().resolve("qbicc-cache").resolve("objects");
+                cache = new LLVMObjectCache(cacheDir, getCacheConfiguration(llvmToolChain, cToolChain, lto, optLevel, llcOptLevel), objectSuffix);
+                hotCache = new LLVMObjectCache(cacheDir, getCacheConfiguration(llvmToolChain, cToolChain, lto, HOT_OPT_LEVEL, HOT_LLC_OPT_LEVEL), objectSuffix);
+            } else {
+                cache = null;
+                hotCache = null;
+            }
+            cacheMetric = Metrics.get(ctxt).getOrCreateRootCountMetric("llvm-object-cache");
+            AtomicInteger threadIndex = new AtomicInteger();
+            executor = new ThreadPoolExecutor(jobs, jobs, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(), r -> {
+                Thread thread = new Thread(r, "qbicc-llvm-" + threadIndex.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+            tools = ThreadLocal.withInitial(Tools::new);
+        }
+
+        void submitModule(Path modulePath) {
+            String moduleName = modulePath.getFileName().toString();
+            if (moduleName.endsWith(".ll")) {
+                String baseName = moduleName.substring(0, moduleName.length() - 3);
+                long size;
+                try {
+                    size = Files.size(modulePath);
+                } catch (IOException e) {
+                    size = 0;
                 }
-                String moduleName = modulePath.getFileName().toString();
-                if (moduleName.endsWith(".ll")) {
-                    String baseName = moduleName.substring(0, moduleName.length() - 3);
-                    String optBitCodeName = baseName + "_opt.bc";
-                    String assemblyName = baseName + ".s";
-                    String objectName = baseName + "." + cToolChain.getPlatform().getObjectType().objectSuffix();
-
-                    Path optBitCodePath = modulePath.resolveSibling(optBitCodeName);
-                    Path assemblyPath = modulePath.resolveSibling(assemblyName);
-                    Path objectPath = modulePath.resolveSibling(objectName);
-
-                    optInvoker.setSource(InputSource.from(modulePath));
-                    optInvoker.setDestination(OutputDestination.of(optBitCodePath));
-                    int errCnt = ctxt.errors();
-                    try {
-                        optInvoker.invoke();
-                    } catch (IOException e) {
-                        if (errCnt == ctxt.errors()) {
-                            // whatever the problem was, it wasn't reported, so add an additional error here
-                            ctxt.error(Location.builder().setSourceFilePath(modulePath.toString()).build(), "`opt` invocation has failed: %s", e.toString());
-                        }
-                        continue;
-                    }
+                LLVMState llvmState = ctxt.getAttachment(LLVMState.KEY);
+                submit(new CompilationUnit(List.of(modulePath), modulePath.resolveSibling(baseName + "." + objectSuffix), llvmState.isHotModule(modulePath), size));
+            } else {
+                ctxt.warning("Ignoring unknown module file name \"%s\"", modulePath);
+            }
+        }
+
+        void submit(CompilationUnit unit) {
+            executor.execute(new Job(unit, sequence.getAndIncrement()));
+        }
 
-                    llcInvoker.setSource(InputSource.from(optBitCodePath));
-                    llcInvoker.setDestination(OutputDestination.of(assemblyPath));
-                    errCnt = ctxt.errors();
+        /**
+         * Wait for all submitted units to be compiled.
+         */
+        void finish() {
+            ctxt.removeAttachment(PIPELINE_KEY, this);
+            executor.shutdown();
+            boolean intr = false;
+            try {
+                for (;;) {
                     try {
-                        llcInvoker.invoke();
-                    } catch (IOException e) {
-                        if (errCnt == ctxt.errors()) {
-                            // whatever the problem was, it wasn't reported, so add an additional error here
-                            ctxt.error(Location.builder().setSourceFilePath(modulePath.toString()).build(), "`llc` invocation has failed: %s", e.toString());
+                        if (executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                            break;
                         }
-                        continue;
+                    } catch (InterruptedException e) {
+                        intr = true;
                     }
+                }
+            } finally {
+                if (intr) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
 
-                    // now compile it
-                    ccInvoker.setSource(InputSource.from(assemblyPath));
-                    ccInvoker.setOutputPath(objectPath);
-                    try {
-                        ccInvoker.invoke();
-                    } catch (IOException e) {
-                        ctxt.error("Compiler invocation has failed for %s: %s", modulePath, e.toString());
-                        continue;
-                    }
+        void compile(CompilationUnit unit) {
+            List<Path> modulePaths = unit.modulePaths;
+            Path objectPath = unit.objectPath;
+            Location location = Location.builder().setSourceFilePath(lto ? objectPath.toString() : modulePaths.get(0).toString()).build();
+
+            LLVMObjectCache unitCache = unit.hot ? hotCache : cache;
+            String cacheKey = null;
+            if (unitCache != null) {
+                try {
+                    cacheKey = unitCache.computeKey(modulePaths);
+                } catch (IOException e) {
+                    ctxt.warning(location, "Failed to compute object cache key: %s", e);
+                }
+                if (cacheKey != null && unitCache.restore(cacheKey, objectPath)) {
+                    cacheMetric.getOrAddChild("hits").add(1);
                     linker.addObjectFilePath(objectPath);
+                    return;
+                }
+                cacheMetric.getOrAddChild("misses").add(1);
+            }
+
+            Tools tools = this.tools.get();
+            LlcInvoker llcInvoker;
+            OptInvoker optInvoker;
+            if (unit.hot) {
+                if (tools.hotOptInvoker == null) {
+                    tools.hotLlcInvoker = createLlcInvoker(ctxt, llvmToolChain, HOT_LLC_OPT_LEVEL);
+                    tools.hotOptInvoker = createOptInvoker(ctxt, llvmToolChain, HOT_OPT_LEVEL);
+                }
+                llcInvoker = tools.hotLlcInvoker;
+                optInvoker = tools.hotOptInvoker;
+            } else {
+                if (tools.optInvoker == null) {
+                    tools.llcInvoker = createLlcInvoker(ctxt, llvmToolChain, llcOptLevel);
+                    tools.optInvoker = createOptInvoker(ctxt, llvmToolChain, optLevel);
+                }
+                llcInvoker = tools.llcInvoker;
+                optInvoker = tools.optInvoker;
+            }
+
+            // opt's bitcode output is piped directly into llc, which emits the object file
+            llcInvoker.setDestination(OutputDestination.of(objectPath));
+            optInvoker.setDestination(llcInvoker.invokerAsDestination());
+            int errCnt = ctxt.errors();
+            try {
+                if (lto) {
+                    // merge the partition into one module, which is piped into opt
+                    if (tools.linkInvoker == null) {
+                        tools.linkInvoker = llvmToolChain.newLlvmLinkInvoker();
+                        tools.linkInvoker.setMessageHandler(ToolMessageHandler.reporting(ctxt));
+                    }
+                    LlvmLinkInvoker linkInvoker = tools.linkInvoker;
+                    linkInvoker.clearInputs();
+                    for (Path modulePath : modulePaths) {
+                        linkInvoker.addInput(modulePath);
+                    }
+                    linkInvoker.setDestination(optInvoker.invokerAsDestination());
+                    linkInvoker.invoke();
                 } else {
-                    ctxt.warning("Ignoring unknown module file name \"%s\"", modulePath);
+                    optInvoker.setSource(InputSource.from(modulePaths.get(0)));
+                    optInvoker.invoke();
+                }
+            } catch (IOException e) {
+                if (errCnt == ctxt.errors()) {
+                    // whatever the problem was, it wasn't reported, so add an additional error here
+                    ctxt.error(location, "LLVM tool invocation has failed: %s", e.toString());
+                }
+                return;
+            }
+            if (cacheKey != null) {
+                unitCache.store(cacheKey, objectPath);
+            }
+            linker.addObjectFilePath(objectPath);
+        }
+
+        /**
+         * A queued compilation, ordered by decreasing size and then by submission order.
+         */
+        final class Job implements Runnable, Comparable<Job> {
+            final CompilationUnit unit;
+            final long seq;
+
+            Job(final CompilationUnit unit, final long seq) {
+                this.unit = unit;
+                this.seq = seq;
+            }
+
+            public void run() {
+                try {
+                    compile(unit);
+                } catch (Throwable t) {
+                    ctxt.error(t, "LLVM compilation of \"%s\" has failed", unit.objectPath);
                 }
             }
-        });
+
+            public int compareTo(final Job other) {
+                int res = Long.compare(other.unit.size, unit.size);
+                return res == 0 ? Long.compare(seq, other.seq) : res;
+            }
+        }
+    }
+
+    /**
+     * The tool invokers of one pipeline thread, which are created on demand and reused for each unit.
+     */
+    static final class Tools {
+        LlcInvoker llcInvoker;
+        OptInvoker optInvoker;
+        // most builds have few or no hot methods
+        LlcInvoker hotLlcInvoker;
+        OptInvoker hotOptInvoker;
+        LlvmLinkInvoker linkInvoker;
+    }
+
+    static final class CompilationUnit {
+        final List<Path> modulePaths;
+        final Path objectPath;
+        final boolean hot;
+        final long size;
+
+        CompilationUnit(final List<Path> modulePaths, final Path objectPath, final boolean hot, final long size) {
+            this.modulePaths = modulePaths;
+            this.objectPath = objectPath;
+            this.hot = hot;
+            this.size = size;
+        }
+    }
+
+    static final class Partition {
+        final int index;
+        final List<Path> modulePaths = new ArrayList<>();
+        long weight;
+
+        Partition(final int index) {
+            this.index = index;
+        }
     }
 }
@@ -5,8 +5,12 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.function.Consumer;
 
 import org.qbicc.context.CompilationContext;
@@ -33,11 +37,13 @@ import org.qbicc.object.ProgramModule;
 import org.qbicc.object.ProgramObject;
 import org.qbicc.object.Section;
 import org.qbicc.object.ThreadLocalMode;
+import org.qbicc.plugin.metrics.Metrics;
 import org.qbicc.type.FunctionType;
 import org.qbicc.type.ValueType;
 import org.qbicc.type.VariadicType;
 import org.qbicc.type.definition.DefinedTypeDefinition;
 import org.qbicc.type.definition.MethodBody;
+import org.qbicc.type.definition.classfile.ClassFile;
 import org.qbicc.type.definition.element.ExecutableElement;
 import io.smallrye.common.constraint.Assert;
 
@@ -54,7 +60,13 @@ public class LLVMGenerator implements Consumer<CompilationContext>, ValueVisitor
     }
 
     public void accept(final CompilationContext compilationContext) {
-        List<ProgramModule> allProgramModules = compilationContext.getAllProgramModules();
+        // generate the largest modules first, so that their compilation can start as early as possible
+        List<ProgramModule> allProgramModules = new ArrayList<>(compilationContext.getAllProgramModules());
+        Map<ProgramModule, Integer> functionCounts = new HashMap<>();
+        for (ProgramModule programModule : allProgramModules) {
+            functionCounts.put(programModule, Integer.valueOf(countFunctions(programModule)));
+        }
+        allProgramModules.sort(Comparator.comparing(functionCounts::get, Comparator.reverseOrder()));
         Iterator<ProgramModule> iterator = allProgramModules.iterator();
         compilationContext.runParallelTask(ctxt -> {
             for (;;) {
@@ -80,6 +92,8 @@ public class LLVMGenerator implements Consumer<CompilationContext>, ValueVisitor
                     module.addFlag(ModuleFlagBehavior.Max, "PIE Level", Types.i32, Values.intConstant(pieLevel));
                 }
 
+                int functionCount = 0;
+                boolean hot = false;
                 for (Section section : programModule.sections()) {
                     String sectionName = section.getName();
                     for (ProgramObject item : section.contents()) {
@@ -107,6 +121,14 @@ public class LLVMGenerator implements Consumer<CompilationContext>, ValueVisitor
                             functionDefinition.attribute(FunctionAttributes.framePointer("non-leaf"));
                             functionDefinition.attribute(FunctionAttributes.uwtable);
                             functionDefinition.gc("statepoint-example");
+                            if (element.hasAllModifiersOf(ClassFile.I_ACC_COLD)) {
+                                functionDefinition.attribute(FunctionAttributes.cold);
+                                functionDefinition.attribute(FunctionAttributes.optsize);
+                                functionDefinition.attribute(FunctionAttributes.minsize);
+                            } else if (element.hasAllModifiersOf(ClassFile.I_ACC_HOT)) {
+                                // the whole module will be compiled at the hot optimization level
+                                hot = true;
+                            }
 
                             LLVMNodeVisitor nodeVisitor = new LLVMNodeVisitor(ctxt, module, debugInfo, pseudoIntrinsics, topSubprogram, moduleVisitor, Schedule.forMethod(entryBlock), ((Function) item), functionDefinition);
                             if (! sectionName.equals(CompilationContext.IMPLICIT_SECTION_NAME)) {
@@ -114,6 +136,7 @@ public class LLVMGenerator implements Consumer<CompilationContext>, ValueVisitor
                             }
 
                             nodeVisitor.execute();
+                            functionCount ++;
                         } else if (item instanceof FunctionDeclaration) {
                             FunctionDeclaration fn = (FunctionDeclaration) item;
                             org.qbicc.machine.llvm.Function decl = module.declare(name).linkage(linkage);
@@ -174,6 +197,7 @@ public class LLVMGenerator implements Consumer<CompilationContext>, ValueVisitor
                     try (BufferedWriter writer = Files.newBufferedWriter(outputFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
                         module.writeTo(writer);
                     }
+                    Metrics.get(ctxt).getOrCreateRootMemorySizeMetric("llvm-modules").getOrAddChild(def.getInternalName()).add(Files.size(outputFile));
                 } catch (IOException e) {
                     ctxt.error("Failed to write \"%s\": %s", outputFile, e.getMessage());
                     try {
@@ -181,13 +205,48 @@ public class LLVMGenerator implements Consumer<CompilationContext>, ValueVisitor
                     } catch (IOException e2) {
                         ctxt.warning("Failed to clean \"%s\": %s", outputFile, e.getMessage());
                     }
+                    releaseBodies(ctxt, programModule);
+                    // there is nothing to compile
+                    return;
                 }
+                releaseBodies(ctxt, programModule);
                 LLVMState llvmState = ctxt.computeAttachmentIfAbsent(LLVMState.KEY, LLVMState::new);
-                llvmState.addModulePath(outputFile);
+                llvmState.addModulePath(outputFile, functionCount, hot);
             }
         });
     }
 
+    private static int countFunctions(final ProgramModule programModule) {
+        int count = 0;
+        for (Section section : programModule.sections()) {
+            for (ProgramObject item : section.contents()) {
+                if (item instanceof Function) {
+                    count ++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Release the lowered bodies of the functions of a module once it is written, since nothing reads them after
+     * this point.  This keeps the heap usage of the generation phase bounded by the modules being generated.
+     */
+    private static void releaseBodies(final CompilationContext ctxt, final ProgramModule programModule) {
+        for (Section section : programModule.sections()) {
+            for (ProgramObject item : section.contents()) {
+                if (item instanceof Function) {
+                    Function function = (Function) item;
+                    ExecutableElement element = function.getOriginalElement();
+                    if (function == ctxt.getExactFunction(element)) {
+                        element.releaseMethodBody();
+                    }
+                    function.replaceBody(null);
+                }
+            }
+        }
+    }
+
     Linkage map(org.qbicc.object.Linkage linkage) {
         switch (linkage) {
             case COMMON: return Linkage.COMMON;
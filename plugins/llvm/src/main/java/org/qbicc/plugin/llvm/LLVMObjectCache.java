@@ -0,0 +1,127 @@
+package org.qbicc.plugin.llvm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+import org.jboss.logging.Logger;
+
+/**
+ * A persistent, content-addressed cache of compiled object files.  Each entry is keyed by a hash of the text of the
+ * LLVM module that produced it, combined with a configuration string which identifies the tool chain versions and
+ * the options that the module was compiled with.
+ */
+final class LLVMObjectCache {
+    private static final Logger log = Logger.getLogger("org.qbicc.plugin.llvm.cache");
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Path cacheDir;
+    private final byte[] configuration;
+    private final String objectSuffix;
+
+    LLVMObjectCache(final Path cacheDir, final String configuration, final String objectSuffix) {
+        this.cacheDir = cacheDir;
+        this.configuration = configuration.getBytes(StandardCharsets.UTF_8);
+        this.objectSuffix = objectSuffix;
+    }
+
+    /**
+     * Compute the cache key for the given module files, which are compiled together into a single object file.
+     *
+     * @param modulePaths the paths of the LLVM modules, in a stable order (must not be {@code null})
+     * @return the cache key (not {@code null})
+     * @throws IOException if a module could not be read
+     */
+    String computeKey(List<Path> modulePaths) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(configuration);
+        byte[] buf = new byte[16384];
+        for (Path modulePath : modulePaths) {
+            if (modulePaths.size() > 1) {
+                // include the module name so that moving a module between partitions changes the key
+                digest.update(modulePath.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            try (InputStream is = Files.newInputStream(modulePath)) {
+                int res;
+                while ((res = is.read(buf)) != -1) {
+                    digest.update(buf, 0, res);
+                }
+            }
+        }
+        byte[] hash = digest.digest();
+        char[] chars = new char[hash.length << 1];
+        for (int i = 0; i < hash.length; i ++) {
+            chars[i << 1] = HEX[(hash[i] >> 4) & 0xf];
+            chars[(i << 1) + 1] = HEX[hash[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private Path getEntryPath(String key) {
+        // spread the entries over subdirectories to keep directory sizes reasonable
+        return cacheDir.resolve(key.substring(0, 2)).resolve(key.substring(2) + "." + objectSuffix);
+    }
+
+    /**
+     * Restore a cached object file to the given path, if it is present in the cache.
+     *
+     * @param key the cache key (must not be {@code null})
+     * @param objectPath the object file path to restore to (must not be {@code null})
+     * @return {@code true} if the object was restored, or {@code false} if there is no cache entry
+     */
+    boolean restore(String key, Path objectPath) {
+        Path entryPath = getEntryPath(key);
+        if (! Files.isRegularFile(entryPath)) {
+            return false;
+        }
+        try {
+            Files.copy(entryPath, objectPath, StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (IOException e) {
+            log.debugf(e, "Failed to restore cached object file %s", entryPath);
+            return false;
+        }
+    }
+
+    /**
+     * Store a newly compiled object file into the cache.  Failure to store the object is not fatal.
+     *
+     * @param key the cache key (must not be {@code null})
+     * @param objectPath the path of the object file to store (must not be {@code null})
+     */
+    void store(String key, Path objectPath) {
+        Path entryPath = getEntryPath(key);
+        Path entryDir = entryPath.getParent();
+        try {
+            Files.createDirectories(entryDir);
+            // copy to a temporary file first so that a concurrent reader never sees a partial entry
+            Path tempPath = Files.createTempFile(entryDir, key, ".tmp");
+            try {
+                Files.copy(objectPath, tempPath, StandardCopyOption.REPLACE_EXISTING);
+                try {
+                    Files.move(tempPath, entryPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException ignored) {
+                    Files.move(tempPath, entryPath, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tempPath);
+            }
+        } catch (IOException e) {
+            log.debugf(e, "Failed to store object file %s in cache", objectPath);
+        }
+    }
+}
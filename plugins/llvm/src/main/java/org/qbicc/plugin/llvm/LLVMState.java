@@ -4,6 +4,10 @@ import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 import org.qbicc.context.AttachmentKey;
 
@@ -14,11 +18,49 @@ final class LLVMState {
     static final AttachmentKey<LLVMState> KEY = new AttachmentKey<>();
 
     private final List<Path> modulePaths = Collections.synchronizedList(new ArrayList<>());
+    private final Map<Path, Integer> moduleWeights = new ConcurrentHashMap<>();
+    private final Set<Path> hotModules = ConcurrentHashMap.newKeySet();
+    private Consumer<Path> moduleListener;
 
     LLVMState() {}
 
     void addModulePath(Path path) {
-        modulePaths.add(path);
+        addModulePath(path, 1, false);
+    }
+
+    /**
+     * Add a module path along with its relative weight, which is used to balance whole-program partitions.
+     *
+     * @param path the module path (must not be {@code null})
+     * @param weight the relative compilation cost of the module, such as the number of functions it defines
+     * @param hot {@code true} if the module contains a method which should be compiled at the hot optimization level
+     */
+    void addModulePath(Path path, int weight, boolean hot) {
+        moduleWeights.put(path, Integer.valueOf(Math.max(1, weight)));
+        if (hot) {
+            hotModules.add(path);
+        }
+        Consumer<Path> listener;
+        synchronized (modulePaths) {
+            modulePaths.add(path);
+            listener = moduleListener;
+        }
+        if (listener != null) {
+            listener.accept(path);
+        }
+    }
+
+    /**
+     * Set the listener which is called with each module path as soon as it is added.
+     *
+     * @param listener the listener, or {@code null} to remove it
+     * @return the module paths which were added before the listener was set
+     */
+    List<Path> setModuleListener(Consumer<Path> listener) {
+        synchronized (modulePaths) {
+            moduleListener = listener;
+            return List.copyOf(modulePaths);
+        }
     }
 
     List<Path> getModulePaths() {
@@ -27,4 +69,11 @@ final class LLVMState {
         }
     }
 
+    int getModuleWeight(Path path) {
+        return moduleWeights.getOrDefault(path, Integer.valueOf(1)).intValue();
+    }
+
+    boolean isHotModule(Path path) {
+        return hotModules.contains(path);
+    }
 }
@@ -6,19 +6,24 @@ import java.util.List;
 import org.qbicc.context.CompilationContext;
 import org.qbicc.graph.BasicBlockBuilder;
 import org.qbicc.graph.BlockEarlyTermination;
+import org.qbicc.graph.BlockLabel;
 import org.qbicc.graph.DelegatingBasicBlockBuilder;
 import org.qbicc.graph.DispatchInvocation;
 import org.qbicc.graph.MemoryAtomicityMode;
 import org.qbicc.graph.Node;
 import org.qbicc.graph.Value;
+import org.qbicc.graph.ValueHandle;
+import org.qbicc.graph.literal.LiteralFactory;
 import org.qbicc.graph.literal.SymbolLiteral;
 import org.qbicc.object.Function;
 import org.qbicc.object.Section;
 import org.qbicc.object.ThreadLocalMode;
 import org.qbicc.plugin.dispatch.DispatchTables;
+import org.qbicc.plugin.instanceofcheckcast.SupersDisplayTables;
 import org.qbicc.plugin.layout.Layout;
 import org.qbicc.type.PointerType;
 import org.qbicc.type.ReferenceType;
+import org.qbicc.type.definition.LoadedTypeDefinition;
 import org.qbicc.type.definition.element.ConstructorElement;
 import org.qbicc.type.definition.element.ExecutableElement;
 import org.qbicc.type.definition.element.FunctionElement;
@@ -144,23 +149,48 @@ public class InvocationLoweringBasicBlockBuilder extends DelegatingBasicBlockBui
         return load(memberOf(pointerHandle(bitCast(vtable, info.getType().getPointer())), info.getType().getMember(index)), MemoryAtomicityMode.UNORDERED);
     }
 
-    // Current implementation strategy is "directly indexed itable" in the terminology of [Alpern et al 2001].
-    // Very fast dispatch; but significant wasted data space due to sparse per-interface itables[].
-    // However, all the invalid slots in the itable contain a pointer to VMHelpers.raiseIncompatibleClassChangerError()
-    // so we do not need an explicit test at the call site.
+    // Current implementation strategy is a single itable per class which is shared by all of its interfaces, each
+    // interface being displaced to slots which do not collide with the other interfaces of its implementors (row
+    // displacement in the terminology of [Alpern et al 2001]).  Since a slot may hold a method of an unrelated
+    // interface in a class which does not implement the target interface, the receiver is tested against the
+    // interface before the itable is used, and VMHelpers.raiseIncompatibleClassChangeError() is called otherwise.
     private Value expandInterfaceDispatch(Value instance, MethodElement target) {
         DispatchTables dt = DispatchTables.get(ctxt);
-        DispatchTables.ITableInfo info = dt.getITableInfo(target.getEnclosingType().load());
+        LoadedTypeDefinition targetInterface = target.getEnclosingType().load();
+        DispatchTables.ITableInfo info = dt.getITableInfo(targetInterface);
         if (info == null) {
             // No realized invocation targets are possible for this method!
             invokeStatic(ctxt.getVMHelperMethod("raiseIncompatibleClassChangeError"), List.of());
             throw new BlockEarlyTermination(unreachable());
         }
-        Section section = ctxt.getImplicitSection(originalElement.getEnclosingType());
-        section.declareData(null, info.getGlobal().getName(), info.getGlobal().getType());
+        GlobalVariableElement itables = dt.getITablesGlobal();
+        if (!itables.getEnclosingType().equals(originalElement.getEnclosingType())) {
+            Section section = ctxt.getImplicitSection(originalElement.getEnclosingType());
+            section.declareData(null, itables.getName(), itables.getType());
+        }
         int index = dt.getITableIndex(target);
         Value typeId = load(instanceFieldOf(referenceHandle(instance), Layout.get(ctxt).getObjectTypeIdField()), MemoryAtomicityMode.UNORDERED);
-        Value itable = load(elementOf(globalVariable(info.getGlobal()), typeId), MemoryAtomicityMode.UNORDERED);
-        return load(memberOf(pointerHandle(itable), info.getType().getMember(index)), MemoryAtomicityMode.UNORDERED);
+        implementsCheck(typeId, targetInterface);
+        Value itable = load(elementOf(globalVariable(itables), typeId), MemoryAtomicityMode.UNORDERED);
+        return load(memberOf(pointerHandle(bitCast(itable, info.getType().getPointer())), info.getType().getMember(index)), MemoryAtomicityMode.UNORDERED);
+    }
+
+    private void implementsCheck(Value typeId, LoadedTypeDefinition targetInterface) {
+        SupersDisplayTables tables = SupersDisplayTables.get(ctxt);
+        LiteralFactory lf = ctxt.getLiteralFactory();
+        GlobalVariableElement typeIdGlobal = tables.getAndRegisterGlobalTypeIdArray(originalElement);
+        ValueHandle interfaces = memberOf(elementOf(globalVariable(typeIdGlobal), typeId), tables.getGlobalTypeIdStructType().getMember("interfaces"));
+        Value implemented = load(elementOf(interfaces, lf.literalOf(tables.getInterfaceSlot(targetInterface))), MemoryAtomicityMode.UNORDERED);
+        final BlockLabel throwIt = new BlockLabel();
+        final BlockLabel goAhead = new BlockLabel();
+        if_(isEq(implemented, lf.literalOf(tables.getInterfaceSlotType(), targetInterface.getTypeId())), goAhead, throwIt);
+        try {
+            begin(throwIt);
+            invokeStatic(ctxt.getVMHelperMethod("raiseIncompatibleClassChangeError"), List.of());
+            unreachable();
+        } catch (BlockEarlyTermination ignored) {
+            // continue
+        }
+        begin(goAhead);
     }
 }
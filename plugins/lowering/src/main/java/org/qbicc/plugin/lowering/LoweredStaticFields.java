@@ -7,6 +7,8 @@ import org.qbicc.context.AttachmentKey;
 import org.qbicc.context.CompilationContext;
 import org.qbicc.graph.Value;
 import org.qbicc.graph.literal.BooleanLiteral;
+import org.qbicc.graph.literal.Literal;
+import org.qbicc.graph.literal.LiteralFactory;
 import org.qbicc.graph.literal.ZeroInitializerLiteral;
 import org.qbicc.object.Data;
 import org.qbicc.object.Linkage;
@@ -23,10 +25,13 @@ import org.qbicc.type.definition.element.GlobalVariableElement;
 
 public class LoweredStaticFields {
     public static final String GLOBAL_REFERENCES = "QBICC_GLOBALS";
+    public static final String BUILD_TIME_HEAP = "QBICC_HEAP";
 
     private static final AttachmentKey<LoweredStaticFields> KEY = new AttachmentKey<>();
 
     private final Map<FieldElement, GlobalVariableElement> globals = new ConcurrentHashMap<>();
+    private final Map<FieldElement, Data> initialObjects = new ConcurrentHashMap<>();
+    private final Map<FieldElement, Literal> initialValues = new ConcurrentHashMap<>();
 
     private LoweredStaticFields() {}
 
@@ -34,6 +39,29 @@ public class LoweredStaticFields {
         return ctxt.computeAttachmentIfAbsent(KEY, LoweredStaticFields::new);
     }
 
+    /**
+     * Set the build-time heap object which is the initial value of a reference-typed static field.  The object
+     * must be defined in the {@link #BUILD_TIME_HEAP} section of some program module, and it must be set before
+     * the global for the field is created.
+     *
+     * @param fieldElement the static field (must not be {@code null})
+     * @param object the data of the object (must not be {@code null})
+     */
+    public void setInitialObject(FieldElement fieldElement, Data object) {
+        initialObjects.put(fieldElement, object);
+    }
+
+    /**
+     * Set the build-time value which is the initial value of a primitive static field, in place of the field's
+     * constant value (if any).  It must be set before the global for the field is created.
+     *
+     * @param fieldElement the static field (must not be {@code null})
+     * @param value the initial value (must not be {@code null})
+     */
+    public void setInitialValue(FieldElement fieldElement, Literal value) {
+        initialValues.put(fieldElement, value);
+    }
+
     public GlobalVariableElement getGlobalForField(FieldElement fieldElement) {
         GlobalVariableElement global = globals.get(fieldElement);
         if (global != null) {
@@ -68,10 +96,23 @@ public class LoweredStaticFields {
         Value initialValue = fieldElement.getInitialValue();
         Linkage linkage = Linkage.EXTERNAL;
         if (fieldType instanceof ReferenceType) {
-            // Reference-typed field values must always be deserialized.
-            linkage = Linkage.COMMON;
-            initialValue = ctxt.getLiteralFactory().zeroInitializerLiteralOfType(varType);
+            Data object = initialObjects.get(fieldElement);
+            if (object == null) {
+                // Reference-typed field values must otherwise be deserialized.
+                linkage = Linkage.COMMON;
+                initialValue = ctxt.getLiteralFactory().zeroInitializerLiteralOfType(varType);
+            } else {
+                // the object was laid out at build time; declare it in this module and point to it
+                ValueType objectType = object.getType();
+                ctxt.getOrAddProgramModule(enclosingType).getOrAddSection(BUILD_TIME_HEAP).declareData(null, object.getName(), objectType);
+                LiteralFactory lf = ctxt.getLiteralFactory();
+                initialValue = lf.valueConvertLiteral(lf.literalOfSymbol(object.getName(), objectType.getPointer()), (ReferenceType) varType);
+            }
         } else {
+            Literal buildTimeValue = initialValues.get(fieldElement);
+            if (buildTimeValue != null) {
+                initialValue = buildTimeValue;
+            }
             if (initialValue == null || initialValue instanceof ZeroInitializerLiteral) {
                 initialValue = Constants.get(ctxt).getConstantValue(fieldElement);
                 if (initialValue == null || initialValue instanceof ZeroInitializerLiteral) {
@@ -31,6 +31,9 @@ public class VMHelpersSetupHook implements Consumer<CompilationContext> {
         ctxt.registerEntryPoint(ctxt.getVMHelperMethod("raiseNullPointerException"));
         ctxt.registerEntryPoint(ctxt.getVMHelperMethod("raiseUnsatisfiedLinkError"));
 
+        // Identity hash codes; bound to the dispatch table slots of Object#hashCode
+        ctxt.registerEntryPoint(ctxt.getVMHelperMethod("identity_hash_code"));
+
         // Object monitors
         ctxt.registerEntryPoint(ctxt.getVMHelperMethod("monitor_enter"));
         ctxt.registerEntryPoint(ctxt.getVMHelperMethod("monitor_exit"));
@@ -1,5 +1,6 @@
 package org.qbicc.plugin.metrics;
 
+import java.util.Collection;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -95,6 +96,69 @@ public final class Metrics {
         }
     }
 
+    /**
+     * Format all metrics as a JSON object.  Each metric is an object containing its raw (unsigned) value, its
+     * readable formatted value, and an object containing its children keyed by name.
+     *
+     * @param target the string builder (must not be {@code null})
+     * @return the same string builder
+     */
+    public StringBuilder formatAllAsJson(StringBuilder target) {
+        target.append('{');
+        formatAllOfAsJson(target, "timers", timers);
+        target.append(',');
+        formatAllOfAsJson(target, "sizes", memorySizes);
+        target.append(',');
+        formatAllOfAsJson(target, "counts", counts);
+        return target.append('}');
+    }
+
+    private void formatAllOfAsJson(StringBuilder target, String name, Map<String, ? extends Metric<?>> map) {
+        jsonString(target, name).append(':');
+        formatMetricsAsJson(target, map.values());
+    }
+
+    private void formatMetricsAsJson(StringBuilder target, Collection<? extends Metric<?>> metrics) {
+        target.append('{');
+        boolean first = true;
+        for (Metric<?> metric : metrics) {
+            if (! first) {
+                target.append(',');
+            }
+            first = false;
+            jsonString(target, metric.getName()).append(':').append('{');
+            jsonString(target, "value").append(':').append(Long.toUnsignedString(metric.getRawValue())).append(',');
+            jsonString(target, "formatted").append(':');
+            jsonString(target, metric.getFormattedValue()).append(',');
+            jsonString(target, "children").append(':');
+            formatMetricsAsJson(target, metric.getChildren());
+            target.append('}');
+        }
+        target.append('}');
+    }
+
+    private StringBuilder jsonString(StringBuilder target, String str) {
+        target.append('"');
+        for (int i = 0; i < str.length(); i ++) {
+            char c = str.charAt(i);
+            switch (c) {
+                case '"': target.append('\\').append('"'); break;
+                case '\\': target.append('\\').append('\\'); break;
+                case '\n': target.append('\\').append('n'); break;
+                case '\r': target.append('\\').append('r'); break;
+                case '\t': target.append('\\').append('t'); break;
+                default: {
+                    if (c < 0x20) {
+                        target.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+                    } else {
+                        target.append(c);
+                    }
+                }
+            }
+        }
+        return target.append('"');
+    }
+
     @SuppressWarnings("StringRepeatCanBeUsed")
     private void tab(StringBuilder target, int count) {
         // do not use String.repeat() to avoid creating transient objects
@@ -64,6 +64,15 @@ public final class Timer extends Metric<Timer> {
         return target.append(totalStr);
     }
 
+    /**
+     * Add a number of nanoseconds to this timer directly, for times which were measured by some other means.
+     *
+     * @param nanos the number of nanoseconds to add
+     */
+    public void add(long nanos) {
+        addRawValue(Math.max(0, nanos));
+    }
+
     void addDuration(long start, long end) {
         addRawValue(Math.max(0, end - start));
     }
@@ -243,7 +252,16 @@ public final class Timer extends Metric<Timer> {
         }
     }
 
-    private Timer start() {
+    /**
+     * Start timing on the current thread with this timer, suspending the previously running timer (if any).  This
+     * method does not allocate and is therefore suitable for hot paths.  If the returned timer is not this timer, then
+     * {@link #end(Timer)} must be called with the returned value when the timed work is complete, typically from a
+     * {@code finally} block; if the returned timer is this timer, then this timer was already running and nothing
+     * further must be done.
+     *
+     * @return the previously running timer, or {@code null} if there was none
+     */
+    public Timer start() {
         State state = currentState.get();
         Timer oldTimer = state.current;
         long start = System.nanoTime();
@@ -260,7 +278,12 @@ public final class Timer extends Metric<Timer> {
         return oldTimer;
     }
 
-    private void end(final Timer oldTimer) {
+    /**
+     * End timing on the current thread with this timer, resuming the given previously running timer.
+     *
+     * @param oldTimer the timer that was returned from {@link #start()}
+     */
+    public void end(final Timer oldTimer) {
         State state = currentState.get();
         long end = System.nanoTime();
         addDuration(state.start, end);
@@ -1,11 +1,10 @@
 package org.qbicc.plugin.native_;
 
-import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.qbicc.context.CompilationContext;
 import org.qbicc.context.Location;
-import org.qbicc.driver.Driver;
 import org.qbicc.graph.BasicBlockBuilder;
 import org.qbicc.graph.CastValue;
 import org.qbicc.graph.DelegatingBasicBlockBuilder;
@@ -96,41 +95,31 @@ public class ConstantDefiningBasicBlockBuilder extends DelegatingBasicBlockBuild
     }
 
     private void processConstant(final FieldElement fieldElement) {
+        // get the element's info
+        String name = fieldElement.getName();
+        List<Annotation> probeAnnotations = new ArrayList<>();
+        for (Annotation annotation : fieldElement.getVisibleAnnotations()) {
+            ClassTypeDescriptor desc = annotation.getDescriptor();
+            if (desc.getPackageName().equals(Native.NATIVE_PKG) && desc.getClassName().equals(Native.ANN_NAME)) {
+                name = ((StringAnnotationValue) annotation.getValue("value")).getString();
+            } else {
+                probeAnnotations.add(annotation);
+            }
+        }
+        probeAnnotations.addAll(fieldElement.getEnclosingType().getVisibleAnnotations());
+        // todo: recursively process enclosing types (requires InnerClasses support)
+        Location location = getLocation();
+        // register the probe now so that it is batched with the other constants found before its value is needed
+        ConstantProbes probes = ConstantProbes.get(ctxt);
+        ConstantProbes.Probe probe = probes.register(probeAnnotations, name, location.getSourceFilePath(), location.getLineNumber());
         Constants constants = Constants.get(ctxt);
         constants.registerConstant(fieldElement, () -> {
-            CProbe.Builder builder = CProbe.builder();
-            // get the element's info
-            String name = fieldElement.getName();
-            for (Annotation annotation : fieldElement.getVisibleAnnotations()) {
-                ClassTypeDescriptor desc = annotation.getDescriptor();
-                if (ProbeUtils.processCommonAnnotation(builder, annotation)) {
-                    continue;
-                }
-                if (desc.getPackageName().equals(Native.NATIVE_PKG) && desc.getClassName().equals(Native.ANN_NAME)) {
-                    name = ((StringAnnotationValue) annotation.getValue("value")).getString();
-                }
-            }
-            for (Annotation annotation : fieldElement.getEnclosingType().getVisibleAnnotations()) {
-                ProbeUtils.processCommonAnnotation(builder, annotation);
-            }
-            // todo: recursively process enclosing types (requires InnerClasses support)
-            Location location = getLocation();
-            builder.probeConstant(name, location.getSourceFilePath(), location.getLineNumber());
-            // run the probe
-            CProbe probe = builder.build();
             LiteralFactory lf = ctxt.getLiteralFactory();
-            CProbe.Result result;
-            try {
-                result = probe.run(ctxt.getAttachment(Driver.C_TOOL_CHAIN_KEY), ctxt.getAttachment(Driver.OBJ_PROVIDER_TOOL_KEY), null);
-                if (result == null) {
-                    // constant is undefined
-                    return lf.undefinedLiteralOfType(fieldElement.getType());
-                }
-            } catch (IOException e) {
-                // constant is undefined either way
+            CProbe.ConstantInfo constantInfo = probes.getConstantInfo(probe);
+            if (constantInfo == null) {
+                // constant is undefined
                 return lf.undefinedLiteralOfType(fieldElement.getType());
             }
-            CProbe.ConstantInfo constantInfo = result.getConstantInfo(name);
             // compute the type and raw value
             return constantInfo.getValueAsLiteral(ctxt.getTypeSystem(), lf);
         });
@@ -0,0 +1,152 @@
+package org.qbicc.plugin.native_;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.qbicc.context.AttachmentKey;
+import org.qbicc.context.CompilationContext;
+import org.qbicc.driver.Driver;
+import org.qbicc.machine.probe.CProbe;
+import org.qbicc.machine.probe.CProbeCache;
+import org.qbicc.plugin.metrics.CountMetric;
+import org.qbicc.plugin.metrics.Metrics;
+import org.qbicc.type.annotation.Annotation;
+
+/**
+ * The batched probes of native constants.  Constants are registered as they are discovered, and are grouped by the
+ * include and define directives that they are probed with.  When the value of a constant is first needed, all of the
+ * pending constants of its group are probed together by a single compiler invocation.
+ */
+final class ConstantProbes {
+    private static final AttachmentKey<ConstantProbes> KEY = new AttachmentKey<>();
+
+    private final CompilationContext ctxt;
+    private final Map<String, Group> groups = new ConcurrentHashMap<>();
+    private final CountMetric metric;
+
+    private ConstantProbes(final CompilationContext ctxt) {
+        this.ctxt = ctxt;
+        metric = Metrics.get(ctxt).getOrCreateRootCountMetric("constant-probes");
+    }
+
+    static ConstantProbes get(final CompilationContext ctxt) {
+        ConstantProbes probes = ctxt.getAttachment(KEY);
+        if (probes == null) {
+            ConstantProbes appearing = ctxt.putAttachmentIfAbsent(KEY, probes = new ConstantProbes(ctxt));
+            if (appearing != null) {
+                probes = appearing;
+            }
+        }
+        return probes;
+    }
+
+    /**
+     * Register a constant to be probed.
+     *
+     * @param annotations the annotations which give the include and define directives for the probe (must not be {@code null})
+     * @param name the name of the constant (must not be {@code null})
+     * @param sourceFile the source file name where the constant is declared (may be {@code null})
+     * @param line the source line number or 0 if none
+     * @return the registered probe (not {@code null})
+     */
+    Probe register(List<Annotation> annotations, String name, String sourceFile, int line) {
+        CProbe.Builder builder = CProbe.builder();
+        for (Annotation annotation : annotations) {
+            ProbeUtils.processCommonAnnotation(builder, annotation);
+        }
+        String prologue = builder.build().getSource();
+        return groups.computeIfAbsent(prologue, k -> new Group(annotations)).register(name, sourceFile, line);
+    }
+
+    /**
+     * Get the probed information of a registered constant, probing it along with the other pending constants of its
+     * group if needed.
+     *
+     * @param probe the registered probe (must not be {@code null})
+     * @return the constant information, or {@code null} if the constant could not be probed
+     */
+    CProbe.ConstantInfo getConstantInfo(Probe probe) {
+        return probe.group.resolve(probe);
+    }
+
+    static final class Probe {
+        final Group group;
+        final String name;
+        final String sourceFile;
+        final int line;
+        boolean resolved;
+        CProbe.ConstantInfo info;
+
+        Probe(final Group group, final String name, final String sourceFile, final int line) {
+            this.group = group;
+            this.name = name;
+            this.sourceFile = sourceFile;
+            this.line = line;
+        }
+    }
+
+    final class Group {
+        private final List<Annotation> annotations;
+        private final Map<String, Probe> probes = new HashMap<>();
+        private final List<Probe> pending = new ArrayList<>();
+
+        Group(final List<Annotation> annotations) {
+            this.annotations = annotations;
+        }
+
+        synchronized Probe register(String name, String sourceFile, int line) {
+            Probe probe = probes.get(name);
+            if (probe == null) {
+                probe = new Probe(this, name, sourceFile, line);
+                probes.put(name, probe);
+                pending.add(probe);
+            }
+            return probe;
+        }
+
+        synchronized CProbe.ConstantInfo resolve(Probe probe) {
+            if (! probe.resolved) {
+                List<Probe> batch = List.copyOf(pending);
+                pending.clear();
+                run(batch);
+            }
+            return probe.info;
+        }
+
+        private void run(List<Probe> batch) {
+            CProbe.Builder builder = CProbe.builder();
+            for (Annotation annotation : annotations) {
+                ProbeUtils.processCommonAnnotation(builder, annotation);
+            }
+            for (Probe probe : batch) {
+                builder.probeConstant(probe.name, probe.sourceFile, probe.line);
+            }
+            CProbe.Result result;
+            boolean failed = false;
+            metric.getOrAddChild("batches").add(1);
+            try {
+                result = builder.build().run(ctxt.getAttachment(Driver.C_TOOL_CHAIN_KEY), ctxt.getAttachment(Driver.OBJ_PROVIDER_TOOL_KEY), null, ctxt.getAttachment(CProbeCache.KEY));
+            } catch (IOException e) {
+                // the compiler could not be run at all; the constants are undefined either way
+                result = null;
+                failed = true;
+            }
+            int size = batch.size();
+            if (result == null && ! failed && size > 1) {
+                // one or more of the constants is undefined; split the batch to find out which
+                run(batch.subList(0, size >> 1));
+                run(batch.subList(size >> 1, size));
+                return;
+            }
+            for (Probe probe : batch) {
+                probe.info = result == null ? null : result.getConstantInfo(probe.name);
+                probe.resolved = true;
+            }
+            metric.getOrAddChild("constants").add(size);
+        }
+    }
+}
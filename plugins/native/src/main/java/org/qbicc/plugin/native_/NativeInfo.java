@@ -17,6 +17,7 @@ import org.qbicc.context.AttachmentKey;
 import org.qbicc.context.CompilationContext;
 import org.qbicc.driver.Driver;
 import org.qbicc.machine.probe.CProbe;
+import org.qbicc.machine.probe.CProbeCache;
 import org.qbicc.machine.probe.Qualifier;
 import org.qbicc.plugin.linker.Linker;
 import org.qbicc.type.CompoundType;
@@ -160,7 +161,7 @@ final class NativeInfo {
                             pb.probeType(probeType);
                             CProbe probe = pb.build();
                             try {
-                                CProbe.Result result = probe.run(ctxt.getAttachment(Driver.C_TOOL_CHAIN_KEY), ctxt.getAttachment(Driver.OBJ_PROVIDER_TOOL_KEY), ctxt);
+                                CProbe.Result result = probe.run(ctxt.getAttachment(Driver.C_TOOL_CHAIN_KEY), ctxt.getAttachment(Driver.OBJ_PROVIDER_TOOL_KEY), ctxt, ctxt.getAttachment(CProbeCache.KEY));
                                 if (result != null) {
                                     CProbe.Type.Info typeInfo = result.getTypeInfo(probeType);
                                     long size = typeInfo.getSize();
@@ -3,17 +3,27 @@ import java.util.List;
 
 import org.qbicc.context.CompilationContext;
 import org.qbicc.graph.BasicBlockBuilder;
+import org.qbicc.graph.BlockLabel;
 import org.qbicc.graph.DelegatingBasicBlockBuilder;
+import org.qbicc.graph.MemoryAtomicityMode;
 import org.qbicc.graph.Node;
 import org.qbicc.graph.Value;
+import org.qbicc.graph.ValueHandle;
+import org.qbicc.graph.literal.Literal;
+import org.qbicc.plugin.layout.Layout;
+import org.qbicc.type.CompoundType;
+import org.qbicc.type.definition.element.ExecutableElement;
+import org.qbicc.type.definition.element.FunctionElement;
 import org.qbicc.type.definition.element.MethodElement;
 
 /**
- * A graph factory which generates calls to runtime helpers for object monitor
- * bytecodes: monitorenter and monitorexit
+ * A graph factory which generates thin lock fast paths for object monitor
+ * bytecodes (monitorenter and monitorexit), which call runtime helpers
+ * when the monitor is contended, inflated, or entered recursively.
  */
 public class ObjectMonitorBasicBlockBuilder extends DelegatingBasicBlockBuilder {
     private final CompilationContext ctxt;
+    private final ExecutableElement rootElement;
 
     private final String monitorEnterFunctionName = "monitor_enter";
     private final String monitorExitFunctionName = "monitor_exit";
@@ -21,25 +31,42 @@ public class ObjectMonitorBasicBlockBuilder extends DelegatingBasicBlockBuilder
     public ObjectMonitorBasicBlockBuilder(CompilationContext ctxt, BasicBlockBuilder delegate) {
         super(delegate);
         this.ctxt = ctxt;
+        this.rootElement = getCurrentElement();
     }
 
     public Node monitorEnter(final Value object) {
-        return super.monitorEnter(object);
-
-        // TODO disabled
-//        return generateObjectMonitorFunctionCall(object, monitorEnterFunctionName);
+        return generateObjectMonitorFastPath(object, true);
     }
 
     public Node monitorExit(final Value object) {
-        return super.monitorExit(object);
-
-        // TODO disabled
-//        return generateObjectMonitorFunctionCall(object, monitorExitFunctionName);
+        return generateObjectMonitorFastPath(object, false);
     }
-    
-    private Value generateObjectMonitorFunctionCall(final Value object, String functionName) {
-        MethodElement methodElement = ctxt.getVMHelperMethod(functionName);
+
+    private Node generateObjectMonitorFastPath(final Value object, boolean enter) {
+        BasicBlockBuilder fb = getFirstBuilder();
+        MethodElement methodElement = ctxt.getVMHelperMethod(enter ? monitorEnterFunctionName : monitorExitFunctionName);
         List<Value> args = List.of(object);
-        return getFirstBuilder().invokeValueStatic(methodElement, args);
+        if (rootElement instanceof FunctionElement) {
+            // there might not be a bound thread yet, so leave it all to the helper
+            return fb.invokeStatic(methodElement, args);
+        }
+        // the uncontended thin lock is the owning thread's address, swapped with zero when entering and exiting
+        Value self = fb.valueConvert(fb.currentThread(), ctxt.getTypeSystem().getSignedInteger64Type());
+        Literal unlocked = ctxt.getLiteralFactory().literalOf(0L);
+        ValueHandle lockHandle = fb.instanceFieldOf(fb.referenceHandle(object), Layout.get(ctxt).getObjectLockField());
+        Value result;
+        if (enter) {
+            result = fb.cmpAndSwap(lockHandle, unlocked, self, MemoryAtomicityMode.ACQUIRE, MemoryAtomicityMode.MONOTONIC);
+        } else {
+            result = fb.cmpAndSwap(lockHandle, self, unlocked, MemoryAtomicityMode.RELEASE, MemoryAtomicityMode.MONOTONIC);
+        }
+        Value success = fb.extractMember(result, ((CompoundType) result.getType()).getMember(1));
+        BlockLabel slow = new BlockLabel();
+        BlockLabel resume = new BlockLabel();
+        fb.if_(success, resume, slow);
+        fb.begin(slow);
+        fb.invokeStatic(methodElement, args);
+        fb.goto_(resume);
+        return fb.begin(resume);
     }
 }
@@ -0,0 +1,378 @@
+package org.qbicc.plugin.opt;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.qbicc.context.CompilationContext;
+import org.qbicc.graph.Add;
+import org.qbicc.graph.ArrayLength;
+import org.qbicc.graph.BasicBlock;
+import org.qbicc.graph.If;
+import org.qbicc.graph.IsEq;
+import org.qbicc.graph.IsGe;
+import org.qbicc.graph.IsGt;
+import org.qbicc.graph.IsLe;
+import org.qbicc.graph.IsLt;
+import org.qbicc.graph.IsNe;
+import org.qbicc.graph.NewArray;
+import org.qbicc.graph.Node;
+import org.qbicc.graph.NodeVisitor;
+import org.qbicc.graph.PhiValue;
+import org.qbicc.graph.ReferenceHandle;
+import org.qbicc.graph.Terminator;
+import org.qbicc.graph.Value;
+import org.qbicc.graph.ValueHandle;
+import org.qbicc.graph.literal.IntegerLiteral;
+import org.qbicc.graph.schedule.Dominators;
+import org.qbicc.plugin.metrics.CountMetric;
+import org.qbicc.plugin.metrics.Metrics;
+import org.qbicc.type.FloatType;
+import org.qbicc.type.SignedIntegerType;
+
+/**
+ * A copying visitor which removes branches whose outcome is already known, which are mostly the null, index and
+ * array size checks added by the correctness plugin:
+ * <ul>
+ *     <li>a comparison which is implied (or contradicted) by the outcome of an equivalent comparison in a dominating
+ *     block, such as a repeated null check of the same reference, or an index check against the length of an array
+ *     which the enclosing loop condition already compared the index to;</li>
+ *     <li>a comparison of a counted loop's induction variable against a constant which is not greater than its
+ *     initial value, such as the negative index check of {@code for (int i = 0; i < n; i ++)};</li>
+ *     <li>a comparison of an index {@code i} against the length of an array {@code a}, where a dominating branch
+ *     established {@code i < n} and {@code n} is known not to exceed {@code a.length}, either because a dominating
+ *     branch established it (such as the guard {@code if (n > a.length) throw ...} in front of a loop) or because
+ *     {@code a} was allocated with length {@code n} (or with a constant length of at least {@code n}).  This is the
+ *     upper bound check of {@code for (int i = 0; i < n; i ++) a[i]}.</li>
+ * </ul>
+ * Loops whose bound is not known to be within the array length keep their upper bound check, since a loop-entry
+ * guard would require a second, unchecked copy of the loop, which a block-by-block copy cannot produce.
+ * Removed checks are counted in the {@code check-elimination} metric.
+ */
+public class CheckEliminationVisitor implements NodeVisitor.Delegating<Node.Copier, Value, Node, BasicBlock, ValueHandle> {
+    // bound on the dominator tree walk, which keeps it cheap in very deeply nested methods
+    private static final int MAX_DOMINATOR_STEPS = 256;
+
+    private final CompilationContext context;
+    private final NodeVisitor<Node.Copier, Value, Node, BasicBlock, ValueHandle> delegate;
+    private final CountMetric metric;
+    private final Map<PhiValue, IntegerLiteral> inductionVariables = new HashMap<>();
+    private Dominators dominators;
+
+    public CheckEliminationVisitor(final CompilationContext context, final NodeVisitor<Node.Copier, Value, Node, BasicBlock, ValueHandle> delegate) {
+        this.context = context;
+        this.delegate = delegate;
+        metric = Metrics.get(context).getOrCreateRootCountMetric("check-elimination");
+    }
+
+    public NodeVisitor<Node.Copier, Value, Node, BasicBlock, ValueHandle> getDelegateNodeVisitor() {
+        return delegate;
+    }
+
+    public BasicBlock visit(final Node.Copier param, final If node) {
+        Boolean outcome = findOutcome(param.getEntryBlock(), node.getTerminatedBlock(), node.getCondition());
+        if (outcome != null) {
+            return goto_(param, node, outcome.booleanValue() ? node.getTrueBranch() : node.getFalseBranch());
+        }
+        return getDelegateTerminatorVisitor().visit(param, node);
+    }
+
+    /**
+     * Find the outcome of a branch condition at the end of the given block.
+     *
+     * @param entryBlock the entry block of the method
+     * @param block the block which ends with the branch
+     * @param condition the branch condition
+     * @return the value of the condition, or {@code null} if it is not known
+     */
+    Boolean findOutcome(final BasicBlock entryBlock, final BasicBlock block, final Value condition) {
+        if (dominators == null) {
+            dominators = Dominators.of(entryBlock);
+        }
+        Comparison comparison = Comparison.of(condition, true);
+        if (comparison == null) {
+            return null;
+        }
+        Boolean outcome = findDominatingOutcome(block, comparison);
+        if (outcome != null) {
+            metric.getOrAddChild("dominated").add(1);
+            return outcome;
+        }
+        outcome = findInductionVariableOutcome(comparison);
+        if (outcome != null) {
+            metric.getOrAddChild("induction-variable").add(1);
+            return outcome;
+        }
+        outcome = findBoundedIndexOutcome(block, comparison);
+        if (outcome != null) {
+            metric.getOrAddChild("loop-bound").add(1);
+            return outcome;
+        }
+        return null;
+    }
+
+    private BasicBlock goto_(final Node.Copier param, final Terminator node, final BasicBlock target) {
+        param.copyNode(node.getDependency());
+        param.copyOutboundValues(node);
+        return param.getBlockBuilder().goto_(param.copyBlock(target));
+    }
+
+    /**
+     * Find the outcome of a comparison in the given block from the dominating branches.  A branch edge decides the
+     * comparison if its target has no other predecessor and dominates the block; such targets are exactly the
+     * blocks on the dominator tree path whose immediate dominator ends with that branch.
+     */
+    private Boolean findDominatingOutcome(final BasicBlock block, final Comparison comparison) {
+        BasicBlock child = block;
+        BasicBlock dominator = dominators.getImmediateDominator(child);
+        for (int steps = 0; dominator != null && steps < MAX_DOMINATOR_STEPS; steps ++) {
+            Comparison known = getEdgeComparison(dominator, child);
+            if (known != null) {
+                Boolean outcome = known.implies(comparison);
+                if (outcome != null) {
+                    return outcome;
+                }
+            }
+            child = dominator;
+            dominator = dominators.getImmediateDominator(child);
+        }
+        return null;
+    }
+
+    /**
+     * Get the comparison which is known to hold on the edge from a block to its successor, if the successor can only
+     * be entered over that edge.
+     */
+    private static Comparison getEdgeComparison(final BasicBlock block, final BasicBlock successor) {
+        Terminator terminator = block.getTerminator();
+        if (! (terminator instanceof If) || successor.getIncoming().size() != 1) {
+            return null;
+        }
+        If if_ = (If) terminator;
+        if (if_.getTrueBranch() == if_.getFalseBranch()) {
+            return null;
+        }
+        return Comparison.of(if_.getCondition(), successor == if_.getTrueBranch());
+    }
+
+    // array bounds
+
+    /**
+     * Find the outcome of a comparison {@code i < a.length} (or {@code i >= a.length}) from a dominating comparison
+     * {@code i < n}, where {@code n <= a.length} is known.
+     */
+    private Boolean findBoundedIndexOutcome(final BasicBlock block, final Comparison comparison) {
+        if (comparison.op != Comparison.LT && comparison.op != Comparison.GE || ! (comparison.right instanceof ArrayLength)) {
+            return null;
+        }
+        ArrayLength length = (ArrayLength) comparison.right;
+        BasicBlock child = block;
+        BasicBlock dominator = dominators.getImmediateDominator(child);
+        for (int steps = 0; dominator != null && steps < MAX_DOMINATOR_STEPS; steps ++) {
+            Comparison known = getEdgeComparison(dominator, child);
+            if (known != null && known.op == Comparison.LT && known.left.equals(comparison.left) && isWithinLength(block, known.right, length)) {
+                return Boolean.valueOf(comparison.op == Comparison.LT);
+            }
+            child = dominator;
+            dominator = dominators.getImmediateDominator(child);
+        }
+        return null;
+    }
+
+    /**
+     * Determine whether a bound is known not to exceed the length of an array in the given block.
+     */
+    private boolean isWithinLength(final BasicBlock block, final Value bound, final ArrayLength length) {
+        ValueHandle handle = length.getInstance();
+        if (handle instanceof ReferenceHandle && ((ReferenceHandle) handle).getReferenceValue() instanceof NewArray) {
+            Value size = ((NewArray) ((ReferenceHandle) handle).getReferenceValue()).getSize();
+            if (size.equals(bound)) {
+                return true;
+            }
+            if (size instanceof IntegerLiteral && bound instanceof IntegerLiteral && ((IntegerLiteral) bound).longValue() <= ((IntegerLiteral) size).longValue()) {
+                return true;
+            }
+        }
+        // bound <= length, or bound < length
+        Boolean outcome = findDominatingOutcome(block, new Comparison(Comparison.GE, length, bound));
+        if (outcome != null) {
+            return outcome.booleanValue();
+        }
+        outcome = findDominatingOutcome(block, new Comparison(Comparison.LT, bound, length));
+        return outcome != null && outcome.booleanValue();
+    }
+
+    // induction variables
+
+    private Boolean findInductionVariableOutcome(final Comparison comparison) {
+        if (! (comparison.left instanceof PhiValue) || ! (comparison.right instanceof IntegerLiteral)) {
+            return null;
+        }
+        IntegerLiteral initial = getNonNegativeInitialValue((PhiValue) comparison.left);
+        if (initial == null || ((IntegerLiteral) comparison.right).longValue() > initial.longValue()) {
+            return null;
+        }
+        // the variable never drops below its initial value, which is not below the constant
+        switch (comparison.op) {
+            case Comparison.LT: return Boolean.FALSE;
+            case Comparison.GE: return Boolean.TRUE;
+            default: return null;
+        }
+    }
+
+    private IntegerLiteral getNonNegativeInitialValue(final PhiValue phi) {
+        if (inductionVariables.containsKey(phi)) {
+            return inductionVariables.get(phi);
+        }
+        IntegerLiteral initial = findNonNegativeInitialValue(phi);
+        inductionVariables.put(phi, initial);
+        return initial;
+    }
+
+    /**
+     * Recognize the induction variable {@code i} of a counted loop, that is {@code i = phi(c, i + 1)} where {@code c}
+     * is a non-negative constant and where the increment is only reached after a signed {@code i < n} test has
+     * passed.  Such a variable can never overflow, so each of its values is at least {@code c}.
+     *
+     * @return the initial value, or {@code null} if the phi is not such an induction variable
+     */
+    private IntegerLiteral findNonNegativeInitialValue(final PhiValue phi) {
+        if (! (phi.getType() instanceof SignedIntegerType)) {
+            return null;
+        }
+        BasicBlock header = phi.getPinnedBlock();
+        Set<BasicBlock> incoming = header.getIncoming();
+        if (incoming.size() != 2) {
+            return null;
+        }
+        BasicBlock entering = null;
+        BasicBlock backEdge = null;
+        for (BasicBlock predecessor : incoming) {
+            if (dominators.dominates(header, predecessor)) {
+                backEdge = predecessor;
+            } else {
+                entering = predecessor;
+            }
+        }
+        if (entering == null || backEdge == null) {
+            return null;
+        }
+        Value initial = phi.getValueForInput(entering.getTerminator());
+        if (! (initial instanceof IntegerLiteral) || ((IntegerLiteral) initial).longValue() < 0) {
+            return null;
+        }
+        if (! isIncrement(phi.getValueForInput(backEdge.getTerminator()), phi)) {
+            return null;
+        }
+        // find the loop test among the branches which dominate the back edge
+        BasicBlock child = backEdge;
+        for (int steps = 0; child != header && steps < MAX_DOMINATOR_STEPS; steps ++) {
+            BasicBlock dominator = dominators.getImmediateDominator(child);
+            Comparison known = getEdgeComparison(dominator, child);
+            if (known != null && known.op == Comparison.LT && known.left.equals(phi)) {
+                return (IntegerLiteral) initial;
+            }
+            child = dominator;
+        }
+        return null;
+    }
+
+    private static boolean isIncrement(final Value value, final PhiValue phi) {
+        if (value instanceof Add) {
+            Value left = ((Add) value).getLeftInput();
+            Value right = ((Add) value).getRightInput();
+            return left.equals(phi) && isOne(right) || right.equals(phi) && isOne(left);
+        }
+        return false;
+    }
+
+    private static boolean isOne(final Value value) {
+        return value instanceof IntegerLiteral && ((IntegerLiteral) value).longValue() == 1;
+    }
+
+    /**
+     * An integer or reference comparison in one of the forms {@code ==}, {@code !=}, {@code <} or {@code >=}.
+     */
+    static final class Comparison {
+        static final int EQ = 0;
+        static final int NE = 1;
+        static final int LT = 2;
+        static final int GE = 3;
+
+        final int op;
+        final Value left;
+        final Value right;
+
+        private Comparison(final int op, final Value left, final Value right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        /**
+         * Get the comparison which holds when the given condition has the given value.
+         *
+         * @param condition the condition
+         * @param value the value of the condition
+         * @return the comparison, or {@code null} if the condition is not a supported comparison
+         */
+        static Comparison of(final Value condition, final boolean value) {
+            Comparison comparison;
+            if (condition instanceof IsEq) {
+                comparison = new Comparison(EQ, ((IsEq) condition).getLeftInput(), ((IsEq) condition).getRightInput());
+            } else if (condition instanceof IsNe) {
+                comparison = new Comparison(NE, ((IsNe) condition).getLeftInput(), ((IsNe) condition).getRightInput());
+            } else if (condition instanceof IsLt) {
+                comparison = new Comparison(LT, ((IsLt) condition).getLeftInput(), ((IsLt) condition).getRightInput());
+            } else if (condition instanceof IsGe) {
+                comparison = new Comparison(GE, ((IsGe) condition).getLeftInput(), ((IsGe) condition).getRightInput());
+            } else if (condition instanceof IsGt) {
+                comparison = new Comparison(LT, ((IsGt) condition).getRightInput(), ((IsGt) condition).getLeftInput());
+            } else if (condition instanceof IsLe) {
+                comparison = new Comparison(GE, ((IsLe) condition).getRightInput(), ((IsLe) condition).getLeftInput());
+            } else {
+                return null;
+            }
+            // an unordered float comparison is false both ways, so it cannot be negated
+            if (comparison.left.getType() instanceof FloatType) {
+                return null;
+            }
+            return value ? comparison : comparison.negate();
+        }
+
+        Comparison negate() {
+            return new Comparison(op ^ 1, left, right);
+        }
+
+        /**
+         * Determine the value of another comparison when this comparison holds.
+         *
+         * @param other the other comparison
+         * @return the value of the other comparison, or {@code null} if it is not known
+         */
+        Boolean implies(final Comparison other) {
+            boolean sameInputs = equivalent(left, other.left) && equivalent(right, other.right)
+                || op <= NE && other.op <= NE && equivalent(left, other.right) && equivalent(right, other.left);
+            if (! sameInputs) {
+                return null;
+            } else if (op == other.op) {
+                return Boolean.TRUE;
+            } else if ((op ^ 1) == other.op) {
+                return Boolean.FALSE;
+            } else {
+                return null;
+            }
+        }
+
+        /**
+         * Two values are equivalent if they are equal, or if they are the lengths of the same array (the length of an
+         * array never changes, so its position in the memory dependency chain does not matter).
+         */
+        private static boolean equivalent(final Value a, final Value b) {
+            if (a.equals(b)) {
+                return true;
+            }
+            return a instanceof ArrayLength && b instanceof ArrayLength && ((ArrayLength) a).getInstance().equals(((ArrayLength) b).getInstance());
+        }
+    }
+}
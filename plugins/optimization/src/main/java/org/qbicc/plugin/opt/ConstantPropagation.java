@@ -0,0 +1,364 @@
+package org.qbicc.plugin.opt;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.qbicc.graph.Add;
+import org.qbicc.graph.And;
+import org.qbicc.graph.BasicBlock;
+import org.qbicc.graph.BinaryValue;
+import org.qbicc.graph.Extend;
+import org.qbicc.graph.If;
+import org.qbicc.graph.IsEq;
+import org.qbicc.graph.IsGe;
+import org.qbicc.graph.IsGt;
+import org.qbicc.graph.IsLe;
+import org.qbicc.graph.IsLt;
+import org.qbicc.graph.IsNe;
+import org.qbicc.graph.Multiply;
+import org.qbicc.graph.Neg;
+import org.qbicc.graph.Node;
+import org.qbicc.graph.Or;
+import org.qbicc.graph.OrderedNode;
+import org.qbicc.graph.PhiValue;
+import org.qbicc.graph.Select;
+import org.qbicc.graph.Sub;
+import org.qbicc.graph.Switch;
+import org.qbicc.graph.Terminator;
+import org.qbicc.graph.Truncate;
+import org.qbicc.graph.Value;
+import org.qbicc.graph.Xor;
+import org.qbicc.graph.literal.BooleanLiteral;
+import org.qbicc.graph.literal.IntegerLiteral;
+import org.qbicc.graph.literal.Literal;
+import org.qbicc.graph.literal.LiteralFactory;
+import org.qbicc.type.BooleanType;
+import org.qbicc.type.IntegerType;
+import org.qbicc.type.UnsignedIntegerType;
+import org.qbicc.type.ValueType;
+
+/**
+ * Sparse conditional constant propagation (after Wegman and Zadeck) over a whole method.  Starting from the entry
+ * block, a branch or switch whose condition is constant only makes the one matching successor executable, and a phi
+ * only merges the values which flow in along executable edges.  The result is the set of executable blocks and
+ * edges, and the integer and boolean values which are constant on every executable path.
+ */
+final class ConstantPropagation {
+    // lattice values besides literals
+    private static final Object UNKNOWN = new Object();
+    private static final Object VARYING = new Object();
+
+    private final LiteralFactory lf;
+    private final List<BasicBlock> blocks = new ArrayList<>();
+    private final Map<BasicBlock, List<PhiValue>> phis = new HashMap<>();
+    private final Set<BasicBlock> executable = new HashSet<>();
+    private final Map<BasicBlock, Set<BasicBlock>> executableEdges = new HashMap<>();
+    private final Map<PhiValue, Object> phiValues = new HashMap<>();
+    private final Map<Value, Object> values = new HashMap<>();
+    private final boolean valid;
+
+    ConstantPropagation(final LiteralFactory lf, final BasicBlock entryBlock) {
+        this.lf = lf;
+        findBlocksAndPhis(entryBlock);
+        executable.add(entryBlock);
+        boolean changed;
+        do {
+            changed = false;
+            for (BasicBlock block : blocks) {
+                if (executable.contains(block)) {
+                    changed |= evaluatePhis(block);
+                    changed |= evaluateSuccessors(block);
+                }
+            }
+        } while (changed);
+        valid = checkValid();
+    }
+
+    /**
+     * Determine whether the given block can be executed.
+     *
+     * @param block the block
+     * @return {@code true} if the block may be executed, or {@code false} if it never is
+     */
+    boolean isExecutable(BasicBlock block) {
+        return ! valid || executable.contains(block);
+    }
+
+    /**
+     * Get the constant value of the given value.
+     *
+     * @param value the value
+     * @return the literal value, or {@code null} if the value is not (known to be) constant
+     */
+    Literal getConstant(Value value) {
+        if (! valid || value instanceof Literal) {
+            return null;
+        }
+        Object result = evaluate(value);
+        return result instanceof Literal ? (Literal) result : null;
+    }
+
+    private boolean checkValid() {
+        // a branch on a value which is never computed leaves its block without executable successors; that only
+        // happens in code which cannot complete, and copying such code as-is is simpler than dropping it
+        for (BasicBlock block : blocks) {
+            if (executable.contains(block)) {
+                Terminator t = block.getTerminator();
+                if (t instanceof If && evaluate(((If) t).getCondition()) == UNKNOWN
+                    || t instanceof Switch && evaluate(((Switch) t).getSwitchValue()) == UNKNOWN) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void findBlocksAndPhis(BasicBlock entryBlock) {
+        Set<BasicBlock> visitedBlocks = new LinkedHashSet<>();
+        Set<Node> visitedNodes = new HashSet<>();
+        ArrayDeque<BasicBlock> blockQueue = new ArrayDeque<>();
+        ArrayDeque<Node> nodeQueue = new ArrayDeque<>();
+        visitedBlocks.add(entryBlock);
+        blockQueue.add(entryBlock);
+        BasicBlock block;
+        while ((block = blockQueue.poll()) != null) {
+            Terminator terminator = block.getTerminator();
+            if (visitedNodes.add(terminator)) {
+                nodeQueue.add(terminator);
+            }
+            int cnt = terminator.getSuccessorCount();
+            for (int i = 0; i < cnt; i ++) {
+                BasicBlock successor = terminator.getSuccessor(i);
+                if (visitedBlocks.add(successor)) {
+                    blockQueue.add(successor);
+                }
+            }
+        }
+        blocks.addAll(visitedBlocks);
+        Node node;
+        while ((node = nodeQueue.poll()) != null) {
+            if (node instanceof OrderedNode && ((OrderedNode) node).hasDependency()) {
+                Node dependency = ((OrderedNode) node).getDependency();
+                if (visitedNodes.add(dependency)) {
+                    nodeQueue.add(dependency);
+                }
+            }
+            if (node.hasValueHandleDependency() && visitedNodes.add(node.getValueHandle())) {
+                nodeQueue.add(node.getValueHandle());
+            }
+            int cnt = node.getValueDependencyCount();
+            for (int i = 0; i < cnt; i ++) {
+                Value dependency = node.getValueDependency(i);
+                if (visitedNodes.add(dependency)) {
+                    nodeQueue.add(dependency);
+                }
+            }
+            if (node instanceof PhiValue) {
+                PhiValue phi = (PhiValue) node;
+                BasicBlock pinnedBlock = phi.getPinnedBlock();
+                phis.computeIfAbsent(pinnedBlock, b -> new ArrayList<>()).add(phi);
+                for (BasicBlock incoming : pinnedBlock.getIncoming()) {
+                    Value input = phi.getValueForInput(incoming.getTerminator());
+                    if (input != null && visitedNodes.add(input)) {
+                        nodeQueue.add(input);
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean evaluatePhis(BasicBlock block) {
+        boolean changed = false;
+        for (PhiValue phi : phis.getOrDefault(block, List.of())) {
+            Object result = UNKNOWN;
+            for (BasicBlock incoming : block.getIncoming()) {
+                if (executableEdges.getOrDefault(incoming, Set.of()).contains(block)) {
+                    Value input = phi.getValueForInput(incoming.getTerminator());
+                    result = meet(result, input == null ? VARYING : evaluate(input));
+                }
+            }
+            Object old = phiValues.getOrDefault(phi, UNKNOWN);
+            // never move back up the lattice
+            result = meet(old, result);
+            if (! result.equals(old)) {
+                phiValues.put(phi, result);
+                // everything computed from this phi must be evaluated again
+                values.clear();
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private boolean evaluateSuccessors(BasicBlock block) {
+        Terminator t = block.getTerminator();
+        if (t instanceof If) {
+            If if_ = (If) t;
+            Object condition = evaluate(if_.getCondition());
+            if (condition instanceof BooleanLiteral) {
+                return addEdge(block, ((BooleanLiteral) condition).booleanValue() ? if_.getTrueBranch() : if_.getFalseBranch());
+            } else if (condition == UNKNOWN) {
+                return false;
+            }
+        } else if (t instanceof Switch) {
+            Switch switch_ = (Switch) t;
+            Object switchValue = evaluate(switch_.getSwitchValue());
+            if (switchValue instanceof IntegerLiteral) {
+                int index = switch_.getIndexForValue(((IntegerLiteral) switchValue).intValue());
+                return addEdge(block, index == -1 ? switch_.getDefaultTarget() : switch_.getTargetForIndex(index));
+            } else if (switchValue == UNKNOWN) {
+                return false;
+            }
+        }
+        boolean changed = false;
+        int cnt = t.getSuccessorCount();
+        for (int i = 0; i < cnt; i ++) {
+            changed |= addEdge(block, t.getSuccessor(i));
+        }
+        return changed;
+    }
+
+    private boolean addEdge(BasicBlock from, BasicBlock to) {
+        boolean added = executableEdges.computeIfAbsent(from, b -> new HashSet<>()).add(to);
+        executable.add(to);
+        return added;
+    }
+
+    private static Object meet(Object a, Object b) {
+        if (a == UNKNOWN) {
+            return b;
+        } else if (b == UNKNOWN || a.equals(b)) {
+            return a;
+        } else {
+            return VARYING;
+        }
+    }
+
+    private Object evaluate(Value value) {
+        if (value instanceof IntegerLiteral || value instanceof BooleanLiteral) {
+            return value;
+        } else if (value instanceof PhiValue) {
+            return phiValues.getOrDefault(value, UNKNOWN);
+        }
+        Object result = values.get(value);
+        if (result == null) {
+            result = compute(value);
+            values.put(value, result);
+        }
+        return result;
+    }
+
+    private Object compute(Value value) {
+        if (value instanceof Select) {
+            Select select = (Select) value;
+            Object condition = evaluate(select.getCondition());
+            if (condition instanceof BooleanLiteral) {
+                return evaluate(((BooleanLiteral) condition).booleanValue() ? select.getTrueValue() : select.getFalseValue());
+            } else if (condition == UNKNOWN) {
+                return UNKNOWN;
+            }
+            return meet(evaluate(select.getTrueValue()), evaluate(select.getFalseValue()));
+        } else if (value instanceof BinaryValue) {
+            BinaryValue binary = (BinaryValue) value;
+            Object left = evaluate(binary.getLeftInput());
+            Object right = evaluate(binary.getRightInput());
+            if (left == VARYING || right == VARYING) {
+                return VARYING;
+            } else if (left == UNKNOWN || right == UNKNOWN) {
+                return UNKNOWN;
+            }
+            return fold(binary, (Literal) left, (Literal) right);
+        } else if (value instanceof Neg || value instanceof Truncate || value instanceof Extend) {
+            Value input = value instanceof Neg ? ((Neg) value).getInput() : value instanceof Truncate ? ((Truncate) value).getInput() : ((Extend) value).getInput();
+            Object operand = evaluate(input);
+            if (! (operand instanceof Literal)) {
+                return operand;
+            }
+            return fold(value, input.getType(), (Literal) operand);
+        } else {
+            return VARYING;
+        }
+    }
+
+    private Object fold(BinaryValue value, Literal left, Literal right) {
+        ValueType inputType = value.getLeftInput().getType();
+        if (left instanceof BooleanLiteral && right instanceof BooleanLiteral) {
+            boolean a = ((BooleanLiteral) left).booleanValue();
+            boolean b = ((BooleanLiteral) right).booleanValue();
+            if (value instanceof And) {
+                return lf.literalOf(a & b);
+            } else if (value instanceof Or) {
+                return lf.literalOf(a | b);
+            } else if (value instanceof Xor || value instanceof IsNe) {
+                return lf.literalOf(a ^ b);
+            } else if (value instanceof IsEq) {
+                return lf.literalOf(a == b);
+            }
+            return VARYING;
+        } else if (left instanceof IntegerLiteral && right instanceof IntegerLiteral && inputType instanceof IntegerType) {
+            IntegerType type = (IntegerType) inputType;
+            long a = type.truncateValue(((IntegerLiteral) left).longValue());
+            long b = type.truncateValue(((IntegerLiteral) right).longValue());
+            int cmp = type instanceof UnsignedIntegerType ? Long.compareUnsigned(a, b) : Long.compare(a, b);
+            if (value instanceof IsEq) {
+                return lf.literalOf(cmp == 0);
+            } else if (value instanceof IsNe) {
+                return lf.literalOf(cmp != 0);
+            } else if (value instanceof IsLt) {
+                return lf.literalOf(cmp < 0);
+            } else if (value instanceof IsLe) {
+                return lf.literalOf(cmp <= 0);
+            } else if (value instanceof IsGt) {
+                return lf.literalOf(cmp > 0);
+            } else if (value instanceof IsGe) {
+                return lf.literalOf(cmp >= 0);
+            } else if (! (value.getType() instanceof IntegerType)) {
+                return VARYING;
+            }
+            long result;
+            if (value instanceof Add) {
+                result = a + b;
+            } else if (value instanceof Sub) {
+                result = a - b;
+            } else if (value instanceof Multiply) {
+                result = a * b;
+            } else if (value instanceof And) {
+                result = a & b;
+            } else if (value instanceof Or) {
+                result = a | b;
+            } else if (value instanceof Xor) {
+                result = a ^ b;
+            } else {
+                return VARYING;
+            }
+            IntegerType resultType = (IntegerType) value.getType();
+            return lf.literalOf(resultType, resultType.truncateValue(result));
+        }
+        return VARYING;
+    }
+
+    private Object fold(Value value, ValueType inputType, Literal operand) {
+        ValueType resultType = value.getType();
+        if (operand instanceof IntegerLiteral && inputType instanceof IntegerType) {
+            long a = ((IntegerType) inputType).truncateValue(((IntegerLiteral) operand).longValue());
+            if (value instanceof Neg) {
+                a = -a;
+            }
+            if (resultType instanceof IntegerType) {
+                // extension follows the signedness of the input, which truncation to the input type has preserved
+                return lf.literalOf((IntegerType) resultType, ((IntegerType) resultType).truncateValue(a));
+            } else if (resultType instanceof BooleanType && value instanceof Truncate) {
+                return lf.literalOf((a & 1) != 0);
+            }
+        } else if (operand instanceof BooleanLiteral && value instanceof Extend && resultType instanceof IntegerType) {
+            return lf.literalOf((IntegerType) resultType, ((BooleanLiteral) operand).booleanValue() ? 1 : 0);
+        }
+        return VARYING;
+    }
+}
@@ -0,0 +1,356 @@
+package org.qbicc.plugin.opt;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.qbicc.context.AttachmentKey;
+import org.qbicc.context.CompilationContext;
+import org.qbicc.graph.AbstractBooleanCompare;
+import org.qbicc.graph.ArrayLength;
+import org.qbicc.graph.BasicBlock;
+import org.qbicc.graph.CheckCast;
+import org.qbicc.graph.DispatchInvocation;
+import org.qbicc.graph.ElementOf;
+import org.qbicc.graph.InstanceFieldOf;
+import org.qbicc.graph.InstanceOf;
+import org.qbicc.graph.InstanceOperation;
+import org.qbicc.graph.Invocation;
+import org.qbicc.graph.Load;
+import org.qbicc.graph.New;
+import org.qbicc.graph.NewArray;
+import org.qbicc.graph.Node;
+import org.qbicc.graph.OrderedNode;
+import org.qbicc.graph.ParameterValue;
+import org.qbicc.graph.PhiValue;
+import org.qbicc.graph.ReferenceHandle;
+import org.qbicc.graph.Store;
+import org.qbicc.graph.Terminator;
+import org.qbicc.graph.Try;
+import org.qbicc.graph.TypeIdOf;
+import org.qbicc.graph.Value;
+import org.qbicc.graph.ValueHandle;
+import org.qbicc.graph.schedule.Schedule;
+import org.qbicc.type.ObjectType;
+import org.qbicc.type.definition.MethodBody;
+import org.qbicc.type.definition.element.ExecutableElement;
+
+/**
+ * Escape analysis of object allocations.
+ * <p>
+ * Each method body is analyzed once it is built in the {@code ANALYZE} phase (that is, after inlining).  For every
+ * allocation site and every parameter of the method, the analysis records whether the value may escape the method
+ * directly, and which exactly-invoked methods it is passed to.  Whether a value escapes by way of those methods is
+ * resolved on demand, once all reachable methods have been analyzed.
+ * <p>
+ * A value does not escape if it is only used to access its own fields, elements, length or type, to compare it,
+ * to cast it, or to pass it to exactly-invoked methods in which the corresponding parameter does not escape.  Any other
+ * use, such as storing it into memory, returning or throwing it, or merging it in a {@code phi}, is an escape.
+ */
+public final class EscapeAnalysis {
+    private static final AttachmentKey<EscapeAnalysis> KEY = new AttachmentKey<>();
+
+    private final Map<ExecutableElement, MethodInfo> methodInfos = new ConcurrentHashMap<>();
+    private final Map<Fact, Boolean> resolved = new ConcurrentHashMap<>();
+
+    private EscapeAnalysis() {}
+
+    public static EscapeAnalysis get(CompilationContext ctxt) {
+        EscapeAnalysis escapeAnalysis = ctxt.getAttachment(KEY);
+        if (escapeAnalysis == null) {
+            escapeAnalysis = new EscapeAnalysis();
+            EscapeAnalysis appearing = ctxt.putAttachmentIfAbsent(KEY, escapeAnalysis);
+            if (appearing != null) {
+                escapeAnalysis = appearing;
+            }
+        }
+        return escapeAnalysis;
+    }
+
+    /**
+     * Analyze the current method body of the given element.
+     *
+     * @param element the element (must not be {@code null})
+     */
+    public void analyze(ExecutableElement element) {
+        if (! element.hasMethodBody()) {
+            return;
+        }
+        MethodBody body = element.getMethodBody();
+        Uses uses = new Uses(body.getEntryBlock());
+        Schedule schedule = body.getSchedule();
+        Map<Site, Fact> sites = new HashMap<>();
+        for (Value allocation : uses.allocations) {
+            ObjectType type = allocation instanceof New ? ((New) allocation).getClassObjectType() : ((NewArray) allocation).getArrayType();
+            BasicBlock block = schedule.getBlockForNode(allocation);
+            Fact fact = analyzeValue(allocation, new Fact(type, block == null || ! block.getLoops().isEmpty()), uses);
+            sites.merge(new Site(allocation.getElement(), allocation.getBytecodeIndex()), fact, Fact::merge);
+        }
+        List<ParameterValue> parameterValues = body.getParameterValues();
+        Fact[] parameters = new Fact[parameterValues.size() + 1];
+        ParameterValue thisValue = body.getThisValue();
+        if (thisValue != null) {
+            parameters[0] = analyzeValue(thisValue, new Fact(null, false), uses);
+        }
+        for (int i = 0; i < parameterValues.size(); i ++) {
+            parameters[i + 1] = analyzeValue(parameterValues.get(i), new Fact(null, false), uses);
+        }
+        methodInfos.put(element, new MethodInfo(sites, parameters));
+    }
+
+    /**
+     * Determine whether the object allocated at the given site does not escape the method being compiled, and is not
+     * allocated within a loop, so that it may be allocated on the stack of that method.
+     *
+     * @param rootElement the method being compiled (must not be {@code null})
+     * @param element the element of the allocation site, which differs from {@code rootElement} if it was inlined (must not be {@code null})
+     * @param bci the bytecode index of the allocation site
+     * @param type the allocated type (must not be {@code null})
+     * @return {@code true} if the object may be allocated on the stack, or {@code false} otherwise
+     */
+    public boolean isStackAllocatable(ExecutableElement rootElement, ExecutableElement element, int bci, ObjectType type) {
+        MethodInfo info = methodInfos.get(rootElement);
+        if (info == null) {
+            return false;
+        }
+        Fact fact = info.sites.get(new Site(element, bci));
+        return fact != null && ! fact.inLoop && type.equals(fact.type) && ! escapes(fact, new HashSet<>());
+    }
+
+    private boolean escapes(Fact fact, Set<Fact> inProgress) {
+        if (fact.escapes) {
+            return true;
+        }
+        if (fact.dependencies.isEmpty()) {
+            return false;
+        }
+        Boolean result = resolved.get(fact);
+        if (result != null) {
+            return result.booleanValue();
+        }
+        if (! inProgress.add(fact)) {
+            // recursive call chain; give up
+            return true;
+        }
+        boolean escapes = false;
+        for (Dependency dependency : fact.dependencies) {
+            MethodInfo calleeInfo = methodInfos.get(dependency.callee);
+            Fact parameter = calleeInfo == null ? null : calleeInfo.parameters[dependency.index + 1];
+            if (parameter == null || escapes(parameter, inProgress)) {
+                escapes = true;
+                break;
+            }
+        }
+        inProgress.remove(fact);
+        resolved.put(fact, Boolean.valueOf(escapes));
+        return escapes;
+    }
+
+    private static Fact analyzeValue(Value value, Fact fact, Uses uses) {
+        ArrayDeque<Value> aliases = new ArrayDeque<>();
+        Set<Value> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        aliases.add(value);
+        Value alias;
+        while ((alias = aliases.poll()) != null) {
+            if (! seen.add(alias)) {
+                continue;
+            }
+            for (Node user : uses.getValueUsers(alias)) {
+                if (user instanceof ReferenceHandle) {
+                    if (! isLocalHandle((ValueHandle) user, uses)) {
+                        fact.escapes = true;
+                    }
+                } else if (user instanceof CheckCast && ((CheckCast) user).getInput() == alias) {
+                    aliases.add((CheckCast) user);
+                } else if (user instanceof InstanceOf || user instanceof AbstractBooleanCompare) {
+                    // no effect
+                } else if (user instanceof Invocation) {
+                    if (! addDependencies(fact, (Invocation) user, alias)) {
+                        fact.escapes = true;
+                    }
+                } else {
+                    fact.escapes = true;
+                }
+                if (fact.escapes) {
+                    return fact;
+                }
+            }
+        }
+        return fact;
+    }
+
+    private static boolean isLocalHandle(ValueHandle handle, Uses uses) {
+        for (Node user : uses.getHandleUsers(handle)) {
+            if (user instanceof InstanceFieldOf || user instanceof ElementOf) {
+                if (! isLocalHandle((ValueHandle) user, uses)) {
+                    return false;
+                }
+            } else if (! (user instanceof Load || user instanceof Store || user instanceof ArrayLength || user instanceof TypeIdOf)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean addDependencies(Fact fact, Invocation invocation, Value value) {
+        if (invocation instanceof DispatchInvocation && ((DispatchInvocation) invocation).getKind() != DispatchInvocation.Kind.EXACT) {
+            return false;
+        }
+        ExecutableElement target = invocation.getInvocationTarget();
+        if (invocation instanceof InstanceOperation && ((InstanceOperation) invocation).getInstance() == value) {
+            fact.dependencies.add(new Dependency(target, -1));
+        }
+        int cnt = invocation.getArgumentCount();
+        for (int i = 0; i < cnt; i ++) {
+            if (invocation.getArgument(i) == value) {
+                fact.dependencies.add(new Dependency(target, i));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The uses of the nodes of a method body.
+     */
+    static final class Uses {
+        final List<Value> allocations = new ArrayList<>();
+        private final Map<Value, List<Node>> valueUsers = new IdentityHashMap<>();
+        private final Map<ValueHandle, List<Node>> handleUsers = new IdentityHashMap<>();
+
+        Uses(BasicBlock entryBlock) {
+            Set<BasicBlock> visitedBlocks = new HashSet<>();
+            Set<Node> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+            ArrayDeque<BasicBlock> blockQueue = new ArrayDeque<>();
+            ArrayDeque<Node> queue = new ArrayDeque<>();
+            blockQueue.add(entryBlock);
+            BasicBlock block;
+            while ((block = blockQueue.poll()) != null) {
+                if (! visitedBlocks.add(block)) {
+                    continue;
+                }
+                Terminator terminator = block.getTerminator();
+                queue.add(terminator);
+                Node node;
+                while ((node = queue.poll()) != null) {
+                    if (! visited.add(node)) {
+                        continue;
+                    }
+                    if (node instanceof New || node instanceof NewArray) {
+                        allocations.add((Value) node);
+                    }
+                    if (node instanceof OrderedNode && ((OrderedNode) node).hasDependency()) {
+                        queue.add(((OrderedNode) node).getDependency());
+                    }
+                    if (node instanceof Try) {
+                        queue.add(((Try) node).getDelegateOperation());
+                    }
+                    int cnt = node.getValueDependencyCount();
+                    for (int i = 0; i < cnt; i ++) {
+                        Value value = node.getValueDependency(i);
+                        valueUsers.computeIfAbsent(value, Uses::newList).add(node);
+                        queue.add(value);
+                    }
+                    if (node.hasValueHandleDependency()) {
+                        ValueHandle handle = node.getValueHandle();
+                        handleUsers.computeIfAbsent(handle, Uses::newList).add(node);
+                        queue.add(handle);
+                    }
+                    if (node instanceof PhiValue) {
+                        for (Value value : ((PhiValue) node).getPossibleValues()) {
+                            valueUsers.computeIfAbsent(value, Uses::newList).add(node);
+                            queue.add(value);
+                        }
+                    }
+                }
+                int cnt = terminator.getSuccessorCount();
+                for (int i = 0; i < cnt; i ++) {
+                    blockQueue.add(terminator.getSuccessor(i));
+                }
+            }
+        }
+
+        List<Node> getValueUsers(Value value) {
+            return valueUsers.getOrDefault(value, List.of());
+        }
+
+        List<Node> getHandleUsers(ValueHandle handle) {
+            return handleUsers.getOrDefault(handle, List.of());
+        }
+
+        private static <E> List<E> newList(Object ignored) {
+            return new ArrayList<>();
+        }
+    }
+
+    static final class MethodInfo {
+        final Map<Site, Fact> sites;
+        // index 0 is the receiver, if any
+        final Fact[] parameters;
+
+        MethodInfo(final Map<Site, Fact> sites, final Fact[] parameters) {
+            this.sites = sites;
+            this.parameters = parameters;
+        }
+    }
+
+    static final class Site {
+        final ExecutableElement element;
+        final int bci;
+
+        Site(final ExecutableElement element, final int bci) {
+            this.element = element;
+            this.bci = bci;
+        }
+
+        public int hashCode() {
+            return Objects.hash(element, Integer.valueOf(bci));
+        }
+
+        public boolean equals(final Object obj) {
+            return obj instanceof Site && equals((Site) obj);
+        }
+
+        boolean equals(final Site other) {
+            return this == other || other != null && element == other.element && bci == other.bci;
+        }
+    }
+
+    static final class Fact {
+        final ObjectType type;
+        final List<Dependency> dependencies = new ArrayList<>();
+        boolean inLoop;
+        boolean escapes;
+
+        Fact(final ObjectType type, final boolean inLoop) {
+            this.type = type;
+            this.inLoop = inLoop;
+        }
+
+        static Fact merge(Fact a, Fact b) {
+            // the same site was inlined more than once
+            a.inLoop |= b.inLoop;
+            a.escapes |= b.escapes || ! Objects.equals(a.type, b.type);
+            a.dependencies.addAll(b.dependencies);
+            return a;
+        }
+    }
+
+    static final class Dependency {
+        final ExecutableElement callee;
+        // -1 for the receiver
+        final int index;
+
+        Dependency(final ExecutableElement callee, final int index) {
+            this.callee = callee;
+            this.index = index;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package org.qbicc.plugin.opt;
+
+import org.qbicc.context.CompilationContext;
+import org.qbicc.type.definition.element.BasicElement;
+import org.qbicc.type.definition.element.ElementVisitor;
+import org.qbicc.type.definition.element.ExecutableElement;
+
+/**
+ * An element visitor which runs the escape analysis on each method body in the {@code ANALYZE} phase.
+ */
+public class EscapeAnalysisVisitor implements ElementVisitor<CompilationContext, Void> {
+    public Void visitUnknown(final CompilationContext ctxt, final BasicElement element) {
+        if (element instanceof ExecutableElement) {
+            EscapeAnalysis.get(ctxt).analyze((ExecutableElement) element);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,436 @@
+package org.qbicc.plugin.opt;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.qbicc.context.CompilationContext;
+import org.qbicc.graph.Add;
+import org.qbicc.graph.And;
+import org.qbicc.graph.ArrayLength;
+import org.qbicc.graph.BasicBlock;
+import org.qbicc.graph.BitCast;
+import org.qbicc.graph.BlockEntry;
+import org.qbicc.graph.ClassOf;
+import org.qbicc.graph.Clone;
+import org.qbicc.graph.Cmp;
+import org.qbicc.graph.CmpG;
+import org.qbicc.graph.CmpL;
+import org.qbicc.graph.Convert;
+import org.qbicc.graph.CurrentThreadRead;
+import org.qbicc.graph.Extend;
+import org.qbicc.graph.Goto;
+import org.qbicc.graph.If;
+import org.qbicc.graph.InstanceFieldOf;
+import org.qbicc.graph.InstanceOf;
+import org.qbicc.graph.IsEq;
+import org.qbicc.graph.IsGe;
+import org.qbicc.graph.IsGt;
+import org.qbicc.graph.IsLe;
+import org.qbicc.graph.IsLt;
+import org.qbicc.graph.IsNe;
+import org.qbicc.graph.Load;
+import org.qbicc.graph.Max;
+import org.qbicc.graph.MemoryAtomicityMode;
+import org.qbicc.graph.Min;
+import org.qbicc.graph.Multiply;
+import org.qbicc.graph.Neg;
+import org.qbicc.graph.New;
+import org.qbicc.graph.NewArray;
+import org.qbicc.graph.Node;
+import org.qbicc.graph.NodeVisitor;
+import org.qbicc.graph.Or;
+import org.qbicc.graph.OrderedNode;
+import org.qbicc.graph.PhiValue;
+import org.qbicc.graph.PinnedNode;
+import org.qbicc.graph.ReferenceHandle;
+import org.qbicc.graph.Rol;
+import org.qbicc.graph.Ror;
+import org.qbicc.graph.Select;
+import org.qbicc.graph.Shl;
+import org.qbicc.graph.Shr;
+import org.qbicc.graph.StaticField;
+import org.qbicc.graph.Store;
+import org.qbicc.graph.Sub;
+import org.qbicc.graph.Switch;
+import org.qbicc.graph.Terminator;
+import org.qbicc.graph.Truncate;
+import org.qbicc.graph.TypeIdOf;
+import org.qbicc.graph.Unschedulable;
+import org.qbicc.graph.Value;
+import org.qbicc.graph.ValueHandle;
+import org.qbicc.graph.Xor;
+import org.qbicc.graph.literal.BooleanLiteral;
+import org.qbicc.graph.literal.IntegerLiteral;
+import org.qbicc.graph.literal.Literal;
+import org.qbicc.graph.schedule.Dominators;
+
+/**
+ * A copying visitor which optimizes a whole method at once:
+ * <ul>
+ *     <li>values which are constant on every executable path (see {@link ConstantPropagation}) are replaced by
+ *     literals, and branches and switches on such values become {@code goto}s, so unreachable arms are not copied;</li>
+ *     <li>pure values which are equal to an already copied value are replaced by that value (the schedule places a
+ *     floating value in the block which dominates all of its uses);</li>
+ *     <li>a plain load is replaced by the value of an earlier load from or store to the same location in the same
+ *     or a dominating block, if no path in between may write that location.</li>
+ * </ul>
+ */
+public class GlobalValueNumberingVisitor implements NodeVisitor.Delegating<Node.Copier, Value, Node, BasicBlock, ValueHandle> {
+    // bounds on the search for an available load, which keep it cheap in very large methods
+    private static final int MAX_CHAIN_STEPS = 256;
+    private static final int MAX_REGION_BLOCKS = 64;
+
+    private final CompilationContext context;
+    private final NodeVisitor<Node.Copier, Value, Node, BasicBlock, ValueHandle> delegate;
+    private final Map<Value, Value> numbered = new HashMap<>();
+    private final Map<BasicBlock, Effects> blockEffects = new HashMap<>();
+    private ConstantPropagation constants;
+    private Dominators dominators;
+
+    public GlobalValueNumberingVisitor(final CompilationContext context, final NodeVisitor<Node.Copier, Value, Node, BasicBlock, ValueHandle> delegate) {
+        this.context = context;
+        this.delegate = delegate;
+    }
+
+    public NodeVisitor<Node.Copier, Value, Node, BasicBlock, ValueHandle> getDelegateNodeVisitor() {
+        return delegate;
+    }
+
+    // terminators
+
+    public BasicBlock visit(final Node.Copier param, final If node) {
+        Literal condition = getConstant(param, node.getCondition());
+        if (condition instanceof BooleanLiteral) {
+            return goto_(param, node, ((BooleanLiteral) condition).booleanValue() ? node.getTrueBranch() : node.getFalseBranch());
+        }
+        return getDelegateTerminatorVisitor().visit(param, node);
+    }
+
+    public BasicBlock visit(final Node.Copier param, final Switch node) {
+        Literal switchValue = getConstant(param, node.getSwitchValue());
+        if (switchValue instanceof IntegerLiteral) {
+            int index = node.getIndexForValue(((IntegerLiteral) switchValue).intValue());
+            return goto_(param, node, index == -1 ? node.getDefaultTarget() : node.getTargetForIndex(index));
+        }
+        return getDelegateTerminatorVisitor().visit(param, node);
+    }
+
+    private BasicBlock goto_(final Node.Copier param, final Terminator node, final BasicBlock target) {
+        param.copyNode(node.getDependency());
+        param.copyOutboundValues(node);
+        return param.getBlockBuilder().goto_(param.copyBlock(target));
+    }
+
+    // values
+
+    public Value visit(final Node.Copier param, final PhiValue node) {
+        Literal constant = getConstant(param, node);
+        return constant != null ? constant : getDelegateValueVisitor().visit(param, node);
+    }
+
+    public Value visit(final Node.Copier param, final Load node) {
+        Value available = findAvailableValue(param, node);
+        if (available != null) {
+            // keep the memory dependencies of the load
+            param.copyNode(node.getDependency());
+            return param.copyValue(available);
+        }
+        return getDelegateValueVisitor().visit(param, node);
+    }
+
+    public Value visit(final Node.Copier param, final Add node) {
+        Literal constant = getConstant(param, node);
+        return constant != null ? constant : number(getDelegateValueVisitor().visit(param, node));
+    }
+
+    public Value visit(final Node.Copier param, final And node) {
+        Literal constant = getConstant(param, node);
+        return constant != null ? constant : number(getDelegateValueVisitor().visit(param, node));
+    }
+
+    public Value visit(final Node.Copier param, final Or node) {
+        Literal constant = getConstant(param, node);
+        return constant != null ? constant : number(getDelegateValueVisitor().visit(param, node));
+    }
+
+    public Value visit(final Node.Copier param, final Xor node) {
+        Literal constant = getConstant(param, node);
+        return constant != null ? constant : number(getDelegateValueVisitor().visit(param, node));
+    }
+
+    public Value visit(final Node.Copier param, final Sub node) {
+        Literal constant = getConstant(param, node);
+        return constant != null ? constant : number(getDelegateValueVisitor().visit(param, node));
+    }
+
+    public Value visit(final Node.Copier param, final Multiply node) {
+        Literal constant = getConstant(param, node);
+        return constant != null ? constant : number(getDelegateValueVisitor().visit(param, node));
+    }
+
+    public Value visit(final Node.Copier param, final Neg node) {
+        Literal constant = getConstant(param, node);
+        return constant != null ? constant : number(getDelegateValueVisitor().visit(param, node));
+    }
+
+    public Value visit(final Node.Copier param, final IsEq node) {
+        Literal constant = getConstant(param, node);
+        return constant != null ? constant : number(getDelegateValueVisitor().visit(param, node));
+    }
+
+    public Value visit(final Node.Copier param, final IsNe node) {
+        Literal constant = getConstant(param, node);
+        return constant != null ? constant : number(getDelegateValueVisitor().visit(param, node));
+    }
+
+    public Value visit(final Node.Copier param, final IsLt node) {
+        Literal constant = getConstant(param, node);
+        return constant != null ? constant : number(getDelegateValueVisitor().visit(param, node));
+    }
+
+    public Value visit(final Node.Copier param, final IsLe node) {
+        Literal constant = getConstant(param, node);
+        return constant != null ? constant : number(getDelegateValueVisitor().visit(param, node));
+    }
+
+    public Value visit(final Node.Copier param, final IsGt node) {
+        Literal constant = getConstant(param, node);
+        return constant != null ? constant : number(getDelegateValueVisitor().visit(param, node));
+    }
+
+    public Value visit(final Node.Copier param, final IsGe node) {
+        Literal constant = getConstant(param, node);
+        return constant != null ? constant : number(getDelegateValueVisitor().visit(param, node));
+    }
+
+    public Value visit(final Node.Copier param, final Select node) {
+        Literal constant = getConstant(param, node);
+        return constant != null ? constant : number(getDelegateValueVisitor().visit(param, node));
+    }
+
+    public Value visit(final Node.Copier param, final Truncate node) {
+        Literal constant = getConstant(param, node);
+        return constant != null ? constant : number(getDelegateValueVisitor().visit(param, node));
+    }
+
+    public Value visit(final Node.Copier param, final Extend node) {
+        Literal constant = getConstant(param, node);
+        return constant != null ? constant : number(getDelegateValueVisitor().visit(param, node));
+    }
+
+    public Value visit(final Node.Copier param, final BitCast node) {
+        return number(getDelegateValueVisitor().visit(param, node));
+    }
+
+    public Value visit(final Node.Copier param, final Convert node) {
+        return number(getDelegateValueVisitor().visit(param, node));
+    }
+
+    public Value visit(final Node.Copier param, final Cmp node) {
+        return number(getDelegateValueVisitor().visit(param, node));
+    }
+
+    public Value visit(final Node.Copier param, final CmpG node) {
+        return number(getDelegateValueVisitor().visit(param, node));
+    }
+
+    public Value visit(final Node.Copier param, final CmpL node) {
+        return number(getDelegateValueVisitor().visit(param, node));
+    }
+
+    public Value visit(final Node.Copier param, final Max node) {
+        return number(getDelegateValueVisitor().visit(param, node));
+    }
+
+    public Value visit(final Node.Copier param, final Min node) {
+        return number(getDelegateValueVisitor().visit(param, node));
+    }
+
+    public Value visit(final Node.Copier param, final Shl node) {
+        return number(getDelegateValueVisitor().visit(param, node));
+    }
+
+    public Value visit(final Node.Copier param, final Shr node) {
+        return number(getDelegateValueVisitor().visit(param, node));
+    }
+
+    public Value visit(final Node.Copier param, final Rol node) {
+        return number(getDelegateValueVisitor().visit(param, node));
+    }
+
+    public Value visit(final Node.Copier param, final Ror node) {
+        return number(getDelegateValueVisitor().visit(param, node));
+    }
+
+    public Value visit(final Node.Copier param, final InstanceOf node) {
+        return number(getDelegateValueVisitor().visit(param, node));
+    }
+
+    public Value visit(final Node.Copier param, final TypeIdOf node) {
+        return number(getDelegateValueVisitor().visit(param, node));
+    }
+
+    public Value visit(final Node.Copier param, final ClassOf node) {
+        return number(getDelegateValueVisitor().visit(param, node));
+    }
+
+    private Literal getConstant(final Node.Copier param, final Value value) {
+        if (constants == null) {
+            constants = new ConstantPropagation(context.getLiteralFactory(), param.getEntryBlock());
+        }
+        return constants.getConstant(value);
+    }
+
+    private Value number(final Value copy) {
+        if (copy instanceof Literal || copy instanceof OrderedNode || copy instanceof PinnedNode || copy instanceof Unschedulable) {
+            return copy;
+        }
+        Value existing = numbered.putIfAbsent(copy, copy);
+        return existing == null ? copy : existing;
+    }
+
+    // redundant loads
+
+    private Value findAvailableValue(final Node.Copier param, final Load load) {
+        if (load.getMode() != MemoryAtomicityMode.NONE) {
+            return null;
+        }
+        ValueHandle handle = load.getValueHandle();
+        Node current = load.getDependency();
+        for (int steps = 0; steps < MAX_CHAIN_STEPS; steps ++) {
+            if (current instanceof Load) {
+                Load earlier = (Load) current;
+                if (earlier.getMode() != MemoryAtomicityMode.NONE) {
+                    return null;
+                } else if (earlier.getValueHandle().equals(handle) && earlier.getType().equals(load.getType())) {
+                    return earlier;
+                }
+                current = earlier.getDependency();
+            } else if (current instanceof Store) {
+                Store store = (Store) current;
+                if (store.getMode() != MemoryAtomicityMode.NONE) {
+                    return null;
+                } else if (store.getValueHandle().equals(handle)) {
+                    return store.getValue().getType().equals(load.getType()) ? store.getValue() : null;
+                } else if (mayAlias(store.getValueHandle(), handle)) {
+                    return null;
+                }
+                current = store.getDependency();
+            } else if (current instanceof BlockEntry) {
+                // continue in the immediate dominator if nothing in between may write the location
+                BasicBlock block = ((BlockEntry) current).getPinnedBlock();
+                if (dominators == null) {
+                    dominators = Dominators.of(param.getEntryBlock());
+                }
+                BasicBlock dominator = dominators.getImmediateDominator(block);
+                if (dominator == null || ! isRegionClean(dominator, block, handle)) {
+                    return null;
+                }
+                Terminator terminator = dominator.getTerminator();
+                if (! isPlainBranch(terminator)) {
+                    return null;
+                }
+                current = terminator.getDependency();
+            } else if (doesNotWrite(current)) {
+                current = ((OrderedNode) current).getDependency();
+            } else {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private boolean isRegionClean(final BasicBlock dominator, final BasicBlock block, final ValueHandle handle) {
+        // every block on a path from the dominator to the block, not counting the dominator itself
+        Set<BasicBlock> region = new HashSet<>();
+        ArrayDeque<BasicBlock> queue = new ArrayDeque<>(block.getIncoming());
+        BasicBlock current;
+        while ((current = queue.poll()) != null) {
+            if (current == dominator || ! region.add(current)) {
+                continue;
+            }
+            if (region.size() > MAX_REGION_BLOCKS || ! getEffects(current).isCleanFor(handle)) {
+                return false;
+            }
+            queue.addAll(current.getIncoming());
+        }
+        return true;
+    }
+
+    private Effects getEffects(final BasicBlock block) {
+        Effects effects = blockEffects.get(block);
+        if (effects == null) {
+            effects = new Effects();
+            Terminator terminator = block.getTerminator();
+            if (! isPlainBranch(terminator)) {
+                effects.opaque = true;
+            } else {
+                Node current = terminator.getDependency();
+                while (! (current instanceof BlockEntry)) {
+                    if (current instanceof Store && ((Store) current).getMode() == MemoryAtomicityMode.NONE) {
+                        effects.stores.add(((Store) current).getValueHandle());
+                    } else if (! doesNotWrite(current)) {
+                        effects.opaque = true;
+                        break;
+                    }
+                    current = ((OrderedNode) current).getDependency();
+                }
+            }
+            blockEffects.put(block, effects);
+        }
+        return effects;
+    }
+
+    private static boolean isPlainBranch(final Terminator terminator) {
+        return terminator instanceof Goto || terminator instanceof If || terminator instanceof Switch;
+    }
+
+    private static boolean doesNotWrite(final Node node) {
+        // allocations only write to memory which nobody else can see yet
+        return node instanceof Load && ((Load) node).getMode() == MemoryAtomicityMode.NONE
+            || node instanceof New
+            || node instanceof NewArray
+            || node instanceof Clone
+            || node instanceof ArrayLength
+            || node instanceof CurrentThreadRead;
+    }
+
+    static boolean mayAlias(final ValueHandle a, final ValueHandle b) {
+        if (a.equals(b)) {
+            return true;
+        }
+        boolean aIsField = isObjectField(a);
+        boolean bIsField = isObjectField(b);
+        if (aIsField && bIsField) {
+            // distinct fields never overlap; the same instance field may belong to the same object
+            return a instanceof InstanceFieldOf && b instanceof InstanceFieldOf
+                && ((InstanceFieldOf) a).getVariableElement().equals(((InstanceFieldOf) b).getVariableElement());
+        }
+        // anything else might be any memory at all
+        return true;
+    }
+
+    private static boolean isObjectField(final ValueHandle handle) {
+        return handle instanceof StaticField || handle instanceof InstanceFieldOf && handle.getValueHandle() instanceof ReferenceHandle;
+    }
+
+    static final class Effects {
+        boolean opaque;
+        final Set<ValueHandle> stores = new HashSet<>();
+
+        boolean isCleanFor(ValueHandle handle) {
+            if (opaque) {
+                return false;
+            }
+            for (ValueHandle store : stores) {
+                if (mayAlias(store, handle)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package org.qbicc.plugin.opt;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.qbicc.context.CompilationContext;
 import org.qbicc.graph.Add;
@@ -49,188 +51,200 @@ import org.qbicc.graph.Value;
 import org.qbicc.graph.ValueHandle;
 import org.qbicc.graph.ValueReturn;
 import org.qbicc.graph.Xor;
+import org.qbicc.graph.literal.FloatLiteral;
+import org.qbicc.graph.literal.Literal;
 import org.qbicc.object.DataDeclaration;
 import org.qbicc.object.FunctionDeclaration;
 import org.qbicc.object.ProgramModule;
 import org.qbicc.object.ProgramObject;
 import org.qbicc.object.Section;
+import org.qbicc.plugin.metrics.CountMetric;
+import org.qbicc.plugin.metrics.Metrics;
 import org.qbicc.type.definition.MethodBody;
 import org.qbicc.type.definition.classfile.ClassFile;
 import org.qbicc.type.definition.element.ExecutableElement;
 import org.qbicc.type.definition.element.MethodElement;
 
 /**
- * The inliner.  Every method call is speculatively inlined unless it is specifically annotated otherwise.
+ * The inliner.  Every method call is speculatively inlined unless it is specifically annotated otherwise, or the
+ * {@link InliningPolicy} determines that it cannot fit within the cost threshold of the call site or the remaining
+ * inlining budget of the method being compiled.
  */
 public class  InliningBasicBlockBuilder extends DelegatingBasicBlockBuilder {
+    private static final String TUNING_CLASS = "org/qbicc/runtime/Tuning";
+
     private final CompilationContext ctxt;
     private final ExecutableElement rootElement;
-    // todo: this is arbitrary
-    private final float costThreshold = 80.0f;
+    private final InliningPolicy policy;
+    private final CountMetric metric;
     private float cost;
+    // the innermost inlining in progress, if any
+    private Visitor current;
+    // branch hints, mapping a value to the likelihood that it is true (or non-zero)
+    private final Map<Value, Float> hints = new HashMap<>();
+    // the likelihood of reaching each hinted block
+    private final Map<BlockLabel, Float> blockLikelihoods = new HashMap<>();
+    private float likelihood = 1.0f;
 
     public InliningBasicBlockBuilder(final CompilationContext ctxt, final BasicBlockBuilder delegate) {
         super(delegate);
         rootElement = getCurrentElement();
         this.ctxt = ctxt;
+        policy = InliningPolicy.get(ctxt);
+        metric = Metrics.get(ctxt).getOrCreateRootCountMetric("inlining");
     }
 
-    public Node invokeStatic(final MethodElement target, final List<Value> arguments) {
-        if (! target.hasAllModifiersOf(ClassFile.I_ACC_NEVER_INLINE)) {
-            if (target.hasMethodBody()) {
-                MethodBody body = target.getPreviousMethodBody();
-                if (body != null) {
-                    float savedCost = this.cost;
-                    boolean alwaysInline = target.hasAllModifiersOf(ClassFile.I_ACC_ALWAYS_INLINE);
-                    BlockLabel inlined = new BlockLabel();
-                    BlockLabel resume = new BlockLabel();
-                    Terminator callSite = goto_(inlined).getTerminator();
-                    Node oldCallSite = setCallSite(callSite);
-                    try {
-                        BasicBlock copied;
-                        try {
-                            copied = Node.Copier.execute(body.getEntryBlock(), getFirstBuilder(), ctxt, (ctxt, visitor) ->
-                                new Visitor(visitor, resume, null, arguments, null, alwaysInline));
-                        } catch (BlockEarlyTermination e) {
-                            copied = e.getTerminatedBlock();
-                        }
-                        // inline successful, now copy all declarations known at this point
-                        copyDeclarations(target);
-                        // jump to the inlined code
-                        inlined.setTarget(copied);
-                        setCallSite(oldCallSite);
-                        // this is the return point (it won't be reachable if the inlined function does not return)
-                        begin(resume);
-                        return nop();
-                    } catch (Cancel ignored) {
-                        // call site was not inlined; restore original inlining cost
-                        this.cost = savedCost;
-                        setCallSite(oldCallSite);
-                        begin(inlined);
-                    }
-                }
-            }
+    public Node begin(final BlockLabel blockLabel) {
+        likelihood = blockLikelihoods.getOrDefault(blockLabel, Float.valueOf(1.0f)).floatValue();
+        return super.begin(blockLabel);
+    }
+
+    public BasicBlock if_(final Value condition, final BlockLabel trueTarget, final BlockLabel falseTarget) {
+        Float hint = hints.get(condition);
+        if (hint != null) {
+            float p = hint.floatValue();
+            blockLikelihoods.put(trueTarget, Float.valueOf(likelihood * p));
+            blockLikelihoods.put(falseTarget, Float.valueOf(likelihood * (1 - p)));
         }
-        return super.invokeStatic(target, arguments);
+        return super.if_(condition, trueTarget, falseTarget);
     }
 
-    public Node invokeInstance(final DispatchInvocation.Kind kind, final Value instance, final MethodElement target, final List<Value> arguments) {
-        if (! target.hasAllModifiersOf(ClassFile.I_ACC_NEVER_INLINE)) {
-            if (target.hasMethodBody()) {
-                MethodBody body = target.getPreviousMethodBody();
-                if (body != null) {
-                    float savedCost = this.cost;
-                    boolean alwaysInline = target.hasAllModifiersOf(ClassFile.I_ACC_ALWAYS_INLINE);
-                    BlockLabel inlined = new BlockLabel();
-                    BlockLabel resume = new BlockLabel();
-                    Terminator callSite = goto_(inlined).getTerminator();
-                    Node oldCallSite = setCallSite(callSite);
-                    try {
-                        BasicBlock copied;
-                        try {
-                            copied = Node.Copier.execute(body.getEntryBlock(), getFirstBuilder(), ctxt, (ctxt, visitor) ->
-                                new Visitor(visitor, resume, null, arguments, instance, alwaysInline));
-                        } catch (BlockEarlyTermination e) {
-                            copied = e.getTerminatedBlock();
-                        }
-                        // inline successful, now copy all declarations known at this point
-                        copyDeclarations(target);
-                        // jump to the inlined code
-                        inlined.setTarget(copied);
-                        setCallSite(oldCallSite);
-                        // this is the return point (it won't be reachable if the inlined function does not return)
-                        begin(resume);
-                        return nop();
-                    } catch (Cancel ignored) {
-                        // call site was not inlined; restore original inlining cost
-                        this.cost = savedCost;
-                        setCallSite(oldCallSite);
-                        begin(inlined);
-                    }
-                }
-            }
+    public Value isEq(final Value v1, final Value v2) {
+        return propagateHint(super.isEq(v1, v2), v1, v2, true);
+    }
+
+    public Value isNe(final Value v1, final Value v2) {
+        return propagateHint(super.isNe(v1, v2), v1, v2, false);
+    }
+
+    private Value propagateHint(Value result, Value v1, Value v2, boolean eq) {
+        // comparing a hinted value against zero, false, or null
+        Float hint = null;
+        if (v2 instanceof Literal && ((Literal) v2).isZero()) {
+            hint = hints.get(v1);
+        } else if (v1 instanceof Literal && ((Literal) v1).isZero()) {
+            hint = hints.get(v2);
         }
-        return super.invokeInstance(kind, instance, target, arguments);
+        if (hint != null) {
+            hints.put(result, Float.valueOf(eq ? 1 - hint.floatValue() : hint.floatValue()));
+        }
+        return result;
+    }
+
+    public Node invokeStatic(final MethodElement target, final List<Value> arguments) {
+        Node inlined = inline(target, null, arguments, false);
+        return inlined != null ? inlined : super.invokeStatic(target, arguments);
+    }
+
+    public Node invokeInstance(final DispatchInvocation.Kind kind, final Value instance, final MethodElement target, final List<Value> arguments) {
+        Node inlined = inline(target, instance, arguments, false);
+        return inlined != null ? inlined : super.invokeInstance(kind, instance, target, arguments);
     }
 
     public Value invokeValueStatic(final MethodElement target, final List<Value> arguments) {
-        if (! target.hasAllModifiersOf(ClassFile.I_ACC_NEVER_INLINE)) {
-            if (target.hasMethodBody()) {
-                MethodBody body = target.getPreviousMethodBody();
-                if (body != null) {
-                    float savedCost = this.cost;
-                    boolean alwaysInline = target.hasAllModifiersOf(ClassFile.I_ACC_ALWAYS_INLINE);
-                    BlockLabel inlined = new BlockLabel();
-                    BlockLabel resume = new BlockLabel();
-                    PhiValue returnVal = phi(target.getType().getReturnType(), resume);
-                    Terminator callSite = goto_(inlined).getTerminator();
-                    Node oldCallSite = setCallSite(callSite);
-                    try {
-                        BasicBlock copied;
-                        try {
-                            copied = Node.Copier.execute(body.getEntryBlock(), getFirstBuilder(), ctxt, (ctxt, visitor) ->
-                                new Visitor(visitor, resume, returnVal, arguments, null, alwaysInline));
-                        } catch (BlockEarlyTermination e) {
-                            copied = e.getTerminatedBlock();
-                        }
-                        // inline successful, now copy all declarations known at this point
-                        copyDeclarations(target);
-                        // jump to the inlined code
-                        inlined.setTarget(copied);
-                        setCallSite(oldCallSite);
-                        // this is the return point (it won't be reachable if the inlined function does not return)
-                        begin(resume);
-                        return returnVal;
-                    } catch (Cancel ignored) {
-                        // call site was not inlined; restore original inlining cost
-                        this.cost = savedCost;
-                        setCallSite(oldCallSite);
-                        begin(inlined);
-                    }
-                }
+        if (target.getEnclosingType().getInternalName().equals(TUNING_CLASS) && arguments.size() == 2 && arguments.get(1) instanceof FloatLiteral) {
+            // record the hint and drop the call, which has no effect
+            Value value = arguments.get(0);
+            float p = ((FloatLiteral) arguments.get(1)).floatValue();
+            switch (target.getName()) {
+                case "mayBeTrue": hints.put(value, Float.valueOf(p)); return value;
+                case "mayBeFalse": hints.put(value, Float.valueOf(1 - p)); return value;
+                // the likelihood of being non-null, i.e. non-zero
+                case "mayBeNull": hints.put(value, Float.valueOf(1 - p)); return value;
+                case "mayBeNonNull": hints.put(value, Float.valueOf(p)); return value;
             }
         }
-        return super.invokeValueStatic(target, arguments);
+        Node inlined = inline(target, null, arguments, true);
+        return inlined != null ? (Value) inlined : super.invokeValueStatic(target, arguments);
     }
 
     public Value invokeValueInstance(final DispatchInvocation.Kind kind, final Value instance, final MethodElement target, final List<Value> arguments) {
-        if (! target.hasAllModifiersOf(ClassFile.I_ACC_NEVER_INLINE)) {
-            if (target.hasMethodBody()) {
-                MethodBody body = target.getPreviousMethodBody();
-                if (body != null) {
-                    float savedCost = this.cost;
-                    boolean alwaysInline = target.hasAllModifiersOf(ClassFile.I_ACC_ALWAYS_INLINE);
-                    BlockLabel inlined = new BlockLabel();
-                    BlockLabel resume = new BlockLabel();
-                    Terminator callSite = goto_(inlined).getTerminator();
-                    Node oldCallSite = setCallSite(callSite);
-                    PhiValue returnVal = phi(target.getType().getReturnType(), resume);
-                    try {
-                        BasicBlock copied;
-                        try {
-                            copied = Node.Copier.execute(body.getEntryBlock(), getFirstBuilder(), ctxt, (ctxt, visitor) ->
-                                new Visitor(visitor, resume, returnVal, arguments, instance, alwaysInline));
-                        } catch (BlockEarlyTermination e) {
-                            copied = e.getTerminatedBlock();
-                        }
-                        // inline successful, now copy all declarations known at this point
-                        copyDeclarations(target);
-                        // jump to the inlined code
-                        inlined.setTarget(copied);
-                        setCallSite(oldCallSite);
-                        // this is the return point (it won't be reachable if the inlined function does not return)
-                        begin(resume);
-                        return returnVal;
-                    } catch (Cancel ignored) {
-                        // call site was not inlined; restore original inlining cost
-                        this.cost = savedCost;
-                        setCallSite(oldCallSite);
-                        begin(inlined);
-                    }
+        Node inlined = inline(target, instance, arguments, true);
+        return inlined != null ? (Value) inlined : super.invokeValueInstance(kind, instance, target, arguments);
+    }
+
+    /**
+     * Attempt to inline the given call.
+     *
+     * @return the node or value which replaces the call, or {@code null} if the call was not inlined
+     */
+    private Node inline(final MethodElement target, final Value instance, final List<Value> arguments, final boolean hasValue) {
+        if (target.hasAllModifiersOf(ClassFile.I_ACC_NEVER_INLINE) || ! target.hasMethodBody()) {
+            return null;
+        }
+        MethodBody body = target.getPreviousMethodBody();
+        if (body == null) {
+            return null;
+        }
+        boolean alwaysInline = target.hasAllModifiersOf(ClassFile.I_ACC_ALWAYS_INLINE);
+        ExecutableElement caller = getCurrentElement();
+        int bci = getLocation().getByteCodeIndex();
+        Visitor outer = current;
+        int loopDepth = (outer == null ? 0 : outer.loopDepth) + policy.getLoopDepth(caller, bci);
+        final float threshold;
+        if (alwaysInline) {
+            threshold = Float.MAX_VALUE;
+        } else {
+            int constantArguments = 0;
+            for (Value argument : arguments) {
+                if (argument instanceof Literal) {
+                    constantArguments ++;
                 }
             }
+            threshold = policy.getThreshold(caller, bci, outer == null ? 0 : outer.loopDepth, likelihood, constantArguments);
+            // reject callees which cannot fit without copying them
+            int minimumCost = policy.getMinimumCost(target);
+            if (minimumCost >= threshold) {
+                metric.getOrAddChild("rejected-size").add(1);
+                return null;
+            }
+            if (cost + minimumCost >= policy.getBudget()) {
+                metric.getOrAddChild("rejected-budget").add(1);
+                return null;
+            }
+        }
+        float savedCost = this.cost;
+        float savedLikelihood = this.likelihood;
+        BlockLabel inlined = new BlockLabel();
+        BlockLabel resume = new BlockLabel();
+        PhiValue returnVal = hasValue ? phi(target.getType().getReturnType(), resume) : null;
+        Terminator callSite = goto_(inlined).getTerminator();
+        Node oldCallSite = setCallSite(callSite);
+        Visitor[] holder = new Visitor[1];
+        try {
+            BasicBlock copied;
+            try {
+                copied = Node.Copier.execute(body.getEntryBlock(), getFirstBuilder(), ctxt, (ctxt, visitor) ->
+                    holder[0] = current = new Visitor(visitor, resume, returnVal, arguments, instance, alwaysInline, outer, threshold, savedCost, loopDepth));
+            } catch (BlockEarlyTermination e) {
+                copied = e.getTerminatedBlock();
+            }
+            // inline successful, now copy all declarations known at this point
+            copyDeclarations(target);
+            // jump to the inlined code
+            inlined.setTarget(copied);
+            setCallSite(oldCallSite);
+            current = outer;
+            likelihood = savedLikelihood;
+            metric.getOrAddChild("inlined").add(1);
+            metric.getOrAddChild("inlined-cost").add((long) (cost - savedCost));
+            // this is the return point (it won't be reachable if the inlined function does not return)
+            begin(resume);
+            return hasValue ? returnVal : nop();
+        } catch (Cancel cancel) {
+            // call site was not inlined; restore original inlining cost
+            this.cost = savedCost;
+            this.likelihood = savedLikelihood;
+            setCallSite(oldCallSite);
+            current = outer;
+            if (cancel.visitor != holder[0]) {
+                // an enclosing inlining has exceeded its threshold
+                throw cancel;
+            }
+            metric.getOrAddChild(cancel.budget ? "cancelled-budget" : "cancelled-size").add(1);
+            begin(inlined);
+            return null;
         }
-        return super.invokeValueInstance(kind, instance, target, arguments);
     }
 
     private void copyDeclarations(final MethodElement target) {
@@ -262,8 +276,13 @@ public class  InliningBasicBlockBuilder extends DelegatingBasicBlockBuilder {
      */
     @SuppressWarnings("serial")
     static final class Cancel extends RuntimeException {
-        Cancel() {
+        final transient Visitor visitor;
+        final boolean budget;
+
+        Cancel(final Visitor visitor, final boolean budget) {
             super(null, null, false, false);
+            this.visitor = visitor;
+            this.budget = budget;
         }
     }
 
@@ -274,14 +293,22 @@ public class  InliningBasicBlockBuilder extends DelegatingBasicBlockBuilder {
         private final List<Value> arguments;
         private final Value this_;
         private final boolean alwaysInline;
+        private final Visitor outer;
+        private final float threshold;
+        private final float startCost;
+        final int loopDepth;
 
-        Visitor(final NodeVisitor<Node.Copier, Value, Node, BasicBlock, ValueHandle> delegate, final BlockLabel resume, final PhiValue returnValue, final List<Value> arguments, final Value this_, final boolean alwaysInline) {
+        Visitor(final NodeVisitor<Node.Copier, Value, Node, BasicBlock, ValueHandle> delegate, final BlockLabel resume, final PhiValue returnValue, final List<Value> arguments, final Value this_, final boolean alwaysInline, final Visitor outer, final float threshold, final float startCost, final int loopDepth) {
             this.delegate = delegate;
             this.resume = resume;
             this.returnValue = returnValue;
             this.arguments = arguments;
             this.this_ = this_;
             this.alwaysInline = alwaysInline;
+            this.outer = outer;
+            this.threshold = threshold;
+            this.startCost = startCost;
+            this.loopDepth = loopDepth;
         }
 
         public NodeVisitor<Node.Copier, Value, Node, BasicBlock, ValueHandle> getDelegateNodeVisitor() {
@@ -483,17 +510,25 @@ public class  InliningBasicBlockBuilder extends DelegatingBasicBlockBuilder {
         }
 
         void addCost(final Node.Copier copier, int amount) {
-            if (! alwaysInline) {
-                float cost = InliningBasicBlockBuilder.this.cost + amount;
-                if (cost >= costThreshold) {
-                    // force termination
-                    try {
-                        copier.getBlockBuilder().unreachable();
-                    } catch (IllegalStateException | BlockEarlyTermination ignored) {}
-                    throw new Cancel();
+            float cost = InliningBasicBlockBuilder.this.cost + amount;
+            // the cost counts against this inlining and every enclosing one
+            for (Visitor v = this; v != null; v = v.outer) {
+                if (! v.alwaysInline && cost - v.startCost >= v.threshold) {
+                    cancel(copier, v, false);
                 }
-                InliningBasicBlockBuilder.this.cost = cost;
             }
+            if (! alwaysInline && cost >= policy.getBudget()) {
+                cancel(copier, this, true);
+            }
+            InliningBasicBlockBuilder.this.cost = cost;
+        }
+
+        private void cancel(final Node.Copier copier, final Visitor visitor, final boolean budget) {
+            // force termination
+            try {
+                copier.getBlockBuilder().unreachable();
+            } catch (IllegalStateException | BlockEarlyTermination ignored) {}
+            throw new Cancel(visitor, budget);
         }
     }
 }
@@ -0,0 +1,259 @@
+package org.qbicc.plugin.opt;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.qbicc.context.AttachmentKey;
+import org.qbicc.context.CompilationContext;
+import org.qbicc.graph.BasicBlock;
+import org.qbicc.graph.BlockEntry;
+import org.qbicc.graph.If;
+import org.qbicc.graph.InstanceInvocation;
+import org.qbicc.graph.InstanceInvocationValue;
+import org.qbicc.graph.Invocation;
+import org.qbicc.graph.Node;
+import org.qbicc.graph.OrderedNode;
+import org.qbicc.graph.Switch;
+import org.qbicc.graph.Terminator;
+import org.qbicc.type.definition.MethodBody;
+import org.qbicc.type.definition.element.ExecutableElement;
+import org.qbicc.type.definition.element.InvokableElement;
+import org.qbicc.type.definition.element.MethodElement;
+
+/**
+ * The inlining policy of a compilation, which combines static heuristics with an optional call site profile.
+ * <p>
+ * The profile is a text file with one call site per line, in the form
+ * {@code <class internal name>.<method name><descriptor>@<bytecode index> <count>}, for example
+ * {@code java/lang/String.hashCode()I@12 10523}.  Empty lines and lines starting with {@code #} are ignored.
+ * When a profile is present, call sites of profiled methods which do not appear in it are considered to be cold.
+ */
+public final class InliningPolicy {
+    private static final AttachmentKey<InliningPolicy> KEY = new AttachmentKey<>();
+
+    /**
+     * The default cost threshold for a single call site.
+     */
+    public static final int DEFAULT_THRESHOLD = 80;
+    /**
+     * The default total inlining cost budget for each method being compiled.
+     */
+    public static final int DEFAULT_BUDGET = 1000;
+
+    private static final int MAX_LOOP_DEPTH = 3;
+
+    private final int threshold;
+    private final int budget;
+    private final Map<String, Long> callCounts;
+    private final Set<String> profiledMethods;
+    private final long maxCount;
+    private final Map<ExecutableElement, BodyInfo> bodyInfos = new ConcurrentHashMap<>();
+
+    InliningPolicy(final int threshold, final int budget, final Map<String, Long> callCounts) {
+        this.threshold = threshold;
+        this.budget = budget;
+        this.callCounts = callCounts;
+        Set<String> profiledMethods = new HashSet<>();
+        long maxCount = 0;
+        for (Map.Entry<String, Long> entry : callCounts.entrySet()) {
+            String key = entry.getKey();
+            profiledMethods.add(key.substring(0, key.lastIndexOf('@')));
+            maxCount = Math.max(maxCount, entry.getValue().longValue());
+        }
+        this.profiledMethods = profiledMethods;
+        this.maxCount = maxCount;
+    }
+
+    public static InliningPolicy get(CompilationContext ctxt) {
+        InliningPolicy policy = ctxt.getAttachment(KEY);
+        if (policy == null) {
+            policy = new InliningPolicy(DEFAULT_THRESHOLD, DEFAULT_BUDGET, Map.of());
+            InliningPolicy appearing = ctxt.putAttachmentIfAbsent(KEY, policy);
+            if (appearing != null) {
+                policy = appearing;
+            }
+        }
+        return policy;
+    }
+
+    /**
+     * Establish the inlining policy for a compilation.
+     *
+     * @param ctxt the compilation context (must not be {@code null})
+     * @param threshold the cost threshold for a single call site of average frequency
+     * @param budget the total inlining cost budget for each method being compiled
+     * @param profilePath the path of the call site profile, or {@code null} for none
+     */
+    public static void configure(CompilationContext ctxt, int threshold, int budget, Path profilePath) {
+        Map<String, Long> callCounts = new HashMap<>();
+        if (profilePath != null) {
+            try (BufferedReader reader = Files.newBufferedReader(profilePath)) {
+                String line;
+                int lineNumber = 0;
+                while ((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    int sp = line.lastIndexOf(' ');
+                    int at = line.lastIndexOf('@', sp);
+                    try {
+                        if (sp == -1 || at == -1) {
+                            throw new NumberFormatException();
+                        }
+                        Integer.parseInt(line.substring(at + 1, sp));
+                        callCounts.merge(line.substring(0, sp), Long.valueOf(Long.parseLong(line.substring(sp + 1))), Long::sum);
+                    } catch (NumberFormatException e) {
+                        ctxt.warning("Ignoring malformed line %d in inlining profile \"%s\"", Integer.valueOf(lineNumber), profilePath);
+                    }
+                }
+            } catch (IOException e) {
+                ctxt.error("Failed to read inlining profile \"%s\": %s", profilePath, e);
+            }
+        }
+        ctxt.putAttachment(KEY, new InliningPolicy(threshold, budget, callCounts));
+    }
+
+    public int getBudget() {
+        return budget;
+    }
+
+    /**
+     * Compute the cost threshold for inlining at a call site.
+     *
+     * @param caller the element containing the call site (must not be {@code null})
+     * @param bci the bytecode index of the call site
+     * @param outerLoopDepth the loop depth of the call site into which {@code caller} was inlined, if any
+     * @param likelihood the likelihood of reaching the call site, as given by branch hints
+     * @param constantArguments the number of constant arguments passed to the callee
+     * @return the cost threshold
+     */
+    public float getThreshold(ExecutableElement caller, int bci, int outerLoopDepth, float likelihood, int constantArguments) {
+        float result = threshold;
+        // calls in loops are more likely to be hot
+        result *= 1 + Math.min(MAX_LOOP_DEPTH, outerLoopDepth + getLoopDepth(caller, bci));
+        // constant arguments enable further folding in the inlined body
+        result += 10 * constantArguments;
+        String methodKey = getKey(caller);
+        if (profiledMethods.contains(methodKey)) {
+            Long count = callCounts.get(methodKey + "@" + bci);
+            if (count == null || count.longValue() == 0) {
+                result *= 0.25f;
+            } else if (count.longValue() * 100 >= maxCount) {
+                result *= 4;
+            }
+        }
+        return result * Math.max(0.1f, likelihood);
+    }
+
+    /**
+     * Get the loop depth of the call site at the given bytecode index of the previous body of the given element.
+     *
+     * @param element the element (must not be {@code null})
+     * @param bci the bytecode index of the call site
+     * @return the loop depth, or 0 if the call site is not in a loop or is unknown
+     */
+    public int getLoopDepth(ExecutableElement element, int bci) {
+        return getBodyInfo(element).loopDepths.getOrDefault(Integer.valueOf(bci), Integer.valueOf(0)).intValue();
+    }
+
+    /**
+     * Get a lower bound for the cost of inlining the previous body of the given element, which is used to reject
+     * a callee without speculatively copying it.
+     *
+     * @param element the element (must not be {@code null})
+     * @return the minimum inlining cost
+     */
+    public int getMinimumCost(ExecutableElement element) {
+        return getBodyInfo(element).minimumCost;
+    }
+
+    private BodyInfo getBodyInfo(ExecutableElement element) {
+        BodyInfo info = bodyInfos.get(element);
+        if (info == null) {
+            info = computeBodyInfo(element);
+            BodyInfo appearing = bodyInfos.putIfAbsent(element, info);
+            if (appearing != null) {
+                info = appearing;
+            }
+        }
+        return info;
+    }
+
+    private static BodyInfo computeBodyInfo(ExecutableElement element) {
+        MethodBody body = element.hasMethodBody() ? element.getPreviousMethodBody() : null;
+        if (body == null) {
+            return new BodyInfo(0, Map.of());
+        }
+        Map<Integer, Integer> loopDepths = new HashMap<>();
+        int cost = 0;
+        Set<BasicBlock> visited = new HashSet<>();
+        ArrayDeque<BasicBlock> queue = new ArrayDeque<>();
+        queue.add(body.getEntryBlock());
+        BasicBlock block;
+        while ((block = queue.poll()) != null) {
+            if (! visited.add(block)) {
+                continue;
+            }
+            int depth = block.getLoops().size();
+            Terminator terminator = block.getTerminator();
+            if (terminator instanceof If) {
+                cost += 4;
+            } else if (terminator instanceof Switch) {
+                cost += 2 * (((Switch) terminator).getNumberOfValues() + 1);
+            }
+            // walk the ordered nodes of the block
+            Node node = terminator;
+            while (! (node instanceof BlockEntry) && node instanceof OrderedNode && ((OrderedNode) node).hasDependency()) {
+                node = ((OrderedNode) node).getDependency();
+                if (node instanceof Invocation) {
+                    if (node instanceof InstanceInvocation || node instanceof InstanceInvocationValue) {
+                        cost += 30;
+                    } else {
+                        cost += 10;
+                    }
+                    if (depth > 0) {
+                        loopDepths.merge(Integer.valueOf(node.getBytecodeIndex()), Integer.valueOf(depth), (a, b) -> Integer.valueOf(Math.max(a.intValue(), b.intValue())));
+                    }
+                }
+            }
+            int cnt = terminator.getSuccessorCount();
+            for (int i = 0; i < cnt; i ++) {
+                queue.add(terminator.getSuccessor(i));
+            }
+        }
+        return new BodyInfo(cost, loopDepths);
+    }
+
+    static String getKey(ExecutableElement element) {
+        StringBuilder b = new StringBuilder();
+        b.append(element.getEnclosingType().getInternalName()).append('.');
+        if (element instanceof InvokableElement) {
+            InvokableElement invokable = (InvokableElement) element;
+            b.append(invokable instanceof MethodElement ? ((MethodElement) invokable).getName() : "<init>");
+            invokable.getDescriptor().toString(b);
+        } else {
+            b.append("<clinit>");
+        }
+        return b.toString();
+    }
+
+    static final class BodyInfo {
+        final int minimumCost;
+        final Map<Integer, Integer> loopDepths;
+
+        BodyInfo(final int minimumCost, final Map<Integer, Integer> loopDepths) {
+            this.minimumCost = minimumCost;
+            this.loopDepths = loopDepths;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package org.qbicc.plugin.opt;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.reflect.Proxy;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.Test;
+import org.qbicc.context.CompilationContext;
+import org.qbicc.graph.BasicBlock;
+import org.qbicc.graph.BasicBlockBuilder;
+import org.qbicc.graph.BlockLabel;
+import org.qbicc.graph.PhiValue;
+import org.qbicc.graph.Value;
+import org.qbicc.graph.literal.LiteralFactory;
+import org.qbicc.type.ReferenceType;
+import org.qbicc.type.SignedIntegerType;
+import org.qbicc.type.TypeSystem;
+import org.qbicc.type.definition.DefinedTypeDefinition;
+import org.qbicc.type.definition.classfile.ClassFile;
+import org.qbicc.type.definition.element.InitializerElement;
+
+/**
+ * Tests for the removal of the upper bound check of an array index in a counted loop
+ * {@code for (int i = 0; i < n; i ++) a[i]}.
+ */
+public class CheckEliminationTestCase {
+    private final TypeSystem ts = TypeSystem.builder().build();
+    private final LiteralFactory lf = LiteralFactory.create(ts);
+    private final SignedIntegerType s32 = ts.getSignedInteger32Type();
+    private final ReferenceType intArray = s32.getPrimitiveArrayObjectType().getReference();
+
+    @Test
+    public void testGuardedLoop() {
+        // if (n > a.length) return; for (...) a[i]
+        IndexCheck check = buildLoop((bbb, n) -> {
+            Value a = bbb.parameter(intArray, "p", 1);
+            BlockLabel loop = new BlockLabel();
+            BlockLabel exit = new BlockLabel();
+            bbb.if_(bbb.isGt(n, bbb.arrayLength(bbb.referenceHandle(a))), exit, loop);
+            bbb.begin(exit);
+            bbb.return_();
+            bbb.begin(loop);
+            return a;
+        });
+        assertEquals(Boolean.FALSE, check.outcome());
+    }
+
+    @Test
+    public void testLoopOverNewArray() {
+        // a = new int[n]; for (...) a[i]
+        IndexCheck check = buildLoop((bbb, n) -> bbb.newArray(s32.getPrimitiveArrayObjectType(), n));
+        assertEquals(Boolean.FALSE, check.outcome());
+    }
+
+    @Test
+    public void testUnguardedLoop() {
+        // for (...) a[i], where n might exceed a.length
+        IndexCheck check = buildLoop((bbb, n) -> bbb.parameter(intArray, "p", 1));
+        assertNull(check.outcome());
+    }
+
+    @Test
+    public void testContradictingGuard() {
+        // if (n <= a.length) return; for (...) a[i]
+        IndexCheck check = buildLoop((bbb, n) -> {
+            Value a = bbb.parameter(intArray, "p", 1);
+            BlockLabel loop = new BlockLabel();
+            BlockLabel exit = new BlockLabel();
+            bbb.if_(bbb.isLe(n, bbb.arrayLength(bbb.referenceHandle(a))), exit, loop);
+            bbb.begin(exit);
+            bbb.return_();
+            bbb.begin(loop);
+            return a;
+        });
+        assertNull(check.outcome());
+    }
+
+    interface ArraySetup {
+        Value setUp(BasicBlockBuilder bbb, Value n);
+    }
+
+    /**
+     * Build {@code for (int i = 0; i < n; i ++) if (i >= a.length) throw ...} with the array given by the setup,
+     * which runs in the entry block.
+     */
+    IndexCheck buildLoop(ArraySetup setup) {
+        BasicBlockBuilder bbb = BasicBlockBuilder.simpleBuilder(ts, newElement());
+        bbb.begin(new BlockLabel());
+        Value n = bbb.parameter(s32, "p", 0);
+        Value a = setup.setUp(bbb, n);
+        BlockLabel header = new BlockLabel();
+        BlockLabel body = new BlockLabel();
+        BlockLabel inBounds = new BlockLabel();
+        BlockLabel throwIt = new BlockLabel();
+        BlockLabel exit = new BlockLabel();
+        PhiValue i = bbb.phi(s32, header);
+        BasicBlock entering = bbb.goto_(header);
+        bbb.begin(header);
+        bbb.if_(bbb.isLt(i, n), body, exit);
+        bbb.begin(body);
+        Value condition = bbb.isGe(i, bbb.arrayLength(bbb.referenceHandle(a)));
+        BasicBlock checkBlock = bbb.if_(condition, throwIt, inBounds);
+        bbb.begin(inBounds);
+        Value next = bbb.add(i, lf.literalOf(1));
+        BasicBlock backEdge = bbb.goto_(header);
+        bbb.begin(throwIt);
+        bbb.unreachable();
+        bbb.begin(exit);
+        bbb.return_();
+        bbb.finish();
+        i.setValueForBlock(null, null, entering, lf.literalOf(0));
+        i.setValueForBlock(null, null, backEdge, next);
+        return new IndexCheck(bbb.getFirstBlock(), checkBlock, condition);
+    }
+
+    final class IndexCheck {
+        final BasicBlock entryBlock;
+        final BasicBlock block;
+        final Value condition;
+
+        IndexCheck(final BasicBlock entryBlock, final BasicBlock block, final Value condition) {
+            this.entryBlock = entryBlock;
+            this.block = block;
+            this.condition = condition;
+        }
+
+        Boolean outcome() {
+            CheckEliminationVisitor visitor = new CheckEliminationVisitor(newContext(), null);
+            return visitor.findOutcome(entryBlock, block, condition);
+        }
+    }
+
+    static InitializerElement newElement() {
+        InitializerElement.Builder builder = InitializerElement.builder();
+        builder.setEnclosingType(proxy(DefinedTypeDefinition.class, name -> {
+            throw new UnsupportedOperationException(name);
+        }));
+        builder.setModifiers(ClassFile.ACC_STATIC);
+        return builder.build();
+    }
+
+    static CompilationContext newContext() {
+        // just enough for the metrics
+        return proxy(CompilationContext.class, name -> {
+            if (name.equals("getAttachment") || name.equals("putAttachmentIfAbsent")) {
+                return null;
+            }
+            throw new UnsupportedOperationException(name);
+        });
+    }
+
+    static <T> T proxy(Class<T> type, Function<String, Object> handler) {
+        return type.cast(Proxy.newProxyInstance(CheckEliminationTestCase.class.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "hashCode": return Integer.valueOf(System.identityHashCode(proxy));
+                case "equals": return Boolean.valueOf(proxy == args[0]);
+                case "toString": return type.getSimpleName();
+                default: return handler.apply(method.getName());
+            }
+        }));
+    }
+}
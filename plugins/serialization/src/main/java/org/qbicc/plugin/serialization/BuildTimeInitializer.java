@@ -0,0 +1,116 @@
+package org.qbicc.plugin.serialization;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import org.jboss.logging.Logger;
+import org.qbicc.context.CompilationContext;
+import org.qbicc.graph.BasicBlockBuilder;
+import org.qbicc.graph.BlockLabel;
+import org.qbicc.graph.literal.Literal;
+import org.qbicc.graph.literal.LiteralFactory;
+import org.qbicc.graph.schedule.Schedule;
+import org.qbicc.interpreter.impl.VmImpl;
+import org.qbicc.plugin.constants.Constants;
+import org.qbicc.plugin.lowering.LoweredStaticFields;
+import org.qbicc.type.BooleanType;
+import org.qbicc.type.FloatType;
+import org.qbicc.type.IntegerType;
+import org.qbicc.type.ReferenceType;
+import org.qbicc.type.ValueType;
+import org.qbicc.type.definition.LoadedTypeDefinition;
+import org.qbicc.type.definition.MethodBody;
+import org.qbicc.type.definition.element.ElementVisitor;
+import org.qbicc.type.definition.element.FieldElement;
+import org.qbicc.type.definition.element.InitializerElement;
+
+/**
+ * Runs the class initializers which were reached in the ADD phase in the build-time interpreter.  For each class
+ * that is initialized successfully, the non-zero static field values are recorded (references into the
+ * {@link BuildtimeHeap}, primitives as the initial values of their globals), and the initializer is replaced by an
+ * empty body because there is nothing left for it to do at run time.
+ */
+public class BuildTimeInitializer implements ElementVisitor<CompilationContext, Void>, Consumer<CompilationContext> {
+    private static final Logger log = Logger.getLogger("org.qbicc.plugin.serialization.init");
+
+    private final Set<InitializerElement> initializers = ConcurrentHashMap.newKeySet();
+
+    public Void visit(CompilationContext ctxt, InitializerElement element) {
+        initializers.add(element);
+        return null;
+    }
+
+    public void accept(CompilationContext ctxt) {
+        Constants constants = Constants.get(ctxt);
+        VmImpl vm = VmImpl.create(ctxt, constants::getConstantValue);
+        List<InitializerElement> sorted = new ArrayList<>(initializers);
+        // initialize in a stable order so that the results do not depend on the order the elements were visited in
+        sorted.sort(Comparator.comparing(i -> i.getEnclosingType().getInternalName()));
+        int count = 0;
+        for (InitializerElement initializer : sorted) {
+            LoadedTypeDefinition type = initializer.getEnclosingType().load();
+            if (vm.initializeAtBuildTime(type)) {
+                recordStaticFields(ctxt, vm, constants, type);
+                if (initializer.hasMethodBody()) {
+                    replaceWithEmptyBody(type, initializer);
+                }
+                count++;
+            }
+        }
+        log.debugf("Initialized %d of %d classes at build time", Integer.valueOf(count), Integer.valueOf(sorted.size()));
+        initializers.clear();
+    }
+
+    private static void recordStaticFields(CompilationContext ctxt, VmImpl vm, Constants constants, LoadedTypeDefinition type) {
+        LiteralFactory lf = ctxt.getLiteralFactory();
+        int cnt = type.getFieldCount();
+        for (int i = 0; i < cnt; i++) {
+            FieldElement field = type.getField(i);
+            if (! field.isStatic() || field.isThreadLocal() || constants.getConstantValue(field) != null) {
+                continue;
+            }
+            Object value = vm.getStaticFieldValue(field);
+            ValueType fieldType = field.getType();
+            if (fieldType instanceof ReferenceType) {
+                if (value != null) {
+                    BuildtimeHeap.get(ctxt).addStaticField(field, value);
+                }
+                continue;
+            }
+            Literal literal;
+            if (fieldType instanceof BooleanType) {
+                if (! ((Boolean) value).booleanValue()) {
+                    continue;
+                }
+                literal = lf.literalOf(true);
+            } else if (fieldType instanceof IntegerType) {
+                long longValue = ((Long) value).longValue();
+                if (longValue == 0) {
+                    continue;
+                }
+                literal = lf.literalOf((IntegerType) fieldType, longValue);
+            } else if (fieldType instanceof FloatType) {
+                double doubleValue = ((Number) value).doubleValue();
+                if (Double.doubleToRawLongBits(doubleValue) == 0) {
+                    continue;
+                }
+                literal = lf.literalOf((FloatType) fieldType, doubleValue);
+            } else {
+                continue;
+            }
+            LoweredStaticFields.get(ctxt).setInitialValue(field, literal);
+        }
+    }
+
+    private static void replaceWithEmptyBody(LoadedTypeDefinition type, InitializerElement initializer) {
+        BasicBlockBuilder bb = type.getContext().newBasicBlockBuilder(initializer);
+        bb.begin(new BlockLabel());
+        bb.return_();
+        bb.finish();
+        initializer.replaceMethodBody(MethodBody.of(bb.getFirstBlock(), Schedule.forMethod(bb.getFirstBlock()), null, List.of()));
+    }
+}
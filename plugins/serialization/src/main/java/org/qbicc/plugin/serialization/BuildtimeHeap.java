@@ -2,10 +2,13 @@ package org.qbicc.plugin.serialization;
 
 import org.qbicc.context.AttachmentKey;
 import org.qbicc.context.CompilationContext;
+import org.qbicc.driver.Driver;
+import org.qbicc.machine.probe.CProbe;
 import org.qbicc.type.definition.LoadedTypeDefinition;
 import org.qbicc.type.definition.element.FieldElement;
 
 import java.io.IOException;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -21,7 +24,21 @@ public class BuildtimeHeap {
 
     private BuildtimeHeap(CompilationContext ctxt) {
         this.ctxt = ctxt;
-        this.ser = new Serializer(ctxt);
+        this.ser = new Serializer(ctxt, probeByteOrder(ctxt));
+    }
+
+    private static ByteOrder probeByteOrder(CompilationContext ctxt) {
+        CProbe probe = CProbe.builder().build();
+        try {
+            CProbe.Result result = probe.run(ctxt.getAttachment(Driver.C_TOOL_CHAIN_KEY), ctxt.getAttachment(Driver.OBJ_PROVIDER_TOOL_KEY), ctxt);
+            if (result != null) {
+                return result.getByteOrder();
+            }
+            ctxt.error("Failed to probe target endianness (no exception)");
+        } catch (IOException e) {
+            ctxt.error(e, "Failed to probe target endianness");
+        }
+        return ByteOrder.nativeOrder();
     }
 
     public static BuildtimeHeap get(CompilationContext ctxt) {
@@ -0,0 +1,369 @@
+package org.qbicc.plugin.serialization;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.qbicc.context.CompilationContext;
+import org.qbicc.graph.literal.Literal;
+import org.qbicc.graph.literal.LiteralFactory;
+import org.qbicc.object.Data;
+import org.qbicc.object.Section;
+import org.qbicc.plugin.layout.Layout;
+import org.qbicc.plugin.lowering.LoweredStaticFields;
+import org.qbicc.type.ArrayObjectType;
+import org.qbicc.type.ArrayType;
+import org.qbicc.type.CompoundType;
+import org.qbicc.type.IntegerType;
+import org.qbicc.type.ObjectType;
+import org.qbicc.type.ReferenceArrayObjectType;
+import org.qbicc.type.ReferenceType;
+import org.qbicc.type.TypeSystem;
+import org.qbicc.type.ValueType;
+import org.qbicc.type.WordType;
+import org.qbicc.type.definition.DefinedTypeDefinition;
+import org.qbicc.type.definition.LoadedTypeDefinition;
+import org.qbicc.type.definition.classfile.ClassFile;
+import org.qbicc.type.definition.element.FieldElement;
+import org.qbicc.type.descriptor.BaseTypeDescriptor;
+import org.qbicc.type.descriptor.TypeDescriptor;
+
+/**
+ * This compiler pass is an alternative to {@link HeapSerializer} which lays out the build-time heap created by the
+ * interpreter as initialized data.  Each object which is reachable from a heap root becomes a data item in the
+ * {@link LoweredStaticFields#BUILD_TIME_HEAP} section, with the same layout as an object allocated at run time, and
+ * each reference to another object becomes the address of that object's symbol.  The static fields which hold the
+ * heap roots are initialized with the address of their object, so the heap is mapped in by the loader along with the
+ * rest of the program and there is nothing left to deserialize at startup.
+ */
+public class HeapDataEmitter implements Consumer<CompilationContext> {
+
+    private static final String objectPrefix = "qbicc_heap_object_";
+
+    public void accept(CompilationContext ctxt) {
+        BuildtimeHeap heap = BuildtimeHeap.get(ctxt);
+
+        // all objects go into one module so that references between them need no declarations
+        LoadedTypeDefinition od = ctxt.getBootstrapClassContext().findDefinedType("org/qbicc/runtime/deserialization/RuntimeObjectDeserializer").load();
+        Emitter emitter = new Emitter(ctxt, ctxt.getOrAddProgramModule(od).getOrAddSection(LoweredStaticFields.BUILD_TIME_HEAP));
+        for (BuildtimeHeap.InitializedField root : heap.getHeapRoots()) {
+            if (root.value != null) {
+                emitter.register(root.value);
+            }
+        }
+        emitter.emitAll();
+
+        LoweredStaticFields staticFields = LoweredStaticFields.get(ctxt);
+        for (BuildtimeHeap.InitializedField root : heap.getHeapRoots()) {
+            if (root.value != null) {
+                staticFields.setInitialObject(root.field, emitter.register(root.value).data);
+            }
+        }
+    }
+
+    static final class HeapObject {
+        final Object value;
+        final String name;
+        final CompoundType type;
+        Data data;
+
+        HeapObject(Object value, String name, CompoundType type) {
+            this.value = value;
+            this.name = name;
+            this.type = type;
+        }
+    }
+
+    /**
+     * The content of a {@code String} which cannot be encoded as LATIN-1, which is laid out as a {@code byte[]}
+     * holding its UTF-16 code units in the byte order of the target.
+     */
+    static final class Utf16Value {
+        final char[] chars;
+
+        Utf16Value(char[] chars) {
+            this.chars = chars;
+        }
+    }
+
+    static final class Emitter {
+        private final CompilationContext ctxt;
+        private final Section section;
+        private final Layout layout;
+        private final LiteralFactory lf;
+        private final TypeSystem ts;
+        private final IdentityHashMap<Object, HeapObject> objects = new IdentityHashMap<>();
+        private final ArrayDeque<HeapObject> queue = new ArrayDeque<>();
+        private final Map<LoadedTypeDefinition, CompoundType> instanceTypes = new HashMap<>();
+
+        Emitter(CompilationContext ctxt, Section section) {
+            this.ctxt = ctxt;
+            this.section = section;
+            this.layout = Layout.get(ctxt);
+            this.lf = ctxt.getLiteralFactory();
+            this.ts = ctxt.getTypeSystem();
+        }
+
+        /**
+         * Register an object to be laid out.  The type and symbol name of the object are fixed immediately, so that
+         * it can be referred to before (or while) its own contents are laid out.
+         *
+         * @param value the build-time object (must not be {@code null})
+         * @return the heap object
+         */
+        HeapObject register(Object value) {
+            HeapObject heapObject = objects.get(value);
+            if (heapObject == null) {
+                String name = objectPrefix + objects.size();
+                heapObject = new HeapObject(value, name, computeType(value, name));
+                objects.put(value, heapObject);
+                queue.add(heapObject);
+            }
+            return heapObject;
+        }
+
+        void emitAll() {
+            // use a work list rather than recursion, so that long chains of objects cannot overflow the stack
+            HeapObject heapObject;
+            while ((heapObject = queue.poll()) != null) {
+                Data data = section.addData(null, heapObject.name, layOut(heapObject));
+                data.setDsoLocal();
+                heapObject.data = data;
+            }
+        }
+
+        private Literal referenceTo(Object value, ReferenceType refType) {
+            if (value == null) {
+                return lf.zeroInitializerLiteralOfType(refType);
+            }
+            if (value instanceof Class) {
+                ctxt.error("Build-time heap: laying out java.lang.Class instances is not yet supported");
+                return lf.zeroInitializerLiteralOfType(refType);
+            }
+            HeapObject heapObject = register(value);
+            return lf.valueConvertLiteral(lf.literalOfSymbol(heapObject.name, heapObject.type.getPointer()), refType);
+        }
+
+        // types
+
+        private CompoundType computeType(Object value, String name) {
+            if (value instanceof Utf16Value) {
+                LoadedTypeDefinition byteArray = layout.getArrayLoadedTypeDefinition("[B");
+                return arrayType(byteArray, layout.getByteArrayContentField(), ts.getUnsignedInteger16Type(), ((Utf16Value) value).chars.length, name);
+            }
+            Class<?> cls = value.getClass();
+            if (cls.isArray()) {
+                ArrayObjectType arrayType = (ArrayObjectType) objectTypeOf(cls);
+                FieldElement contentField = layout.getArrayContentField(arrayType);
+                LoadedTypeDefinition arrayDef = contentField.getEnclosingType().load();
+                ValueType elementType = ((ArrayType) layout.getInstanceLayoutInfo(arrayDef).getMember(contentField).getType()).getElementType();
+                return arrayType(arrayDef, contentField, elementType, Array.getLength(value), name);
+            }
+            return instanceType(definitionOf(cls));
+        }
+
+        private CompoundType instanceType(LoadedTypeDefinition definition) {
+            // the layout type is packed (alignment 1), but objects in the heap must be aligned like allocated ones
+            return instanceTypes.computeIfAbsent(definition, ltd -> {
+                CompoundType layoutType = layout.getInstanceLayoutInfo(ltd).getCompoundType();
+                List<CompoundType.Member> members = new ArrayList<>(layoutType.getMemberCount());
+                for (int i = 0; i < layoutType.getMemberCount(); i ++) {
+                    members.add(layoutType.getMember(i));
+                }
+                return ts.getCompoundType(CompoundType.Tag.NONE, "heap." + layoutType.getName(), layoutType.getSize(), ts.getPointerAlignment(), () -> members);
+            });
+        }
+
+        private CompoundType arrayType(LoadedTypeDefinition arrayDef, FieldElement contentField, ValueType elementType, int length, String name) {
+            Layout.LayoutInfo info = layout.getInstanceLayoutInfo(arrayDef);
+            CompoundType layoutType = info.getCompoundType();
+            CompoundType.Member layoutContent = info.getMember(contentField);
+            ArrayType contentType = ts.getArrayType(elementType, length);
+            CompoundType.Member content = ts.getCompoundTypeMember(layoutContent.getName(), contentType, layoutContent.getOffset(), layoutContent.getAlign());
+            List<CompoundType.Member> members = new ArrayList<>(layoutType.getMemberCount());
+            for (int i = 0; i < layoutType.getMemberCount(); i ++) {
+                CompoundType.Member member = layoutType.getMember(i);
+                members.add(member == layoutContent ? content : member);
+            }
+            return ts.getCompoundType(CompoundType.Tag.NONE, name, layoutContent.getOffset() + contentType.getSize(), ts.getPointerAlignment(), () -> members);
+        }
+
+        private ObjectType objectTypeOf(Class<?> cls) {
+            if (cls.isArray()) {
+                Class<?> componentType = cls.getComponentType();
+                if (componentType.isPrimitive()) {
+                    return primitiveTypeOf(componentType).getPrimitiveArrayObjectType();
+                }
+                return objectTypeOf(componentType).getReferenceArrayObject();
+            }
+            return definitionOf(cls).getType();
+        }
+
+        private WordType primitiveTypeOf(Class<?> cls) {
+            if (cls == boolean.class) {
+                return ts.getBooleanType();
+            } else if (cls == byte.class) {
+                return ts.getSignedInteger8Type();
+            } else if (cls == short.class) {
+                return ts.getSignedInteger16Type();
+            } else if (cls == char.class) {
+                return ts.getUnsignedInteger16Type();
+            } else if (cls == int.class) {
+                return ts.getSignedInteger32Type();
+            } else if (cls == float.class) {
+                return ts.getFloat32Type();
+            } else if (cls == long.class) {
+                return ts.getSignedInteger64Type();
+            } else if (cls == double.class) {
+                return ts.getFloat64Type();
+            } else {
+                throw new IllegalArgumentException("Not a primitive array component type: " + cls);
+            }
+        }
+
+        private LoadedTypeDefinition definitionOf(Class<?> cls) {
+            DefinedTypeDefinition definition = ctxt.getBootstrapClassContext().findDefinedType(cls.getName().replace('.', '/'));
+            if (definition == null) {
+                throw new IllegalStateException("Build-time heap object of unknown class " + cls.getName());
+            }
+            return definition.load();
+        }
+
+        // contents
+
+        private Literal layOut(HeapObject heapObject) {
+            Object value = heapObject.value;
+            CompoundType type = heapObject.type;
+            if (value instanceof Utf16Value) {
+                char[] chars = ((Utf16Value) value).chars;
+                return layOutArray(type, ts.getSignedInteger8Type().getPrimitiveArrayObjectType(), layout.getByteArrayContentField(), chars, chars.length * 2);
+            } else if (value.getClass().isArray()) {
+                ArrayObjectType arrayType = (ArrayObjectType) objectTypeOf(value.getClass());
+                return layOutArray(type, arrayType, layout.getArrayContentField(arrayType), value, Array.getLength(value));
+            } else if (value instanceof String) {
+                return layOutString(type, (String) value);
+            } else {
+                return layOutInstance(type, value);
+            }
+        }
+
+        private Literal layOutArray(CompoundType type, ArrayObjectType arrayType, FieldElement contentField, Object array, int length) {
+            Layout.LayoutInfo info = layout.getInstanceLayoutInfo(contentField.getEnclosingType());
+            Map<CompoundType.Member, Literal> values = new HashMap<>();
+            values.put(info.getMember(layout.getObjectTypeIdField()), lf.literalOfType(arrayType));
+            values.put(info.getMember(layout.getArrayLengthField()), lf.literalOf(length));
+            if (arrayType instanceof ReferenceArrayObjectType) {
+                ReferenceArrayObjectType refArrayType = (ReferenceArrayObjectType) arrayType;
+                values.put(info.getMember(layout.getRefArrayDimensionsField()), lf.literalOf(refArrayType.getDimensionCount()));
+                values.put(info.getMember(layout.getRefArrayElementTypeIdField()), lf.literalOfType(refArrayType.getLeafElementType()));
+            }
+            // the content member of the layout was replaced by one with an array type of the actual length
+            CompoundType layoutType = info.getCompoundType();
+            CompoundType.Member layoutContent = info.getMember(contentField);
+            for (int i = 0; i < layoutType.getMemberCount(); i ++) {
+                if (layoutType.getMember(i) == layoutContent) {
+                    CompoundType.Member content = type.getMember(i);
+                    values.put(content, contentOf((ArrayType) content.getType(), array));
+                }
+            }
+            return lf.literalOf(type, values);
+        }
+
+        private Literal contentOf(ArrayType type, Object array) {
+            if (array instanceof byte[]) {
+                return lf.literalOf(type, (byte[]) array);
+            }
+            ValueType elementType = type.getElementType();
+            int length = Array.getLength(array);
+            List<Literal> elements = new ArrayList<>(length);
+            for (int i = 0; i < length; i ++) {
+                if (array instanceof boolean[]) {
+                    elements.add(lf.literalOf((IntegerType) elementType, ((boolean[]) array)[i] ? 1 : 0));
+                } else if (array instanceof short[]) {
+                    elements.add(lf.literalOf(((short[]) array)[i]));
+                } else if (array instanceof char[]) {
+                    elements.add(lf.literalOf(((char[]) array)[i]));
+                } else if (array instanceof int[]) {
+                    elements.add(lf.literalOf(((int[]) array)[i]));
+                } else if (array instanceof float[]) {
+                    elements.add(lf.literalOf(((float[]) array)[i]));
+                } else if (array instanceof long[]) {
+                    elements.add(lf.literalOf(((long[]) array)[i]));
+                } else if (array instanceof double[]) {
+                    elements.add(lf.literalOf(((double[]) array)[i]));
+                } else {
+                    elements.add(referenceTo(((Object[]) array)[i], (ReferenceType) elementType));
+                }
+            }
+            return lf.literalOf(type, elements);
+        }
+
+        private Literal layOutString(CompoundType type, String string) {
+            LoadedTypeDefinition jls = definitionOf(String.class);
+            Layout.LayoutInfo info = layout.getInstanceLayoutInfo(jls);
+            CompoundType.Member valueMember = info.getMember(jls.findField("value"));
+            boolean latin1 = StandardCharsets.ISO_8859_1.newEncoder().canEncode(string);
+            Object content = latin1 ? string.getBytes(StandardCharsets.ISO_8859_1) : new Utf16Value(string.toCharArray());
+            Map<CompoundType.Member, Literal> values = new HashMap<>();
+            values.put(info.getMember(layout.getObjectTypeIdField()), lf.literalOfType(jls.getType()));
+            values.put(valueMember, referenceTo(content, (ReferenceType) valueMember.getType()));
+            values.put(info.getMember(jls.findField("coder")), lf.literalOf((byte) (latin1 ? 0 : 1)));
+            return lf.literalOf(type, values);
+        }
+
+        private Literal layOutInstance(CompoundType type, Object object) {
+            LoadedTypeDefinition ltd = definitionOf(object.getClass());
+            Layout.LayoutInfo info = layout.getInstanceLayoutInfo(ltd);
+            Map<CompoundType.Member, Literal> values = new HashMap<>();
+            values.put(info.getMember(layout.getObjectTypeIdField()), lf.literalOfType(ltd.getType()));
+            Class<?> hostClass = object.getClass();
+            for (LoadedTypeDefinition cur = ltd; cur != null; cur = cur.getSuperClass(), hostClass = hostClass.getSuperclass()) {
+                for (int i = 0; i < cur.getFieldCount(); i ++) {
+                    FieldElement field = cur.getField(i);
+                    // injected fields (the identity hash code, the lock word) start out as zero
+                    if (field.isStatic() || (field.getModifiers() & ClassFile.I_ACC_HIDDEN) != 0) {
+                        continue;
+                    }
+                    CompoundType.Member member = info.getMember(field);
+                    try {
+                        Field hostField = hostClass.getDeclaredField(field.getName());
+                        hostField.setAccessible(true);
+                        values.put(member, fieldValue(hostField, object, field.getTypeDescriptor(), member.getType()));
+                    } catch (NoSuchFieldException | IllegalAccessException | RuntimeException e) {
+                        ctxt.error(e, "Error laying out field %s of build-time heap object of %s", field.getName(), ltd.getInternalName());
+                    }
+                }
+            }
+            return lf.literalOf(type, values);
+        }
+
+        private Literal fieldValue(Field hostField, Object object, TypeDescriptor desc, ValueType type) throws IllegalAccessException {
+            if (desc.equals(BaseTypeDescriptor.Z)) {
+                return lf.literalOf((IntegerType) type, hostField.getBoolean(object) ? 1 : 0);
+            } else if (desc.equals(BaseTypeDescriptor.B)) {
+                return lf.literalOf(hostField.getByte(object));
+            } else if (desc.equals(BaseTypeDescriptor.S)) {
+                return lf.literalOf(hostField.getShort(object));
+            } else if (desc.equals(BaseTypeDescriptor.C)) {
+                return lf.literalOf(hostField.getChar(object));
+            } else if (desc.equals(BaseTypeDescriptor.I)) {
+                return lf.literalOf(hostField.getInt(object));
+            } else if (desc.equals(BaseTypeDescriptor.F)) {
+                return lf.literalOf(hostField.getFloat(object));
+            } else if (desc.equals(BaseTypeDescriptor.J)) {
+                return lf.literalOf(hostField.getLong(object));
+            } else if (desc.equals(BaseTypeDescriptor.D)) {
+                return lf.literalOf(hostField.getDouble(object));
+            } else {
+                return referenceTo(hostField.get(object), (ReferenceType) type);
+            }
+        }
+    }
+}
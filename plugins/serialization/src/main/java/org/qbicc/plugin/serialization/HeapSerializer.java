@@ -8,7 +8,6 @@ import java.util.Set;
 import java.util.function.Consumer;
 
 import org.qbicc.context.CompilationContext;
-import org.qbicc.graph.BasicBlock;
 import org.qbicc.graph.BasicBlockBuilder;
 import org.qbicc.graph.BlockEarlyTermination;
 import org.qbicc.graph.BlockLabel;
@@ -25,13 +24,14 @@ import org.qbicc.plugin.gc.nogc.NoGc;
 import org.qbicc.plugin.layout.Layout;
 import org.qbicc.type.ArrayType;
 import org.qbicc.type.CompoundType;
+import org.qbicc.type.FunctionType;
+import org.qbicc.type.PointerType;
 import org.qbicc.type.PrimitiveArrayObjectType;
 import org.qbicc.type.ReferenceType;
 import org.qbicc.type.TypeSystem;
 import org.qbicc.type.WordType;
 import org.qbicc.type.definition.LoadedTypeDefinition;
 import org.qbicc.type.definition.MethodBody;
-import org.qbicc.type.definition.element.FieldElement;
 import org.qbicc.type.definition.element.MethodElement;
 import org.qbicc.type.descriptor.BaseTypeDescriptor;
 
@@ -47,13 +47,6 @@ public class HeapSerializer implements Consumer<CompilationContext> {
 
     public void accept(CompilationContext ctxt) {
         BuildtimeHeap heap = BuildtimeHeap.get(ctxt);
-
-        // TEMP TESTING: Serialize an int[] with known values to a known static field just to get the plumbing worked out
-        LoadedTypeDefinition main = ctxt.getBootstrapClassContext().findDefinedType("org/qbicc/runtime/main/Main").load();
-        FieldElement f = main.findField("watermark");
-        heap.addStaticField(f, new int[]{10, 32});
-        // END TEMP TESTING
-
         heap.serializeHeap();
 
         LoadedTypeDefinition od = ctxt.getBootstrapClassContext().findDefinedType("org/qbicc/runtime/deserialization/RuntimeObjectDeserializer").load();
@@ -317,17 +310,20 @@ public class HeapSerializer implements Consumer<CompilationContext> {
         BasicBlockBuilder bb = ctxt.getBootstrapClassContext().newBasicBlockBuilder(meth);
         MethodBody original = meth.getOrCreateMethodBody();
         LiteralFactory lf = ctxt.getLiteralFactory();
+        TypeSystem ts = ctxt.getTypeSystem();
 
         LoadedTypeDefinition deser = ctxt.getBootstrapClassContext().findDefinedType("org/qbicc/runtime/deserialization/Deserializer").load();
-        MethodElement[] readers = new MethodElement[8];
-        readers[0] = deser.getMethod(deser.findMethodIndex(e -> e.getName().equals("readBoolean")));
-        readers[1] = deser.getMethod(deser.findMethodIndex(e -> e.getName().equals("readByte")));
-        readers[2] = deser.getMethod(deser.findMethodIndex(e -> e.getName().equals("readShort")));
-        readers[3] = deser.getMethod(deser.findMethodIndex(e -> e.getName().equals("readChar")));
-        readers[4] = deser.getMethod(deser.findMethodIndex(e -> e.getName().equals("readInt")));
-        readers[5] = deser.getMethod(deser.findMethodIndex(e -> e.getName().equals("readFloat")));
-        readers[6] = deser.getMethod(deser.findMethodIndex(e -> e.getName().equals("readLong")));
-        readers[7] = deser.getMethod(deser.findMethodIndex(e -> e.getName().equals("readDouble")));
+        MethodElement getBuffer = deser.getMethod(deser.findMethodIndex(e -> e.getName().equals("getBuffer")));
+        MethodElement skipPrimitiveArrayData = deser.getMethod(deser.findMethodIndex(e -> e.getName().equals("skipPrimitiveArrayData")));
+        WordType[] elementTypes = new WordType[8];
+        elementTypes[0] = ts.getBooleanType();
+        elementTypes[1] = ts.getSignedInteger8Type();
+        elementTypes[2] = ts.getSignedInteger16Type();
+        elementTypes[3] = ts.getUnsignedInteger16Type();
+        elementTypes[4] = ts.getSignedInteger32Type();
+        elementTypes[5] = ts.getFloat32Type();
+        elementTypes[6] = ts.getSignedInteger64Type();
+        elementTypes[7] = ts.getFloat64Type();
         int[] typeIds = new int[8];
         BlockLabel[] targets = new BlockLabel[8];
         BlockLabel errorBlock = new BlockLabel();
@@ -336,38 +332,29 @@ public class HeapSerializer implements Consumer<CompilationContext> {
             typeIds[i] = i + 10; // UGH.  Yet another place we depend on the ordering of prim array typeIds!
         }
 
+        // the elements are serialized in the byte order of the target, so they are copied into the array as they are
+        PointerType bytePtr = ts.getSignedInteger8Type().getPointer().asCollected();
+        FunctionType memcpyType = ts.getFunctionType(ts.getVoidType(), bytePtr, bytePtr, ts.getSignedInteger32Type(), ts.getBooleanType());
+        String memcpyName = "llvm.memcpy.p1i8.p1i8.i32";
+        ctxt.getImplicitSection(meth.getEnclosingType()).declareFunction(null, memcpyName, memcpyType);
+
         bb.begin(new BlockLabel());
         bb.switch_(original.getParameterValue(0), typeIds, targets, errorBlock);
 
         for (int i=0; i<8; i++) {
             try {
+                bb.begin(targets[i]);
                 Value length = original.getParameterValue(1);
-                ReferenceType arrayType = ((WordType) readers[i].getType().getReturnType()).getPrimitiveArrayObjectType().getReference();
+                Value deserializer = original.getParameterValue(3);
+                ReferenceType arrayType = elementTypes[i].getPrimitiveArrayObjectType().getReference();
                 ValueHandle arrayHandle = bb.referenceHandle(bb.bitCast(original.getParameterValue(2), arrayType));
-                bb.begin(targets[i]);
-
-                // generate a loop to deserialize the elements one at a time
-                // TODO: Once we serialize the heap using platform endianess, this loop could be replaced by a straight memcopy + an adjustment of the deser cursor.
-                BlockLabel loop = new BlockLabel();
-                BasicBlock initial = bb.goto_(loop);
-                bb.begin(loop);
-                PhiValue phi = bb.phi(length.getType(), loop);
-                BlockLabel exit = new BlockLabel();
-                BlockLabel resume = new BlockLabel();
-
-                bb.if_(bb.isEq(phi, length), exit, resume);
-                try {
-                    bb.begin(resume);
-                    phi.setValueForBlock(ctxt, meth, initial, lf.literalOf(0));
-                    bb.store(bb.elementOf(arrayHandle, phi),
-                        bb.invokeValueInstance(DispatchInvocation.Kind.VIRTUAL, original.getParameterValue(3), readers[i], List.of()),
-                        MemoryAtomicityMode.UNORDERED);
-                    BasicBlock loopExit = bb.goto_(loop);
-                    phi.setValueForBlock(ctxt, meth, loopExit, bb.add(phi, lf.literalOf(1)));
-                } catch (BlockEarlyTermination ignored) {
-                    // continue
-                }
-                bb.begin(exit);
+                long elementSize = elementTypes[i].getSize();
+                Value byteLength = elementSize == 1 ? length : bb.multiply(length, lf.literalOf((int) elementSize));
+                Value buffer = bb.invokeValueInstance(DispatchInvocation.Kind.VIRTUAL, deserializer, getBuffer, List.of());
+                Value offset = bb.invokeValueInstance(DispatchInvocation.Kind.VIRTUAL, deserializer, skipPrimitiveArrayData, List.of(byteLength));
+                Value src = bb.bitCast(bb.addressOf(bb.elementOf(bb.referenceHandle(buffer), offset)), bytePtr);
+                Value dest = bb.bitCast(bb.addressOf(bb.elementOf(arrayHandle, lf.literalOf(0))), bytePtr);
+                bb.callFunction(lf.literalOfSymbol(memcpyName, memcpyType), List.of(dest, src, byteLength, lf.literalOf(false)), 0);
                 bb.return_();
             } catch (BlockEarlyTermination ignored) {
                 // continue to next case
@@ -10,6 +10,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.lang.reflect.Field;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 import java.util.IdentityHashMap;
 import java.util.Set;
@@ -19,10 +20,54 @@ public class Serializer implements SerializationConstants {
     private final IdentityHashMap<Object, Integer> objects = new IdentityHashMap<>();
     private final ByteArrayOutputStream outBytes = new ByteArrayOutputStream();
     private final DataOutputStream out = new DataOutputStream(outBytes);
+    private final boolean littleEndian;
     private int lastIndex = 0;
 
-    public Serializer(CompilationContext ctxt) {
+    /**
+     * Construct a new instance.
+     *
+     * @param ctxt the compilation context
+     * @param byteOrder the byte order of the target platform, in which all multi-byte values are written
+     */
+    public Serializer(CompilationContext ctxt, ByteOrder byteOrder) {
         this.ctxt = ctxt;
+        this.littleEndian = byteOrder == ByteOrder.LITTLE_ENDIAN;
+    }
+
+    // DataOutputStream always writes big-endian values, so swap them for little-endian targets
+
+    private void writeShort(int value) throws IOException {
+        out.writeShort(littleEndian ? Short.reverseBytes((short) value) : value);
+    }
+
+    private void writeChar(int value) throws IOException {
+        writeShort(value);
+    }
+
+    private void writeInt(int value) throws IOException {
+        out.writeInt(littleEndian ? Integer.reverseBytes(value) : value);
+    }
+
+    private void writeLong(long value) throws IOException {
+        out.writeLong(littleEndian ? Long.reverseBytes(value) : value);
+    }
+
+    private void writeFloat(float value) throws IOException {
+        writeInt(Float.floatToRawIntBits(value));
+    }
+
+    private void writeDouble(double value) throws IOException {
+        writeLong(Double.doubleToRawLongBits(value));
+    }
+
+    /**
+     * Pad the output so that the elements of a primitive array are aligned to their size relative to the start of
+     * the buffer, which the deserializer skips before copying them in bulk.
+     */
+    private void align(int alignment) throws IOException {
+        while ((out.size() & (alignment - 1)) != 0) {
+            out.writeByte(0);
+        }
     }
 
     private int getBackref(Object obj) {
@@ -61,10 +106,10 @@ public class Serializer implements SerializationConstants {
                 out.writeByte(TINY_REF_TAG_BIT | possibleBackRef);
             } else if (possibleBackRef <= 0xFFFF) {
                 out.writeByte(BACKREF_SMALL);
-                out.writeShort(possibleBackRef);
+                writeShort(possibleBackRef);
             } else {
                 out.writeByte(BACKREF_LARGE);
-                out.writeInt(possibleBackRef);
+                writeInt(possibleBackRef);
             }
             return;
         }
@@ -78,7 +123,7 @@ public class Serializer implements SerializationConstants {
                 out.writeByte(bytes.length);
             } else {
                 out.writeByte(STRING_LARGE_L1);
-                out.writeInt(bytes.length);
+                writeInt(bytes.length);
             }
             out.write(bytes);
             return;
@@ -91,7 +136,7 @@ public class Serializer implements SerializationConstants {
                 out.writeByte(array.length);
             } else {
                 out.writeByte(ARRAY_LARGE_BOOLEAN);
-                out.writeInt(array.length);
+                writeInt(array.length);
             }
             for (boolean b : array) {
                 out.writeBoolean(b);
@@ -105,7 +150,7 @@ public class Serializer implements SerializationConstants {
                 out.writeByte(array.length);
             } else {
                 out.writeByte(ARRAY_LARGE_BYTE);
-                out.writeInt(array.length);
+                writeInt(array.length);
             }
             for (byte b : array) {
                 out.writeByte(b);
@@ -119,10 +164,11 @@ public class Serializer implements SerializationConstants {
                 out.writeByte(array.length);
             } else {
                 out.writeByte(ARRAY_LARGE_SHORT);
-                out.writeInt(array.length);
+                writeInt(array.length);
             }
+            align(2);
             for (short value : array) {
-                out.writeShort(value);
+                writeShort(value);
             }
             return;
         }
@@ -133,10 +179,11 @@ public class Serializer implements SerializationConstants {
                 out.writeByte(array.length);
             } else {
                 out.writeByte(ARRAY_LARGE_CHAR);
-                out.writeInt(array.length);
+                writeInt(array.length);
             }
+            align(2);
             for (char c : array) {
-                out.writeChar(c);
+                writeChar(c);
             }
             return;
         }
@@ -147,10 +194,11 @@ public class Serializer implements SerializationConstants {
                 out.writeByte(array.length);
             } else {
                 out.writeByte(ARRAY_LARGE_INT);
-                out.writeInt(array.length);
+                writeInt(array.length);
             }
+            align(4);
             for (int j : array) {
-                out.writeInt(j);
+                writeInt(j);
             }
             return;
         }
@@ -161,10 +209,11 @@ public class Serializer implements SerializationConstants {
                 out.writeByte(array.length);
             } else {
                 out.writeByte(ARRAY_LARGE_FLOAT);
-                out.writeInt(array.length);
+                writeInt(array.length);
             }
+            align(4);
             for (float v : array) {
-                out.writeFloat(v);
+                writeFloat(v);
             }
             return;
         }
@@ -175,10 +224,11 @@ public class Serializer implements SerializationConstants {
                 out.writeByte(array.length);
             } else {
                 out.writeByte(ARRAY_LARGE_LONG);
-                out.writeInt(array.length);
+                writeInt(array.length);
             }
+            align(8);
             for (long l : array) {
-                out.writeLong(l);
+                writeLong(l);
             }
             return;
         }
@@ -189,10 +239,11 @@ public class Serializer implements SerializationConstants {
                 out.writeByte(array.length);
             } else {
                 out.writeByte(ARRAY_LARGE_DOUBLE);
-                out.writeInt(array.length);
+                writeInt(array.length);
             }
+            align(8);
             for (double v : array) {
-                out.writeDouble(v);
+                writeDouble(v);
             }
             return;
         }
@@ -204,24 +255,24 @@ public class Serializer implements SerializationConstants {
                     out.writeByte(ARRAY_SMALL_STRING);
                     out.writeByte(array.length);
                 } else {
-                    out.writeLong(ARRAY_LARGE_STRING);
-                    out.writeInt(array.length);
+                    out.writeByte(ARRAY_LARGE_STRING);
+                    writeInt(array.length);
                 }
             } else if (obj.getClass().getComponentType().equals(Object.class)) {
                 if (array.length < 128) {
                     out.writeByte(ARRAY_SMALL_OBJECT);
                     out.writeByte(array.length);
                 } else {
-                    out.writeLong(ARRAY_LARGE_OBJECT);
-                    out.writeInt(array.length);
+                    out.writeByte(ARRAY_LARGE_OBJECT);
+                    writeInt(array.length);
                 }
             } else {
                 if (array.length < 128) {
                     out.writeByte(ARRAY_SMALL_CLASS);
                     out.writeByte(array.length);
                 } else {
-                    out.writeLong(ARRAY_LARGE_CLASS);
-                    out.writeInt(array.length);
+                    out.writeByte(ARRAY_LARGE_CLASS);
+                    writeInt(array.length);
                 }
             }
             for (Object elem : array) {
@@ -241,7 +292,7 @@ public class Serializer implements SerializationConstants {
         Class<?> cls = obj.getClass();
         LoadedTypeDefinition ltd = ctxt.getBootstrapClassContext().findDefinedType(cls.getName()).load();
         out.writeByte(OBJECT);
-        out.writeShort(ltd.getTypeId());
+        writeShort(ltd.getTypeId());
         try {
             serializeInstanceFields(obj, ltd, writtenClasses);
         } catch (IllegalAccessException | NoSuchFieldException e) {
@@ -263,17 +314,17 @@ public class Serializer implements SerializationConstants {
                 } else if (qf.getTypeDescriptor().equals(BaseTypeDescriptor.B)) {
                     out.writeByte(jf.getByte(obj));
                 } else if (qf.getTypeDescriptor().equals(BaseTypeDescriptor.S)) {
-                    out.writeShort(jf.getShort(obj));
+                    writeShort(jf.getShort(obj));
                 } else if (qf.getTypeDescriptor().equals(BaseTypeDescriptor.C)) {
-                    out.writeChar(jf.getChar(obj));
+                    writeChar(jf.getChar(obj));
                 } else if (qf.getTypeDescriptor().equals(BaseTypeDescriptor.I)) {
-                    out.writeInt(jf.getInt(obj));
+                    writeInt(jf.getInt(obj));
                 } else if (qf.getTypeDescriptor().equals(BaseTypeDescriptor.F)) {
-                    out.writeFloat(jf.getFloat(obj));
+                    writeFloat(jf.getFloat(obj));
                 } else if (qf.getTypeDescriptor().equals(BaseTypeDescriptor.J)) {
-                    out.writeLong(jf.getLong(obj));
+                    writeLong(jf.getLong(obj));
                 } else if (qf.getTypeDescriptor().equals(BaseTypeDescriptor.D)) {
-                    out.writeDouble(jf.getDouble(obj));
+                    writeDouble(jf.getDouble(obj));
                 } else {
                     writeObject(jf.get(obj), writtenClasses);
                 }
@@ -0,0 +1,142 @@
+package org.qbicc.plugin.serialization;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.qbicc.runtime.deserialization.Deserializer;
+import org.qbicc.runtime.deserialization.ObjectDeserializer;
+
+/**
+ * Round trips of primitive arrays through the serializer and the run time deserializer.
+ */
+public class SerializerTestCase {
+
+    @Test
+    public void testPrimitiveArrayRoundTrip() throws IOException {
+        Object[] arrays = {
+            new boolean[] { true, false },
+            new short[] { -2, 0x1234 },
+            new char[] { 'a', '€' },
+            new int[] { 0xCAFEBABE, 7, -1 },
+            new float[] { 1.5f },
+            new long[] { 0x0123456789ABCDEFL, -1 },
+            new double[] { -0.25, Double.MAX_VALUE },
+            new byte[] { -1, 42, 0 },
+            new long[300],
+        };
+        ((long[]) arrays[8])[299] = 299;
+        // Each round starts at a different misalignment, so that every element size needs some padding
+        for (int skew = 0; skew < 8; skew++) {
+            Serializer serializer = new Serializer(null, ByteOrder.nativeOrder());
+            serializer.writeObject("x".repeat(skew), Set.of());
+            for (Object array : arrays) {
+                serializer.writeObject(array, Set.of());
+            }
+            BulkCopyDeserializer thunk = new BulkCopyDeserializer();
+            Deserializer deserializer = new Deserializer(serializer.getBytes(), serializer.getNumberOfObjects(), thunk);
+            assertEquals("x".repeat(skew), deserializer.readObject());
+            for (Object array : arrays) {
+                Object copy = deserializer.readObject();
+                assertEquals(array.getClass(), copy.getClass());
+                assertArrayEquals(new Object[] { array }, new Object[] { copy });
+            }
+            int[] elementSizes = { 1, 2, 2, 4, 4, 8, 8, 1, 8 };
+            assertEquals(elementSizes.length, thunk.offsets.size());
+            for (int i = 0; i < elementSizes.length; i++) {
+                assertEquals(0, thunk.offsets.get(i) & (elementSizes[i] - 1), "misaligned array data");
+            }
+        }
+    }
+
+    @Test
+    public void testTargetByteOrder() throws IOException {
+        Serializer big = new Serializer(null, ByteOrder.BIG_ENDIAN);
+        big.writeObject(new int[] { 0x01020304 }, Set.of());
+        // tag, length, two bytes of padding, then the element
+        assertArrayEquals(new byte[] { 1, 2, 3, 4 }, tail(big.getBytes(), 4));
+
+        Serializer little = new Serializer(null, ByteOrder.LITTLE_ENDIAN);
+        little.writeObject(new int[] { 0x01020304 }, Set.of());
+        assertArrayEquals(new byte[] { 4, 3, 2, 1 }, tail(little.getBytes(), 4));
+        assertEquals(8, little.getBytes().length);
+    }
+
+    private static byte[] tail(byte[] bytes, int count) {
+        byte[] tail = new byte[count];
+        System.arraycopy(bytes, bytes.length - count, tail, 0, count);
+        return tail;
+    }
+
+    /**
+     * Copies primitive array data in bulk from the buffer, like the generated {@code RuntimeObjectDeserializer} does.
+     */
+    static final class BulkCopyDeserializer extends ObjectDeserializer {
+        final List<Integer> offsets = new ArrayList<>();
+
+        public String createString(byte[] data, byte coder, boolean longLived, boolean immortal) {
+            assertEquals(0, coder);
+            return new String(data, StandardCharsets.ISO_8859_1);
+        }
+
+        public Object allocateClass(int typeId, boolean longLived, boolean immortal) {
+            throw new IllegalStateException();
+        }
+
+        public Object allocatePrimitiveArray(int typeId, int length, boolean longLived, boolean immortal) {
+            switch (typeId) {
+                case 11: return new boolean[length];
+                case 12: return new byte[length];
+                case 13: return new short[length];
+                case 14: return new char[length];
+                case 15: return new int[length];
+                case 16: return new float[length];
+                case 17: return new long[length];
+                case 18: return new double[length];
+                default: throw new IllegalArgumentException("Unexpected typeid " + typeId);
+            }
+        }
+
+        public Object[] allocateReferenceArray(int elementTypeId, int length, boolean longLived, boolean immortal) {
+            throw new IllegalStateException();
+        }
+
+        public void deserializeInstanceFields(int typeId, Object obj, Deserializer deserializer) {
+            throw new IllegalStateException();
+        }
+
+        public void deserializePrimitiveArrayData(int typeId, int length, Object array, Deserializer deserializer) {
+            int elementSize = typeId <= 12 ? 1 : typeId <= 14 ? 2 : typeId <= 16 ? 4 : 8;
+            int offset = deserializer.skipPrimitiveArrayData(length * elementSize);
+            offsets.add(Integer.valueOf(offset));
+            ByteBuffer data = ByteBuffer.wrap(deserializer.getBuffer(), offset, length * elementSize).order(ByteOrder.nativeOrder());
+            if (array instanceof boolean[]) {
+                boolean[] booleans = (boolean[]) array;
+                for (int i = 0; i < length; i++) {
+                    booleans[i] = data.get() != 0;
+                }
+            } else if (array instanceof byte[]) {
+                data.get((byte[]) array);
+            } else if (array instanceof short[]) {
+                data.asShortBuffer().get((short[]) array);
+            } else if (array instanceof char[]) {
+                data.asCharBuffer().get((char[]) array);
+            } else if (array instanceof int[]) {
+                data.asIntBuffer().get((int[]) array);
+            } else if (array instanceof float[]) {
+                data.asFloatBuffer().get((float[]) array);
+            } else if (array instanceof long[]) {
+                data.asLongBuffer().get((long[]) array);
+            } else {
+                data.asDoubleBuffer().get((double[]) array);
+            }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package org.qbicc.runtime;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Indicate that the annotated method is rarely executed.  The method is optimized for size rather than for speed,
+ * and calls to it are treated as unlikely.
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.CLASS)
+@Documented
+public @interface Cold {
+}
@@ -0,0 +1,17 @@
+package org.qbicc.runtime;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Indicate that the annotated method is frequently executed.  The module containing the method is optimized at the
+ * highest available level, regardless of the optimization level selected for the build.
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.CLASS)
+@Documented
+public @interface Hot {
+}
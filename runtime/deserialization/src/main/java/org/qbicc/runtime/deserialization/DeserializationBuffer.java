@@ -7,10 +7,6 @@ package org.qbicc.runtime.deserialization;
  * (since their static fields are being initialized by this code).
  */
 public final class DeserializationBuffer {
-    // Eventually buf will be serialized using the native endianness of the target platform.
-    // For now, we are serializing with a DataOutputStream, so it is always BigEndian.
-    static final boolean LE = false;
-
     private final byte[] buf;
     private int current;
 
@@ -19,12 +15,19 @@ public final class DeserializationBuffer {
         this.current = 0;
     }
 
-    // TODO: this method is intended to be a qbicc intrinsic and will assume platform-endianness of buf
+    // The buffer holds values in the byte order of the target platform, at any alignment.  When compiled by qbicc,
+    // the readN methods are intrinsics which read each value with a single unaligned load.  These implementations
+    // are only used on a JVM (for example, in unit tests), where the buffer holds values in the host byte order.
+
+    private static boolean isLittleEndian() {
+        return java.nio.ByteOrder.nativeOrder() == java.nio.ByteOrder.LITTLE_ENDIAN;
+    }
+
     private static int read16(byte[] buf, int offset) {
         byte b0 = buf[offset];
         byte b1 = buf[offset + 1];
         int bits;
-        if (LE) {
+        if (isLittleEndian()) {
             bits = (b0 & 0xFF) | ((b1 & 0xFF) << 8);
         } else {
             bits = (b1 & 0xFF) | ((b0 & 0xFF) << 8);
@@ -32,14 +35,13 @@ public final class DeserializationBuffer {
         return bits;
     }
 
-    // TODO: this method is intended to be a qbicc intrinsic and will assume platform-endianness of buf
     private static int read32(byte[] buf, int offset) {
         byte b0 = buf[offset];
         byte b1 = buf[offset + 1];
         byte b2 = buf[offset + 2];
         byte b3 = buf[offset + 3];
         int bits;
-        if (LE) {
+        if (isLittleEndian()) {
             bits = (b0 & 0xFF) | ((b1 & 0xFF) << 8) | ((b2 & 0xFF) << 16) | ((b3 & 0xFF) << 24);
         } else {
             bits = (b3 & 0xFF) | ((b2 & 0xFF) << 8) | ((b1 & 0xFF) << 16) | ((b0 & 0xFF) << 24);
@@ -47,7 +49,6 @@ public final class DeserializationBuffer {
         return bits;
     }
 
-    // TODO: this method is intended to be a qbicc intrinsic and will assume platform-endianness of buf
     private static long read64(byte[] buf, int offset) {
         byte b0 = buf[offset];
         byte b1 = buf[offset + 1];
@@ -58,7 +59,7 @@ public final class DeserializationBuffer {
         byte b6 = buf[offset + 6];
         byte b7 = buf[offset + 7];
         long bits;
-        if (LE) {
+        if (isLittleEndian()) {
             bits = (b0 & 0xFFL) | ((b1 & 0xFFL) << 8) | ((b2 & 0xFFL) << 16) | ((b3 & 0xFFL) << 24) |
                 ((b4 & 0xFFL) << 32) | ((b5 & 0xFFL) << 40) | ((b6 & 0xFFL) << 48) | ((b7 & 0xFFL) << 56);
         } else {
@@ -109,9 +110,32 @@ public final class DeserializationBuffer {
     }
 
     void get(byte[] toBuf) {
-        for (int i = 0; i < toBuf.length; i++) {
-            toBuf[i] = buf[current + i];
-        }
+        System.arraycopy(buf, current, toBuf, 0, toBuf.length);
         current += toBuf.length;
     }
+
+    /**
+     * Skip the padding which the serializer inserted to align the next value.
+     *
+     * @param alignment the alignment of the next value (a power of 2)
+     */
+    void align(int alignment) {
+        current = (current + alignment - 1) & -alignment;
+    }
+
+    /**
+     * Skip over bytes which the caller reads directly from the buffer.
+     *
+     * @param count the number of bytes to skip
+     * @return the offset of the first skipped byte
+     */
+    int skip(int count) {
+        int start = current;
+        current += count;
+        return start;
+    }
+
+    byte[] getBytes() {
+        return buf;
+    }
 }
@@ -83,6 +83,26 @@ public final class Deserializer implements SerializationConstants {
         return 0xFFFF & buf.getShort();
     }
 
+    /**
+     * Skip over the elements of a primitive array, so that they can be copied in bulk from the buffer returned
+     * by {@link #getBuffer()}.  The elements are stored in the byte order of the target platform.
+     *
+     * @param byteLength the size of the elements in bytes
+     * @return the offset of the first element in the buffer
+     */
+    public int skipPrimitiveArrayData(int byteLength) {
+        return buf.skip(byteLength);
+    }
+
+    public byte[] getBuffer() {
+        return buf.getBytes();
+    }
+
+    // the primitive array tags are ordered boolean, byte, short, char, int, float, long, double
+    private static int primitiveElementSize(int tag) {
+        return 1 << (((~TAG_MASK & tag) - 1) >> 1);
+    }
+
     /**
      * Fully deserialize (including transitively reachable objects) an object and return it.
      * @return The deserialized object.
@@ -159,6 +179,7 @@ public final class Deserializer implements SerializationConstants {
                 int typeId = 10 + (~TAG_MASK & tag);
                 Object theArray = thunk.allocatePrimitiveArray(typeId, length, false, false);
                 objects.recordObject(theArray);
+                buf.align(primitiveElementSize(tag));
                 thunk.deserializePrimitiveArrayData(typeId, length, theArray, this);
                 return theArray;
             }
@@ -204,6 +225,7 @@ public final class Deserializer implements SerializationConstants {
                 int typeId = 10 + (~TAG_MASK & tag);
                 Object theArray = thunk.allocatePrimitiveArray(typeId, length, false, false);
                 objects.recordObject(theArray);
+                buf.align(primitiveElementSize(tag));
                 thunk.deserializePrimitiveArrayData(typeId, length, theArray, this);
                 return theArray;
             }
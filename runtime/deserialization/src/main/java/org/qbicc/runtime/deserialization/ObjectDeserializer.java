@@ -8,7 +8,7 @@ public abstract class ObjectDeserializer {
     /**
      * Create and initialize a String from the given byte array and coder.
      * @param data the bytes from which to make the string
-     * @param coder which Charset to use: 0 means ISO_8859_1 and 1 means UTF_16BE
+     * @param coder which Charset to use: 0 means ISO_8859_1 and 1 means UTF-16 in the byte order of the target platform
      * @param longLived is the instance predicted to be long lived?
      * @param immortal is the instance predicted to be immortal?
      * @return the uninitialized object
@@ -8,8 +8,12 @@ package org.qbicc.runtime.deserialization;
 public final class RuntimeObjectDeserializer extends ObjectDeserializer {
 
     public static void initializeHeap() {
-        byte[] pickledHeap = getPickledHeap();
         int numberOfObjects = getNumberOfPickledObjects();
+        if (numberOfObjects == 0) {
+            // nothing was pickled; the build-time heap (if any) was laid out as data by HeapDataEmitter
+            return;
+        }
+        byte[] pickledHeap = getPickledHeap();
         Deserializer deser = new Deserializer(pickledHeap, numberOfObjects, new RuntimeObjectDeserializer());
         deserializeHeap(deser);
     }
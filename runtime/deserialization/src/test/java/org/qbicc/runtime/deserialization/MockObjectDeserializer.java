@@ -1,6 +1,11 @@
 package org.qbicc.runtime.deserialization;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * A mock to enable some simple testing without qbicc.
@@ -12,9 +17,11 @@ public class MockObjectDeserializer extends ObjectDeserializer {
     final static int TYPEID_TEST1 = 21;
     final static int TYPEID_TEST2 = 22;
 
+    final static Charset NATIVE_UTF_16 = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? StandardCharsets.UTF_16LE : StandardCharsets.UTF_16BE;
+
     // In the real implementation, we simulate the lowlevel (byte[], byte) String constructor.
     public String createString(byte[] data, byte coder, boolean longLived, boolean immortal) {
-        return coder == 0 ? new String(data, StandardCharsets.ISO_8859_1) : new String(data, StandardCharsets.UTF_16BE);
+        return coder == 0 ? new String(data, StandardCharsets.ISO_8859_1) : new String(data, NATIVE_UTF_16);
     }
 
     // In the real implementation, we would use the typeId to index into a compiler-generated array of instance
@@ -70,59 +77,48 @@ public class MockObjectDeserializer extends ObjectDeserializer {
         }
     }
 
+    // The offsets of the primitive array data passed to deserializePrimitiveArrayData, so that tests can check their alignment.
+    final List<Integer> primitiveArrayDataOffsets = new ArrayList<>();
+
+    // In the real implementation, the elements are skipped in the deserializer and copied with one memcpy from
+    // the buffer into the array.  ByteBuffer does the same bulk copy here.
     public void deserializePrimitiveArrayData(int typeId, int length, Object array, Deserializer deserializer) {
+        int elementSize = typeId == 11 || typeId == 12 ? 1 : typeId <= 14 ? 2 : typeId <= 16 ? 4 : 8;
+        int offset = deserializer.skipPrimitiveArrayData(length * elementSize);
+        primitiveArrayDataOffsets.add(Integer.valueOf(offset));
+        ByteBuffer data = ByteBuffer.wrap(deserializer.getBuffer(), offset, length * elementSize).order(ByteOrder.nativeOrder());
         switch (typeId) {
             case 11: {
+                boolean[] booleans = (boolean[]) array;
                 for (int i = 0; i < length; i++) {
-                    ((boolean[]) array)[i] = deserializer.readBoolean();
-                }
-            }
-            case 12: {
-                assert array instanceof byte[];
-                for (int i = 0; i < length; i++) {
-                    ((byte[]) array)[i] = deserializer.readByte();
-                }
-            }
-            case 13: {
-                assert array instanceof short[];
-                for (int i = 0; i < length; i++) {
-                    ((short[]) array)[i] = deserializer.readShort();
-                }
-            }
-            case 14: {
-                assert array instanceof char[];
-                for (int i = 0; i < length; i++) {
-                    ((char[]) array)[i] = deserializer.readChar();
-                }
-            }
-            case 15: {
-                assert array instanceof int[];
-                for (int i = 0; i < length; i++) {
-                    ((int[]) array)[i] = deserializer.readInt();
-                }
-            }
-            case 16: {
-                assert array instanceof float[];
-                for (int i = 0; i < length; i++) {
-                    ((float[]) array)[i] = deserializer.readFloat();
-                }
-            }
-            case 17: {
-                assert array instanceof long[];
-                for (int i = 0; i < length; i++) {
-                    ((long[]) array)[i] = deserializer.readLong();
-                }
-            }
-            case 18: {
-                assert array instanceof double[];
-                for (int i = 0; i < length; i++) {
-                    ((double[]) array)[i] = deserializer.readDouble();
+                    booleans[i] = data.get() != 0;
                 }
+                break;
             }
+            case 12:
+                data.get((byte[]) array);
+                break;
+            case 13:
+                data.asShortBuffer().get((short[]) array);
+                break;
+            case 14:
+                data.asCharBuffer().get((char[]) array);
+                break;
+            case 15:
+                data.asIntBuffer().get((int[]) array);
+                break;
+            case 16:
+                data.asFloatBuffer().get((float[]) array);
+                break;
+            case 17:
+                data.asLongBuffer().get((long[]) array);
+                break;
+            case 18:
+                data.asDoubleBuffer().get((double[]) array);
+                break;
             default:
                 throw new RuntimeException("Unexpected typeid " + typeId);
         }
-
     }
 
     // In the real implementation, this would use typeId to index into a table of function pointers.
@@ -5,8 +5,9 @@ import static org.junit.jupiter.api.Assertions.*;
 import org.junit.jupiter.api.Test;
 
 import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 
 public class TestDeserialization {
@@ -24,8 +25,55 @@ public class TestDeserialization {
         Test2() {}
     }
 
+    /**
+     * Writes values in the byte order of the host, just like the serializer does for the target.
+     */
+    static final class NativeOrderOutput {
+        private final ByteArrayOutputStream os;
+        private final ByteBuffer scratch = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
 
-    void writeStringL1(String str, DataOutputStream out) throws IOException {
+        NativeOrderOutput(ByteArrayOutputStream os) {
+            this.os = os;
+        }
+
+        void write(int b) throws IOException {
+            os.write(b);
+        }
+
+        void write(byte[] bytes) throws IOException {
+            os.write(bytes);
+        }
+
+        void writeByte(int b) throws IOException {
+            os.write(b);
+        }
+
+        void writeShort(int s) throws IOException {
+            os.write(scratch.clear().putShort((short) s).array(), 0, 2);
+        }
+
+        void writeInt(int i) throws IOException {
+            os.write(scratch.clear().putInt(i).array(), 0, 4);
+        }
+
+        void writeLong(long l) throws IOException {
+            os.write(scratch.clear().putLong(l).array(), 0, 8);
+        }
+
+        // Pad like the serializer does, but with a non-zero value so that a deserializer which does not skip it fails
+        void align(int alignment) {
+            while ((os.size() & (alignment - 1)) != 0) {
+                os.write(0x55);
+            }
+        }
+
+        void flush() throws IOException {
+            os.flush();
+        }
+    }
+
+
+    void writeStringL1(String str, NativeOrderOutput out) throws IOException {
         if (str.length() < 20) { // artificially small for testing. Actually support up to 255.
             out.write(SerializationConstants.STRING_SMALL_L1);
             out.writeByte(str.getBytes(StandardCharsets.ISO_8859_1).length);
@@ -36,21 +84,21 @@ public class TestDeserialization {
         out.write(str.getBytes(StandardCharsets.ISO_8859_1));
     }
 
-    void writeStringU16(String str, DataOutputStream out) throws IOException {
+    void writeStringU16(String str, NativeOrderOutput out) throws IOException {
         if (str.length() < 20) { // artificially small for testing. Actually support up to 255.
             out.write(SerializationConstants.STRING_SMALL_U16);
-            out.writeByte(str.getBytes(StandardCharsets.UTF_16BE).length/2);
+            out.writeByte(str.getBytes(MockObjectDeserializer.NATIVE_UTF_16).length/2);
         } else {
             out.write(SerializationConstants.STRING_LARGE_U16);
-            out.writeInt(str.getBytes(StandardCharsets.UTF_16BE).length/2);
+            out.writeInt(str.getBytes(MockObjectDeserializer.NATIVE_UTF_16).length/2);
         }
-        out.write(str.getBytes(StandardCharsets.UTF_16BE));
+        out.write(str.getBytes(MockObjectDeserializer.NATIVE_UTF_16));
     }
 
     @Test
     public void testStrings() throws Exception {
         ByteArrayOutputStream os = new ByteArrayOutputStream();
-        DataOutputStream out = new DataOutputStream(os);
+        NativeOrderOutput out = new NativeOrderOutput(os);
 
         String hello = "Hello World!";
         String ciao = "See you later alligator";
@@ -68,7 +116,7 @@ public class TestDeserialization {
     @Test
     public void testCell() throws Exception {
         ByteArrayOutputStream os = new ByteArrayOutputStream();
-        DataOutputStream out = new DataOutputStream(os);
+        NativeOrderOutput out = new NativeOrderOutput(os);
 
         out.writeByte(SerializationConstants.OBJECT);
         out.writeShort(MockObjectDeserializer.TYPEID_TEST1);
@@ -87,7 +135,7 @@ public class TestDeserialization {
     @Test
     void testLinkedList() throws Exception {
         ByteArrayOutputStream os = new ByteArrayOutputStream();
-        DataOutputStream out = new DataOutputStream(os);
+        NativeOrderOutput out = new NativeOrderOutput(os);
 
         // Linked list containing first 3 primes
         out.writeByte(SerializationConstants.OBJECT);
@@ -116,7 +164,7 @@ public class TestDeserialization {
     @Test
     void testCyclicList() throws Exception {
         ByteArrayOutputStream os = new ByteArrayOutputStream();
-        DataOutputStream out = new DataOutputStream(os);
+        NativeOrderOutput out = new NativeOrderOutput(os);
 
         // Cyclic linked list containing first 3 primes
         out.writeByte(SerializationConstants.OBJECT);
@@ -145,7 +193,7 @@ public class TestDeserialization {
     @Test
     void testSubclass() throws Exception {
         ByteArrayOutputStream os = new ByteArrayOutputStream();
-        DataOutputStream out = new DataOutputStream(os);
+        NativeOrderOutput out = new NativeOrderOutput(os);
 
         // Cyclic linked list containing first 3 primes;  first & third cells are subclass that add self-pointer and String to the "c" field
         out.writeByte(SerializationConstants.OBJECT);
@@ -182,7 +230,7 @@ public class TestDeserialization {
     @Test
     void testObjectArray() throws IOException {
         ByteArrayOutputStream os = new ByteArrayOutputStream();
-        DataOutputStream out = new DataOutputStream(os);
+        NativeOrderOutput out = new NativeOrderOutput(os);
 
         out.writeByte(SerializationConstants.ARRAY_SMALL_OBJECT);
         out.writeByte(4);
@@ -205,4 +253,74 @@ public class TestDeserialization {
         assertEquals(spine[2], ((Test1)spine[2]).b);
         assertEquals("QED", spine[3]);
     }
+
+    @Test
+    void testPrimitiveArrays() throws IOException {
+        // Each round starts at a different misalignment, so that every element size needs some padding
+        for (int skew = 0; skew < 8; skew++) {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            NativeOrderOutput out = new NativeOrderOutput(os);
+
+            writeStringL1("x".repeat(skew), out);
+            out.writeByte(SerializationConstants.ARRAY_SMALL_BOOLEAN);
+            out.writeByte(3);
+            out.write(new byte[] { 1, 0, 1 });
+            out.writeByte(SerializationConstants.ARRAY_SMALL_SHORT);
+            out.writeByte(2);
+            out.align(2);
+            out.writeShort(-2);
+            out.writeShort(0x1234);
+            out.writeByte(SerializationConstants.ARRAY_SMALL_CHAR);
+            out.writeByte(1);
+            out.align(2);
+            out.writeShort('\u20ac');
+            out.writeByte(SerializationConstants.ARRAY_SMALL_INT);
+            out.writeByte(2);
+            out.align(4);
+            out.writeInt(0xCAFEBABE);
+            out.writeInt(7);
+            out.writeByte(SerializationConstants.ARRAY_LARGE_FLOAT);
+            out.writeInt(1);
+            out.align(4);
+            out.writeInt(Float.floatToRawIntBits(1.5f));
+            out.writeByte(SerializationConstants.ARRAY_SMALL_LONG);
+            out.writeByte(2);
+            out.align(8);
+            out.writeLong(0x0123456789ABCDEFL);
+            out.writeLong(-1);
+            out.writeByte(SerializationConstants.ARRAY_LARGE_DOUBLE);
+            out.writeInt(1);
+            out.align(8);
+            out.writeLong(Double.doubleToRawLongBits(-0.25));
+            out.writeByte(SerializationConstants.ARRAY_SMALL_BYTE);
+            out.writeByte(2);
+            out.write(new byte[] { -1, 42 });
+            // an unaligned value after the arrays must still be read correctly
+            out.writeByte(SerializationConstants.OBJECT);
+            out.writeShort(MockObjectDeserializer.TYPEID_TEST1);
+            out.writeInt(99);
+            out.writeByte(SerializationConstants.NULL);
+
+            out.flush();
+            MockObjectDeserializer arrayMock = new MockObjectDeserializer();
+            Deserializer ds = new Deserializer(os.toByteArray(), 10, arrayMock);
+            ObjectGraph graph = ds.readAll();
+
+            assertArrayEquals(new boolean[] { true, false, true }, (boolean[]) graph.getObject(1));
+            assertArrayEquals(new short[] { -2, 0x1234 }, (short[]) graph.getObject(2));
+            assertArrayEquals(new char[] { '\u20ac' }, (char[]) graph.getObject(3));
+            assertArrayEquals(new int[] { 0xCAFEBABE, 7 }, (int[]) graph.getObject(4));
+            assertArrayEquals(new float[] { 1.5f }, (float[]) graph.getObject(5));
+            assertArrayEquals(new long[] { 0x0123456789ABCDEFL, -1 }, (long[]) graph.getObject(6));
+            assertArrayEquals(new double[] { -0.25 }, (double[]) graph.getObject(7));
+            assertArrayEquals(new byte[] { -1, 42 }, (byte[]) graph.getObject(8));
+            assertEquals(99, ((Test1) graph.getObject(9)).a);
+
+            int[] elementSizes = { 1, 2, 2, 4, 4, 8, 8, 1 };
+            assertEquals(elementSizes.length, arrayMock.primitiveArrayDataOffsets.size());
+            for (int i = 0; i < elementSizes.length; i++) {
+                assertEquals(0, arrayMock.primitiveArrayDataOffsets.get(i) & (elementSizes[i] - 1), "misaligned array data");
+            }
+        }
+    }
 }
@@ -2,11 +2,13 @@ package org.qbicc.runtime.gc.nogc;
 
 import static org.qbicc.runtime.CNative.*;
 import static org.qbicc.runtime.posix.Stdlib.*;
+import static org.qbicc.runtime.posix.SysMman.*;
 import static org.qbicc.runtime.stdc.Stddef.*;
 import static org.qbicc.runtime.stdc.Stdlib.*;
 import static org.qbicc.runtime.stdc.String.*;
 
 import org.qbicc.runtime.Build;
+import org.qbicc.runtime.ThreadScoped;
 
 /**
  *
@@ -14,7 +16,53 @@ import org.qbicc.runtime.Build;
 public final class NoGcHelpers {
     private NoGcHelpers() {}
 
+    /**
+     * The size of each thread-local allocation buffer.
+     */
+    private static final long TLAB_SIZE = 1L << 20;
+    /**
+     * The largest allocation which is made from a thread-local allocation buffer.  Larger allocations are made
+     * individually, so that they do not waste the remainder of the current buffer.
+     */
+    private static final long TLAB_MAX_ALLOCATION_SIZE = TLAB_SIZE >> 3;
+    /**
+     * The alignment of the top of each allocation buffer, which is also assumed by the inline allocation fast path.
+     */
+    private static final long TLAB_ALIGNMENT = 8;
+
+    /**
+     * The address of the free space of the current thread's allocation buffer, or zero if it has none.
+     */
+    @ThreadScoped
+    static long tlabTop;
+    /**
+     * The end address of the current thread's allocation buffer.
+     */
+    @ThreadScoped
+    static long tlabEnd;
+
+    /**
+     * Allocate zero-filled memory.  The compiler generates an inline fast path which bumps {@link #tlabTop} if
+     * the allocation fits in the current thread's allocation buffer, and calls this method otherwise.
+     *
+     * @param size the allocation size in bytes
+     * @param align the allocation alignment in bytes (must be a power of 2)
+     * @return the zero-filled memory
+     */
     public static ptr<?> allocate(long size, int align) {
+        // there is no current thread while the initial thread is being attached
+        if (size <= TLAB_MAX_ALLOCATION_SIZE && Thread.currentThread() != null) {
+            long mask = align - 1;
+            long top = (tlabTop + mask) & ~mask;
+            if (tlabTop == 0 || top + size > tlabEnd) {
+                // start a new buffer; the remainder of the current one (if any) is abandoned
+                long buffer = allocateZeroed(TLAB_SIZE).longValue();
+                top = (buffer + mask) & ~mask;
+                tlabEnd = buffer + TLAB_SIZE;
+            }
+            tlabTop = (top + size + TLAB_ALIGNMENT - 1) & -TLAB_ALIGNMENT;
+            return word(top).cast(void_ptr.class);
+        }
         if (false && Build.Target.isPosix()) {
             void_ptr ptr = auto();
             c_int res = posix_memalign(addr_of(ptr), word((long)align), word(size));
@@ -22,9 +70,10 @@ public final class NoGcHelpers {
                 // todo: read errno
                 throw new OutOfMemoryError(/*"Allocation failed"*/);
             }
+            memset(ptr, word(0), word(size));
             return ptr;
         } else {
-            char_ptr ptr = malloc(word(size + align));
+            char_ptr ptr = calloc(word(1), word(size + align));
             if (ptr.isNull()) {
                 throw new OutOfMemoryError(/*"Allocation failed"*/);
             }
@@ -38,6 +87,23 @@ public final class NoGcHelpers {
         }
     }
 
+    private static void_ptr allocateZeroed(long size) {
+        void_ptr ptr;
+        if (Build.Target.isPosix()) {
+            // fresh anonymous pages are always zero-filled
+            ptr = mmap(zero(), word(size), word(PROT_READ.intValue() | PROT_WRITE.intValue()), word(MAP_PRIVATE.intValue() | MAP_ANON.intValue()), word(-1), word(0));
+            if (ptr.longValue() == -1) {
+                throw new OutOfMemoryError(/*"Allocation failed"*/);
+            }
+        } else {
+            ptr = calloc(word(1), word(size));
+            if (ptr.isNull()) {
+                throw new OutOfMemoryError(/*"Allocation failed"*/);
+            }
+        }
+        return ptr;
+    }
+
     public static void_ptr clear(void_ptr ptr, long size) { return memset(ptr, word(0), word(size)); }
 
     public static void copy(void_ptr to, const_void_ptr from, long size) {
@@ -0,0 +1,16 @@
+package org.qbicc.runtime.gc.precise;
+
+/**
+ * A visitor for the reference roots of a stack.
+ */
+@FunctionalInterface
+public interface RootVisitor {
+    /**
+     * Visit a root.  A relocating collector must update the derived slot by the same amount as the base slot.
+     *
+     * @param baseSlot the address of the stack slot holding the base object reference
+     * @param derivedSlot the address of the stack slot holding the derived pointer, which is equal to
+     *      {@code baseSlot} if the reference is not derived
+     */
+    void visitRoot(long baseSlot, long derivedSlot);
+}
@@ -0,0 +1,125 @@
+package org.qbicc.runtime.gc.precise;
+
+import static org.qbicc.runtime.CNative.*;
+import static org.qbicc.runtime.posix.PThread.*;
+import static org.qbicc.runtime.stdc.Stdlib.*;
+
+/**
+ * Global safepoints.  When precise collection is enabled, the compiler inserts a poll of {@link #requested} at
+ * the entry of each method and on each loop back edge, which calls {@link #poll()} if it is non-zero.  A thread
+ * which has entered {@code poll()} has spilled all of its live references to the stack slots which are described
+ * by the stack map of the call site, so its roots can be found by {@link StackMaps#walkRoots(RootVisitor)}.
+ * <p>
+ * The methods of this class are never polled themselves, and must not call anything that is.
+ * <p>
+ * No collector requests safepoints yet; {@link #request()}, {@link #awaitParked(int)} and {@link #release()} are the
+ * entry points for one.
+ */
+public final class SafePoints {
+    private SafePoints() {}
+
+    private static final long ALIGNMENT = 16;
+
+    /**
+     * Non-zero while a safepoint is requested.
+     */
+    static volatile int requested;
+    /**
+     * The requesting thread, which does not park in its own safepoint.
+     */
+    private static Thread requester;
+    /**
+     * The number of threads parked in the current safepoint, protected by the mutex.
+     */
+    private static int parked;
+    /**
+     * The address of the native mutex and condition variable, allocated by the first request.
+     */
+    private static long state;
+
+    /**
+     * Park the current thread until the requested safepoint is released.  Called from compiled code.
+     */
+    public static void poll() {
+        if (Thread.currentThread() == requester) {
+            return;
+        }
+        lock();
+        parked ++;
+        check(pthread_cond_broadcast(cond()));
+        while (requested != 0) {
+            check(pthread_cond_wait(cond(), mutex()));
+        }
+        parked --;
+        unlock();
+    }
+
+    /**
+     * Request a safepoint.  Only one thread may hold a safepoint request at a time.
+     */
+    public static void request() {
+        if (state == 0) {
+            void_ptr mem = malloc(word(mutexSize() + sizeof(pthread_cond_t.class).longValue()));
+            if (mem.isNull()) {
+                throw new OutOfMemoryError(/*"Allocation failed"*/);
+            }
+            state = mem.longValue();
+            check(pthread_mutex_init(mutex(), zero()));
+            check(pthread_cond_init(cond(), zero()));
+        }
+        requester = Thread.currentThread();
+        requested = 1;
+    }
+
+    /**
+     * Wait until the given number of threads have parked in the requested safepoint.  Threads which are
+     * running native code do not reach a poll, so the caller must not count them.
+     *
+     * @param count the number of threads to wait for
+     */
+    public static void awaitParked(int count) {
+        lock();
+        while (parked < count) {
+            check(pthread_cond_wait(cond(), mutex()));
+        }
+        unlock();
+    }
+
+    /**
+     * Release the requested safepoint, resuming all of the parked threads.
+     */
+    public static void release() {
+        lock();
+        requested = 0;
+        requester = null;
+        check(pthread_cond_broadcast(cond()));
+        unlock();
+    }
+
+    private static pthread_mutex_t_ptr mutex() {
+        return word(state).cast(pthread_mutex_t_ptr.class);
+    }
+
+    private static pthread_cond_t_ptr cond() {
+        return word(state + mutexSize()).cast(pthread_cond_t_ptr.class);
+    }
+
+    private static long mutexSize() {
+        return (sizeof(pthread_mutex_t.class).longValue() + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    private static void lock() {
+        check(pthread_mutex_lock(mutex()));
+    }
+
+    private static void unlock() {
+        check(pthread_mutex_unlock(mutex()));
+    }
+
+    private static void check(c_int nativeErrorCode) {
+        int errorCode = nativeErrorCode.intValue();
+        if (0 != errorCode) {
+            throw new IllegalStateException("error code is: " + errorCode);
+        }
+    }
+}
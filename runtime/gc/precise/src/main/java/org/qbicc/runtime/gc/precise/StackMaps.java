@@ -0,0 +1,56 @@
+package org.qbicc.runtime.gc.precise;
+
+import static org.qbicc.runtime.CNative.*;
+import static org.qbicc.runtime.stdc.Stdint.*;
+import static org.qbicc.runtime.unwind.LibUnwind.*;
+
+/**
+ * Access to the stack map table of the image.  The table is generated at link time from the statepoint stack maps
+ * which LLVM emits for each call site in a garbage-collected function.  Each entry of the table describes the stack
+ * slots which hold live references across the call, as pairs of base and derived locations.  Each location is
+ * a DWARF register number and an offset from the value of that register in the frame of the call.
+ */
+public final class StackMaps {
+    private StackMaps() {}
+
+    /**
+     * Find the roots of a call site.
+     *
+     * @param ip the return address of the call site
+     * @param roots the location to store the address of the root locations, which are four {@code int32_t} values
+     *      (base register, base offset, derived register, derived offset) for each root
+     * @return the number of roots, or -1 if the address is not a call site with a stack map
+     */
+    @extern
+    static native c_int qbicc_stack_map_find(uintptr_t ip, const_int32_t_ptr_ptr roots);
+
+    /**
+     * Visit the roots of every frame of the current thread's stack which belongs to a garbage-collected function.
+     * The calling thread must be stopped at a safepoint or be the thread which requested it.
+     *
+     * @param visitor the root visitor (must not be {@code null})
+     */
+    public static void walkRoots(RootVisitor visitor) {
+        unw_context_t context = auto();
+        unw_cursor_t cursor = auto();
+        unw_word_t ip = auto();
+        const_int32_t_ptr roots = auto();
+        unw_getcontext(addr_of(context));
+        unw_init_local(addr_of(cursor), addr_of(context));
+        while (unw_step(addr_of(cursor)).intValue() > 0) {
+            unw_get_reg(addr_of(cursor), UNW_REG_IP, addr_of(ip));
+            int count = qbicc_stack_map_find(ip.cast(uintptr_t.class), addr_of(roots)).intValue();
+            for (int i = 0; i < count; i ++) {
+                long baseSlot = slotAddress(addr_of(cursor), roots, i * 4);
+                long derivedSlot = slotAddress(addr_of(cursor), roots, i * 4 + 2);
+                visitor.visitRoot(baseSlot, derivedSlot);
+            }
+        }
+    }
+
+    private static long slotAddress(unw_cursor_t_ptr cursor, const_int32_t_ptr roots, int idx) {
+        unw_word_t value = auto();
+        unw_get_reg(cursor, roots.get(idx).cast(unw_regnum_t.class), addr_of(value));
+        return value.longValue() + roots.get(idx + 1).longValue();
+    }
+}
@@ -24,9 +24,6 @@ public final class Main {
 
     static native ThreadGroup createSystemThreadGroup();
 
-    // TEMP: A Watermark field to verify RuntimeObjectDeserializer.initializeHeap() runs before user main is entered
-    static int[] watermark;
-
     @export
     public static c_int main(c_int argc, char_ptr[] argv) {
 
@@ -38,13 +35,6 @@ public final class Main {
         // Deserialize the initial heap
         RuntimeObjectDeserializer.initializeHeap();
 
-        // TEMP: Remove watermark check once we are using heap serialization to initialize statics
-        if (watermark.length != 2 || (watermark[0] + watermark[1] != 42)) {
-            if (Build.Target.isPosix()) {
-                pthread_exit(word(1L).cast(void_ptr.class));
-            }
-        }
-
         // now cause the initial thread to invoke main
         final String[] args = new String[argc.intValue()];
         for (int i = 1; i < argc.intValue(); i++) {
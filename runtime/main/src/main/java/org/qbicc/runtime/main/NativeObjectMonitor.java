@@ -1,16 +1,193 @@
 package org.qbicc.runtime.main;
 
-import org.qbicc.runtime.posix.PThread.pthread_mutex_t_ptr;
+import static org.qbicc.runtime.CNative.*;
+import static org.qbicc.runtime.posix.Errno.*;
+import static org.qbicc.runtime.posix.PThread.*;
+import static org.qbicc.runtime.posix.Time.*;
+import static org.qbicc.runtime.stdc.Stdint.*;
+import static org.qbicc.runtime.stdc.Stdlib.*;
+import static org.qbicc.runtime.stdc.Time.*;
 
-/* object wrapper for native objectmonitor mutex. */
-public class NativeObjectMonitor {
-    private final pthread_mutex_t_ptr pthread_mutex;
+/**
+ * Inflated object monitors.  A monitor is inflated when it is contended, when a thread waits on it, or when it is
+ * entered recursively more often than the lock word can count.  An inflated monitor is a block of native memory which
+ * holds the owning thread, the recursion count, a mutex which protects them, and two condition variables: one for
+ * threads which are blocked entering the monitor and one for threads which are waiting to be notified.  The owner is
+ * identified the same way as in a thin lock word.  Once inflated, a monitor stays with its object for good.
+ */
+final class NativeObjectMonitor {
+    private NativeObjectMonitor() {}
 
-    NativeObjectMonitor(pthread_mutex_t_ptr pthread_mutex) {
-        this.pthread_mutex = pthread_mutex;
+    private static final int OWNER = 0;
+    private static final int RECURSIONS = 1;
+    private static final long HEADER_SIZE = 16;
+    private static final long ALIGNMENT = 16;
+
+    /**
+     * Create a new inflated monitor.
+     *
+     * @param owner the owning thread, or 0 if the monitor is not owned
+     * @param recursions the number of recursive entries beyond the first one
+     * @return the address of the monitor (aligned to at least 2 bytes)
+     */
+    static long create(long owner, long recursions) {
+        void_ptr mem = malloc(word(HEADER_SIZE + mutexSize() + 2 * condSize()));
+        if (mem.isNull()) {
+            throw new OutOfMemoryError(/*"Allocation failed"*/);
+        }
+        long monitor = mem.longValue();
+        check(pthread_mutex_init(mutex(monitor), zero()));
+        check(pthread_cond_init(entered(monitor), zero()));
+        check(pthread_cond_init(notified(monitor), zero()));
+        header(monitor).set(OWNER, word(owner));
+        header(monitor).set(RECURSIONS, word(recursions));
+        return monitor;
+    }
+
+    /**
+     * Destroy a monitor which was never published in an object header.
+     *
+     * @param monitor the monitor address
+     */
+    static void destroy(long monitor) {
+        pthread_cond_destroy(notified(monitor));
+        pthread_cond_destroy(entered(monitor));
+        pthread_mutex_destroy(mutex(monitor));
+        free(word(monitor).cast(void_ptr.class));
+    }
+
+    static void enter(long monitor, long self) {
+        lock(monitor);
+        long owner = getOwner(monitor);
+        if (owner == self) {
+            setRecursions(monitor, getRecursions(monitor) + 1);
+        } else {
+            acquire(monitor, self, 0);
+        }
+        unlock(monitor);
+    }
+
+    static void exit(long monitor, long self) {
+        lock(monitor);
+        if (getOwner(monitor) != self) {
+            unlock(monitor);
+            throw new IllegalMonitorStateException();
+        }
+        long recursions = getRecursions(monitor);
+        if (recursions > 0) {
+            setRecursions(monitor, recursions - 1);
+        } else {
+            release(monitor);
+        }
+        unlock(monitor);
+    }
+
+    static void wait(long monitor, long self, long millis) {
+        lock(monitor);
+        if (getOwner(monitor) != self) {
+            unlock(monitor);
+            throw new IllegalMonitorStateException();
+        }
+        long recursions = getRecursions(monitor);
+        release(monitor);
+        // TODO: thread interruption
+        if (millis == 0) {
+            check(pthread_cond_wait(notified(monitor), mutex(monitor)));
+        } else {
+            struct_timespec deadline = auto();
+            check(clock_gettime(CLOCK_REALTIME, addr_of(deadline)));
+            long nanos = deadline.tv_nsec.longValue() + (millis % 1000) * 1_000_000L;
+            deadline.tv_sec = word(deadline.tv_sec.longValue() + millis / 1000 + nanos / 1_000_000_000L);
+            deadline.tv_nsec = word(nanos % 1_000_000_000L);
+            c_int res = pthread_cond_timedwait(notified(monitor), mutex(monitor), addr_of(deadline));
+            if (res.intValue() != ETIMEDOUT.intValue()) {
+                check(res);
+            }
+        }
+        acquire(monitor, self, recursions);
+        unlock(monitor);
+    }
+
+    static void notify(long monitor, long self, boolean all) {
+        lock(monitor);
+        if (getOwner(monitor) != self) {
+            unlock(monitor);
+            throw new IllegalMonitorStateException();
+        }
+        if (all) {
+            check(pthread_cond_broadcast(notified(monitor)));
+        } else {
+            check(pthread_cond_signal(notified(monitor)));
+        }
+        unlock(monitor);
+    }
+
+    // the following methods must be called with the monitor mutex held
+
+    private static void acquire(long monitor, long self, long recursions) {
+        while (getOwner(monitor) != 0) {
+            check(pthread_cond_wait(entered(monitor), mutex(monitor)));
+        }
+        header(monitor).set(OWNER, word(self));
+        setRecursions(monitor, recursions);
+    }
+
+    private static void release(long monitor) {
+        header(monitor).set(OWNER, word(0L));
+        setRecursions(monitor, 0);
+        check(pthread_cond_signal(entered(monitor)));
+    }
+
+    private static long getOwner(long monitor) {
+        return header(monitor).get(OWNER).longValue();
+    }
+
+    private static long getRecursions(long monitor) {
+        return header(monitor).get(RECURSIONS).longValue();
+    }
+
+    private static void setRecursions(long monitor, long recursions) {
+        header(monitor).set(RECURSIONS, word(recursions));
+    }
+
+    // memory layout
+
+    private static int64_t_ptr header(long monitor) {
+        return word(monitor).cast(int64_t_ptr.class);
+    }
+
+    private static pthread_mutex_t_ptr mutex(long monitor) {
+        return word(monitor + HEADER_SIZE).cast(pthread_mutex_t_ptr.class);
+    }
+
+    private static pthread_cond_t_ptr entered(long monitor) {
+        return word(monitor + HEADER_SIZE + mutexSize()).cast(pthread_cond_t_ptr.class);
+    }
+
+    private static pthread_cond_t_ptr notified(long monitor) {
+        return word(monitor + HEADER_SIZE + mutexSize() + condSize()).cast(pthread_cond_t_ptr.class);
+    }
+
+    private static long mutexSize() {
+        return (sizeof(pthread_mutex_t.class).longValue() + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    private static long condSize() {
+        return (sizeof(pthread_cond_t.class).longValue() + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    private static void lock(long monitor) {
+        check(pthread_mutex_lock(mutex(monitor)));
+    }
+
+    private static void unlock(long monitor) {
+        check(pthread_mutex_unlock(mutex(monitor)));
     }
 
-    pthread_mutex_t_ptr getPthreadMutex() {
-        return pthread_mutex;
+    private static void check(c_int nativeErrorCode) throws IllegalMonitorStateException {
+        int errorCode = nativeErrorCode.intValue();
+        if (0 != errorCode) {
+            throw new IllegalMonitorStateException("error code is: " + errorCode);
+        }
     }
 }
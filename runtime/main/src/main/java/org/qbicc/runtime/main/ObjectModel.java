@@ -48,6 +48,52 @@ public class ObjectModel {
      */
     public static native CNative.type_id element_type_id_of(Object arrayReference); // Object not Object[] because we use this in the impl of cast
 
+    /**
+     * Get the identity hash code stored in the header of the referenced object.
+     *
+     * @param reference the object reference (must not be {@code null})
+     * @return the identity hash code, or 0 if none has been assigned yet
+     */
+    public static native int identity_hash_code_of(Object reference);
+
+    /**
+     * Atomically store the identity hash code into the header of the referenced object if the current value is equal
+     * to the expected value.
+     *
+     * @param reference the object reference (must not be {@code null})
+     * @param expect the expected current identity hash code
+     * @param update the new identity hash code
+     * @return the identity hash code which was stored in the header before the operation
+     */
+    public static native int compare_and_exchange_identity_hash_code(Object reference, int expect, int update);
+
+    /**
+     * Get the current address of the referenced object.  The address is not stable if objects can be moved.
+     *
+     * @param reference the object reference (must not be {@code null})
+     * @return the address of the object
+     */
+    public static native long address_of(Object reference);
+
+    /**
+     * Get the monitor lock word stored in the header of the referenced object.
+     *
+     * @param reference the object reference (must not be {@code null})
+     * @return the lock word, or 0 if the monitor is not locked and has not been inflated
+     */
+    public static native long lock_word_of(Object reference);
+
+    /**
+     * Atomically store the monitor lock word into the header of the referenced object if the current value is equal
+     * to the expected value.
+     *
+     * @param reference the object reference (must not be {@code null})
+     * @param expect the expected current lock word
+     * @param update the new lock word
+     * @return the lock word which was stored in the header before the operation
+     */
+    public static native long compare_and_exchange_lock_word(Object reference, long expect, long update);
+
     /**
      * Get the maxTypeId assigned to subclasses of the argument typeId
      */
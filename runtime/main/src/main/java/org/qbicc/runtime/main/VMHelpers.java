@@ -2,23 +2,14 @@ package org.qbicc.runtime.main;
 
 import org.qbicc.runtime.NoSideEffects;
 import org.qbicc.runtime.deserialization.HeapDeserializationError;
-import org.qbicc.runtime.stdc.Stddef;
-
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 
 import static org.qbicc.runtime.CNative.*;
-import static org.qbicc.runtime.posix.PThread.*;
-import static org.qbicc.runtime.stdc.Stdlib.*;
 
 /**
  * Runtime Helpers to support the operation of the compiled code.
  */
 @SuppressWarnings("unused")
 public final class VMHelpers {
-    /* map Java object to native mutex for object monitor bytecodes. */
-    static ConcurrentMap<Object, NativeObjectMonitor> objectMonitorNatives = null;
-
     @NoSideEffects
     public static boolean instanceof_class(Object instance, Class<?> cls) {
         if (instance == null) {
@@ -89,6 +80,38 @@ public final class VMHelpers {
         }
     }
 
+    /**
+     * Get the identity hash code of an object, assigning one if needed.  The hash code is derived from the address of
+     * the object when it is first requested, and is then kept in the object header so that it remains stable.
+     *
+     * @param object the object, or {@code null}
+     * @return the identity hash code, or zero if the object is {@code null}
+     */
+    public static int identity_hash_code(Object object) {
+        if (object == null) {
+            return 0;
+        }
+        int hash = ObjectModel.identity_hash_code_of(object);
+        if (hash == 0) {
+            // mix the address bits (MurmurHash3 finalizer) to spread out aligned addresses
+            long bits = ObjectModel.address_of(object);
+            bits = (bits ^ (bits >>> 33)) * 0xff51afd7ed558ccdL;
+            bits = (bits ^ (bits >>> 33)) * 0xc4ceb9fe1a85ec53L;
+            bits ^= bits >>> 33;
+            hash = (int) bits & 0x7fffffff;
+            if (hash == 0) {
+                // zero means "unassigned"
+                hash = 1;
+            }
+            int witness = ObjectModel.compare_and_exchange_identity_hash_code(object, 0, hash);
+            if (witness != 0) {
+                // another thread got there first
+                hash = witness;
+            }
+        }
+        return hash;
+    }
+
     // TODO: mark this with a "NoInline" annotation
     @NoSideEffects
     static Class<?> classof_from_typeid(type_id typeId) {
@@ -96,52 +119,114 @@ public final class VMHelpers {
         return null; // TODO: Implement this! (or perhaps implement it inline; it should take less code than a call).
     }
 
-    @NoSideEffects
-    private static void omError(c_int nativeErrorCode) throws IllegalMonitorStateException {
-        int errorCode = nativeErrorCode.intValue();
-        if (0 != errorCode) {
-            throw new IllegalMonitorStateException("error code is: " + errorCode);
-        }
-    }
+    // object monitors
+    //
+    // The lock word in the object header is 0 if the monitor is unlocked and has not been inflated.  If the low bit
+    // is set, the rest of the lock word is the address of the inflated monitor (see NativeObjectMonitor).  Otherwise
+    // the monitor is thin-locked: the remaining low bits count recursive entries beyond the first one, and the other
+    // bits hold the address of the owning thread, which is suitably aligned.  The uncontended enter and exit fast
+    // paths, each a single compare-and-swap of the lock word, are emitted inline; these helpers are only called when
+    // the fast path fails.
+
+    static final long LOCK_INFLATED = 0b001;
+    static final long LOCK_COUNT_ONE = 0b010;
+    static final long LOCK_COUNT_MASK = 0b110;
+    static final long LOCK_OWNER_MASK = ~0b111L;
 
     // TODO: mark this with a "NoInline" annotation
     static void monitor_enter(Object object) throws IllegalMonitorStateException {
-        /* TODO: deal with racy nature of this creation */
-        if (objectMonitorNatives == null) {
-            objectMonitorNatives = new ConcurrentHashMap<>();
+        Thread thread = Thread.currentThread();
+        if (thread == null) {
+            // the initial thread is not attached yet, so there is nothing to contend with
+            return;
         }
-
-        // TODO malloc(sizeof(class)) resulted in "invalid coercion of s64 to u64" this is a workaround
-        Stddef.size_t mutexAttrSize = sizeof(pthread_mutexattr_t.class);
-        ptr<?> attrVoid = malloc(word(mutexAttrSize.longValue()));
-        if (attrVoid.isNull()) {
-            throw new OutOfMemoryError(/*"Allocation failed"*/);
+        long self = ObjectModel.address_of(thread);
+        for (;;) {
+            long lock = ObjectModel.lock_word_of(object);
+            if (lock == 0) {
+                if (ObjectModel.compare_and_exchange_lock_word(object, 0, self) == 0) {
+                    return;
+                }
+            } else if ((lock & LOCK_INFLATED) != 0) {
+                NativeObjectMonitor.enter(lock & ~LOCK_INFLATED, self);
+                return;
+            } else if ((lock & LOCK_OWNER_MASK) == self && (lock & LOCK_COUNT_MASK) != LOCK_COUNT_MASK) {
+                if (ObjectModel.compare_and_exchange_lock_word(object, lock, lock + LOCK_COUNT_ONE) == lock) {
+                    return;
+                }
+            } else {
+                // contended, or entered too many times to count in the lock word
+                inflate(object, lock);
+            }
         }
-        ptr<pthread_mutexattr_t> attr = (ptr<pthread_mutexattr_t>)castPtr(attrVoid, pthread_mutexattr_t.class);
+    }
 
-        Stddef.size_t mutexSize = sizeof(pthread_mutex_t.class);
-        ptr<?> mVoid = malloc(word(mutexSize.longValue()));
-        if (attrVoid.isNull()) {
-            throw new OutOfMemoryError(/*"Allocation failed"*/);
+    // TODO: mark this with a "NoInline" annotation
+    static void monitor_exit(Object object) throws IllegalMonitorStateException {
+        Thread thread = Thread.currentThread();
+        if (thread == null) {
+            return;
+        }
+        long self = ObjectModel.address_of(thread);
+        for (;;) {
+            long lock = ObjectModel.lock_word_of(object);
+            if ((lock & LOCK_INFLATED) != 0) {
+                NativeObjectMonitor.exit(lock & ~LOCK_INFLATED, self);
+                return;
+            }
+            if ((lock & LOCK_OWNER_MASK) != self) {
+                throw new IllegalMonitorStateException();
+            }
+            long update = (lock & LOCK_COUNT_MASK) == 0 ? 0 : lock - LOCK_COUNT_ONE;
+            // the CAS only fails if another thread inflated the monitor in the meantime
+            if (ObjectModel.compare_and_exchange_lock_word(object, lock, update) == lock) {
+                return;
+            }
         }
-        ptr<pthread_mutex_t> m = (ptr<pthread_mutex_t>)castPtr(mVoid, pthread_mutex_t.class);
+    }
 
-        omError(pthread_mutexattr_init((pthread_mutexattr_t_ptr)attr));
-        omError(pthread_mutexattr_settype((pthread_mutexattr_t_ptr)attr, PTHREAD_MUTEX_RECURSIVE));
-        omError(pthread_mutex_init((pthread_mutex_t_ptr)m, (const_pthread_mutexattr_t_ptr)attr));
-        omError(pthread_mutexattr_destroy((pthread_mutexattr_t_ptr)attr));
-        free(attrVoid);
+    static void monitor_wait(Object object, long millis) throws IllegalMonitorStateException {
+        if (millis < 0) {
+            throw new IllegalArgumentException("timeout value is negative");
+        }
+        Thread thread = Thread.currentThread();
+        if (thread == null) {
+            return;
+        }
+        long self = ObjectModel.address_of(thread);
+        // waiting always needs the inflated monitor
+        long lock = ObjectModel.lock_word_of(object);
+        while ((lock & LOCK_INFLATED) == 0) {
+            if ((lock & LOCK_OWNER_MASK) != self) {
+                throw new IllegalMonitorStateException();
+            }
+            inflate(object, lock);
+            lock = ObjectModel.lock_word_of(object);
+        }
+        NativeObjectMonitor.wait(lock & ~LOCK_INFLATED, self, millis);
+    }
 
-        // TODO acquire monitor and add to hash map
+    static void monitor_notify(Object object, boolean all) throws IllegalMonitorStateException {
+        Thread thread = Thread.currentThread();
+        if (thread == null) {
+            return;
+        }
+        long self = ObjectModel.address_of(thread);
+        long lock = ObjectModel.lock_word_of(object);
+        if ((lock & LOCK_INFLATED) != 0) {
+            NativeObjectMonitor.notify(lock & ~LOCK_INFLATED, self, all);
+        } else if ((lock & LOCK_OWNER_MASK) != self) {
+            throw new IllegalMonitorStateException();
+        }
+        // otherwise the monitor was never inflated, so nobody can be waiting on it
     }
 
-    // TODO: mark this with a "NoInline" annotation
-    static void monitor_exit(Object object) throws IllegalMonitorStateException {
-//        NativeObjectMonitor monitor = objectMonitorNatives.get(object);
-//        if (null == monitor) {
-//            throw new IllegalMonitorStateException("monitor could not be found for monitorexit");
-//        }
-//        omError(pthread_mutex_unlock(monitor.getPthreadMutex()));
+    private static void inflate(Object object, long lock) {
+        long monitor = NativeObjectMonitor.create(lock & LOCK_OWNER_MASK, (lock & LOCK_COUNT_MASK) >>> 1);
+        if (ObjectModel.compare_and_exchange_lock_word(object, lock, monitor | LOCK_INFLATED) != lock) {
+            // the lock word changed; the caller will retry
+            NativeObjectMonitor.destroy(monitor);
+        }
     }
 
     // TODO: mark this with a "NoInline" annotation
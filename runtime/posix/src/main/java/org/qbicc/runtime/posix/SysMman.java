@@ -0,0 +1,31 @@
+package org.qbicc.runtime.posix;
+
+import static org.qbicc.runtime.CNative.*;
+import static org.qbicc.runtime.posix.SysTypes.*;
+import static org.qbicc.runtime.stdc.Stddef.*;
+
+import org.qbicc.runtime.Build;
+
+/**
+ *
+ */
+@include(value = "<sys/mman.h>", when = Build.Target.IsPosix.class)
+@define(value = "_DEFAULT_SOURCE", when = Build.Target.IsLinux.class)
+public final class SysMman {
+    private SysMman() {}
+
+    public static native void_ptr mmap(void_ptr addr, size_t len, c_int prot, c_int flags, c_int fd, off_t offset);
+
+    public static native c_int munmap(void_ptr addr, size_t len);
+
+    public static final c_int PROT_NONE = constant();
+    public static final c_int PROT_READ = constant();
+    public static final c_int PROT_WRITE = constant();
+    public static final c_int PROT_EXEC = constant();
+
+    public static final c_int MAP_SHARED = constant();
+    public static final c_int MAP_PRIVATE = constant();
+    public static final c_int MAP_FIXED = constant();
+    // not POSIX, but supported everywhere we care about
+    public static final c_int MAP_ANON = constant();
+}
@@ -0,0 +1,22 @@
+package org.qbicc.runtime.posix;
+
+import static org.qbicc.runtime.CNative.*;
+import static org.qbicc.runtime.stdc.Time.*;
+
+import org.qbicc.runtime.Build;
+
+/**
+ * POSIX extensions to {@code <time.h>}.
+ */
+@include(value = "<time.h>", when = Build.Target.IsPosix.class)
+@define(value = "_POSIX_C_SOURCE", as = "200809L")
+public final class Time {
+    private Time() {}
+
+    public static final class clockid_t extends word {}
+
+    public static final clockid_t CLOCK_REALTIME = constant();
+    public static final clockid_t CLOCK_MONOTONIC = constant();
+
+    public static native c_int clock_gettime(clockid_t clockId, struct_timespec_ptr tp);
+}